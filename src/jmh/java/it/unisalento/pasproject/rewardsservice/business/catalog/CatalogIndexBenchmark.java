@@ -0,0 +1,139 @@
+package it.unisalento.pasproject.rewardsservice.business.catalog;
+
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import it.unisalento.pasproject.rewardsservice.business.search.RewardQueryTemplate;
+import it.unisalento.pasproject.rewardsservice.business.search.RewardSearchSpec;
+import it.unisalento.pasproject.rewardsservice.business.search.RewardSort;
+import it.unisalento.pasproject.rewardsservice.domain.Reward;
+import it.unisalento.pasproject.rewardsservice.dto.RewardDTO;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.index.Index;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Faceted /find search on the in-memory {@link CatalogIndex} compared with the same query on Mongo.
+ * <p>
+ * Both sides hold {@code rewards} generated rewards spread over 20 categories and 5 subcategories each.
+ * {@code mongo} runs the compiled query of the search shape, as RewardService does on a cache miss,
+ * against the database at {@code -Djmh.mongo.uri} (default {@code mongodb://localhost:27017}),
+ * in a throwaway {@code rewards-benchmark} database.
+ * </p>
+ * Run with {@code ./gradlew jmh -Pjmh.includes=CatalogIndexBenchmark}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CatalogIndexBenchmark {
+
+    private static final String DATABASE = "rewards-benchmark";
+
+    @Param({"10000", "50000"})
+    private int rewards;
+
+    private CatalogIndex index;
+    private MongoClient mongoClient;
+    private MongoTemplate mongoTemplate;
+
+    private RewardSearchSpec categoryPage;
+    private RewardSearchSpec facetedTop;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        List<Reward> generated = new ArrayList<>(rewards);
+        for (int i = 0; i < rewards; i++) {
+            Reward reward = new Reward();
+            reward.setId(String.format("%024x", i));
+            reward.setName("Reward " + i);
+            reward.setCategory("category" + random.nextInt(20));
+            reward.setSubcategory("subcategory" + random.nextInt(5));
+            reward.setActive(random.nextInt(10) > 0);
+            reward.setQuantity(random.nextInt(100));
+            reward.setSold(random.nextInt(1000));
+            reward.setCost(1 + random.nextInt(50000) / 100.0);
+            reward.setAddDate(LocalDateTime.of(2024, 1, 1, 0, 0).plusMinutes(random.nextInt(500000)));
+            generated.add(reward);
+        }
+
+        index = CatalogIndex.of(CatalogSnapshot.of(1, generated.stream().map(CatalogIndexBenchmark::toDTO).toList()));
+
+        mongoClient = MongoClients.create(System.getProperty("jmh.mongo.uri", "mongodb://localhost:27017"));
+        mongoTemplate = new MongoTemplate(mongoClient, DATABASE);
+        mongoTemplate.dropCollection(Reward.class);
+        mongoTemplate.insert(generated, Reward.class);
+        mongoTemplate.indexOps(Reward.class).ensureIndex(new Index()
+                .on("active", Sort.Direction.ASC)
+                .on("category", Sort.Direction.ASC)
+                .on("subcategory", Sort.Direction.ASC)
+                .named("catalog_filter_idx"));
+
+        categoryPage = RewardSearchSpec.builder()
+                .category("category7")
+                .limit(51)
+                .build();
+        facetedTop = RewardSearchSpec.builder()
+                .category("category3")
+                .subcategory("subcategory2")
+                .minQuantity(1)
+                .minCost(50.0).maxCost(300.0)
+                .sort(RewardSort.POPULAR)
+                .limit(20)
+                .build();
+    }
+
+    @TearDown
+    public void tearDown() {
+        mongoClient.getDatabase(DATABASE).drop();
+        mongoClient.close();
+    }
+
+    @Benchmark
+    public void indexCategoryPage(Blackhole blackhole) {
+        blackhole.consume(index.search(categoryPage));
+    }
+
+    @Benchmark
+    public void mongoCategoryPage(Blackhole blackhole) {
+        blackhole.consume(mongo(categoryPage));
+    }
+
+    @Benchmark
+    public void indexFacetedTop(Blackhole blackhole) {
+        blackhole.consume(index.search(facetedTop));
+    }
+
+    @Benchmark
+    public void mongoFacetedTop(Blackhole blackhole) {
+        blackhole.consume(mongo(facetedTop));
+    }
+
+    private List<Reward> mongo(RewardSearchSpec spec) {
+        return mongoTemplate.find(RewardQueryTemplate.compile(spec.shape()).bind(spec), Reward.class);
+    }
+
+    private static RewardDTO toDTO(Reward reward) {
+        RewardDTO rewardDTO = new RewardDTO();
+        rewardDTO.setId(reward.getId());
+        rewardDTO.setName(reward.getName());
+        rewardDTO.setCost(reward.getCost());
+        rewardDTO.setCategory(reward.getCategory());
+        rewardDTO.setSubcategory(reward.getSubcategory());
+        rewardDTO.setAddDate(reward.getAddDate());
+        rewardDTO.setActive(reward.isActive());
+        rewardDTO.setQuantity(reward.getQuantity());
+        rewardDTO.setSold(reward.getSold());
+        return rewardDTO;
+    }
+}
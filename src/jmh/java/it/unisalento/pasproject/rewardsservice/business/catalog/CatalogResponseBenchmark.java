@@ -0,0 +1,100 @@
+package it.unisalento.pasproject.rewardsservice.business.catalog;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import it.unisalento.pasproject.rewardsservice.business.pagination.PageCursor;
+import it.unisalento.pasproject.rewardsservice.dto.ListRewardDTO;
+import it.unisalento.pasproject.rewardsservice.dto.RewardDTO;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of a GET /all page served by serializing the DTOs on every request, as before,
+ * compared with copying the bytes kept by {@link CatalogResponseCache}.
+ * <p>
+ * {@code serialized} builds the ListRewardDTO page and serializes it with Jackson;
+ * {@code cachedJson} and {@code cachedGzip} look up the page in a warm cache and copy it to the output,
+ * like the controller does when the client does or does not accept gzip.
+ * </p>
+ * Run with {@code ./gradlew jmh -Pjmh.includes=CatalogResponseBenchmark}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CatalogResponseBenchmark {
+
+    @Param({"50", "200"})
+    private int pageSize;
+
+    private ObjectMapper objectMapper;
+    private CatalogSnapshot snapshot;
+    private CatalogResponseCache cache;
+
+    @Setup
+    public void setUp() {
+        objectMapper = new ObjectMapper().registerModule(new JavaTimeModule());
+
+        List<RewardDTO> rewards = new ArrayList<>();
+        for (int i = 0; i < 10000; i++) {
+            RewardDTO reward = new RewardDTO();
+            reward.setId(String.format("%024x", i));
+            reward.setName("Reward " + i);
+            reward.setDescription("Description of reward " + i + ", long enough to look like a real product description.");
+            reward.setImage("https://cdn.example.com/rewards/" + i + ".png");
+            reward.setCategory("category" + i % 20);
+            reward.setSubcategory("subcategory" + i % 5);
+            reward.setCost(10 + i % 500);
+            reward.setOldCost(12 + i % 500);
+            reward.setAddDate(LocalDateTime.of(2024, 1, 1, 0, 0).plusMinutes(i));
+            reward.setActive(true);
+            reward.setQuantity(i % 100);
+            reward.setSold(i % 1000);
+            rewards.add(reward);
+        }
+        snapshot = CatalogSnapshot.of(1, rewards);
+
+        cache = new CatalogResponseCache(objectMapper, 1000);
+        cache.page(snapshot, true, pageSize, null, this::page);
+    }
+
+    @Benchmark
+    public void serialized(Blackhole blackhole) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        objectMapper.writeValue(out, page());
+        blackhole.consume(out);
+    }
+
+    @Benchmark
+    public void cachedJson(Blackhole blackhole) {
+        blackhole.consume(copy(cache.page(snapshot, true, pageSize, null, this::page).json()));
+    }
+
+    @Benchmark
+    public void cachedGzip(Blackhole blackhole) {
+        blackhole.consume(copy(cache.page(snapshot, true, pageSize, null, this::page).gzip()));
+    }
+
+    private ListRewardDTO page() {
+        List<RewardDTO> fetched = snapshot.page(true, null, pageSize + 1);
+        ListRewardDTO listRewardDTO = new ListRewardDTO();
+        listRewardDTO.setRewards(PageCursor.page(fetched, pageSize));
+        listRewardDTO.setNextCursor(PageCursor.next(fetched, pageSize, RewardDTO::getId));
+        return listRewardDTO;
+    }
+
+    private static ByteArrayOutputStream copy(byte[] body) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(body.length);
+        out.write(body, 0, body.length);
+        return out;
+    }
+}
@@ -0,0 +1,66 @@
+package it.unisalento.pasproject.rewardsservice.business.reedem;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Redeem code generation under contention, 8 threads asking for codes at the same time.
+ * <p>
+ * {@code newSecureRandom} reproduces the previous RedeemUtils.generateSafeToken, building a SecureRandom per code.
+ * {@code threadLocal} generates on the caller thread with the per-thread DRBG, {@code buffered} takes the codes
+ * from the prefilled buffer and {@code shortCode} generates the checksummed format.
+ * </p>
+ * Throughput gives the codes per second, SampleTime the latency percentiles (p0.99, p0.999).
+ * Run with {@code ./gradlew jmh -Pjmh.includes=RedeemCodeBenchmark}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(8)
+@Fork(1)
+public class RedeemCodeBenchmark {
+
+    private RedeemCodeGenerator unbuffered;
+    private RedeemCodeGenerator buffered;
+    private RedeemCodeGenerator shortCodes;
+
+    @Setup
+    public void setUp() {
+        unbuffered = new RedeemCodeGenerator(RedeemCodeGenerator.Format.TOKEN, RedeemCodeGenerator.DEFAULT_ALPHABET, 16, 4, 0);
+        buffered = new RedeemCodeGenerator(RedeemCodeGenerator.Format.TOKEN, RedeemCodeGenerator.DEFAULT_ALPHABET, 16, 4, 1024);
+        shortCodes = new RedeemCodeGenerator(RedeemCodeGenerator.Format.SHORT, RedeemCodeGenerator.DEFAULT_ALPHABET, 16, 4, 0);
+    }
+
+    @TearDown
+    public void tearDown() {
+        buffered.shutdown();
+    }
+
+    @Benchmark
+    public String newSecureRandom() {
+        SecureRandom random = new SecureRandom();
+        byte[] bytes = new byte[32];
+        random.nextBytes(bytes);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+    }
+
+    @Benchmark
+    public String threadLocal() {
+        return unbuffered.next();
+    }
+
+    @Benchmark
+    public String buffered() {
+        return buffered.next();
+    }
+
+    @Benchmark
+    public String shortCode() {
+        return shortCodes.next();
+    }
+}
@@ -0,0 +1,83 @@
+package it.unisalento.pasproject.rewardsservice.security;
+
+import io.jsonwebtoken.Claims;
+import io.jsonwebtoken.Jwts;
+import io.jsonwebtoken.security.Keys;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.springframework.security.core.userdetails.User;
+import org.springframework.security.core.userdetails.UserDetails;
+
+import java.nio.charset.StandardCharsets;
+import java.security.Key;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-request cost of token handling in JwtAuthenticationFilter.
+ * <p>
+ * {@code uncached} reproduces the previous behaviour: five full parse-and-verify passes per request
+ * (extractUsername, extractRole, then validateToken parsing the token three more times).
+ * {@code cached} runs the current filter sequence against a warm {@link JwtClaimsCache}.
+ * </p>
+ * Run with {@code ./gradlew jmh -Pjmh.includes=JwtUtilitiesBenchmark}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class JwtUtilitiesBenchmark {
+
+    private static final String SECRET = "benchmark-secret-key-that-is-long-enough-for-hs256";
+
+    private Key key;
+    private String token;
+    private UserDetails userDetails;
+    private JwtUtilities jwtUtilities;
+
+    @Setup
+    public void setUp() {
+        key = Keys.hmacShaKeyFor(SECRET.getBytes(StandardCharsets.UTF_8));
+        token = Jwts.builder()
+                .setSubject("member@example.com")
+                .claim("role", "MEMBRO")
+                .setIssuedAt(new Date())
+                .setExpiration(new Date(System.currentTimeMillis() + TimeUnit.HOURS.toMillis(1)))
+                .signWith(key)
+                .compact();
+        userDetails = User.builder()
+                .username("member@example.com")
+                .password("")
+                .authorities("MEMBRO")
+                .build();
+        jwtUtilities = new JwtUtilities(key, new JwtClaimsCache(10000));
+        jwtUtilities.extractClaims(token);
+    }
+
+    @Benchmark
+    public void uncached(Blackhole blackhole) {
+        blackhole.consume(parse().getSubject());
+        blackhole.consume(parse().get("role", String.class));
+        blackhole.consume(parse().getSubject());
+        blackhole.consume(parse().get("role", String.class));
+        blackhole.consume(parse().getExpiration());
+    }
+
+    @Benchmark
+    public void cached(Blackhole blackhole) {
+        VerifiedClaims claims = jwtUtilities.extractClaims(token);
+        blackhole.consume(claims.getSubject());
+        blackhole.consume(claims.getRole());
+        blackhole.consume(jwtUtilities.validateToken(token, userDetails, "MEMBRO"));
+    }
+
+    private Claims parse() {
+        return Jwts.parserBuilder()
+                .setSigningKey(key)
+                .build()
+                .parseClaimsJws(token)
+                .getBody();
+    }
+}
@@ -0,0 +1,62 @@
+package it.unisalento.pasproject.rewardsservice.business.cache;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Supplier;
+
+/**
+ * Coalesces concurrent calls for the same key into a single execution.
+ * <p>
+ * The first caller for a key starts the loader; callers arriving while it is still running
+ * receive the same future, so a result, a failure or a timeout reaches every waiter.
+ * The key is released as soon as the call completes.
+ * </p>
+ * @param <K> the key type
+ * @param <V> the result type
+ */
+public class SingleFlight<K, V> {
+
+    private final ConcurrentMap<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+
+    /**
+     * Start the loader for the key, or join the call already in progress
+     * @param key the key identifying the call
+     * @param loader the asynchronous call to start if no other caller started it
+     * @return a future shared by every caller of the same in-flight call
+     */
+    public CompletableFuture<V> execute(K key, Supplier<CompletableFuture<V>> loader) {
+        CompletableFuture<V> call = new CompletableFuture<>();
+        CompletableFuture<V> running = inFlight.putIfAbsent(key, call);
+
+        if (running != null) {
+            return running;
+        }
+
+        CompletableFuture<V> loading;
+        try {
+            loading = loader.get();
+        } catch (RuntimeException e) {
+            loading = CompletableFuture.failedFuture(e);
+        }
+
+        loading.whenComplete((result, error) -> {
+            // Si libera la chiave prima di completare, così chi arriva dopo avvia una nuova chiamata
+            inFlight.remove(key, call);
+            if (error != null) {
+                call.completeExceptionally(error);
+            } else {
+                call.complete(result);
+            }
+        });
+
+        return call;
+    }
+
+    /**
+     * @return the number of keys with a call in progress
+     */
+    public int inFlight() {
+        return inFlight.size();
+    }
+}
@@ -0,0 +1,202 @@
+package it.unisalento.pasproject.rewardsservice.business.cache;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import it.unisalento.pasproject.rewardsservice.dto.UserDetailsDTO;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded TTL cache of the user details returned by the CQRS service.
+ * <p>
+ * Entries live at most {@code ttlMillis} and are dropped earlier when the security service
+ * publishes a user-changed or user-disabled event. Hit, miss and eviction counters are
+ * published as Micrometer meters under {@code rewards.user.cache.*}.
+ * </p>
+ * <p>
+ * Every invalidation advances a generation counter. A lookup reads the {@link #generation()} before asking the
+ * CQRS service and passes it to {@link #put(String, UserDetailsDTO, long)}: a reply that was requested before an
+ * invalidation is not cached, so an event arriving while the request is in flight is never overwritten by it.
+ * </p>
+ */
+@Component
+public class UserDetailsCache implements MeterBinder {
+
+    private record Entry(UserDetailsDTO user, long expiresAt) {}
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    private final long ttlMillis;
+    private final int maxSize;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+    private final AtomicLong generation = new AtomicLong();
+
+    @Autowired
+    public UserDetailsCache(@Value("${security.user-cache.ttl-ms:30000}") long ttlMillis,
+                            @Value("${security.user-cache.max-size:10000}") int maxSize) {
+        this.ttlMillis = ttlMillis;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Get the cached user details
+     * @param email the email of the user
+     * @return the cached details, or null if absent or expired
+     */
+    public UserDetailsDTO get(String email) {
+        Entry entry = entries.get(email);
+
+        if (entry == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+
+        if (entry.expiresAt() <= System.currentTimeMillis()) {
+            if (entries.remove(email, entry)) {
+                evictions.incrementAndGet();
+            }
+            misses.incrementAndGet();
+            return null;
+        }
+
+        hits.incrementAndGet();
+        return entry.user();
+    }
+
+    /**
+     * The current invalidation generation, to be read before starting a lookup
+     */
+    public long generation() {
+        return generation.get();
+    }
+
+    /**
+     * Cache the user details, unless some invalidation happened since the lookup started
+     * @param email the email of the user
+     * @param user the details returned by the CQRS service
+     * @param since the {@link #generation()} read before the lookup
+     * @return true if the details were cached
+     */
+    public boolean put(String email, UserDetailsDTO user, long since) {
+        if (user == null || ttlMillis <= 0 || maxSize <= 0) {
+            return false;
+        }
+
+        if (entries.size() >= maxSize && !entries.containsKey(email)) {
+            evict();
+        }
+
+        // Controllo e scrittura sotto il lock della chiave, lo stesso preso da invalidate
+        boolean[] stored = new boolean[1];
+        entries.compute(email, (key, current) -> {
+            if (generation.get() != since) {
+                return current;
+            }
+            stored[0] = true;
+            return new Entry(user, System.currentTimeMillis() + ttlMillis);
+        });
+        return stored[0];
+    }
+
+    /**
+     * Remove the user from the cache, so that the next request asks the CQRS service again.
+     * Lookups already in flight will not cache their reply.
+     * @param email the email of the user
+     */
+    public void invalidate(String email) {
+        if (email == null) {
+            return;
+        }
+
+        entries.compute(email, (key, current) -> {
+            generation.incrementAndGet();
+            if (current != null) {
+                invalidations.incrementAndGet();
+            }
+            return null;
+        });
+    }
+
+    public void invalidateAll() {
+        generation.incrementAndGet();
+        invalidations.addAndGet(entries.size());
+        entries.clear();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public long getInvalidations() {
+        return invalidations.get();
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        FunctionCounter.builder("rewards.user.cache.hits", this, UserDetailsCache::getHits)
+                .description("User details served from the cache")
+                .register(registry);
+        FunctionCounter.builder("rewards.user.cache.misses", this, UserDetailsCache::getMisses)
+                .description("User details lookups that went to the CQRS service")
+                .register(registry);
+        FunctionCounter.builder("rewards.user.cache.evictions", this, UserDetailsCache::getEvictions)
+                .description("Entries dropped because of TTL or size limit")
+                .register(registry);
+        FunctionCounter.builder("rewards.user.cache.invalidations", this, UserDetailsCache::getInvalidations)
+                .description("Entries dropped by user-changed and user-disabled events")
+                .register(registry);
+        Gauge.builder("rewards.user.cache.size", this, UserDetailsCache::size)
+                .description("Current number of cached users")
+                .register(registry);
+    }
+
+    /**
+     * Drops expired entries and, if the cache is still full, an arbitrary tenth of the remaining ones.
+     */
+    private void evict() {
+        long now = System.currentTimeMillis();
+        Iterator<Entry> expired = entries.values().iterator();
+        while (expired.hasNext()) {
+            if (expired.next().expiresAt() <= now) {
+                expired.remove();
+                evictions.incrementAndGet();
+            }
+        }
+
+        if (entries.size() < maxSize) {
+            return;
+        }
+
+        int toRemove = entries.size() - maxSize + Math.max(1, maxSize / 10);
+        Iterator<String> iterator = entries.keySet().iterator();
+        while (toRemove-- > 0 && iterator.hasNext()) {
+            iterator.next();
+            iterator.remove();
+            evictions.incrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package it.unisalento.pasproject.rewardsservice.business.catalog;
+
+import java.util.Set;
+
+/**
+ * Notified by {@link RewardCatalog} every time a new catalog snapshot is published.
+ * <p>
+ * Listeners are called after the new snapshot is visible to readers and outside the catalog lock, by one thread
+ * at a time. Changes made while a notification is running are coalesced: the next call gets the latest snapshot
+ * and all the ids changed since the previous call, so snapshot versions may skip. The calling thread is a writer,
+ * so listeners should only do cheap work such as dropping derived caches, and hand anything heavier to another thread.
+ * </p>
+ */
+public interface CatalogChangeListener {
+
+    /**
+     * @param snapshot the new snapshot
+     * @param changedIds the ids of the rewards added, changed or removed since the previous call
+     */
+    void onCatalogChanged(CatalogSnapshot snapshot, Set<String> changedIds);
+}
@@ -0,0 +1,61 @@
+package it.unisalento.pasproject.rewardsservice.business.catalog;
+
+import it.unisalento.pasproject.rewardsservice.business.io.producer.MessageProducer;
+import it.unisalento.pasproject.rewardsservice.dto.CatalogChangeDTO;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Publishes the ids of the rewards changed by this replica on the data exchange,
+ * so the other replicas can refresh them in their own {@link RewardCatalog}.
+ */
+@Component
+public class CatalogEventPublisher {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CatalogEventPublisher.class);
+
+    private final MessageProducer messageProducer;
+
+    // Ogni replica riceve anche i propri eventi e li deve riconoscere
+    private final String instanceId = UUID.randomUUID().toString();
+
+    @Value("${rabbitmq.exchange.data.name}")
+    private String dataExchange;
+
+    @Value("${rabbitmq.routing.catalogChanged.key}")
+    private String catalogChangedRoutingKey;
+
+    @Autowired
+    public CatalogEventPublisher(MessageProducer messageProducer) {
+        this.messageProducer = messageProducer;
+    }
+
+    public void publish(Collection<String> rewardIds) {
+        CatalogChangeDTO event = new CatalogChangeDTO();
+        event.setOrigin(instanceId);
+        event.setRewardIds(List.copyOf(rewardIds));
+
+        try {
+            messageProducer.sendMessage(event, catalogChangedRoutingKey, dataExchange)
+                    .thenAccept(delivered -> {
+                        if (!delivered) {
+                            LOGGER.error("Catalog change for {} rewards not delivered", rewardIds.size());
+                        }
+                    });
+        } catch (RuntimeException e) {
+            // Le altre repliche si riallineano comunque al prossimo ricaricamento periodico
+            LOGGER.error("Error publishing catalog change for {} rewards: {}", rewardIds.size(), e.getMessage());
+        }
+    }
+
+    public boolean isLocal(CatalogChangeDTO event) {
+        return instanceId.equals(event.getOrigin());
+    }
+}
@@ -0,0 +1,209 @@
+package it.unisalento.pasproject.rewardsservice.business.catalog;
+
+import it.unisalento.pasproject.rewardsservice.business.search.RewardSearchSpec;
+import it.unisalento.pasproject.rewardsservice.business.search.RewardSort;
+import it.unisalento.pasproject.rewardsservice.dto.RewardDTO;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+/**
+ * Columnar index of a {@link CatalogSnapshot}, answering reward searches without the database.
+ * <p>
+ * Every reward is a row, in id order. Quantity, sold and cost are kept in primitive arrays and filtered
+ * with a range scan; active, name, category and subcategory are dictionary encoded, with one bitmap of rows
+ * per distinct value, and filtered by intersecting the bitmaps. The row order of every sort is computed
+ * when the index is built, so a sorted search only walks that order until the limit is reached.
+ * </p>
+ * Like the snapshot it is built from, the index is immutable.
+ */
+public final class CatalogIndex {
+
+    private static final BitSet NONE = new BitSet();
+
+    private final long version;
+    private final RewardDTO[] rows;
+
+    private final int[] quantity;
+    private final int[] sold;
+    private final double[] cost;
+
+    private final BitSet active = new BitSet();
+    private final BitSet inactive = new BitSet();
+    private final Dictionary names = new Dictionary();
+    private final Dictionary categories = new Dictionary();
+    private final Dictionary subcategories = new Dictionary();
+
+    private final Map<RewardSort, int[]> orders = new EnumMap<>(RewardSort.class);
+
+    private CatalogIndex(CatalogSnapshot snapshot) {
+        List<RewardDTO> all = snapshot.getAll();
+        int size = all.size();
+
+        this.version = snapshot.getVersion();
+        this.rows = all.toArray(new RewardDTO[0]);
+        this.quantity = new int[size];
+        this.sold = new int[size];
+        this.cost = new double[size];
+
+        for (int row = 0; row < size; row++) {
+            RewardDTO reward = rows[row];
+            quantity[row] = reward.getQuantity();
+            sold[row] = reward.getSold();
+            cost[row] = reward.getCost();
+            (reward.isActive() ? active : inactive).set(row);
+            names.add(reward.getName(), row);
+            categories.add(reward.getCategory(), row);
+            subcategories.add(reward.getSubcategory(), row);
+        }
+
+        // Le righe sono già in ordine di id e l'ordinamento è stabile: a parità di valore resta l'ordine per id
+        Comparator<LocalDateTime> dates = Comparator.nullsFirst(Comparator.naturalOrder());
+        Comparator<String> strings = Comparator.nullsFirst(Comparator.naturalOrder());
+        orders.put(RewardSort.COST_ASC, order(Comparator.comparingDouble(row -> cost[row])));
+        orders.put(RewardSort.COST_DESC, order(Comparator.<Integer>comparingDouble(row -> cost[row]).reversed()));
+        orders.put(RewardSort.POPULAR, order(Comparator.<Integer>comparingInt(row -> sold[row]).reversed()));
+        orders.put(RewardSort.NEWEST, order(Comparator.<Integer, LocalDateTime>comparing(row -> rows[row].getAddDate(), dates).reversed()));
+        orders.put(RewardSort.NAME, order(Comparator.comparing(row -> rows[row].getName(), strings)));
+    }
+
+    public static CatalogIndex of(CatalogSnapshot snapshot) {
+        return new CatalogIndex(snapshot);
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public int size() {
+        return rows.length;
+    }
+
+    /**
+     * Evaluate the search on the index, with the same semantics as the database query
+     * @param spec the filters, ordering and limit of the search
+     * @return the matching rewards, shared with the snapshot and not to be modified
+     */
+    public List<RewardDTO> search(RewardSearchSpec spec) {
+        BitSet matches = (BitSet) (spec.isActiveOnly() ? active : inactive).clone();
+
+        if (spec.getName() != null) {
+            matches.and(names.rows(spec.getName()));
+        }
+        if (spec.getCategory() != null) {
+            matches.and(categories.rows(spec.getCategory()));
+        }
+        if (spec.getSubcategory() != null) {
+            matches.and(subcategories.rows(spec.getSubcategory()));
+        }
+        if (spec.getAfterId() != null) {
+            matches.clear(0, firstRowAfter(spec.getAfterId()));
+        }
+
+        scanRanges(spec, matches);
+
+        return collect(spec, matches);
+    }
+
+    private void scanRanges(RewardSearchSpec spec, BitSet matches) {
+        if (spec.getMinQuantity() == null && spec.getMaxQuantity() == null
+                && spec.getMinSold() == null && spec.getMaxSold() == null
+                && spec.getMinCost() == null && spec.getMaxCost() == null) {
+            return;
+        }
+
+        int minQuantity = spec.getMinQuantity() != null ? spec.getMinQuantity() : Integer.MIN_VALUE;
+        int maxQuantity = spec.getMaxQuantity() != null ? spec.getMaxQuantity() : Integer.MAX_VALUE;
+        int minSold = spec.getMinSold() != null ? spec.getMinSold() : Integer.MIN_VALUE;
+        int maxSold = spec.getMaxSold() != null ? spec.getMaxSold() : Integer.MAX_VALUE;
+        double minCost = spec.getMinCost() != null ? spec.getMinCost() : Double.NEGATIVE_INFINITY;
+        double maxCost = spec.getMaxCost() != null ? spec.getMaxCost() : Double.POSITIVE_INFINITY;
+
+        for (int row = matches.nextSetBit(0); row >= 0; row = matches.nextSetBit(row + 1)) {
+            if (quantity[row] < minQuantity || quantity[row] > maxQuantity
+                    || sold[row] < minSold || sold[row] > maxSold
+                    || cost[row] < minCost || cost[row] > maxCost) {
+                matches.clear(row);
+            }
+        }
+    }
+
+    private List<RewardDTO> collect(RewardSearchSpec spec, BitSet matches) {
+        int limit = Math.min(spec.getLimit(), matches.cardinality());
+        if (limit <= 0) {
+            return List.of();
+        }
+
+        List<RewardDTO> found = new ArrayList<>(limit);
+        int[] order = orders.get(spec.getSort());
+
+        if (order == null) {
+            for (int row = matches.nextSetBit(0); row >= 0 && found.size() < limit; row = matches.nextSetBit(row + 1)) {
+                found.add(rows[row]);
+            }
+        } else {
+            for (int i = 0; i < order.length && found.size() < limit; i++) {
+                if (matches.get(order[i])) {
+                    found.add(rows[order[i]]);
+                }
+            }
+        }
+
+        return Collections.unmodifiableList(found);
+    }
+
+    // Prima riga con id maggiore di quello del cursore
+    private int firstRowAfter(String afterId) {
+        int low = 0;
+        int high = rows.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (rows[mid].getId().compareTo(afterId) <= 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private int[] order(Comparator<Integer> comparator) {
+        return IntStream.range(0, rows.length)
+                .boxed()
+                .sorted(comparator)
+                .mapToInt(Integer::intValue)
+                .toArray();
+    }
+
+    /**
+     * Distinct values of a column, each with the bitmap of the rows holding it
+     */
+    private static final class Dictionary {
+        private final Map<String, Integer> codes = new HashMap<>();
+        private final List<BitSet> bitmaps = new ArrayList<>();
+
+        void add(String value, int row) {
+            if (value == null) {
+                return;
+            }
+            int code = codes.computeIfAbsent(value, v -> {
+                bitmaps.add(new BitSet());
+                return bitmaps.size() - 1;
+            });
+            bitmaps.get(code).set(row);
+        }
+
+        BitSet rows(String value) {
+            Integer code = codes.get(value);
+            return code != null ? bitmaps.get(code) : NONE;
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package it.unisalento.pasproject.rewardsservice.business.catalog;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Catalog responses serialized once per catalog version.
+ * <p>
+ * Pages of {@code /all} are keyed by catalog version, role and page, single rewards by the version in which the
+ * reward last changed. Each body is kept as JSON bytes and gzipped bytes, ready to be written to the response,
+ * together with a hash of its content to be used as ETag: unlike the catalog versions, counted by each replica,
+ * the hash is the same on every replica serving the same rewards.
+ * On a catalog change the pages are dropped, together with the bodies of the rewards that changed.
+ * </p>
+ */
+@Component
+public class CatalogResponseCache implements CatalogChangeListener {
+
+    /**
+     * @param json the serialized response
+     * @param gzip the same response, gzipped
+     * @param hash hash of the JSON bytes, hex encoded
+     */
+    public record Body(byte[] json, byte[] gzip, String hash) {
+    }
+
+    private record PageKey(long version, boolean activeOnly, int size, String afterId) {
+    }
+
+    private record RewardKey(String id, long version) {
+    }
+
+    private final ObjectMapper objectMapper;
+    private final int maxEntries;
+
+    private final Map<PageKey, Body> pages = new ConcurrentHashMap<>();
+    private final Map<RewardKey, Body> rewards = new ConcurrentHashMap<>();
+
+    @Autowired
+    public CatalogResponseCache(ObjectMapper objectMapper, @Value("${catalog.response-cache.max-entries:1000}") int maxEntries) {
+        this.objectMapper = objectMapper;
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * @param snapshot the snapshot the page is read from
+     * @param response builds the response on a miss
+     * @return the serialized page
+     */
+    public Body page(CatalogSnapshot snapshot, boolean activeOnly, int size, String afterId, Supplier<Object> response) {
+        return get(pages, new PageKey(snapshot.getVersion(), activeOnly, size, afterId), response);
+    }
+
+    /**
+     * @param snapshot the snapshot holding the reward
+     * @param id the reward id, present in the snapshot
+     * @param response builds the response on a miss
+     * @return the serialized reward
+     */
+    public Body reward(CatalogSnapshot snapshot, String id, Supplier<Object> response) {
+        long version = snapshot.stampOf(id).map(CatalogSnapshot.Stamp::version).orElse(snapshot.getVersion());
+        return get(rewards, new RewardKey(id, version), response);
+    }
+
+    @Override
+    public void onCatalogChanged(CatalogSnapshot snapshot, Set<String> changedIds) {
+        pages.clear();
+        rewards.keySet().removeIf(key -> changedIds.contains(key.id()));
+    }
+
+    public void clear() {
+        pages.clear();
+        rewards.clear();
+    }
+
+    /**
+     * @param acceptEncoding the Accept-Encoding header of the request, may be null
+     * @return true if the client accepts a gzipped body
+     */
+    public static boolean acceptsGzip(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        for (String coding : acceptEncoding.split(",")) {
+            String[] parts = coding.trim().split(";");
+            if (parts[0].trim().equalsIgnoreCase("gzip")) {
+                return parts.length == 1 || !parts[1].replace(" ", "").matches("q=0(\\.0*)?");
+            }
+        }
+        return false;
+    }
+
+    private <K> Body get(Map<K, Body> cache, K key, Supplier<Object> response) {
+        Body body = cache.get(key);
+        if (body != null) {
+            return body;
+        }
+
+        body = serialize(response.get());
+        if (maxEntries > 0) {
+            if (cache.size() >= maxEntries) {
+                evict(cache);
+            }
+            cache.put(key, body);
+        }
+        return body;
+    }
+
+    private Body serialize(Object response) {
+        try {
+            byte[] json = objectMapper.writeValueAsBytes(response);
+
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream(json.length / 4 + 64);
+            try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+                gzip.write(json);
+            }
+            return new Body(json, compressed.toByteArray(), hash(json));
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException("Cannot serialize catalog response", e);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // I primi 128 bit dello SHA-256 bastano a distinguere due versioni della stessa risposta
+    private static String hash(byte[] json) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(json);
+            return HexFormat.of().formatHex(digest, 0, 16);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    private <K> void evict(Map<K, Body> cache) {
+        int toRemove = Math.max(1, maxEntries / 10);
+        Iterator<K> iterator = cache.keySet().iterator();
+        while (toRemove-- > 0 && iterator.hasNext()) {
+            iterator.next();
+            iterator.remove();
+        }
+    }
+}
@@ -0,0 +1,197 @@
+package it.unisalento.pasproject.rewardsservice.business.catalog;
+
+import it.unisalento.pasproject.rewardsservice.business.search.RewardSearchSpec;
+import it.unisalento.pasproject.rewardsservice.dto.RewardDTO;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Reward searches served by in-memory indexes of the catalog:
+ * a {@link CatalogIndex} for the filtered search and a {@link TextIndex} for the full-text search.
+ * <p>
+ * The indexes are rebuilt by a background thread, never by the writer that changed the catalog: a change only
+ * schedules a rebuild, and all the changes made before the rebuild starts are served by that one rebuild.
+ * The text index is kept when no name, description, category, subcategory or active flag changed, as with
+ * stock updates. Until the rebuild completes searches run on the previous indexes and return the rewards as they
+ * are in the current snapshot, so stock and prices always match the other read endpoints; the filters are applied
+ * again to those rewards, so a reward that no longer matches is left out.
+ * </p>
+ */
+@Component
+public class CatalogSearch implements CatalogChangeListener {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CatalogSearch.class);
+
+    private record Indexes(CatalogSnapshot snapshot, CatalogIndex filters, TextIndex text) {
+        long version() {
+            return snapshot.getVersion();
+        }
+    }
+
+    private final RewardCatalog rewardCatalog;
+    private final Executor rebuilder;
+    private final AtomicBoolean rebuildScheduled = new AtomicBoolean();
+
+    private volatile Indexes indexes;
+
+    @Autowired
+    public CatalogSearch(RewardCatalog rewardCatalog) {
+        this(rewardCatalog, Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "catalog-index");
+            thread.setDaemon(true);
+            return thread;
+        }));
+    }
+
+    CatalogSearch(RewardCatalog rewardCatalog, Executor rebuilder) {
+        this.rewardCatalog = rewardCatalog;
+        this.rebuilder = rebuilder;
+    }
+
+    public List<RewardDTO> search(RewardSearchSpec spec) {
+        CatalogSnapshot snapshot = rewardCatalog.snapshot();
+        Indexes current = indexes(snapshot);
+        List<RewardDTO> found = current.filters().search(spec);
+        if (current.version() == snapshot.getVersion()) {
+            return found;
+        }
+
+        // Indici ancora in ricostruzione: i reward vengono letti dallo snapshot corrente e filtrati di nuovo
+        List<RewardDTO> resolved = new ArrayList<>(found.size());
+        for (RewardDTO reward : found) {
+            snapshot.findById(reward.getId()).filter(current -> matches(spec, current)).ifPresent(resolved::add);
+        }
+        return resolved;
+    }
+
+    /**
+     * Full-text search over the active rewards
+     * @param query the text typed by the user
+     * @param limit the maximum number of hits
+     * @return the hits, most relevant first
+     */
+    public List<TextIndex.Hit> searchText(String query, int limit) {
+        CatalogSnapshot snapshot = rewardCatalog.snapshot();
+        TextIndex text = indexes(snapshot).text();
+        List<TextIndex.Hit> hits = text.search(query, limit);
+        if (text.getVersion() == snapshot.getVersion()) {
+            return hits;
+        }
+
+        // Indice costruito da uno snapshot precedente, ad esempio mantenuto dopo una modifica delle sole quantità
+        List<TextIndex.Hit> resolved = new ArrayList<>(hits.size());
+        for (TextIndex.Hit hit : hits) {
+            Optional<RewardDTO> reward = snapshot.findById(hit.reward().getId()).filter(RewardDTO::isActive);
+            reward.ifPresent(found -> resolved.add(new TextIndex.Hit(found, hit.score(), hit.terms())));
+        }
+        return resolved;
+    }
+
+    @Override
+    public void onCatalogChanged(CatalogSnapshot snapshot, Set<String> changedIds) {
+        scheduleRebuild();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (rebuilder instanceof ExecutorService executor) {
+            executor.shutdownNow();
+        }
+    }
+
+    private Indexes indexes(CatalogSnapshot snapshot) {
+        Indexes current = indexes;
+        if (current == null) {
+            // Prima ricerca: non ci sono indici da usare nel frattempo
+            return install(snapshot);
+        }
+        if (current.version() < snapshot.getVersion()) {
+            // Anche una notifica persa viene recuperata alla prima ricerca
+            scheduleRebuild();
+            current = indexes;
+        }
+        return current;
+    }
+
+    private void scheduleRebuild() {
+        if (!rebuildScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            rebuilder.execute(this::rebuild);
+        } catch (RejectedExecutionException e) {
+            rebuildScheduled.set(false);
+        }
+    }
+
+    private void rebuild() {
+        // Le modifiche arrivate da qui in poi programmano una nuova ricostruzione
+        rebuildScheduled.set(false);
+        try {
+            install(rewardCatalog.snapshot());
+        } catch (RuntimeException e) {
+            LOGGER.error("Error rebuilding the catalog indexes: {}", e.getMessage());
+        }
+    }
+
+    private synchronized Indexes install(CatalogSnapshot snapshot) {
+        Indexes current = indexes;
+        // Non si sostituiscono mai gli indici con quelli costruiti da uno snapshot più vecchio
+        if (current != null && current.version() >= snapshot.getVersion()) {
+            return current;
+        }
+
+        TextIndex text = current != null && sameText(current.snapshot(), snapshot) ? current.text() : TextIndex.of(snapshot);
+        Indexes built = new Indexes(snapshot, CatalogIndex.of(snapshot), text);
+        indexes = built;
+        return built;
+    }
+
+    // Gli stessi filtri del CatalogIndex, valutati su un singolo reward
+    private static boolean matches(RewardSearchSpec spec, RewardDTO reward) {
+        return reward.isActive() == spec.isActiveOnly()
+                && (spec.getName() == null || spec.getName().equals(reward.getName()))
+                && (spec.getCategory() == null || spec.getCategory().equals(reward.getCategory()))
+                && (spec.getSubcategory() == null || spec.getSubcategory().equals(reward.getSubcategory()))
+                && (spec.getMinQuantity() == null || reward.getQuantity() >= spec.getMinQuantity())
+                && (spec.getMaxQuantity() == null || reward.getQuantity() <= spec.getMaxQuantity())
+                && (spec.getMinSold() == null || reward.getSold() >= spec.getMinSold())
+                && (spec.getMaxSold() == null || reward.getSold() <= spec.getMaxSold())
+                && (spec.getMinCost() == null || reward.getCost() >= spec.getMinCost())
+                && (spec.getMaxCost() == null || reward.getCost() <= spec.getMaxCost())
+                && (spec.getAfterId() == null || reward.getId().compareTo(spec.getAfterId()) > 0);
+    }
+
+    // Vero se nessun campo indicizzato per il testo è cambiato tra i due snapshot
+    private static boolean sameText(CatalogSnapshot previous, CatalogSnapshot next) {
+        for (String id : next.diff(previous)) {
+            RewardDTO before = previous.findById(id).filter(RewardDTO::isActive).orElse(null);
+            RewardDTO after = next.findById(id).filter(RewardDTO::isActive).orElse(null);
+            if (before == null && after == null) {
+                continue;
+            }
+            if (before == null || after == null
+                    || !Objects.equals(before.getName(), after.getName())
+                    || !Objects.equals(before.getDescription(), after.getDescription())
+                    || !Objects.equals(before.getCategory(), after.getCategory())
+                    || !Objects.equals(before.getSubcategory(), after.getSubcategory())) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
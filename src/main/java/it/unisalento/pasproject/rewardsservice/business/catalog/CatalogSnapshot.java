@@ -0,0 +1,244 @@
+package it.unisalento.pasproject.rewardsservice.business.catalog;
+
+import it.unisalento.pasproject.rewardsservice.dto.RewardDTO;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+
+/**
+ * Immutable view of the reward catalog, indexed by id and by active flag.
+ * <p>
+ * Snapshots are never modified: every change builds a new one with {@link #with(long, Collection, Collection)}.
+ * The rewards are shared between all the requests reading the snapshot and must be treated as read-only.
+ * Every reward carries the {@link Stamp} of the catalog version in which it last changed.
+ * </p>
+ */
+public final class CatalogSnapshot {
+
+    private static final Comparator<RewardDTO> BY_ID = Comparator.comparing(RewardDTO::getId);
+
+    private static final CatalogSnapshot EMPTY = new CatalogSnapshot(0, Map.of(), Map.of(), List.of(), List.of());
+
+    /**
+     * @param version the catalog version in which the reward last changed
+     */
+    public record Stamp(long version) {
+    }
+
+    private final long version;
+    private final Map<String, RewardDTO> byId;
+    private final Map<String, Stamp> stamps;
+    private final List<RewardDTO> all;      // Ordinati per id, come l'ordine naturale di Mongo
+    private final List<RewardDTO> active;
+
+    private CatalogSnapshot(long version, Map<String, RewardDTO> byId, Map<String, Stamp> stamps,
+                            List<RewardDTO> all, List<RewardDTO> active) {
+        this.version = version;
+        this.byId = byId;
+        this.stamps = stamps;
+        this.all = all;
+        this.active = active;
+    }
+
+    public static CatalogSnapshot empty() {
+        return EMPTY;
+    }
+
+    public static CatalogSnapshot of(long version, Collection<RewardDTO> rewards) {
+        return EMPTY.replaceAll(version, rewards);
+    }
+
+    // Le ricompense uguali a quelle dello snapshot precedente mantengono il loro stamp
+    private static CatalogSnapshot of(long version, Map<String, RewardDTO> byId, CatalogSnapshot previous) {
+        List<RewardDTO> all = new ArrayList<>(byId.values());
+        all.sort(BY_ID);
+
+        List<RewardDTO> active = all.stream().filter(RewardDTO::isActive).toList();
+
+        Stamp changed = new Stamp(version);
+        Map<String, Stamp> stamps = new HashMap<>(byId.size() * 2);
+        for (Map.Entry<String, RewardDTO> entry : byId.entrySet()) {
+            Stamp stamp = previous.stamps.get(entry.getKey());
+            boolean unchanged = stamp != null && same(entry.getValue(), previous.byId.get(entry.getKey()));
+            stamps.put(entry.getKey(), unchanged ? stamp : changed);
+        }
+
+        return new CatalogSnapshot(version, Collections.unmodifiableMap(byId), Collections.unmodifiableMap(stamps),
+                Collections.unmodifiableList(all), active);
+    }
+
+    /**
+     * Build a snapshot with the given rewards, keeping the stamps of the ones equal to this snapshot
+     * @param version the version of the new snapshot
+     * @param rewards the whole catalog
+     * @return the new snapshot
+     */
+    public CatalogSnapshot replaceAll(long version, Collection<RewardDTO> rewards) {
+        Map<String, RewardDTO> byId = new HashMap<>(rewards.size() * 2);
+        for (RewardDTO reward : rewards) {
+            byId.put(reward.getId(), reward);
+        }
+        return of(version, byId, this);
+    }
+
+    /**
+     * Copy this snapshot replacing the changed rewards and dropping the removed ones.
+     * When no reward is added or removed, as with stock updates, the rewards are replaced in place without sorting again.
+     * @param version the version of the new snapshot
+     * @param changed the rewards added or changed
+     * @param removed the ids of the rewards removed
+     * @return the new snapshot
+     */
+    public CatalogSnapshot with(long version, Collection<RewardDTO> changed, Collection<String> removed) {
+        Map<String, RewardDTO> copy = new HashMap<>(byId);
+        boolean sameIds = true;
+        for (RewardDTO reward : changed) {
+            sameIds &= copy.put(reward.getId(), reward) != null;
+        }
+        for (String id : removed) {
+            sameIds &= copy.remove(id) == null;
+        }
+        if (!sameIds) {
+            return of(version, copy, this);
+        }
+
+        List<RewardDTO> sorted = new ArrayList<>(all);
+        Stamp stamp = new Stamp(version);
+        Map<String, Stamp> newStamps = new HashMap<>(stamps);
+        for (RewardDTO reward : changed) {
+            int row = indexOf(reward.getId());
+            if (!same(reward, sorted.get(row))) {
+                newStamps.put(reward.getId(), stamp);
+            }
+            sorted.set(row, reward);
+        }
+
+        return new CatalogSnapshot(version, Collections.unmodifiableMap(copy), Collections.unmodifiableMap(newStamps),
+                Collections.unmodifiableList(sorted), sorted.stream().filter(RewardDTO::isActive).toList());
+    }
+
+    /**
+     * Ids of the rewards that differ between this snapshot and the other one
+     * @param other the other snapshot
+     * @return the ids added, removed or changed
+     */
+    public Set<String> diff(CatalogSnapshot other) {
+        Set<String> changed = new LinkedHashSet<>();
+        for (Map.Entry<String, RewardDTO> entry : byId.entrySet()) {
+            if (!same(entry.getValue(), other.byId.get(entry.getKey()))) {
+                changed.add(entry.getKey());
+            }
+        }
+        for (String id : other.byId.keySet()) {
+            if (!byId.containsKey(id)) {
+                changed.add(id);
+            }
+        }
+        return changed;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public Optional<RewardDTO> findById(String id) {
+        return Optional.ofNullable(byId.get(id));
+    }
+
+    /**
+     * @param id the reward id
+     * @return the version in which the reward last changed, empty if the reward is not in the catalog
+     */
+    public Optional<Stamp> stampOf(String id) {
+        return Optional.ofNullable(stamps.get(id));
+    }
+
+    public List<RewardDTO> getAll() {
+        return all;
+    }
+
+    public List<RewardDTO> getActive() {
+        return active;
+    }
+
+    public int size() {
+        return byId.size();
+    }
+
+    /**
+     * Page of the rewards with id greater than {@code afterId}, in id order
+     * @param activeOnly true to page only the active rewards
+     * @param afterId the id of the last reward of the previous page, null for the first page
+     * @param limit the maximum number of rewards returned
+     * @return a view of the rewards of the page
+     */
+    public List<RewardDTO> page(boolean activeOnly, String afterId, int limit) {
+        List<RewardDTO> rewards = activeOnly ? active : all;
+
+        int from = 0;
+        if (afterId != null) {
+            // Ricerca binaria del primo id successivo al cursore
+            int low = 0;
+            int high = rewards.size();
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (rewards.get(mid).getId().compareTo(afterId) <= 0) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            from = low;
+        }
+
+        return rewards.subList(from, Math.min(rewards.size(), from + limit));
+    }
+
+    // Posizione di un id presente nello snapshot, con una ricerca binaria sugli id ordinati
+    private int indexOf(String id) {
+        int low = 0;
+        int high = all.size() - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int compare = all.get(mid).getId().compareTo(id);
+            if (compare < 0) {
+                low = mid + 1;
+            } else if (compare > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        throw new IllegalStateException("Reward " + id + " not in the snapshot");
+    }
+
+    private static boolean same(RewardDTO a, RewardDTO b) {
+        if (a == b) {
+            return true;
+        }
+        if (a == null || b == null) {
+            return false;
+        }
+        return Objects.equals(a.getId(), b.getId())
+                && Objects.equals(a.getName(), b.getName())
+                && Double.compare(a.getCost(), b.getCost()) == 0
+                && Double.compare(a.getOldCost(), b.getOldCost()) == 0
+                && Objects.equals(a.getDescription(), b.getDescription())
+                && Objects.equals(a.getImage(), b.getImage())
+                && Objects.equals(a.getCategory(), b.getCategory())
+                && Objects.equals(a.getSubcategory(), b.getSubcategory())
+                && Objects.equals(a.getAddDate(), b.getAddDate())
+                && a.isActive() == b.isActive()
+                && a.getQuantity() == b.getQuantity()
+                && a.getSold() == b.getSold();
+    }
+}
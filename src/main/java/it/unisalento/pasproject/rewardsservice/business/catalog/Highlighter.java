@@ -0,0 +1,82 @@
+package it.unisalento.pasproject.rewardsservice.business.catalog;
+
+import org.springframework.web.util.HtmlUtils;
+
+import java.util.Set;
+import java.util.regex.Matcher;
+
+/**
+ * Marks the query terms found in a text with {@code <em>} tags.
+ * The rest of the text is HTML escaped, so the result can be inserted as is in the storefront page.
+ */
+public final class Highlighter {
+
+    private static final String OPEN = "<em>";
+    private static final String CLOSE = "</em>";
+    private static final String ELLIPSIS = "…";
+
+    private Highlighter() {
+    }
+
+    /**
+     * @param text the field value, may be null
+     * @param terms the normalized terms to mark, as found by {@link TextIndex}
+     * @return the escaped text with the terms marked, or null if the text is null
+     */
+    public static String highlight(String text, Set<String> terms) {
+        return text == null ? null : mark(text, terms);
+    }
+
+    /**
+     * Like {@link #highlight(String, Set)}, but for long texts only a fragment around the first term found is kept
+     * @param text the field value, may be null
+     * @param terms the normalized terms to mark
+     * @param maxLength the maximum length of the fragment, before escaping and marking
+     * @return the marked fragment, with an ellipsis where the text was cut
+     */
+    public static String snippet(String text, Set<String> terms, int maxLength) {
+        if (text == null || text.length() <= maxLength) {
+            return highlight(text, terms);
+        }
+
+        int first = 0;
+        Matcher matcher = TextIndex.WORD.matcher(text);
+        while (matcher.find()) {
+            if (terms.contains(TextIndex.normalize(matcher.group()))) {
+                first = matcher.start();
+                break;
+            }
+        }
+
+        // Si lascia un po' di contesto prima del termine, tagliando su uno spazio
+        int start = Math.max(0, first - maxLength / 4);
+        if (start > 0) {
+            int space = text.indexOf(' ', start);
+            start = space >= 0 && space < first ? space + 1 : start;
+        }
+        int end = Math.min(text.length(), start + maxLength);
+        if (end < text.length()) {
+            int space = text.lastIndexOf(' ', end);
+            end = space > start ? space : end;
+        }
+
+        return (start > 0 ? ELLIPSIS : "") + mark(text.substring(start, end), terms) + (end < text.length() ? ELLIPSIS : "");
+    }
+
+    private static String mark(String text, Set<String> terms) {
+        StringBuilder marked = new StringBuilder(text.length() + 16);
+        Matcher matcher = TextIndex.WORD.matcher(text);
+        int last = 0;
+        while (matcher.find()) {
+            if (terms.contains(TextIndex.normalize(matcher.group()))) {
+                marked.append(HtmlUtils.htmlEscape(text.substring(last, matcher.start())))
+                        .append(OPEN)
+                        .append(HtmlUtils.htmlEscape(matcher.group()))
+                        .append(CLOSE);
+                last = matcher.end();
+            }
+        }
+        marked.append(HtmlUtils.htmlEscape(text.substring(last)));
+        return marked.toString();
+    }
+}
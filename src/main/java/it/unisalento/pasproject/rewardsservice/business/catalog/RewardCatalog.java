@@ -0,0 +1,296 @@
+package it.unisalento.pasproject.rewardsservice.business.catalog;
+
+import it.unisalento.pasproject.rewardsservice.domain.Reward;
+import it.unisalento.pasproject.rewardsservice.dto.CatalogChangeDTO;
+import it.unisalento.pasproject.rewardsservice.dto.RewardDTO;
+import it.unisalento.pasproject.rewardsservice.repositories.RewardRepository;
+import it.unisalento.pasproject.rewardsservice.service.RewardService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.amqp.rabbit.annotation.RabbitListener;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * In-memory copy of the reward catalog used by the read endpoints.
+ * <p>
+ * Readers get the current {@link CatalogSnapshot} with a volatile read and never touch Mongo.
+ * Writers (admin endpoints and saga stock changes) build a new snapshot under a lock and publish it.
+ * The {@link CatalogChangeListener} beans are notified after the lock is released, by one writer at a time:
+ * changes made while a notification is running are coalesced into the next one. Local changes are announced to the other replicas through
+ * the {@link CatalogEventPublisher}; a replica receiving the event re-reads the changed rewards from the database.
+ * The whole catalog is also reloaded lazily on the first read and periodically, as a safety net for lost events.
+ * </p>
+ * <p>
+ * Stock reservations are not applied one by one: they are collected and applied together every
+ * {@code catalog.stock-flush-interval-ms}, with one snapshot, one notification and one event. A reward older than the
+ * one already in the catalog, by its write {@code revision}, is discarded, whatever the order the writes arrive in.
+ * </p>
+ */
+@Service
+public class RewardCatalog {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(RewardCatalog.class);
+
+    private record Change(CatalogSnapshot snapshot, Set<String> changedIds) {
+    }
+
+    private final RewardRepository rewardRepository;
+    private final RewardService rewardService;
+    private final ObjectProvider<CatalogChangeListener> listeners;
+    private final CatalogEventPublisher eventPublisher;
+
+    // Null finché il catalogo non viene caricato la prima volta
+    private volatile CatalogSnapshot current;
+
+    // Modifiche non ancora notificate ai listener, protette da pendingLock
+    private final Object pendingLock = new Object();
+    private final Set<String> pending = new HashSet<>();
+    private boolean notifying;
+
+    // Reward prenotati dall'ultimo flush, uno per id con la revisione più recente
+    private final Map<String, Reward> stockChanges = new ConcurrentHashMap<>();
+
+    @Autowired
+    public RewardCatalog(RewardRepository rewardRepository, RewardService rewardService, ObjectProvider<CatalogChangeListener> listeners,
+                         CatalogEventPublisher eventPublisher) {
+        this.rewardRepository = rewardRepository;
+        this.rewardService = rewardService;
+        this.listeners = listeners;
+        this.eventPublisher = eventPublisher;
+    }
+
+    /**
+     * @return the current snapshot, loading the catalog if it was never loaded
+     */
+    public CatalogSnapshot snapshot() {
+        CatalogSnapshot snapshot = current;
+        return snapshot != null ? snapshot : reload();
+    }
+
+    /**
+     * Reload the whole catalog from the database.
+     * A new snapshot is published only if something changed.
+     * @return the current snapshot
+     */
+    public CatalogSnapshot reload() {
+        Change change = load();
+        notifyListeners(change.changedIds());
+        return change.snapshot();
+    }
+
+    private synchronized Change load() {
+        CatalogSnapshot previous = current != null ? current : CatalogSnapshot.empty();
+        CatalogSnapshot loaded = previous.replaceAll(previous.getVersion() + 1, toDTOs(rewardRepository.findAll()));
+
+        Set<String> changed = loaded.diff(previous);
+        if (current != null && changed.isEmpty()) {
+            return new Change(current, Set.of());
+        }
+
+        publish(loaded, changed);
+        return new Change(loaded, changed);
+    }
+
+    @Scheduled(fixedDelayString = "${catalog.reload-interval-ms:300000}", initialDelayString = "${catalog.reload-interval-ms:300000}")
+    public void scheduledReload() {
+        try {
+            reload();
+        } catch (RuntimeException e) {
+            LOGGER.error("Error reloading the reward catalog: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Put a reward just written to the database in the catalog
+     * @param reward the reward as stored
+     */
+    public void update(Reward reward) {
+        changed(apply(List.of(reward), List.of()));
+    }
+
+    /**
+     * Put a reward whose stock was just reserved in the catalog at the next flush
+     * @param reward the reward as stored
+     */
+    public void stockChanged(Reward reward) {
+        stockChanges.merge(reward.getId(), reward, (queued, next) -> next.getRevision() >= queued.getRevision() ? next : queued);
+    }
+
+    @Scheduled(fixedDelayString = "${catalog.stock-flush-interval-ms:500}", initialDelayString = "${catalog.stock-flush-interval-ms:500}")
+    public void flushStockChanges() {
+        if (stockChanges.isEmpty()) {
+            return;
+        }
+
+        List<Reward> reserved = new ArrayList<>(stockChanges.size());
+        for (String id : stockChanges.keySet()) {
+            Reward reward = stockChanges.remove(id);
+            if (reward != null) {
+                reserved.add(reward);
+            }
+        }
+
+        try {
+            changed(apply(reserved, List.of()));
+        } catch (RuntimeException e) {
+            LOGGER.error("Error applying {} stock changes to the catalog: {}", reserved.size(), e.getMessage());
+        }
+    }
+
+    /**
+     * Remove a deleted reward from the catalog
+     * @param id the id of the reward
+     */
+    public void remove(String id) {
+        changed(apply(List.of(), List.of(id)));
+    }
+
+    /**
+     * Read again the given rewards from the database, dropping the ones that no longer exist.
+     * Errors are only logged: the catalog stays as it was until the next change or reload.
+     * @param ids the ids of the rewards changed
+     */
+    public void refresh(Collection<String> ids) {
+        broadcast(reread(ids));
+    }
+
+    /**
+     * Refresh the rewards changed by another replica, without announcing them again
+     * @param event the change published by the other replica
+     */
+    @RabbitListener(queues = "#{catalogEventsQueue.name}")
+    public void onCatalogChange(CatalogChangeDTO event) {
+        if (eventPublisher.isLocal(event) || event.getRewardIds() == null || current == null) {
+            // Se il catalogo non è ancora caricato, il primo caricamento leggerà già lo stato aggiornato
+            return;
+        }
+        reread(event.getRewardIds());
+    }
+
+    private Set<String> reread(Collection<String> ids) {
+        if (ids.isEmpty()) {
+            return Set.of();
+        }
+
+        try {
+            List<Reward> found = rewardRepository.findAllById(ids);
+
+            Set<String> removed = new HashSet<>(ids);
+            found.forEach(reward -> removed.remove(reward.getId()));
+
+            Set<String> changedIds = apply(found, removed);
+            notifyListeners(changedIds);
+            return changedIds;
+        } catch (RuntimeException e) {
+            LOGGER.error("Error refreshing {} rewards in the catalog: {}", ids.size(), e.getMessage());
+            return Set.of();
+        }
+    }
+
+    private void changed(Set<String> changedIds) {
+        notifyListeners(changedIds);
+        broadcast(changedIds);
+    }
+
+    private void broadcast(Set<String> changedIds) {
+        if (!changedIds.isEmpty()) {
+            eventPublisher.publish(changedIds);
+        }
+    }
+
+    /**
+     * Build and publish the new snapshot; the listeners are notified by the caller, outside the lock
+     * @return the ids changed in the catalog by this call
+     */
+    private synchronized Set<String> apply(Collection<Reward> changed, Collection<String> removed) {
+        if (current == null) {
+            // Il primo caricamento legge già lo stato aggiornato: le altre repliche vanno comunque avvisate
+            Set<String> ids = new HashSet<>(load().changedIds());
+            ids.addAll(removed);
+            changed.forEach(reward -> ids.add(reward.getId()));
+            return ids;
+        }
+
+        // Una scrittura più recente può essere già nel catalogo, ad esempio letta da un refresh concorrente
+        List<Reward> newer = changed.stream()
+                .filter(reward -> current.findById(reward.getId())
+                        .map(existing -> existing.getRevision() <= reward.getRevision())
+                        .orElse(true))
+                .toList();
+
+        CatalogSnapshot next = current.with(current.getVersion() + 1, toDTOs(newer), removed);
+        Set<String> changedIds = next.diff(current);
+        if (!changedIds.isEmpty()) {
+            publish(next, changedIds);
+        }
+        return changedIds;
+    }
+
+    private void publish(CatalogSnapshot snapshot, Set<String> changedIds) {
+        current = snapshot;
+        LOGGER.debug("Reward catalog version {}: {} rewards, {} changed", snapshot.getVersion(), snapshot.size(), changedIds.size());
+    }
+
+    /**
+     * Notify the listeners of the changes already published.
+     * If another thread is notifying, the changes are left to it and this call returns at once: a burst of writers
+     * produces one notification per round with the latest snapshot and the ids changed since the previous one.
+     */
+    private void notifyListeners(Set<String> changedIds) {
+        synchronized (pendingLock) {
+            pending.addAll(changedIds);
+            if (notifying || pending.isEmpty()) {
+                return;
+            }
+            notifying = true;
+        }
+
+        try {
+            while (true) {
+                CatalogSnapshot snapshot;
+                Set<String> ids;
+                synchronized (pendingLock) {
+                    if (pending.isEmpty()) {
+                        notifying = false;
+                        return;
+                    }
+                    // Lo snapshot corrente contiene già tutte le modifiche in attesa
+                    snapshot = current;
+                    ids = Set.copyOf(pending);
+                    pending.clear();
+                }
+                deliver(snapshot, ids);
+            }
+        } catch (RuntimeException | Error e) {
+            synchronized (pendingLock) {
+                notifying = false;
+            }
+            throw e;
+        }
+    }
+
+    private void deliver(CatalogSnapshot snapshot, Set<String> changedIds) {
+        listeners.orderedStream().forEach(listener -> {
+            try {
+                listener.onCatalogChanged(snapshot, changedIds);
+            } catch (RuntimeException e) {
+                LOGGER.error("Catalog listener {} failed: {}", listener.getClass().getSimpleName(), e.getMessage());
+            }
+        });
+    }
+
+    private List<RewardDTO> toDTOs(Collection<Reward> rewards) {
+        return rewards.stream().map(rewardService::getRewardDTO).toList();
+    }
+}
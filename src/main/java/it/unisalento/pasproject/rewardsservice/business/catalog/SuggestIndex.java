@@ -0,0 +1,277 @@
+package it.unisalento.pasproject.rewardsservice.business.catalog;
+
+import it.unisalento.pasproject.rewardsservice.dto.RewardDTO;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+
+/**
+ * Prefix index of the names and categories of the active rewards, for the storefront type-ahead.
+ * <p>
+ * Every name and category is stored in a sorted map once for each of its words, from that word to the end,
+ * so that typing the start of any word finds it. A prefix is looked up with a range of the map and the
+ * suggestions are ranked by sold count; categories count the rewards sold in them.
+ * The suggestions of the shortest prefixes, which match the most entries, are cached until the next change.
+ * </p>
+ * The index is updated incrementally on every catalog change, touching only the rewards changed: the entries of a
+ * changed reward are written before its stale ones are removed, so a concurrent lookup never misses it.
+ * A full rebuild fills a new map and swaps it in, so lookups keep reading the previous one until it is complete.
+ */
+@Component
+public class SuggestIndex implements CatalogChangeListener {
+
+    public enum Type {
+        REWARD, CATEGORY
+    }
+
+    /**
+     * @param text the reward name or category, as written in the catalog
+     * @param rewardId the reward id, null for categories
+     * @param sold the rewards sold
+     */
+    public record Suggestion(String text, Type type, String rewardId, long sold) {
+        private String identity() {
+            return type == Type.REWARD ? rewardId : "category:" + text;
+        }
+    }
+
+    private static final Comparator<Suggestion> RANKING = Comparator.comparingLong(Suggestion::sold).reversed()
+            .thenComparing(Suggestion::text);
+
+    // Separatori tra la chiave e l'identità, ordinati prima di qualunque carattere di un testo
+    private static final char REWARD_SEPARATOR = '\u0000';
+    private static final char CATEGORY_SEPARATOR = '\u0001';
+
+    private static final class Category {
+        private String text;
+        private long sold;
+        private int rewards;
+    }
+
+    private final RewardCatalog rewardCatalog;
+    private final int maxSuggestions;
+    private final int cachedPrefixLength;
+
+    // Sostituita per intero da una ricostruzione, letta senza lock da suggest
+    private volatile ConcurrentSkipListMap<String, Suggestion> entries = new ConcurrentSkipListMap<>();
+
+    // Stato usato solo da chi aggiorna l'indice, sotto il lock dell'istanza
+    private final Map<String, RewardDTO> indexed = new HashMap<>();
+    private final Map<String, Category> categories = new HashMap<>();
+
+    private final Map<String, List<Suggestion>> shortPrefixes = new ConcurrentHashMap<>();
+    private final AtomicLong generation = new AtomicLong();
+
+    private volatile long version = -1;
+
+    @Autowired
+    public SuggestIndex(RewardCatalog rewardCatalog,
+                        @Value("${suggest.max-size:20}") int maxSuggestions,
+                        @Value("${suggest.cached-prefix-length:2}") int cachedPrefixLength) {
+        this.rewardCatalog = rewardCatalog;
+        this.maxSuggestions = maxSuggestions;
+        this.cachedPrefixLength = cachedPrefixLength;
+    }
+
+    /**
+     * @param prefix the text typed so far
+     * @param limit the maximum number of suggestions, at most {@code suggest.max-size}
+     * @return the names and categories starting with the prefix, best sellers first
+     */
+    public List<Suggestion> suggest(String prefix, int limit) {
+        String key = key(prefix);
+        int size = Math.min(limit, maxSuggestions);
+        if (key.isEmpty() || size <= 0) {
+            return List.of();
+        }
+
+        ensureCurrent();
+
+        if (key.length() > cachedPrefixLength) {
+            return lookup(key, size);
+        }
+
+        List<Suggestion> cached = shortPrefixes.get(key);
+        if (cached == null) {
+            long readAt = generation.get();
+            cached = lookup(key, maxSuggestions);
+            if (generation.get() == readAt) {
+                shortPrefixes.put(key, cached);
+                if (generation.get() != readAt) {
+                    shortPrefixes.remove(key, cached);
+                }
+            }
+        }
+        return cached.subList(0, Math.min(size, cached.size()));
+    }
+
+    @Override
+    public synchronized void onCatalogChanged(CatalogSnapshot snapshot, Set<String> changedIds) {
+        if (snapshot.getVersion() <= version) {
+            // Già ricostruito da una lettura su uno snapshot uguale o più recente
+            return;
+        }
+        if (version < 0) {
+            rebuild(snapshot);
+            return;
+        }
+
+        // Gli id comprendono tutte le modifiche dalla notifica precedente, anche quando le versioni non sono consecutive
+
+        ConcurrentSkipListMap<String, Suggestion> current = entries;
+        for (String id : changedIds) {
+            update(current, id, snapshot.findById(id).filter(RewardDTO::isActive).orElse(null));
+        }
+        changed(snapshot.getVersion());
+    }
+
+    private void ensureCurrent() {
+        CatalogSnapshot snapshot = rewardCatalog.snapshot();
+        if (snapshot.getVersion() != version) {
+            synchronized (this) {
+                if (snapshot.getVersion() > version) {
+                    rebuild(snapshot);
+                }
+            }
+        }
+    }
+
+    private void rebuild(CatalogSnapshot snapshot) {
+        // Il nuovo indice viene costruito a parte: chi legge usa il precedente fino alla sostituzione
+        ConcurrentSkipListMap<String, Suggestion> built = new ConcurrentSkipListMap<>();
+        indexed.clear();
+        categories.clear();
+        for (RewardDTO reward : snapshot.getActive()) {
+            update(built, reward.getId(), reward);
+        }
+        entries = built;
+        changed(snapshot.getVersion());
+    }
+
+    private void changed(long newVersion) {
+        version = newVersion;
+        generation.incrementAndGet();
+        shortPrefixes.clear();
+    }
+
+    private List<Suggestion> lookup(String key, int limit) {
+        // Tutte le chiavi che iniziano con il prefisso
+        Map<String, Suggestion> range = entries.subMap(key, true, key + Character.MAX_VALUE, false);
+
+        PriorityQueue<Suggestion> best = new PriorityQueue<>(RANKING.reversed());
+        Set<String> seen = new HashSet<>();
+        for (Suggestion suggestion : range.values()) {
+            if (!seen.add(suggestion.identity())) {
+                continue;
+            }
+            best.add(suggestion);
+            if (best.size() > limit) {
+                best.poll();
+            }
+        }
+
+        List<Suggestion> suggestions = new ArrayList<>(best);
+        suggestions.sort(RANKING);
+        return List.copyOf(suggestions);
+    }
+
+    /**
+     * Replace the entries of a reward with those of its new version, null if it was removed or deactivated
+     */
+    private void update(ConcurrentSkipListMap<String, Suggestion> target, String id, RewardDTO after) {
+        RewardDTO before = after != null ? indexed.put(id, after) : indexed.remove(id);
+
+        // Prima le nuove chiavi, poi la rimozione di quelle non più valide
+        Set<String> keys = new HashSet<>();
+        if (after != null) {
+            Suggestion suggestion = new Suggestion(after.getName(), Type.REWARD, id, after.getSold());
+            for (String suffix : suffixes(after.getName())) {
+                String key = suffix + REWARD_SEPARATOR + id;
+                keys.add(key);
+                target.put(key, suggestion);
+            }
+        }
+        if (before != null) {
+            for (String suffix : suffixes(before.getName())) {
+                String key = suffix + REWARD_SEPARATOR + id;
+                if (!keys.contains(key)) {
+                    target.remove(key);
+                }
+            }
+        }
+
+        String beforeCategory = before != null ? key(before.getCategory()) : "";
+        String afterCategory = after != null ? key(after.getCategory()) : "";
+        if (!beforeCategory.isEmpty()) {
+            Category category = categories.get(beforeCategory);
+            category.sold -= before.getSold();
+            category.rewards--;
+        }
+        if (!afterCategory.isEmpty()) {
+            Category category = categories.computeIfAbsent(afterCategory, k -> new Category());
+            category.text = category.rewards == 0 ? after.getCategory() : category.text;
+            category.sold += after.getSold();
+            category.rewards++;
+            putCategory(target, category);
+        }
+        if (!beforeCategory.isEmpty() && !beforeCategory.equals(afterCategory)) {
+            Category category = categories.get(beforeCategory);
+            if (category.rewards == 0) {
+                categories.remove(beforeCategory);
+                for (String suffix : suffixes(category.text)) {
+                    target.remove(suffix + CATEGORY_SEPARATOR);
+                }
+            } else {
+                putCategory(target, category);
+            }
+        }
+    }
+
+    private static void putCategory(ConcurrentSkipListMap<String, Suggestion> target, Category category) {
+        Suggestion suggestion = new Suggestion(category.text, Type.CATEGORY, null, category.sold);
+        for (String suffix : suffixes(category.text)) {
+            target.put(suffix + CATEGORY_SEPARATOR, suggestion);
+        }
+    }
+
+    /**
+     * The normalized text starting from each of its words
+     */
+    private static List<String> suffixes(String text) {
+        List<String> words = words(text);
+        List<String> suffixes = new ArrayList<>(words.size());
+        for (int i = 0; i < words.size(); i++) {
+            suffixes.add(String.join(" ", words.subList(i, words.size())));
+        }
+        return suffixes;
+    }
+
+    private static String key(String text) {
+        return String.join(" ", words(text));
+    }
+
+    private static List<String> words(String text) {
+        List<String> words = new ArrayList<>();
+        if (text == null) {
+            return words;
+        }
+        Matcher matcher = TextIndex.WORD.matcher(text);
+        while (matcher.find()) {
+            words.add(TextIndex.normalize(matcher.group()));
+        }
+        return words;
+    }
+}
@@ -0,0 +1,184 @@
+package it.unisalento.pasproject.rewardsservice.business.catalog;
+
+import it.unisalento.pasproject.rewardsservice.dto.RewardDTO;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Inverted index over name, description, category and subcategory of the active rewards of a snapshot.
+ * <p>
+ * Terms are lowercased and stripped of accents. Results are ranked with BM25, counting a term found in the
+ * name three times, in category or subcategory twice and in the description once, so that a reward named
+ * after the query ranks above one only mentioning it. Like the snapshot it is built from, the index is immutable.
+ * </p>
+ */
+public final class TextIndex {
+
+    static final Pattern WORD = Pattern.compile("[\\p{L}\\p{N}]+");
+    private static final Pattern MARKS = Pattern.compile("\\p{M}+");
+
+    private static final float NAME_WEIGHT = 3;
+    private static final float CATEGORY_WEIGHT = 2;
+    private static final float DESCRIPTION_WEIGHT = 1;
+
+    // Parametri standard di BM25
+    private static final double K1 = 1.2;
+    private static final double B = 0.75;
+
+    private static final Comparator<Hit> RANKING = Comparator.comparingDouble(Hit::score).reversed()
+            .thenComparing(hit -> hit.reward().getId());
+
+    /**
+     * A reward matching the query
+     * @param reward the reward, shared with the snapshot and not to be modified
+     * @param score the BM25 relevance
+     * @param terms the query terms found in the reward
+     */
+    public record Hit(RewardDTO reward, double score, Set<String> terms) {
+    }
+
+    private record Postings(int[] rows, float[] frequencies) {
+    }
+
+    private final long version;
+    private final RewardDTO[] rows;
+    private final float[] lengths;
+    private final double averageLength;
+    private final Map<String, Postings> postings;
+
+    private TextIndex(CatalogSnapshot snapshot) {
+        List<RewardDTO> active = snapshot.getActive();
+
+        this.version = snapshot.getVersion();
+        this.rows = active.toArray(new RewardDTO[0]);
+        this.lengths = new float[rows.length];
+
+        Map<String, Map<Integer, Float>> frequencies = new HashMap<>();
+        double totalLength = 0;
+        for (int row = 0; row < rows.length; row++) {
+            RewardDTO reward = rows[row];
+            lengths[row] += add(frequencies, row, reward.getName(), NAME_WEIGHT);
+            lengths[row] += add(frequencies, row, reward.getCategory(), CATEGORY_WEIGHT);
+            lengths[row] += add(frequencies, row, reward.getSubcategory(), CATEGORY_WEIGHT);
+            lengths[row] += add(frequencies, row, reward.getDescription(), DESCRIPTION_WEIGHT);
+            totalLength += lengths[row];
+        }
+        this.averageLength = rows.length > 0 ? Math.max(1, totalLength / rows.length) : 1;
+
+        this.postings = new HashMap<>(frequencies.size() * 2);
+        frequencies.forEach((term, byRow) -> {
+            int[] termRows = new int[byRow.size()];
+            float[] termFrequencies = new float[byRow.size()];
+            int i = 0;
+            for (Map.Entry<Integer, Float> entry : byRow.entrySet()) {
+                termRows[i] = entry.getKey();
+                termFrequencies[i] = entry.getValue();
+                i++;
+            }
+            postings.put(term, new Postings(termRows, termFrequencies));
+        });
+    }
+
+    public static TextIndex of(CatalogSnapshot snapshot) {
+        return new TextIndex(snapshot);
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * @param query free text typed by the user
+     * @param limit the maximum number of hits
+     * @return the best hits, most relevant first
+     */
+    public List<Hit> search(String query, int limit) {
+        Set<String> queryTerms = new LinkedHashSet<>(terms(query));
+        if (queryTerms.isEmpty() || limit <= 0) {
+            return List.of();
+        }
+
+        double[] scores = new double[rows.length];
+        @SuppressWarnings("unchecked")
+        Set<String>[] matched = new Set[rows.length];
+        List<Integer> touched = new ArrayList<>();
+
+        for (String term : queryTerms) {
+            Postings termPostings = postings.get(term);
+            if (termPostings == null) {
+                continue;
+            }
+
+            int df = termPostings.rows().length;
+            double idf = Math.log(1 + (rows.length - df + 0.5) / (df + 0.5));
+
+            for (int i = 0; i < df; i++) {
+                int row = termPostings.rows()[i];
+                double tf = termPostings.frequencies()[i];
+                double norm = K1 * (1 - B + B * lengths[row] / averageLength);
+                scores[row] += idf * tf * (K1 + 1) / (tf + norm);
+
+                if (matched[row] == null) {
+                    matched[row] = new LinkedHashSet<>();
+                    touched.add(row);
+                }
+                matched[row].add(term);
+            }
+        }
+
+        // Top-k con uno heap di dimensione limit: il peggiore dei migliori è in testa
+        PriorityQueue<Hit> best = new PriorityQueue<>(RANKING.reversed());
+        for (int row : touched) {
+            best.add(new Hit(rows[row], scores[row], Set.copyOf(matched[row])));
+            if (best.size() > limit) {
+                best.poll();
+            }
+        }
+
+        List<Hit> hits = new ArrayList<>(best);
+        hits.sort(RANKING);
+        return hits;
+    }
+
+    /**
+     * Split a text in normalized terms: lowercase, without accents, at least two characters long
+     */
+    static List<String> terms(String text) {
+        List<String> terms = new ArrayList<>();
+        if (text == null) {
+            return terms;
+        }
+        Matcher matcher = WORD.matcher(text);
+        while (matcher.find()) {
+            String term = normalize(matcher.group());
+            if (term.length() > 1) {
+                terms.add(term);
+            }
+        }
+        return terms;
+    }
+
+    static String normalize(String word) {
+        String decomposed = Normalizer.normalize(word, Normalizer.Form.NFD);
+        return MARKS.matcher(decomposed).replaceAll("").toLowerCase(Locale.ROOT);
+    }
+
+    private static float add(Map<String, Map<Integer, Float>> frequencies, int row, String text, float weight) {
+        List<String> terms = terms(text);
+        for (String term : terms) {
+            frequencies.computeIfAbsent(term, t -> new HashMap<>()).merge(row, weight, Float::sum);
+        }
+        return terms.size() * weight;
+    }
+}
@@ -1,6 +1,19 @@
 package it.unisalento.pasproject.rewardsservice.business.io.exchanger;
 
+import java.util.concurrent.CompletableFuture;
+
 public interface MessageExchangeStrategy {
     <T> T exchangeMessage(String message, String routingKey,String exchange, Class<T> object);
     <T, R> R exchangeMessage( T message, String routingKey, String exchange, Class<R> responseType);
+
+    /**
+     * Send a request and return without waiting for the reply.
+     * @param message the request payload
+     * @param routingKey the routing key of the request
+     * @param exchange the exchange to publish to
+     * @param responseType the expected reply type
+     * @param timeoutMillis how long to wait for this reply, independent of any other call
+     * @return a future completed with the reply, or exceptionally with a {@link java.util.concurrent.TimeoutException}
+     */
+    <T, R> CompletableFuture<R> exchangeMessageAsync(T message, String routingKey, String exchange, Class<R> responseType, long timeoutMillis);
 }
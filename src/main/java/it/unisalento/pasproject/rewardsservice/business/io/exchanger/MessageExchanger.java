@@ -4,6 +4,8 @@ import lombok.Setter;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
+import java.util.concurrent.CompletableFuture;
+
 @Service
 @Setter
 public class MessageExchanger {
@@ -23,4 +25,8 @@ public class MessageExchanger {
     public <T, R> R exchangeMessage(T message, String routingKey, String exchange, Class<R> responseType) {
         return strategy.exchangeMessage(message, routingKey, exchange, responseType);
     }
+
+    public <T, R> CompletableFuture<R> exchangeMessageAsync(T message, String routingKey, String exchange, Class<R> responseType, long timeoutMillis) {
+        return strategy.exchangeMessageAsync(message, routingKey, exchange, responseType, timeoutMillis);
+    }
 }
@@ -2,41 +2,67 @@ package it.unisalento.pasproject.rewardsservice.business.io.exchanger;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.amqp.rabbit.AsyncRabbitTemplate;
+import org.springframework.amqp.rabbit.RabbitConverterFuture;
 import org.springframework.amqp.rabbit.core.RabbitTemplate;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.core.ParameterizedTypeReference;
 import org.springframework.stereotype.Service;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
 @Service("RabbitMQExchange")
 public class RabbitMQExchange implements MessageExchangeStrategy {
 
 
     private final RabbitTemplate rabbitTemplate;
+    private final AsyncRabbitTemplate asyncRabbitTemplate;
 
     @Autowired
-    public RabbitMQExchange(RabbitTemplate rabbitTemplate) {
+    public RabbitMQExchange(RabbitTemplate rabbitTemplate, AsyncRabbitTemplate asyncRabbitTemplate) {
         this.rabbitTemplate = rabbitTemplate;
+        this.asyncRabbitTemplate = asyncRabbitTemplate;
     }
 
     private static final Logger LOGGER = LoggerFactory.getLogger(RabbitMQExchange.class);
 
 
-
+    // Il timeout delle chiamate sincrone è configurato una sola volta (spring.rabbitmq.template.reply-timeout)
     @Override
     public <T> T exchangeMessage(String message, String routingKey, String exchange, Class<T> object) {
-        rabbitTemplate.setReplyTimeout(1000); // Timeout di 1 secondo
         T response = rabbitTemplate.convertSendAndReceiveAsType(exchange, routingKey, message,
                 ParameterizedTypeReference.forType(object));
-        LOGGER.info("Message received: {}", response);
+        LOGGER.debug("Message received: {}", response);
         return response;
     }
 
     @Override
     public <T, R> R exchangeMessage(T message, String routingKey, String exchange, Class<R> responseType) {
-        rabbitTemplate.setReplyTimeout(1000); // Timeout di 1 secondo
         R response = rabbitTemplate.convertSendAndReceiveAsType(exchange, routingKey, message,
                 ParameterizedTypeReference.forType(responseType));
-        LOGGER.info("Message received: {}", response);
+        LOGGER.debug("Message received: {}", response);
         return response;
     }
+
+    /**
+     * Request/reply over direct reply-to: the reply is matched by correlation id and no thread waits for it.
+     * The timeout only applies to this call, the shared templates are never modified.
+     */
+    @Override
+    public <T, R> CompletableFuture<R> exchangeMessageAsync(T message, String routingKey, String exchange, Class<R> responseType, long timeoutMillis) {
+        RabbitConverterFuture<R> future = asyncRabbitTemplate.convertSendAndReceiveAsType(exchange, routingKey, message,
+                ParameterizedTypeReference.forType(responseType));
+
+        return future
+                .orTimeout(timeoutMillis, TimeUnit.MILLISECONDS)
+                .whenComplete((response, error) -> {
+                    if (error != null) {
+                        // Libera la correlazione in attesa, la risposta non verrà più letta
+                        future.cancel(false);
+                    } else {
+                        LOGGER.debug("Message received: {}", response);
+                    }
+                });
+    }
 }
@@ -4,6 +4,8 @@ import lombok.Setter;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
+import java.util.concurrent.CompletableFuture;
+
 @Setter
 @Service
 public class MessageProducer {
@@ -15,13 +17,17 @@ public class MessageProducer {
         this.strategy = strategy;
     }
 
-    public <T> void sendMessage(T messageDTO, String routingKey, String exchange) {
-        strategy.sendMessage(messageDTO, routingKey, exchange);
+    public <T> CompletableFuture<Boolean> sendMessage(T messageDTO, String routingKey, String exchange) {
+        return strategy.sendMessage(messageDTO, routingKey, exchange);
     }
 
 
-    public <T> void sendMessage(T messageDTO, String routingKey, String exchange, String replyTo) {
-        strategy.sendMessage(messageDTO, routingKey, exchange, replyTo);
+    public <T> CompletableFuture<Boolean> sendMessage(T messageDTO, String routingKey, String exchange, String replyTo) {
+        return strategy.sendMessage(messageDTO, routingKey, exchange, replyTo);
+    }
+
+    public <T> CompletableFuture<Boolean> sendMessageWithConfirm(T messageDTO, String routingKey, String exchange) {
+        return strategy.sendMessageWithConfirm(messageDTO, routingKey, exchange);
     }
 
 }
\ No newline at end of file
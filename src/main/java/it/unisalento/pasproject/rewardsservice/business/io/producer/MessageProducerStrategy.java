@@ -1,7 +1,24 @@
 package it.unisalento.pasproject.rewardsservice.business.io.producer;
 
+import java.util.concurrent.CompletableFuture;
+
 public interface MessageProducerStrategy {
-    <T> void sendMessage(T messageDTO,String routingKey, String exchange);
-    <T> void sendMessage(T messageDTO,String routingKey, String exchange, String replyTo);
+    /**
+     * Send a message without waiting for the broker.
+     * @return a future completed with true if the broker acknowledged the message, false if it was not delivered
+     */
+    <T> CompletableFuture<Boolean> sendMessage(T messageDTO,String routingKey, String exchange);
+
+    /**
+     * Send a message with a replyTo queue without waiting for the broker.
+     * @return a future completed with true if the broker acknowledged the message, false if it was not delivered
+     */
+    <T> CompletableFuture<Boolean> sendMessage(T messageDTO,String routingKey, String exchange, String replyTo);
+
+    /**
+     * Send a message and complete when the broker confirms it.
+     * @return a future completed with true if the broker acknowledged the message, false if it refused it
+     */
+    <T> CompletableFuture<Boolean> sendMessageWithConfirm(T messageDTO, String routingKey, String exchange);
 
 }
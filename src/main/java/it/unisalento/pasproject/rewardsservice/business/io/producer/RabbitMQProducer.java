@@ -1,11 +1,51 @@
 package it.unisalento.pasproject.rewardsservice.business.io.producer;
 
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PreDestroy;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.amqp.AmqpException;
+import org.springframework.amqp.core.MessagePostProcessor;
+import org.springframework.amqp.rabbit.connection.CorrelationData;
 import org.springframework.amqp.rabbit.core.RabbitTemplate;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Producer strategy that pipelines the publications on RabbitMQ.
+ * <p>
+ * Messages are grouped per exchange and routing key and published together, on a single channel,
+ * when the group reaches {@code rabbitmq.producer.batch-size} messages or after {@code rabbitmq.producer.linger-ms}.
+ * Every message is published with a publisher confirm and the number of unconfirmed messages is bounded
+ * by {@code rabbitmq.producer.max-outstanding-confirms}: when the window is full senders wait for a free slot,
+ * and get an {@link AmqpException} if none frees up within {@code rabbitmq.producer.window-wait-ms}.
+ * Nacked or unconfirmed messages are published again up to {@code rabbitmq.producer.max-attempts} times.
+ * </p>
+ * <p>
+ * Every send returns the future of its confirm, completed with false when the message is given up: after the last
+ * attempt, or when the producer stops before the broker confirms it. Callers that must not lose a message check it,
+ * or go through the outbox. Messages with the same exchange and routing key are published in the order they were
+ * sent, but a message published again goes after the ones sent in the meantime.
+ * </p>
+ * Requires {@code spring.rabbitmq.publisher-confirm-type=correlated}.
+ */
 @Service("RabbitMQProducer")
 public class RabbitMQProducer implements MessageProducerStrategy {
 
@@ -14,28 +54,89 @@ public class RabbitMQProducer implements MessageProducerStrategy {
      */
     private static final Logger LOGGER = LoggerFactory.getLogger(RabbitMQProducer.class);
 
+    private static final MessagePostProcessor NO_POST_PROCESSOR = message -> message;
+
     /**
      * RabbitTemplate instance for sending messages to RabbitMQ.
      */
-
     private final RabbitTemplate rabbitTemplate;
 
+    private final int batchSize;
+    private final long linger;
+    private final long windowWait;
+    private final long confirmTimeout;
+    private final int maxAttempts;
+
+    // Finestra delle conferme in attesa: un permesso per ogni messaggio non ancora confermato
+    private final Semaphore outstandingConfirms;
+
+    // Un solo thread pubblica, nell'ordine in cui i batch vengono chiusi
+    private final ScheduledExecutorService publisher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "rabbitmq-producer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Map<Destination, Batch> batches = new HashMap<>();
+
+    // Messaggi accodati e non ancora confermati o abbandonati, falliti allo spegnimento
+    private final Set<Pending> inFlight = ConcurrentHashMap.newKeySet();
+    private volatile boolean stopped;
+
+    private final Timer sendLatency;
+    private final Timer ackLatency;
+    private final Timer nackLatency;
+
     /**
      * Constructor for the RabbitMQJsonProducer.
      *
      * @param rabbitTemplate The RabbitTemplate instance to use for sending messages.
+     * @param meterRegistry The registry of the send and confirm latency histograms.
      */
     @Autowired
-    public RabbitMQProducer(RabbitTemplate rabbitTemplate) {
+    public RabbitMQProducer(RabbitTemplate rabbitTemplate,
+                            MeterRegistry meterRegistry,
+                            @Value("${rabbitmq.producer.batch-size:50}") int batchSize,
+                            @Value("${rabbitmq.producer.linger-ms:5}") long linger,
+                            @Value("${rabbitmq.producer.max-outstanding-confirms:1000}") int maxOutstandingConfirms,
+                            @Value("${rabbitmq.producer.window-wait-ms:1000}") long windowWait,
+                            @Value("${rabbitmq.producer.confirm-timeout-ms:5000}") long confirmTimeout,
+                            @Value("${rabbitmq.producer.max-attempts:3}") int maxAttempts) {
         this.rabbitTemplate = rabbitTemplate;
-    }
+        this.batchSize = Math.max(1, batchSize);
+        this.linger = linger;
+        this.outstandingConfirms = new Semaphore(Math.max(1, maxOutstandingConfirms));
+        this.windowWait = windowWait;
+        this.confirmTimeout = confirmTimeout;
+        this.maxAttempts = Math.max(1, maxAttempts);
 
+        this.sendLatency = Timer.builder("rewards.rabbitmq.publish.send")
+                .description("Time from the send call to the message being written on the channel")
+                .publishPercentileHistogram()
+                .register(meterRegistry);
+        this.ackLatency = confirmTimer(meterRegistry, "ack");
+        this.nackLatency = confirmTimer(meterRegistry, "nack");
+    }
 
+    private static Timer confirmTimer(MeterRegistry meterRegistry, String result) {
+        return Timer.builder("rewards.rabbitmq.publish.confirm")
+                .description("Time from the message being written on the channel to the broker confirm")
+                .tag("result", result)
+                .publishPercentileHistogram()
+                .register(meterRegistry);
+    }
 
+    /**
+     * Method to send an Object message to RabbitMQ.
+     * @param messageDTO The Object to send as a JSON message.
+     * @param routingKey The routing key to use when sending the message.
+     * @param exchange The exchange to send the message to.
+     * @return a future completed with true on ack and false if the message was not delivered
+     * @throws AmqpException if the confirm window stays full or the producer is stopped
+     */
     @Override
-    public <T> void sendMessage(T messageDTO, String routingKey, String exchange) {
-        LOGGER.info(String.format("RabbitMQ message sent: %s", messageDTO.toString()));
-        rabbitTemplate.convertAndSend(exchange, routingKey, messageDTO);
+    public <T> CompletableFuture<Boolean> sendMessage(T messageDTO, String routingKey, String exchange) {
+        return enqueue(messageDTO, routingKey, exchange, NO_POST_PROCESSOR);
     }
 
     /**
@@ -50,13 +151,215 @@ public class RabbitMQProducer implements MessageProducerStrategy {
      * @param routingKey The routing key to use when sending the message.
      * @param exchange The exchange to send the message to.
      * @param replyTo The QUEUE to receive the message.
+     * @return a future completed with true on ack and false if the message was not delivered
+     * @throws AmqpException if the confirm window stays full or the producer is stopped
      */
     @Override
-    public <T> void sendMessage(T messageDTO, String routingKey, String exchange, String replyTo) {
-        LOGGER.info(String.format("RabbitMQ message sent: %s", messageDTO.toString()));
-        rabbitTemplate.convertAndSend(exchange, routingKey, messageDTO, m -> {
+    public <T> CompletableFuture<Boolean> sendMessage(T messageDTO, String routingKey, String exchange, String replyTo) {
+        return enqueue(messageDTO, routingKey, exchange, m -> {
             m.getMessageProperties().setReplyTo(replyTo);
             return m;
         });
     }
+
+    /**
+     * Method to send an Object message to RabbitMQ waiting for the publisher confirm.
+     * <p>
+     * Il future viene completato dal broker, senza bloccare il thread che invia
+     * se non quando la finestra delle conferme è piena.
+     * </p>
+     * @param messageDTO The Object to send as a JSON message.
+     * @param routingKey The routing key to use when sending the message.
+     * @param exchange The exchange to send the message to.
+     * @return a future completed with true on ack and false if the message is still nacked after the last attempt
+     */
+    @Override
+    public <T> CompletableFuture<Boolean> sendMessageWithConfirm(T messageDTO, String routingKey, String exchange) {
+        try {
+            return enqueue(messageDTO, routingKey, exchange, NO_POST_PROCESSOR);
+        } catch (AmqpException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * Publish the pending batches, wait up to {@code rabbitmq.producer.confirm-timeout-ms} for their confirms
+     * and stop the publisher thread. Messages still unconfirmed are completed with false.
+     */
+    @PreDestroy
+    public void shutdown() {
+        stopped = true;
+
+        List<Destination> destinations;
+        synchronized (batches) {
+            destinations = new ArrayList<>(batches.keySet());
+        }
+        destinations.forEach(destination -> publisher.execute(() -> flush(destination)));
+        publisher.shutdown();
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(confirmTimeout);
+        try {
+            publisher.awaitTermination(confirmTimeout, TimeUnit.MILLISECONDS);
+            while (!inFlight.isEmpty() && System.nanoTime() < deadline) {
+                TimeUnit.MILLISECONDS.sleep(10);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        if (!inFlight.isEmpty()) {
+            LOGGER.warn("RabbitMQ producer stopped with {} messages not confirmed", inFlight.size());
+            new ArrayList<>(inFlight).forEach(pending -> finish(pending, false));
+        }
+    }
+
+    private CompletableFuture<Boolean> enqueue(Object messageDTO, String routingKey, String exchange, MessagePostProcessor postProcessor) {
+        if (stopped) {
+            throw new AmqpException("RabbitMQ producer stopped");
+        }
+
+        try {
+            if (!outstandingConfirms.tryAcquire(windowWait, TimeUnit.MILLISECONDS)) {
+                throw new AmqpException("Too many RabbitMQ messages waiting for confirm");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new AmqpException("Interrupted while waiting to send a RabbitMQ message", e);
+        }
+
+        LOGGER.debug("RabbitMQ message queued: {}", messageDTO);
+
+        Pending pending = new Pending(messageDTO, postProcessor, new CompletableFuture<>(), System.nanoTime());
+        inFlight.add(pending);
+        try {
+            add(new Destination(exchange, routingKey), pending);
+        } catch (RejectedExecutionException e) {
+            // Spento tra il controllo e l'accodamento
+            finish(pending, false);
+            throw new AmqpException("RabbitMQ producer stopped", e);
+        }
+        return pending.confirm;
+    }
+
+    // Il permesso della finestra è già stato preso da chi ha accodato il messaggio
+    private void add(Destination destination, Pending pending) {
+        List<Pending> full = null;
+
+        synchronized (batches) {
+            Batch batch = batches.computeIfAbsent(destination, d -> new Batch());
+            batch.messages.add(pending);
+
+            if (batch.messages.size() >= batchSize) {
+                batches.remove(destination);
+                if (batch.linger != null) {
+                    batch.linger.cancel(false);
+                }
+                full = batch.messages;
+            } else if (batch.linger == null) {
+                batch.linger = publisher.schedule(() -> flush(destination), linger, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        if (full != null) {
+            List<Pending> messages = full;
+            publisher.execute(() -> publish(destination, messages));
+        }
+    }
+
+    private void flush(Destination destination) {
+        Batch batch;
+        synchronized (batches) {
+            batch = batches.remove(destination);
+        }
+        if (batch != null) {
+            publish(destination, batch.messages);
+        }
+    }
+
+    private void publish(Destination destination, List<Pending> messages) {
+        int[] published = {0};
+        try {
+            // Tutto il batch viene scritto sullo stesso canale
+            rabbitTemplate.invoke(operations -> {
+                for (Pending pending : messages) {
+                    CorrelationData correlationData = new CorrelationData(UUID.randomUUID().toString());
+                    operations.convertAndSend(destination.exchange(), destination.routingKey(), pending.payload, pending.postProcessor, correlationData);
+
+                    long sentAt = System.nanoTime();
+                    sendLatency.record(sentAt - pending.enqueuedAt, TimeUnit.NANOSECONDS);
+                    correlationData.getFuture()
+                            .orTimeout(confirmTimeout, TimeUnit.MILLISECONDS)
+                            .whenComplete((confirm, error) -> onConfirm(destination, pending, sentAt, confirm != null && confirm.isAck(), error));
+                    published[0]++;
+                }
+                return null;
+            });
+        } catch (RuntimeException e) {
+            LOGGER.error("Error publishing to {} with routing key {}: {}", destination.exchange(), destination.routingKey(), e.getMessage());
+            for (Pending pending : messages.subList(published[0], messages.size())) {
+                retryOrFail(destination, pending);
+            }
+        }
+    }
+
+    private void onConfirm(Destination destination, Pending pending, long sentAt, boolean ack, Throwable error) {
+        long elapsed = System.nanoTime() - sentAt;
+
+        if (ack) {
+            ackLatency.record(elapsed, TimeUnit.NANOSECONDS);
+            finish(pending, true);
+            return;
+        }
+
+        nackLatency.record(elapsed, TimeUnit.NANOSECONDS);
+        if (error != null) {
+            LOGGER.warn("RabbitMQ message to {} not confirmed: {}", destination.routingKey(), error.toString());
+        }
+        retryOrFail(destination, pending);
+    }
+
+    private void retryOrFail(Destination destination, Pending pending) {
+        if (++pending.attempts < maxAttempts && !stopped) {
+            try {
+                add(destination, pending);
+                return;
+            } catch (RejectedExecutionException e) {
+                // Il producer si è fermato nel frattempo
+            }
+        }
+
+        LOGGER.error("RabbitMQ message to {} with routing key {} not delivered after {} attempts", destination.exchange(), destination.routingKey(), pending.attempts);
+        finish(pending, false);
+    }
+
+    // Ogni messaggio libera il suo permesso una sola volta, anche se confermato e fallito allo spegnimento insieme
+    private void finish(Pending pending, boolean delivered) {
+        if (inFlight.remove(pending)) {
+            outstandingConfirms.release();
+            pending.confirm.complete(delivered);
+        }
+    }
+
+    private record Destination(String exchange, String routingKey) {
+    }
+
+    private static final class Batch {
+        private final List<Pending> messages = new ArrayList<>();
+        private ScheduledFuture<?> linger;
+    }
+
+    private static final class Pending {
+        private final Object payload;
+        private final MessagePostProcessor postProcessor;
+        private final CompletableFuture<Boolean> confirm;
+        private final long enqueuedAt;
+        private int attempts;
+
+        private Pending(Object payload, MessagePostProcessor postProcessor, CompletableFuture<Boolean> confirm, long enqueuedAt) {
+            this.payload = payload;
+            this.postProcessor = postProcessor;
+            this.confirm = confirm;
+            this.enqueuedAt = enqueuedAt;
+        }
+    }
 }
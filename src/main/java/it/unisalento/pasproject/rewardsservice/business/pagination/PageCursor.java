@@ -0,0 +1,92 @@
+package it.unisalento.pasproject.rewardsservice.business.pagination;
+
+import it.unisalento.pasproject.rewardsservice.exceptions.InvalidCursorException;
+import org.bson.types.ObjectId;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * Opaque continuation token of the keyset paginated endpoints.
+ * <p>
+ * The token wraps the id of the last document of the previous page: the next page is read with a range scan
+ * on {@code _id} starting right after it, so the cost of a page does not depend on how deep it is.
+ * </p>
+ */
+public final class PageCursor {
+
+    private static final String PREFIX = "c1:";
+
+    private PageCursor() {
+    }
+
+    public static String encode(String lastId) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString((PREFIX + lastId).getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @param cursor the token received by the client, may be null for the first page
+     * @return the id after which the page starts, or null for the first page
+     * @throws InvalidCursorException if the token was not produced by {@link #encode(String)}
+     */
+    public static String decode(String cursor) {
+        if (cursor == null || cursor.isBlank()) {
+            return null;
+        }
+
+        String decoded;
+        try {
+            decoded = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) {
+            throw new InvalidCursorException("Invalid cursor");
+        }
+
+        if (!decoded.startsWith(PREFIX) || decoded.length() == PREFIX.length()) {
+            throw new InvalidCursorException("Invalid cursor");
+        }
+        return decoded.substring(PREFIX.length());
+    }
+
+    /**
+     * Value to compare with {@code _id}: ids generated by Mongo are stored as ObjectId, not as strings
+     * @param id the id taken from the cursor
+     * @return the value to use in the range query
+     */
+    public static Object idValue(String id) {
+        return ObjectId.isValid(id) ? new ObjectId(id) : id;
+    }
+
+    /**
+     * Clamp the requested page size between 1 and the maximum
+     */
+    public static int pageSize(Integer requested, int defaultSize, int maxSize) {
+        if (requested == null) {
+            return Math.min(defaultSize, maxSize);
+        }
+        return Math.max(1, Math.min(requested, maxSize));
+    }
+
+    /**
+     * Cursor of the page following the fetched items.
+     * Repositories fetch one item more than the page size: if it is there, another page exists.
+     * @param fetched the items read, at most {@code size + 1}
+     * @param size the page size
+     * @param idOf function returning the sort key of an item
+     * @return the cursor of the next page, or null if this is the last one
+     */
+    public static <T> String next(List<T> fetched, int size, Function<T, String> idOf) {
+        if (fetched.size() <= size) {
+            return null;
+        }
+        return encode(idOf.apply(fetched.get(size - 1)));
+    }
+
+    /**
+     * @return the items of the page, without the one used to detect the next page
+     */
+    public static <T> List<T> page(List<T> fetched, int size) {
+        return fetched.size() <= size ? fetched : fetched.subList(0, size);
+    }
+}
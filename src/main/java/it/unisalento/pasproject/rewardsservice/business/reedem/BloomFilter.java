@@ -0,0 +1,116 @@
+package it.unisalento.pasproject.rewardsservice.business.reedem;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Concurrent Bloom filter over pairs of 64-bit hashes.
+ * <p>
+ * The k bit positions of a key are derived from its two hashes with double hashing ({@code h1 + i * h2}).
+ * Bits are set with compare-and-set, so adds and lookups need no lock; a lookup racing with an add
+ * of the same key may miss it, which callers tolerate by adding the key before it can be looked up.
+ * </p>
+ */
+final class BloomFilter {
+
+    private final AtomicLongArray words;
+    private final long bits;
+    private final int hashes;
+
+    private BloomFilter(long bits, int hashes) {
+        int wordCount = (int) Math.min(Integer.MAX_VALUE - 8, (bits + 63) / 64);
+        this.words = new AtomicLongArray(wordCount);
+        this.bits = (long) wordCount * 64;
+        this.hashes = hashes;
+    }
+
+    /**
+     * Sizes the filter for the expected number of keys and false positive rate
+     * @param expectedKeys keys expected in the filter
+     * @param falsePositiveRate target false positive rate with that many keys
+     * @return an empty filter
+     */
+    static BloomFilter of(long expectedKeys, double falsePositiveRate) {
+        long n = Math.max(1, expectedKeys);
+        double p = Math.min(0.5, Math.max(1e-9, falsePositiveRate));
+
+        long m = (long) Math.ceil(-n * Math.log(p) / (Math.log(2) * Math.log(2)));
+        int k = Math.max(1, (int) Math.round((double) m / n * Math.log(2)));
+        return new BloomFilter(m, k);
+    }
+
+    void put(long h1, long h2) {
+        for (int i = 0; i < hashes; i++) {
+            long bit = index(h1 + i * h2);
+            int word = (int) (bit >>> 6);
+            long mask = 1L << bit;
+
+            long current = words.get(word);
+            while ((current & mask) == 0 && !words.weakCompareAndSetVolatile(word, current, current | mask)) {
+                current = words.get(word);
+            }
+        }
+    }
+
+    boolean mightContain(long h1, long h2) {
+        for (int i = 0; i < hashes; i++) {
+            long bit = index(h1 + i * h2);
+            if ((words.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    long bitSize() {
+        return bits;
+    }
+
+    int hashCount() {
+        return hashes;
+    }
+
+    long memoryBytes() {
+        return (long) words.length() * Long.BYTES;
+    }
+
+    /**
+     * Current false positive probability, from the fraction of bits set: {@code fill^k}.
+     * Reads every word, meant for metrics scrapes rather than the request path.
+     */
+    double falsePositiveProbability() {
+        long set = 0;
+        for (int i = 0; i < words.length(); i++) {
+            set += Long.bitCount(words.get(i));
+        }
+        return Math.pow((double) set / bits, hashes);
+    }
+
+    private long index(long combined) {
+        return (combined & Long.MAX_VALUE) % bits;
+    }
+
+    /**
+     * The two hashes of a string key, from a single pass over its characters
+     * @return {@code {h1, h2}}, with h2 odd so the k positions never collapse on one
+     */
+    static long[] hash(String key) {
+        long h1 = 0x9E3779B97F4A7C15L ^ key.length();
+        long h2 = 0xC2B2AE3D27D4EB4FL;
+        for (int i = 0; i < key.length(); i++) {
+            char c = key.charAt(i);
+            h1 = (h1 ^ c) * 0x100000001B3L;
+            h2 = Long.rotateLeft(h2 ^ c, 31) * 0x9E3779B97F4A7C15L;
+        }
+        return new long[]{mix(h1), mix(h2) | 1};
+    }
+
+    // Finalizzatore di MurmurHash3: distribuisce su tutti i bit le differenze tra chiavi simili
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
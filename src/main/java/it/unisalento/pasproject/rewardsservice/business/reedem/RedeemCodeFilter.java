@@ -0,0 +1,272 @@
+package it.unisalento.pasproject.rewardsservice.business.reedem;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import it.unisalento.pasproject.rewardsservice.business.io.producer.MessageProducer;
+import it.unisalento.pasproject.rewardsservice.dto.RedeemCodesIssuedDTO;
+import it.unisalento.pasproject.rewardsservice.repositories.RedeemRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.amqp.rabbit.annotation.RabbitListener;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Bloom filter of the issued redeem codes, in front of the lookups by code.
+ * <p>
+ * A code the filter has never seen was never issued, so it is rejected without reading the database;
+ * a code it might have seen is looked up as usual. Only unsigned codes are kept: signed codes are verified by the
+ * {@link RedeemCodeSigner} and looked up by id. The filter is built by streaming the redeem code index when the
+ * application is ready and rebuilt every {@code redeem.code.filter.rebuild-interval-ms}; until the first build
+ * completes every code passes. Codes issued by this replica are added right away and announced to the other
+ * replicas, which add them too.
+ * </p>
+ * Metrics: {@code rewards.redeem.code.filter.codes}, {@code .memory} (bytes), {@code .false-positive-probability}
+ * estimated from the bits set, and {@code rewards.redeem.code.filter.lookups} tagged with
+ * {@code result=rejected|passed|false_positive}: false_positive over (false_positive + rejected) is the observed rate.
+ */
+@Component
+public class RedeemCodeFilter {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(RedeemCodeFilter.class);
+
+    private record Generation(BloomFilter filter, AtomicLong codes) {
+        void put(long h1, long h2) {
+            filter.put(h1, h2);
+            codes.incrementAndGet();
+        }
+    }
+
+    private final RedeemRepository redeemRepository;
+    private final MessageProducer messageProducer;
+    private final boolean enabled;
+    private final long expectedCodes;
+    private final double falsePositiveRate;
+
+    // Filtro in uso e, durante una ricostruzione, quello nuovo: i codici emessi nel frattempo vanno in entrambi
+    private volatile Generation current;
+    private volatile Generation building;
+    private volatile boolean loaded;
+
+    // Ogni replica riceve anche i propri eventi e li deve riconoscere
+    private final String instanceId = UUID.randomUUID().toString();
+
+    @Value("${rabbitmq.exchange.data.name}")
+    private String dataExchange;
+
+    @Value("${rabbitmq.routing.redeemCodesIssued.key}")
+    private String redeemCodesIssuedRoutingKey;
+
+    private final Counter rejected;
+    private final Counter passed;
+    private final Counter falsePositives;
+
+    @Autowired
+    public RedeemCodeFilter(RedeemRepository redeemRepository,
+                            MessageProducer messageProducer,
+                            MeterRegistry meterRegistry,
+                            @Value("${redeem.code.filter.enabled:true}") boolean enabled,
+                            @Value("${redeem.code.filter.expected-codes:1000000}") long expectedCodes,
+                            @Value("${redeem.code.filter.false-positive-rate:0.01}") double falsePositiveRate) {
+        this.redeemRepository = redeemRepository;
+        this.messageProducer = messageProducer;
+        this.enabled = enabled;
+        this.expectedCodes = expectedCodes;
+        this.falsePositiveRate = falsePositiveRate;
+        this.current = newGeneration();
+
+        Gauge.builder("rewards.redeem.code.filter.codes", this, filter -> filter.current.codes().get())
+                .description("Redeem codes added to the filter")
+                .register(meterRegistry);
+        Gauge.builder("rewards.redeem.code.filter.memory", this, filter -> filter.current.filter().memoryBytes())
+                .description("Memory used by the filter bits")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+        Gauge.builder("rewards.redeem.code.filter.false-positive-probability", this, filter -> filter.current.filter().falsePositiveProbability())
+                .description("False positive probability estimated from the bits set")
+                .register(meterRegistry);
+
+        this.rejected = lookups(meterRegistry, "rejected");
+        this.passed = lookups(meterRegistry, "passed");
+        this.falsePositives = lookups(meterRegistry, "false_positive");
+    }
+
+    private static Counter lookups(MeterRegistry meterRegistry, String result) {
+        return Counter.builder("rewards.redeem.code.filter.lookups")
+                .description("Redeem code lookups answered by the filter")
+                .tag("result", result)
+                .register(meterRegistry);
+    }
+
+    /**
+     * @param redeemCode the code as stored
+     * @return false only if the code was certainly never issued
+     */
+    public boolean mightContain(String redeemCode) {
+        if (!enabled || !loaded) {
+            return true;
+        }
+
+        long[] hash = BloomFilter.hash(redeemCode);
+        if (current.filter().mightContain(hash[0], hash[1])) {
+            passed.increment();
+            return true;
+        }
+        rejected.increment();
+        return false;
+    }
+
+    /**
+     * Record a code that passed the filter but was not found in the database
+     */
+    public void falsePositive() {
+        if (enabled && loaded) {
+            falsePositives.increment();
+        }
+    }
+
+    /**
+     * Add the codes just issued by this replica and announce them to the other replicas.
+     * Must be called after the codes are stored, so a concurrent rebuild either reads them or receives them here.
+     * @param redeemCodes the codes issued
+     */
+    public void issued(Collection<String> redeemCodes) {
+        if (!enabled) {
+            return;
+        }
+
+        List<Long> hashes = new ArrayList<>();
+        for (String redeemCode : redeemCodes) {
+            if (redeemCode == null || redeemCode.startsWith(RedeemCodeSigner.PREFIX)) {
+                continue;
+            }
+            long[] hash = BloomFilter.hash(redeemCode);
+            put(hash[0], hash[1]);
+            hashes.add(hash[0]);
+            hashes.add(hash[1]);
+        }
+
+        if (hashes.isEmpty()) {
+            return;
+        }
+
+        RedeemCodesIssuedDTO event = new RedeemCodesIssuedDTO();
+        event.setOrigin(instanceId);
+        event.setHashes(hashes);
+
+        try {
+            messageProducer.sendMessage(event, redeemCodesIssuedRoutingKey, dataExchange)
+                    .thenAccept(delivered -> {
+                        if (!delivered) {
+                            LOGGER.error("{} issued redeem codes not delivered", hashes.size() / 2);
+                        }
+                    });
+        } catch (RuntimeException e) {
+            // Le altre repliche li leggeranno alla prossima ricostruzione
+            LOGGER.error("Error publishing {} issued redeem codes: {}", hashes.size() / 2, e.getMessage());
+        }
+    }
+
+    /**
+     * Add the codes issued by another replica
+     * @param event the hashes of the codes issued
+     */
+    @RabbitListener(queues = "#{redeemCodeEventsQueue.name}")
+    public void onCodesIssued(RedeemCodesIssuedDTO event) {
+        if (!enabled || instanceId.equals(event.getOrigin()) || event.getHashes() == null) {
+            return;
+        }
+
+        List<Long> hashes = event.getHashes();
+        for (int i = 0; i + 1 < hashes.size(); i += 2) {
+            put(hashes.get(i), hashes.get(i + 1));
+        }
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void onStartup() {
+        if (!enabled) {
+            return;
+        }
+
+        // Con decine di milioni di codici la lettura richiede tempo: l'avvio non la aspetta
+        Thread loader = new Thread(this::scheduledRebuild, "redeem-code-filter-load");
+        loader.setDaemon(true);
+        loader.start();
+    }
+
+    @Scheduled(fixedDelayString = "${redeem.code.filter.rebuild-interval-ms:3600000}", initialDelayString = "${redeem.code.filter.rebuild-interval-ms:3600000}")
+    public void scheduledRebuild() {
+        try {
+            rebuild();
+        } catch (RuntimeException e) {
+            LOGGER.error("Error building the redeem code filter: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Build a new filter from all the codes stored and swap it in
+     */
+    public synchronized void rebuild() {
+        if (!enabled) {
+            return;
+        }
+
+        long start = System.nanoTime();
+        Generation next = newGeneration();
+        // Prima di aprire il cursore: i codici scritti dopo arrivano da issued o dagli eventi
+        building = next;
+
+        try (Stream<String> codes = redeemRepository.streamRedeemCodes()) {
+            codes.filter(code -> code != null && !code.startsWith(RedeemCodeSigner.PREFIX))
+                    .forEach(code -> {
+                        long[] hash = BloomFilter.hash(code);
+                        next.put(hash[0], hash[1]);
+                    });
+        } catch (RuntimeException e) {
+            building = null;
+            throw e;
+        }
+
+        // Prima si pubblica il nuovo filtro, poi si smette di alimentarlo in parallelo
+        current = next;
+        building = null;
+        loaded = true;
+
+        long count = next.codes().get();
+        LOGGER.info("Redeem code filter built with {} codes in {} ms, {} KB", count,
+                (System.nanoTime() - start) / 1_000_000, next.filter().memoryBytes() / 1024);
+        if (count > expectedCodes) {
+            LOGGER.warn("Redeem code filter holds {} codes, sized for {}: raise redeem.code.filter.expected-codes", count, expectedCodes);
+        }
+    }
+
+    public boolean isLoaded() {
+        return loaded;
+    }
+
+    // building va letto prima di current: se è già null, current è già il filtro nuovo
+    private void put(long h1, long h2) {
+        Generation next = building;
+        current.put(h1, h2);
+        if (next != null) {
+            next.put(h1, h2);
+        }
+    }
+
+    private Generation newGeneration() {
+        return new Generation(BloomFilter.of(expectedCodes, falsePositiveRate), new AtomicLong());
+    }
+}
@@ -0,0 +1,339 @@
+package it.unisalento.pasproject.rewardsservice.business.reedem;
+
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.security.DrbgParameters;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Generator of the redeem codes sent to the users.
+ * <p>
+ * Every thread draws from its own DRBG instance, seeded once, instead of building a new {@link SecureRandom}
+ * per code. Up to {@code redeem.code.buffer-size} codes are generated ahead of time by a background thread,
+ * so the transaction notification consumer usually just takes one from the buffer; when the buffer is empty
+ * the code is generated on the caller thread. The buffer is filled only after the first {@link #next()}: while
+ * {@link RedeemCodeSigner} issues signed codes no unsigned code is generated in advance.
+ * </p>
+ * Two formats are supported for the unsigned codes; signed codes have their own format and no check symbol:
+ * <ul>
+ *     <li>{@code TOKEN}: 32 random bytes, Base64 URL encoded (the original format)</li>
+ *     <li>{@code SHORT}: {@code redeem.code.length} symbols of {@code redeem.code.alphabet} followed by a
+ *     Luhn mod N check symbol, split in groups of {@code redeem.code.group-size} to be typed by hand</li>
+ * </ul>
+ */
+@Component
+public class RedeemCodeGenerator {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(RedeemCodeGenerator.class);
+
+    public enum Format { TOKEN, SHORT }
+
+    // Alfabeto di Crockford: niente I, L, O, U per non confondere i caratteri
+    public static final String DEFAULT_ALPHABET = "0123456789ABCDEFGHJKMNPQRSTVWXYZ";
+
+    private static final int TOKEN_BYTES = 32;
+    private static final int TOKEN_LENGTH = (TOKEN_BYTES * 8 + 5) / 6;
+    private static final int MIN_ENTROPY_BITS = 64;
+    private static final char GROUP_SEPARATOR = '-';
+
+    private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+
+    private static final ThreadLocal<SecureRandom> RANDOM = ThreadLocal.withInitial(RedeemCodeGenerator::newRandom);
+
+    private final Format format;
+    private final char[] alphabet;
+    private final int[] symbolIndex;
+    private final boolean caseInsensitive;
+    private final int length;
+    private final int groupSize;
+    // Byte casuali accettati per scegliere un simbolo senza bias: quelli oltre l'ultimo multiplo dell'alfabeto si scartano
+    private final int acceptBelow;
+
+    private final BlockingQueue<String> buffer;
+    private final int refillThreshold;
+    private final AtomicBoolean refilling = new AtomicBoolean();
+
+    private final ExecutorService refiller = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "redeem-code-refill");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    @Autowired
+    public RedeemCodeGenerator(@Value("${redeem.code.format:TOKEN}") Format format,
+                               @Value("${redeem.code.alphabet:" + DEFAULT_ALPHABET + "}") String alphabet,
+                               @Value("${redeem.code.length:16}") int length,
+                               @Value("${redeem.code.group-size:4}") int groupSize,
+                               @Value("${redeem.code.buffer-size:1024}") int bufferSize) {
+        this.format = format;
+        this.alphabet = alphabet.toCharArray();
+        this.length = length;
+        this.groupSize = Math.max(0, groupSize);
+        this.symbolIndex = indexOf(this.alphabet);
+        this.caseInsensitive = alphabet.equals(alphabet.toUpperCase(Locale.ROOT));
+        this.acceptBelow = 256 - 256 % Math.max(1, this.alphabet.length);
+
+        if (format == Format.SHORT) {
+            checkShortFormat();
+        }
+
+        this.buffer = bufferSize > 0 ? new ArrayBlockingQueue<>(bufferSize) : null;
+        this.refillThreshold = bufferSize / 4;
+    }
+
+    /**
+     * Returns a new redeem code, taken from the buffer when one is ready.
+     * The first call starts the background refill.
+     * @return the code in the configured format
+     */
+    public String next() {
+        if (buffer == null) {
+            return generate();
+        }
+
+        String code = buffer.poll();
+        if (buffer.size() <= refillThreshold) {
+            scheduleRefill();
+        }
+        return code != null ? code : generate();
+    }
+
+    /**
+     * Generates a code on the calling thread, bypassing the buffer.
+     * @return the code in the configured format
+     */
+    public String generate() {
+        return format == Format.SHORT ? generateShort() : generateToken();
+    }
+
+    /**
+     * Tells whether the code can have been produced by this generator, without any lookup.
+     * For the {@code SHORT} format the check symbol is verified, so most typos are caught here.
+     * @param code the code typed by the user
+     * @return true if the code has the expected shape
+     */
+    public boolean isWellFormed(String code) {
+        if (code == null) {
+            return false;
+        }
+        if (format == Format.TOKEN) {
+            return isToken(code);
+        }
+
+        String normalized = normalize(code);
+        if (normalized.length() != length + 1) {
+            return false;
+        }
+        for (int i = 0; i < normalized.length(); i++) {
+            if (symbol(normalized.charAt(i)) < 0) {
+                return false;
+            }
+        }
+        return checkSymbol(normalized, true) == 0;
+    }
+
+    /**
+     * Tells whether the code has the shape of the {@code TOKEN} format, whatever the configured format:
+     * the codes issued before switching to {@code SHORT} keep this shape.
+     * @param code the code typed by the user
+     * @return true if the code has the shape of a token
+     */
+    public static boolean isToken(String code) {
+        return code != null && code.length() == TOKEN_LENGTH && code.chars().allMatch(RedeemCodeGenerator::isBase64Url);
+    }
+
+    /**
+     * Brings a typed code to the form it was generated in: the separators are restored and,
+     * if the alphabet has no lowercase symbols, the letters are upper cased.
+     * Codes in the {@code TOKEN} format are returned unchanged.
+     * @param code the code typed by the user
+     * @return the code as stored
+     */
+    public String canonical(String code) {
+        if (format == Format.TOKEN || code == null) {
+            return code;
+        }
+        return group(normalize(code));
+    }
+
+    public Format getFormat() {
+        return format;
+    }
+
+    public int buffered() {
+        return buffer == null ? 0 : buffer.size();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        refiller.shutdownNow();
+    }
+
+    private String generateToken() {
+        byte[] bytes = new byte[TOKEN_BYTES];
+        RANDOM.get().nextBytes(bytes);
+        return ENCODER.encodeToString(bytes);
+    }
+
+    private String generateShort() {
+        SecureRandom random = RANDOM.get();
+        StringBuilder code = new StringBuilder(length + 1);
+
+        // Un solo nextBytes per codice nella maggior parte dei casi
+        byte[] bytes = new byte[length + length / 2];
+        int position = bytes.length;
+        while (code.length() < length) {
+            if (position == bytes.length) {
+                random.nextBytes(bytes);
+                position = 0;
+            }
+            int value = bytes[position++] & 0xFF;
+            if (value < acceptBelow) {
+                code.append(alphabet[value % alphabet.length]);
+            }
+        }
+
+        code.append(alphabet[checkSymbol(code, false)]);
+        return group(code);
+    }
+
+    /**
+     * Luhn mod N: with {@code withCheck} false returns the index of the check symbol to append,
+     * with {@code withCheck} true returns 0 when the last symbol is a valid check symbol.
+     */
+    private int checkSymbol(CharSequence code, boolean withCheck) {
+        int n = alphabet.length;
+        int factor = withCheck ? 1 : 2;
+        int sum = 0;
+
+        for (int i = code.length() - 1; i >= 0; i--) {
+            int addend = factor * symbol(code.charAt(i));
+            factor = factor == 2 ? 1 : 2;
+            sum += addend / n + addend % n;
+        }
+
+        int remainder = sum % n;
+        return withCheck ? remainder : (n - remainder) % n;
+    }
+
+    private String group(CharSequence code) {
+        if (groupSize == 0 || code.length() <= groupSize) {
+            return code.toString();
+        }
+
+        StringBuilder grouped = new StringBuilder(code.length() + code.length() / groupSize);
+        for (int i = 0; i < code.length(); i++) {
+            if (i > 0 && i % groupSize == 0) {
+                grouped.append(GROUP_SEPARATOR);
+            }
+            grouped.append(code.charAt(i));
+        }
+        return grouped.toString();
+    }
+
+    private String normalize(String code) {
+        StringBuilder normalized = new StringBuilder(code.length());
+        for (int i = 0; i < code.length(); i++) {
+            char c = code.charAt(i);
+            if (c == GROUP_SEPARATOR || Character.isWhitespace(c)) {
+                continue;
+            }
+            normalized.append(caseInsensitive ? Character.toUpperCase(c) : c);
+        }
+        return normalized.toString();
+    }
+
+    private int symbol(char c) {
+        return c < symbolIndex.length ? symbolIndex[c] : -1;
+    }
+
+    private void checkShortFormat() {
+        if (alphabet.length < 2 || alphabet.length > 256) {
+            throw new IllegalArgumentException("The redeem code alphabet must have between 2 and 256 symbols");
+        }
+        for (char c : alphabet) {
+            if (c == GROUP_SEPARATOR || Character.isWhitespace(c)) {
+                throw new IllegalArgumentException("The redeem code alphabet cannot contain separators");
+            }
+        }
+        double entropy = length * (Math.log(alphabet.length) / Math.log(2));
+        if (entropy < MIN_ENTROPY_BITS) {
+            throw new IllegalArgumentException("Redeem codes of " + length + " symbols have " + (int) entropy
+                    + " bits of entropy, at least " + MIN_ENTROPY_BITS + " are required");
+        }
+    }
+
+    private void scheduleRefill() {
+        if (buffer == null || !refilling.compareAndSet(false, true)) {
+            return;
+        }
+
+        try {
+            refiller.execute(() -> {
+                try {
+                    while (!Thread.currentThread().isInterrupted() && buffer.offer(generate())) {
+                        // Si riempie il buffer fino alla capacità
+                    }
+                } catch (RuntimeException e) {
+                    LOGGER.error("Redeem code buffer refill failed: {}", e.getMessage());
+                } finally {
+                    refilling.set(false);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            refilling.set(false);
+        }
+    }
+
+    private static boolean isBase64Url(int c) {
+        return (c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || c == '-' || c == '_';
+    }
+
+    private static int[] indexOf(char[] alphabet) {
+        int max = 0;
+        for (char c : alphabet) {
+            max = Math.max(max, c);
+        }
+
+        int[] index = new int[max + 1];
+        Arrays.fill(index, -1);
+        for (int i = 0; i < alphabet.length; i++) {
+            if (index[alphabet[i]] >= 0) {
+                throw new IllegalArgumentException("Duplicate symbol in the redeem code alphabet: " + alphabet[i]);
+            }
+            index[alphabet[i]] = i;
+        }
+        return index;
+    }
+
+    /**
+     * The DRBG instance of the calling thread
+     */
+    static SecureRandom random() {
+        return RANDOM.get();
+    }
+
+    private static SecureRandom newRandom() {
+        try {
+            // Istanza DRBG per thread: nessuna contesa sul lock interno e nessuna attesa di entropia dopo il seed
+            return SecureRandom.getInstance("DRBG", DrbgParameters.instantiation(256, DrbgParameters.Capability.RESEED_ONLY, null));
+        } catch (NoSuchAlgorithmException e) {
+            return new SecureRandom();
+        }
+    }
+}
@@ -0,0 +1,209 @@
+package it.unisalento.pasproject.rewardsservice.business.reedem;
+
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Base64;
+
+/**
+ * Issues and verifies the redeem codes signed with the service key.
+ * <p>
+ * A signed code is {@code R1.} followed by the Base64 URL encoding of the redeem id, a random nonce,
+ * the reward id and a truncated HMAC-SHA256 tag of all of them. It can be verified with no database access:
+ * malformed and forged codes are rejected on the CPU, and a genuine one already carries the {@code _id}
+ * of its redeem. Codes without the prefix were issued before signing was enabled; they are passed through
+ * as {@link Kind#LEGACY} while {@code redeem.code.accept-legacy} is true, in the {@code TOKEN} shape or in the
+ * configured {@code SHORT} one.
+ * </p>
+ * <p>
+ * Signed codes are not meant to be typed by hand: with signing enabled the {@code SHORT} format of the
+ * {@link RedeemCodeGenerator} is only used for the legacy codes and for redeems without a Mongo generated id.
+ * </p>
+ */
+@Component
+public class RedeemCodeSigner {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(RedeemCodeSigner.class);
+
+    public static final String PREFIX = "R1.";
+
+    private static final String ALGORITHM = "HmacSHA256";
+    // Contesto della derivazione: la chiave dei codici non coincide mai con quella dei JWT
+    private static final byte[] KEY_CONTEXT = "rewards-service/redeem-code/v1".getBytes(StandardCharsets.UTF_8);
+
+    private static final int ID_BYTES = 12;
+    private static final int NONCE_BYTES = 8;
+    private static final int TAG_BYTES = 16;
+    private static final byte REWARD_OBJECT_ID = 0;
+    private static final byte REWARD_TEXT = 1;
+    // redeemId, nonce, tipo del rewardId e tag: il rewardId occupa il resto
+    private static final int FIXED_BYTES = ID_BYTES + NONCE_BYTES + 1 + TAG_BYTES;
+    private static final int MAX_CODE_LENGTH = 256;
+
+    private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+    private static final Base64.Decoder DECODER = Base64.getUrlDecoder();
+
+    public enum Kind { SIGNED, LEGACY, REJECTED }
+
+    /**
+     * Result of the verification of a code
+     * @param kind how the code has to be looked up
+     * @param code the code as stored, for legacy codes typed in a different case or grouping
+     * @param redeemId the redeem embedded in a signed code
+     * @param rewardId the reward embedded in a signed code
+     */
+    public record Verification(Kind kind, String code, String redeemId, String rewardId) {
+        static final Verification REJECTED = new Verification(Kind.REJECTED, null, null, null);
+    }
+
+    private final RedeemCodeGenerator generator;
+    private final boolean enabled;
+    private final boolean acceptLegacy;
+    private final ThreadLocal<Mac> mac;
+
+    @Autowired
+    public RedeemCodeSigner(RedeemCodeGenerator generator,
+                            @Value("${redeem.code.signing.key:${secret.key}}") String key,
+                            @Value("${redeem.code.signing.enabled:true}") boolean enabled,
+                            @Value("${redeem.code.accept-legacy:true}") boolean acceptLegacy) {
+        this.generator = generator;
+        this.enabled = enabled;
+        this.acceptLegacy = acceptLegacy;
+
+        SecretKeySpec signingKey = new SecretKeySpec(derive(key.getBytes(StandardCharsets.UTF_8)), ALGORITHM);
+        this.mac = ThreadLocal.withInitial(() -> newMac(signingKey));
+
+        if (enabled && generator.getFormat() == RedeemCodeGenerator.Format.SHORT) {
+            // I codici firmati non hanno gruppi né simbolo di controllo: il formato SHORT resta per i codici non firmati
+            LOGGER.warn("redeem.code.format=SHORT applies only to unsigned codes: new codes are signed and have no check symbol, "
+                    + "set redeem.code.signing.enabled=false to issue short codes");
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Issues the code of a completed redeem: signed if signing is enabled and the redeem has a Mongo generated id,
+     * random otherwise.
+     * @param redeemId the id of the redeem
+     * @param rewardId the id of the redeemed reward
+     * @return the code to send to the user
+     */
+    public String issue(String redeemId, String rewardId) {
+        // Gli id non generati da Mongo non entrano nel formato firmato
+        if (!enabled || redeemId == null || !ObjectId.isValid(redeemId)) {
+            return generator.next();
+        }
+
+        byte[] reward = rewardBytes(rewardId);
+        ByteBuffer payload = ByteBuffer.allocate(FIXED_BYTES + reward.length - 1);
+        payload.put(new ObjectId(redeemId).toByteArray());
+
+        byte[] nonce = new byte[NONCE_BYTES];
+        RedeemCodeGenerator.random().nextBytes(nonce);
+        payload.put(nonce);
+        payload.put(reward);
+
+        payload.put(tag(payload.array(), payload.position()));
+        return PREFIX + ENCODER.encodeToString(payload.array());
+    }
+
+    /**
+     * Verifies a code without any lookup.
+     * @param code the code presented by the user
+     * @return the redeem id for a signed code, the canonical code for a legacy one, or a rejection
+     */
+    public Verification verify(String code) {
+        if (code == null || code.length() > MAX_CODE_LENGTH) {
+            return Verification.REJECTED;
+        }
+
+        if (!code.startsWith(PREFIX)) {
+            return acceptLegacy ? verifyLegacy(code) : Verification.REJECTED;
+        }
+
+        byte[] payload;
+        try {
+            payload = DECODER.decode(code.substring(PREFIX.length()));
+        } catch (IllegalArgumentException e) {
+            return Verification.REJECTED;
+        }
+        if (payload.length < FIXED_BYTES) {
+            return Verification.REJECTED;
+        }
+
+        int signed = payload.length - TAG_BYTES;
+        byte[] expected = tag(payload, signed);
+        if (!MessageDigest.isEqual(expected, Arrays.copyOfRange(payload, signed, payload.length))) {
+            return Verification.REJECTED;
+        }
+
+        String redeemId = new ObjectId(Arrays.copyOfRange(payload, 0, ID_BYTES)).toHexString();
+        String rewardId = rewardId(Arrays.copyOfRange(payload, ID_BYTES + NONCE_BYTES, signed));
+        return new Verification(Kind.SIGNED, code, redeemId, rewardId);
+    }
+
+    // Codici emessi prima della firma: si controlla solo la forma
+    private Verification verifyLegacy(String code) {
+        // Prima il formato configurato, il cui simbolo di controllo decide anche la forma canonica
+        if (generator.isWellFormed(code)) {
+            return new Verification(Kind.LEGACY, generator.canonical(code), null, null);
+        }
+        // TOKEN è il formato originale: i codici emessi prima del passaggio a SHORT restano validi
+        if (RedeemCodeGenerator.isToken(code)) {
+            return new Verification(Kind.LEGACY, code, null, null);
+        }
+        return Verification.REJECTED;
+    }
+
+    private byte[] tag(byte[] payload, int length) {
+        Mac hmac = mac.get();
+        hmac.update(PREFIX.getBytes(StandardCharsets.US_ASCII));
+        hmac.update(payload, 0, length);
+        return Arrays.copyOf(hmac.doFinal(), TAG_BYTES);
+    }
+
+    // Gli id generati da Mongo occupano 12 byte, gli altri sono salvati come testo
+    private static byte[] rewardBytes(String rewardId) {
+        if (rewardId != null && ObjectId.isValid(rewardId)) {
+            return ByteBuffer.allocate(1 + ID_BYTES).put(REWARD_OBJECT_ID).put(new ObjectId(rewardId).toByteArray()).array();
+        }
+        byte[] text = rewardId == null ? new byte[0] : rewardId.getBytes(StandardCharsets.UTF_8);
+        return ByteBuffer.allocate(1 + text.length).put(REWARD_TEXT).put(text).array();
+    }
+
+    private static String rewardId(byte[] bytes) {
+        byte[] value = Arrays.copyOfRange(bytes, 1, bytes.length);
+        return bytes[0] == REWARD_OBJECT_ID && value.length == ID_BYTES
+                ? new ObjectId(value).toHexString()
+                : new String(value, StandardCharsets.UTF_8);
+    }
+
+    private static byte[] derive(byte[] keyMaterial) {
+        Mac hmac = newMac(new SecretKeySpec(keyMaterial, ALGORITHM));
+        return hmac.doFinal(KEY_CONTEXT);
+    }
+
+    private static Mac newMac(SecretKeySpec key) {
+        try {
+            Mac hmac = Mac.getInstance(ALGORITHM);
+            hmac.init(key);
+            return hmac;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(ALGORITHM + " not available", e);
+        }
+    }
+}
@@ -0,0 +1,12 @@
+package it.unisalento.pasproject.rewardsservice.business.reedem;
+
+/**
+ * Outcome of the use of a redeem code
+ */
+public enum RedeemUseStatus {
+    CONSUMED,       // Codice usato da questa richiesta
+    ALREADY_USED,
+    NOT_FOUND,      // Codice inesistente o contraffatto
+    NOT_OWNED,      // Codice di un altro utente
+    INVALID         // Transazione non completata
+}
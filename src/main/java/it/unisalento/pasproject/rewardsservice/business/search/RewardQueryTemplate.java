@@ -0,0 +1,89 @@
+package it.unisalento.pasproject.rewardsservice.business.search;
+
+import it.unisalento.pasproject.rewardsservice.business.pagination.PageCursor;
+import org.bson.Document;
+import org.springframework.data.mongodb.core.query.BasicQuery;
+import org.springframework.data.mongodb.core.query.Query;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+import static it.unisalento.pasproject.rewardsservice.business.search.RewardSearchSpec.*;
+
+/**
+ * Query of a search shape, compiled once and then bound to the values of every spec with that shape.
+ * <p>
+ * Compiling decides which fields and operators the filter contains; binding only copies the values
+ * into a new filter document, without walking a Criteria tree on every request.
+ * </p>
+ */
+public final class RewardQueryTemplate {
+
+    private final Shape shape;
+    private final List<BiConsumer<RewardSearchSpec, Document>> binders;
+
+    private RewardQueryTemplate(Shape shape, List<BiConsumer<RewardSearchSpec, Document>> binders) {
+        this.shape = shape;
+        this.binders = List.copyOf(binders);
+    }
+
+    public static RewardQueryTemplate compile(Shape shape) {
+        List<BiConsumer<RewardSearchSpec, Document>> binders = new ArrayList<>();
+
+        if (shape.has(NAME)) {
+            binders.add((spec, filter) -> filter.put("name", spec.getName()));
+        }
+        if (shape.has(CATEGORY)) {
+            binders.add((spec, filter) -> filter.put("category", spec.getCategory()));
+        }
+        if (shape.has(SUBCATEGORY)) {
+            binders.add((spec, filter) -> filter.put("subcategory", spec.getSubcategory()));
+        }
+        binders.add((spec, filter) -> filter.put("active", spec.isActiveOnly()));
+
+        range(binders, shape, "quantity", MIN_QUANTITY, RewardSearchSpec::getMinQuantity, MAX_QUANTITY, RewardSearchSpec::getMaxQuantity);
+        range(binders, shape, "sold", MIN_SOLD, RewardSearchSpec::getMinSold, MAX_SOLD, RewardSearchSpec::getMaxSold);
+        range(binders, shape, "cost", MIN_COST, RewardSearchSpec::getMinCost, MAX_COST, RewardSearchSpec::getMaxCost);
+
+        if (shape.has(AFTER_ID)) {
+            binders.add((spec, filter) -> filter.put("_id", new Document("$gt", PageCursor.idValue(spec.getAfterId()))));
+        }
+
+        return new RewardQueryTemplate(shape, binders);
+    }
+
+    private static void range(List<BiConsumer<RewardSearchSpec, Document>> binders, Shape shape, String field,
+                              int minFilter, Function<RewardSearchSpec, Object> min,
+                              int maxFilter, Function<RewardSearchSpec, Object> max) {
+        boolean hasMin = shape.has(minFilter);
+        boolean hasMax = shape.has(maxFilter);
+
+        if (hasMin && hasMax) {
+            binders.add((spec, filter) -> filter.put(field, new Document("$gte", min.apply(spec)).append("$lte", max.apply(spec))));
+        } else if (hasMin) {
+            binders.add((spec, filter) -> filter.put(field, new Document("$gte", min.apply(spec))));
+        } else if (hasMax) {
+            binders.add((spec, filter) -> filter.put(field, new Document("$lte", max.apply(spec))));
+        }
+    }
+
+    /**
+     * @param spec a spec with the shape this template was compiled for
+     * @return a new query, sorted and limited as the spec asks
+     */
+    public Query bind(RewardSearchSpec spec) {
+        Document filter = new Document();
+        for (BiConsumer<RewardSearchSpec, Document> binder : binders) {
+            binder.accept(spec, filter);
+        }
+        return new BasicQuery(filter)
+                .with(shape.sort().getSort())
+                .limit(spec.getLimit());
+    }
+
+    public Shape getShape() {
+        return shape;
+    }
+}
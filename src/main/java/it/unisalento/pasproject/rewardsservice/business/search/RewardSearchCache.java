@@ -0,0 +1,100 @@
+package it.unisalento.pasproject.rewardsservice.business.search;
+
+import it.unisalento.pasproject.rewardsservice.business.catalog.CatalogChangeListener;
+import it.unisalento.pasproject.rewardsservice.business.catalog.CatalogSnapshot;
+import it.unisalento.pasproject.rewardsservice.domain.Reward;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Bounded cache of reward search results.
+ * <p>
+ * Only the shapes searched at least {@code search.cache.hot-threshold} times are cached, so one-off
+ * filter combinations do not push out the hot ones. The whole cache is dropped on every catalog change:
+ * a result read while the catalog was changing is returned but not stored.
+ * The cached lists are shared between callers and must not be modified.
+ * </p>
+ */
+@Component
+public class RewardSearchCache implements CatalogChangeListener {
+
+    private final Map<RewardSearchSpec, List<Reward>> results = new ConcurrentHashMap<>();
+    private final Map<RewardSearchSpec.Shape, AtomicLong> shapeSearches = new ConcurrentHashMap<>();
+
+    // Incrementata ad ogni modifica del catalogo, scarta i risultati letti prima della modifica
+    private final AtomicLong generation = new AtomicLong();
+
+    private final int maxEntries;
+    private final int hotThreshold;
+
+    public RewardSearchCache(@Value("${search.cache.max-entries:1000}") int maxEntries,
+                             @Value("${search.cache.hot-threshold:3}") int hotThreshold) {
+        this.maxEntries = maxEntries;
+        this.hotThreshold = hotThreshold;
+    }
+
+    /**
+     * Returns the cached result of the spec, or runs the search
+     * @param spec the search
+     * @param search the query to run on a miss
+     * @return the rewards found, as an unmodifiable list
+     */
+    public List<Reward> get(RewardSearchSpec spec, Supplier<List<Reward>> search) {
+        if (maxEntries <= 0) {
+            return search.get();
+        }
+
+        List<Reward> cached = results.get(spec);
+        if (cached != null) {
+            return cached;
+        }
+
+        long readAt = generation.get();
+        List<Reward> found = List.copyOf(search.get());
+
+        if (isHot(spec.shape()) && generation.get() == readAt) {
+            if (results.size() >= maxEntries) {
+                evict();
+            }
+            results.put(spec, found);
+
+            // Il catalogo potrebbe essere cambiato tra il controllo e l'inserimento
+            if (generation.get() != readAt) {
+                results.remove(spec, found);
+            }
+        }
+
+        return found;
+    }
+
+    @Override
+    public void onCatalogChanged(CatalogSnapshot snapshot, Set<String> changedIds) {
+        generation.incrementAndGet();
+        results.clear();
+    }
+
+    public int size() {
+        return results.size();
+    }
+
+    private boolean isHot(RewardSearchSpec.Shape shape) {
+        return shapeSearches.computeIfAbsent(shape, s -> new AtomicLong()).incrementAndGet() >= hotThreshold;
+    }
+
+    private void evict() {
+        int toRemove = results.size() - maxEntries + Math.max(1, maxEntries / 10);
+        Iterator<RewardSearchSpec> iterator = results.keySet().iterator();
+        while (toRemove-- > 0 && iterator.hasNext()) {
+            iterator.next();
+            iterator.remove();
+        }
+    }
+}
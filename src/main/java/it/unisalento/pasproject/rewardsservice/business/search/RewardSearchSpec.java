@@ -0,0 +1,81 @@
+package it.unisalento.pasproject.rewardsservice.business.search;
+
+import lombok.Builder;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.ToString;
+
+/**
+ * Immutable description of a reward search.
+ * <p>
+ * Every filter is optional: a null value means the filter is not applied, while {@code active}
+ * defaults to true. The spec is also the key of the {@link RewardSearchCache}, and its {@link #shape()}
+ * selects the compiled {@link RewardQueryTemplate}.
+ * </p>
+ */
+@Getter
+@Builder
+@EqualsAndHashCode
+@ToString
+public final class RewardSearchSpec {
+    private final String name;
+    private final String category;
+    private final String subcategory;
+
+    private final Integer minQuantity;
+    private final Integer maxQuantity;
+    private final Integer minSold;
+    private final Integer maxSold;
+    private final Double minCost;
+    private final Double maxCost;
+
+    private final Boolean active;
+
+    @Builder.Default
+    private final RewardSort sort = RewardSort.ID;
+
+    // Id dell'ultimo reward della pagina precedente, solo con l'ordinamento per id
+    private final String afterId;
+
+    @Builder.Default
+    private final int limit = 50;
+
+    /**
+     * Which filters are set and how the result is ordered, independently of the filter values
+     */
+    public record Shape(int filters, RewardSort sort) {
+        public boolean has(int filter) {
+            return (filters & filter) != 0;
+        }
+    }
+
+    public static final int NAME = 1;
+    public static final int CATEGORY = 1 << 1;
+    public static final int SUBCATEGORY = 1 << 2;
+    public static final int MIN_QUANTITY = 1 << 3;
+    public static final int MAX_QUANTITY = 1 << 4;
+    public static final int MIN_SOLD = 1 << 5;
+    public static final int MAX_SOLD = 1 << 6;
+    public static final int MIN_COST = 1 << 7;
+    public static final int MAX_COST = 1 << 8;
+    public static final int AFTER_ID = 1 << 9;
+
+    public boolean isActiveOnly() {
+        return active == null || active;
+    }
+
+    public Shape shape() {
+        int filters = 0;
+        filters |= name != null ? NAME : 0;
+        filters |= category != null ? CATEGORY : 0;
+        filters |= subcategory != null ? SUBCATEGORY : 0;
+        filters |= minQuantity != null ? MIN_QUANTITY : 0;
+        filters |= maxQuantity != null ? MAX_QUANTITY : 0;
+        filters |= minSold != null ? MIN_SOLD : 0;
+        filters |= maxSold != null ? MAX_SOLD : 0;
+        filters |= minCost != null ? MIN_COST : 0;
+        filters |= maxCost != null ? MAX_COST : 0;
+        filters |= afterId != null ? AFTER_ID : 0;
+        return new Shape(filters, sort);
+    }
+}
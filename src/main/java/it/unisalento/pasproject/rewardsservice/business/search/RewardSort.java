@@ -0,0 +1,51 @@
+package it.unisalento.pasproject.rewardsservice.business.search;
+
+import it.unisalento.pasproject.rewardsservice.exceptions.InvalidSearchException;
+import org.springframework.data.domain.Sort;
+
+import java.util.Locale;
+
+/**
+ * Orderings accepted by the reward search.
+ * Every ordering ends with {@code _id}, so rewards with the same sort value always come back in the same order.
+ */
+public enum RewardSort {
+    ID(Sort.by(Sort.Direction.ASC, "_id")),
+    COST_ASC(Sort.by(Sort.Order.asc("cost"), Sort.Order.asc("_id"))),
+    COST_DESC(Sort.by(Sort.Order.desc("cost"), Sort.Order.asc("_id"))),
+    POPULAR(Sort.by(Sort.Order.desc("sold"), Sort.Order.asc("_id"))),
+    NEWEST(Sort.by(Sort.Order.desc("addDate"), Sort.Order.asc("_id"))),
+    NAME(Sort.by(Sort.Order.asc("name"), Sort.Order.asc("_id")));
+
+    private final Sort sort;
+
+    RewardSort(Sort sort) {
+        this.sort = sort;
+    }
+
+    public Sort getSort() {
+        return sort;
+    }
+
+    /**
+     * Only the id ordering can be paginated with a cursor, which holds just the last id
+     */
+    public boolean isKeyset() {
+        return this == ID;
+    }
+
+    /**
+     * @param value the request parameter, e.g. {@code cost_desc}; null selects {@link #ID}
+     * @throws InvalidSearchException if the value is not one of the orderings
+     */
+    public static RewardSort fromParam(String value) {
+        if (value == null || value.isBlank()) {
+            return ID;
+        }
+        try {
+            return valueOf(value.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new InvalidSearchException("Invalid sort: " + value);
+        }
+    }
+}
@@ -0,0 +1,224 @@
+package it.unisalento.pasproject.rewardsservice.configuration;
+
+import it.unisalento.pasproject.rewardsservice.business.search.RewardQueryTemplate;
+import it.unisalento.pasproject.rewardsservice.business.search.RewardSearchSpec;
+import it.unisalento.pasproject.rewardsservice.domain.Redeem;
+import it.unisalento.pasproject.rewardsservice.domain.Reward;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.convert.QueryMapper;
+import org.springframework.data.mongodb.core.index.IndexDefinition;
+import org.springframework.data.mongodb.core.index.IndexInfo;
+import org.springframework.data.mongodb.core.index.IndexOperations;
+import org.springframework.data.mongodb.core.index.IndexResolver;
+import org.springframework.data.mongodb.core.index.MongoPersistentEntityIndexResolver;
+import org.springframework.data.mongodb.core.mapping.MongoMappingContext;
+import org.springframework.data.mongodb.core.mapping.MongoPersistentEntity;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.stereotype.Component;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Creates and verifies at startup the indexes declared on the {@link Reward} and {@link Redeem} documents.
+ * <p>
+ * Every declared index is ensured (created if missing, left alone if already there), then the indexes found
+ * on the collections are compared with the declared ones. Finally the query shapes used by the service are
+ * explained and any winning plan containing a {@code COLLSCAN} stage is reported. Problems are logged as
+ * warnings, so a missing index never prevents the service from starting.
+ * </p>
+ */
+@Component
+public class MongoIndexVerifier {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MongoIndexVerifier.class);
+
+    /**
+     * Outcome of the verification
+     * @param missing the declared indexes not found on the collections, as {@code collection.index}
+     * @param collectionScans the query shapes whose plan scans the whole collection
+     */
+    public record Report(List<String> missing, List<String> collectionScans) {
+        public boolean isClean() {
+            return missing.isEmpty() && collectionScans.isEmpty();
+        }
+    }
+
+    private record QueryShape(Class<?> entity, String name, Query query) {}
+
+    // Forme delle query eseguite dai repository, con gli stessi criteri e ordinamenti
+    private static List<QueryShape> queryShapes() {
+        LocalDateTime now = LocalDateTime.now();
+        List<String> ids = List.of(new ObjectId().toHexString(), new ObjectId().toHexString());
+
+        return List.of(
+                new QueryShape(Redeem.class, "findByRedeemCode", new Query(Criteria.where("redeemCode").is("code"))),
+                new QueryShape(Redeem.class, "consume", new Query(Criteria.where("redeemCode").is("code")
+                        .and("userEmail").is("user@example.com").and("redeemed").is(true).and("used").is(false))),
+                new QueryShape(Redeem.class, "findForUse", new Query(new Criteria().orOperator(
+                        Criteria.where("_id").in(ids), Criteria.where("redeemCode").in("code")))),
+                new QueryShape(Redeem.class, "findPendingByIds", new Query(Criteria.where("_id").in(ids)
+                        .and("redeemDate").is(null))),
+                new QueryShape(Redeem.class, "claimStockChanges", new Query(Criteria.where("_id").in(ids)
+                        .and("redeemDate").is(null).and("stockToken").is(null))),
+                new QueryShape(Redeem.class, "claimOutbox", new Query(Criteria.where("outbox.sent").is(false)
+                        .orOperator(Criteria.where("outbox.lockedUntil").is(null), Criteria.where("outbox.lockedUntil").lt(now)))
+                        .with(Sort.by(Sort.Direction.ASC, "outbox.createdAt"))),
+                new QueryShape(Redeem.class, "userRedeemsPage", new Query(Criteria.where("userEmail").is("user@example.com")
+                        .and("_id").gt(new ObjectId())).with(Sort.by(Sort.Direction.ASC, "_id"))),
+                new QueryShape(Redeem.class, "rewardRedeemsPage", new Query(Criteria.where("rewardId").is("rewardId")
+                        .and("_id").gt(new ObjectId())).with(Sort.by(Sort.Direction.ASC, "_id"))),
+                new QueryShape(Redeem.class, "userRedeemsExport", new Query(Criteria.where("userEmail").is("user@example.com")
+                        .and("redeemDate").gte(now.minusDays(30)).lt(now)).with(Sort.by(Sort.Direction.ASC, "_id"))),
+                new QueryShape(Redeem.class, "rewardRedeemsExport", new Query(Criteria.where("rewardId").is("rewardId")
+                        .and("redeemDate").gte(now.minusDays(30)).lt(now)).with(Sort.by(Sort.Direction.ASC, "_id"))),
+                new QueryShape(Redeem.class, "streamRedeemCodes", new Query(Criteria.where("redeemCode").exists(true))),
+                // Ricerca sul database, usata da /find quando l'indice in memoria è disattivato
+                new QueryShape(Reward.class, "findRewardsByCategory", search(RewardSearchSpec.builder()
+                        .category("category").build())),
+                new QueryShape(Reward.class, "findRewardsBySubcategory", search(RewardSearchSpec.builder()
+                        .category("category").subcategory("subcategory").build()))
+        );
+    }
+
+    private static Query search(RewardSearchSpec spec) {
+        return RewardQueryTemplate.compile(spec.shape()).bind(spec);
+    }
+
+    private final MongoTemplate mongoTemplate;
+    private final IndexResolver indexResolver;
+    private final MongoMappingContext mappingContext;
+    private final QueryMapper queryMapper;
+
+    @Value("${mongodb.indexes.verify-on-startup:true}")
+    private boolean verifyOnStartup;
+
+    @Autowired
+    public MongoIndexVerifier(MongoTemplate mongoTemplate, MongoMappingContext mappingContext) {
+        this.mongoTemplate = mongoTemplate;
+        this.indexResolver = new MongoPersistentEntityIndexResolver(mappingContext);
+        this.mappingContext = mappingContext;
+        this.queryMapper = new QueryMapper(mongoTemplate.getConverter());
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void onStartup() {
+        if (!verifyOnStartup) {
+            return;
+        }
+
+        try {
+            verify();
+        } catch (RuntimeException e) {
+            LOGGER.error("Index verification failed: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Ensure the declared indexes and check the query plans
+     * @return the report, also written to the log
+     */
+    public Report verify() {
+        List<String> missing = new ArrayList<>();
+        missing.addAll(ensureIndexes(Reward.class));
+        missing.addAll(ensureIndexes(Redeem.class));
+
+        List<QueryShape> shapes = queryShapes();
+        List<String> collectionScans = new ArrayList<>();
+        for (QueryShape shape : shapes) {
+            if (isCollectionScan(shape)) {
+                collectionScans.add(mongoTemplate.getCollectionName(shape.entity()) + "." + shape.name());
+            }
+        }
+
+        Report report = new Report(List.copyOf(missing), List.copyOf(collectionScans));
+        if (report.isClean()) {
+            LOGGER.info("Index verification: all declared indexes present, no collection scans in {} query shapes", shapes.size());
+        } else {
+            LOGGER.warn("Index verification: missing indexes {}, collection scans {}", report.missing(), report.collectionScans());
+        }
+        return report;
+    }
+
+    private List<String> ensureIndexes(Class<?> entity) {
+        String collection = mongoTemplate.getCollectionName(entity);
+        IndexOperations indexOps = mongoTemplate.indexOps(entity);
+
+        List<String> declared = new ArrayList<>();
+        for (IndexDefinition index : indexResolver.resolveIndexFor(entity)) {
+            String name = indexName(index);
+            declared.add(name);
+            try {
+                indexOps.ensureIndex(index);
+            } catch (RuntimeException e) {
+                // Ad esempio codici duplicati già presenti per un indice unique
+                LOGGER.error("Cannot create index {}.{}: {}", collection, name, e.getMessage());
+            }
+        }
+
+        Set<String> existing = indexOps.getIndexInfo().stream()
+                .map(IndexInfo::getName)
+                .collect(Collectors.toSet());
+
+        return declared.stream()
+                .filter(name -> !existing.contains(name))
+                .map(name -> collection + "." + name)
+                .toList();
+    }
+
+    private boolean isCollectionScan(QueryShape shape) {
+        // Filtro e ordinamento mappati come fa il MongoTemplate: id convertiti in ObjectId, date in formato BSON
+        MongoPersistentEntity<?> entity = mappingContext.getRequiredPersistentEntity(shape.entity());
+        Document filter = queryMapper.getMappedObject(shape.query().getQueryObject(), entity);
+        Document sort = queryMapper.getMappedSort(shape.query().getSortObject(), entity);
+
+        var find = mongoTemplate.getCollection(mongoTemplate.getCollectionName(shape.entity())).find(filter);
+        if (!sort.isEmpty()) {
+            find = find.sort(sort);
+        }
+
+        Document explain = find.explain();
+        Object queryPlanner = explain.get("queryPlanner");
+        Object winningPlan = queryPlanner instanceof Document planner ? planner.get("winningPlan") : null;
+        return containsStage(winningPlan, "COLLSCAN");
+    }
+
+    // Il piano è un albero di stage: inputStage, inputStages e, con il motore SBE, queryPlan
+    private static boolean containsStage(Object node, String stage) {
+        if (node instanceof Map<?, ?> map) {
+            if (stage.equals(map.get("stage"))) {
+                return true;
+            }
+            return map.values().stream().anyMatch(value -> containsStage(value, stage));
+        }
+        if (node instanceof List<?> list) {
+            return list.stream().anyMatch(value -> containsStage(value, stage));
+        }
+        return false;
+    }
+
+    private static String indexName(IndexDefinition index) {
+        Object name = index.getIndexOptions().get("name");
+        if (name != null) {
+            return name.toString();
+        }
+        // Nome generato da Mongo: campo_direzione concatenati
+        return index.getIndexKeys().entrySet().stream()
+                .map(entry -> entry.getKey() + "_" + entry.getValue())
+                .collect(Collectors.joining("_"));
+    }
+}
@@ -1,11 +1,14 @@
 package it.unisalento.pasproject.rewardsservice.configuration;
 
 import org.springframework.amqp.core.*;
+import org.springframework.amqp.rabbit.AsyncRabbitTemplate;
+import org.springframework.amqp.rabbit.config.SimpleRabbitListenerContainerFactory;
 import org.springframework.amqp.rabbit.connection.ConnectionFactory;
 import org.springframework.amqp.rabbit.core.RabbitTemplate;
 import org.springframework.amqp.support.converter.Jackson2JsonMessageConverter;
 import org.springframework.amqp.support.converter.MessageConverter;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.amqp.SimpleRabbitListenerContainerFactoryConfigurer;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
@@ -24,6 +27,37 @@ public class RabbitMQConfig {
         return new TopicExchange(securityExchange);
     }
 
+    @Value("${rabbitmq.routing.userChanged.key}")
+    private String userChangedRoutingKey;
+
+    @Value("${rabbitmq.routing.userDisabled.key}")
+    private String userDisabledRoutingKey;
+
+    /**
+     * Every replica needs its own copy of the user events to invalidate its local cache,
+     * so the queue is exclusive and auto-deleted.
+     */
+    @Bean
+    public Queue userEventsQueue() {
+        return new AnonymousQueue();
+    }
+
+    @Bean
+    public Binding userChangedBinding() {
+        return BindingBuilder
+                .bind(userEventsQueue())
+                .to(securityExchange())
+                .with(userChangedRoutingKey);
+    }
+
+    @Bean
+    public Binding userDisabledBinding() {
+        return BindingBuilder
+                .bind(userEventsQueue())
+                .to(securityExchange())
+                .with(userDisabledRoutingKey);
+    }
+
 
     // ------  END SECURITY  ------ //
 
@@ -60,6 +94,37 @@ public class RabbitMQConfig {
                 .with(notifyTransactionRoutingKey);
     }
 
+    @Value("${rabbitmq.listener.notifyTransaction.batch-size:100}")
+    private int notifyTransactionBatchSize;
+
+    @Value("${rabbitmq.listener.notifyTransaction.receive-timeout-ms:200}")
+    private long notifyTransactionReceiveTimeout;
+
+    /**
+     * Listener container for the payment notifications.
+     * <p>
+     * Messages are delivered to the listener in batches of up to {@code batch-size}; a partial batch is delivered
+     * when no new message arrives within {@code receive-timeout-ms}. The whole batch is acknowledged after the
+     * listener returns.
+     * </p>
+     *
+     * @param configurer the Boot configurer, applies the message converter and the spring.rabbitmq.listener settings.
+     * @param connectionFactory the connection factory to use.
+     * @return a batch-enabled listener container factory.
+     */
+    @Bean
+    public SimpleRabbitListenerContainerFactory notifyTransactionContainerFactory(SimpleRabbitListenerContainerFactoryConfigurer configurer,
+                                                                                 ConnectionFactory connectionFactory) {
+        SimpleRabbitListenerContainerFactory factory = new SimpleRabbitListenerContainerFactory();
+        configurer.configure(factory, connectionFactory);
+        factory.setBatchListener(true);
+        factory.setConsumerBatchEnabled(true);
+        factory.setBatchSize(notifyTransactionBatchSize);
+        factory.setReceiveTimeout(notifyTransactionReceiveTimeout);
+        factory.setPrefetchCount(Math.max(notifyTransactionBatchSize, 250));
+        return factory;
+    }
+
     // ------  END REDEEM  ------ //
 
     // ----- WALLET CREATION ----- //
@@ -75,8 +140,54 @@ public class RabbitMQConfig {
         return new TopicExchange(dataExchange);
     }
 
+    // ----- REWARD CATALOG ----- //
 
+    @Value("${rabbitmq.routing.catalogChanged.key}")
+    private String catalogChangedRoutingKey;
 
+    /**
+     * Every replica refreshes its own catalog snapshot, so each one binds its own exclusive,
+     * auto-deleted queue: the topic binding behaves as a fanout between replicas.
+     */
+    @Bean
+    public Queue catalogEventsQueue() {
+        return new AnonymousQueue();
+    }
+
+    @Bean
+    public Binding catalogChangedBinding() {
+        return BindingBuilder
+                .bind(catalogEventsQueue())
+                .to(dataExchange())
+                .with(catalogChangedRoutingKey);
+    }
+
+    // ----- REDEEM CODES ----- //
+
+    @Value("${rabbitmq.routing.redeemCodesIssued.key}")
+    private String redeemCodesIssuedRoutingKey;
+
+    /**
+     * Codes issued by a replica are added to the redeem code filter of every replica, as for the catalog.
+     */
+    @Bean
+    public Queue redeemCodeEventsQueue() {
+        return new AnonymousQueue();
+    }
+
+    @Bean
+    public Binding redeemCodesIssuedBinding() {
+        return BindingBuilder
+                .bind(redeemCodeEventsQueue())
+                .to(dataExchange())
+                .with(redeemCodesIssuedRoutingKey);
+    }
+
+
+
+
+    @Value("${rabbitmq.async.receive-timeout-ms:30000}")
+    private long asyncReceiveTimeout;
 
     /**
      * Creates a message converter for JSON messages.
@@ -100,4 +211,21 @@ public class RabbitMQConfig {
         rabbitTemplate.setMessageConverter(converter());
         return rabbitTemplate;
     }
+
+    /**
+     * Creates the template used for non-blocking request/reply.
+     * <p>
+     * Replies come back on the direct reply-to pseudo-queue and are matched by correlation id.
+     * The receive timeout is only an upper bound, callers set their own per-call timeout.
+     * </p>
+     *
+     * @param rabbitTemplate the template providing connection factory and message converter.
+     * @return a new AsyncRabbitTemplate instance.
+     */
+    @Bean
+    public AsyncRabbitTemplate asyncRabbitTemplate(RabbitTemplate rabbitTemplate) {
+        AsyncRabbitTemplate asyncRabbitTemplate = new AsyncRabbitTemplate(rabbitTemplate);
+        asyncRabbitTemplate.setReceiveTimeout(asyncReceiveTimeout);
+        return asyncRabbitTemplate;
+    }
 }
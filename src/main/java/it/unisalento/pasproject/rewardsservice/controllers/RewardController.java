@@ -1,21 +1,44 @@
 package it.unisalento.pasproject.rewardsservice.controllers;
 
+import it.unisalento.pasproject.rewardsservice.business.catalog.CatalogResponseCache;
+import it.unisalento.pasproject.rewardsservice.business.catalog.CatalogSearch;
+import it.unisalento.pasproject.rewardsservice.business.catalog.CatalogSnapshot;
+import it.unisalento.pasproject.rewardsservice.business.catalog.Highlighter;
+import it.unisalento.pasproject.rewardsservice.business.catalog.RewardCatalog;
+import it.unisalento.pasproject.rewardsservice.business.catalog.SuggestIndex;
+import it.unisalento.pasproject.rewardsservice.business.pagination.PageCursor;
+import it.unisalento.pasproject.rewardsservice.business.search.RewardSearchSpec;
+import it.unisalento.pasproject.rewardsservice.business.search.RewardSort;
+import it.unisalento.pasproject.rewardsservice.configuration.AsyncTimeoutConfig;
 import it.unisalento.pasproject.rewardsservice.domain.Redeem;
 import it.unisalento.pasproject.rewardsservice.domain.Reward;
 import it.unisalento.pasproject.rewardsservice.dto.*;
 import it.unisalento.pasproject.rewardsservice.exceptions.*;
 import it.unisalento.pasproject.rewardsservice.repositories.RedeemRepository;
 import it.unisalento.pasproject.rewardsservice.repositories.RewardRepository;
+import it.unisalento.pasproject.rewardsservice.repositories.RewardRepositoryCustom;
 import it.unisalento.pasproject.rewardsservice.service.CreateTransactionSaga;
+import it.unisalento.pasproject.rewardsservice.service.RedeemExportService;
 import it.unisalento.pasproject.rewardsservice.service.RedeemService;
 import it.unisalento.pasproject.rewardsservice.service.RewardService;
 import it.unisalento.pasproject.rewardsservice.service.UserCheckService;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.format.annotation.DateTimeFormat;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.security.access.annotation.Secured;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.WebRequest;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Objects;
 import java.util.Optional;
 
 import static it.unisalento.pasproject.rewardsservice.security.SecurityConstants.ROLE_ADMIN;
@@ -30,16 +53,55 @@ public class RewardController {
     private final CreateTransactionSaga createTransactionSaga;
     private final UserCheckService userCheckService;
     private final RedeemService redeemService;
+    private final RewardCatalog rewardCatalog;
+    private final RedeemExportService redeemExportService;
+    private final CatalogSearch catalogSearch;
+    private final SuggestIndex suggestIndex;
+    private final CatalogResponseCache responseCache;
+
+    @Value("${pagination.default-size:50}")
+    private int defaultPageSize;
+
+    @Value("${pagination.max-size:200}")
+    private int maxPageSize;
+
+    @Value("${search.index.enabled:true}")
+    private boolean searchIndexEnabled;
+
+    @Value("${search.text.default-size:10}")
+    private int defaultSearchSize;
+
+    @Value("${search.text.max-size:50}")
+    private int maxSearchSize;
+
+    @Value("${search.text.snippet-length:160}")
+    private int snippetLength;
+
+    @Value("${suggest.default-size:8}")
+    private int defaultSuggestSize;
+
+    @Value("${redeem.use.batch.max-size:500}")
+    private int maxRedeemBatchSize;
+
+    @Value("${redeem.export.timeout-ms:3600000}")
+    private long exportTimeoutMs;
 
     @Autowired
     public RewardController(RewardService rewardService, RewardRepository rewardRepository, CreateTransactionSaga createTransactionSaga,
-                            RedeemRepository redeemRepository, UserCheckService userCheckService, RedeemService redeemService) {
+                            RedeemRepository redeemRepository, UserCheckService userCheckService, RedeemService redeemService,
+                            RewardCatalog rewardCatalog, RedeemExportService redeemExportService, CatalogSearch catalogSearch,
+                            SuggestIndex suggestIndex, CatalogResponseCache responseCache) {
         this.rewardService = rewardService;
         this.rewardRepository = rewardRepository;
         this.createTransactionSaga = createTransactionSaga;
         this.redeemRepository = redeemRepository;
         this.userCheckService = userCheckService;
         this.redeemService = redeemService;
+        this.rewardCatalog = rewardCatalog;
+        this.redeemExportService = redeemExportService;
+        this.catalogSearch = catalogSearch;
+        this.suggestIndex = suggestIndex;
+        this.responseCache = responseCache;
     }
 
     /**
@@ -57,6 +119,7 @@ public class RewardController {
         }
 
         reward = rewardRepository.save(reward);
+        rewardCatalog.update(reward);
 
         //Inviare notifica al wallet per aggiungere il reward come wallet per eseguire le transazioni
         rewardService.createWallet(reward.getId());
@@ -68,27 +131,23 @@ public class RewardController {
     @PatchMapping(value = "/update", consumes = MediaType.APPLICATION_JSON_VALUE)
     @Secured({ROLE_ADMIN})
     public RewardDTO updateReward(@RequestBody RewardDTO rewardDTO) throws RewardNotFoundException {
-        Optional<Reward> reward = rewardRepository.findById(rewardDTO.getId());
-        if (reward.isEmpty()) {
-           throw new RewardNotFoundException("Reward not found with id: " + rewardDTO.getId() );
-        }
-
-        Reward rewardEntity = reward.get();
-
-        Optional.ofNullable(rewardDTO.getName()).ifPresent(rewardEntity::setName);
-        Optional.of(rewardDTO.getCost()).ifPresent(rewardEntity::setCost);
-        Optional.ofNullable(rewardDTO.getDescription()).ifPresent(rewardEntity::setDescription);
-        Optional.ofNullable(rewardDTO.getImage()).ifPresent(rewardEntity::setImage);
-        Optional.ofNullable(rewardDTO.getCategory()).ifPresent(rewardEntity::setCategory);
-        Optional.ofNullable(rewardDTO.getSubcategory()).ifPresent(rewardEntity::setSubcategory);
-        Optional.of(rewardDTO.getOldCost()).ifPresent(rewardEntity::setOldCost);
-
-        Optional.of(rewardDTO.isActive()).ifPresent(rewardEntity::setActive);
-        Optional.of(rewardDTO.getQuantity()).ifPresent(rewardEntity::setQuantity);
-        //Optional.of(rewardDTO.getSold()).ifPresent(rewardEntity::setSold); Solo il sistema può modificare sold
-
-
-        rewardRepository.save(rewardEntity);
+        //Solo i campi modificati dall'amministratore: sold e le quantità riservate nel frattempo non vengono sovrascritti
+        //Solo il sistema può modificare sold
+        RewardRepositoryCustom.RewardChanges changes = new RewardRepositoryCustom.RewardChanges(
+                rewardDTO.getName(),
+                rewardDTO.getDescription(),
+                rewardDTO.getImage(),
+                rewardDTO.getCategory(),
+                rewardDTO.getSubcategory(),
+                rewardDTO.getCost(),
+                rewardDTO.getOldCost(),
+                rewardDTO.getQuantity(),
+                rewardDTO.isActive());
+
+        Reward rewardEntity = rewardRepository.updateDetails(rewardDTO.getId(), changes)
+                .orElseThrow(() -> new RewardNotFoundException("Reward not found with id: " + rewardDTO.getId()));
+
+        rewardCatalog.update(rewardEntity);
 
         return rewardDTO;
     }
@@ -96,15 +155,10 @@ public class RewardController {
     @PatchMapping(value = "/activate/{id}")
     @Secured({ROLE_ADMIN})
     public RewardDTO activateReward(@PathVariable String id) throws RewardNotFoundException {
-        Optional<Reward> reward = rewardRepository.findById(id);
-        if (reward.isEmpty()) {
-            throw new RewardNotFoundException("Reward not found with id: " + id );
-        }
-
-        Reward rewardEntity = reward.get();
-        rewardEntity.setActive(true);
+        Reward rewardEntity = rewardRepository.setActive(id, true)
+                .orElseThrow(() -> new RewardNotFoundException("Reward not found with id: " + id));
 
-        rewardRepository.save(rewardEntity);
+        rewardCatalog.update(rewardEntity);
 
         return rewardService.getRewardDTO(rewardEntity);
     }
@@ -112,15 +166,10 @@ public class RewardController {
     @PatchMapping(value = "/deactivate/{id}")
     @Secured({ROLE_ADMIN})
     public RewardDTO deactivateReward(@PathVariable String id) throws RewardNotFoundException {
-        Optional<Reward> reward = rewardRepository.findById(id);
-        if (reward.isEmpty()) {
-            throw new RewardNotFoundException("Reward not found with id: " + id );
-        }
-
-        Reward rewardEntity = reward.get();
-        rewardEntity.setActive(false);
+        Reward rewardEntity = rewardRepository.setActive(id, false)
+                .orElseThrow(() -> new RewardNotFoundException("Reward not found with id: " + id));
 
-        rewardRepository.save(rewardEntity);
+        rewardCatalog.update(rewardEntity);
 
         return rewardService.getRewardDTO(rewardEntity);
     }
@@ -134,34 +183,67 @@ public class RewardController {
         }
 
         rewardRepository.delete(reward.get());
+        rewardCatalog.remove(id);
 
         return rewardService.getRewardDTO(reward.get());
     }
 
     @GetMapping(value = "/{id}")
     @Secured({ROLE_ADMIN, ROLE_MEMBRO})
-    public RewardDTO getReward(@PathVariable String id) throws RewardNotFoundException {
-        Optional<Reward> reward = rewardRepository.findById(id);
-        if (reward.isEmpty()) {
-            throw new RewardNotFoundException("Reward not found with id: " + id);
+    public ResponseEntity<byte[]> getReward(@PathVariable String id, WebRequest request,
+                                            @RequestHeader(value = HttpHeaders.ACCEPT_ENCODING, required = false) String acceptEncoding) throws RewardNotFoundException {
+        //Letto dallo snapshot in memoria del catalogo, senza query
+        CatalogSnapshot snapshot = rewardCatalog.snapshot();
+        RewardDTO reward = snapshot.findById(id)
+                .orElseThrow(() -> new RewardNotFoundException("Reward not found with id: " + id));
+
+        // Il body è serializzato una sola volta per versione del reward: se il client lo ha già si risponde 304
+        CatalogResponseCache.Body body = responseCache.reward(snapshot, id, () -> reward);
+        boolean gzip = CatalogResponseCache.acceptsGzip(acceptEncoding);
+        if (request.checkNotModified(etag(body, gzip), lastModified(List.of(reward)))) {
+            return null;
         }
-
-        return rewardService.getRewardDTO(reward.get());
+        return cachedBody(body, gzip);
     }
 
     @GetMapping(value = "/all")
     @Secured({ROLE_ADMIN, ROLE_MEMBRO})
-    public ListRewardDTO getAllRewards() {
-        ListRewardDTO listRewardDTO = new ListRewardDTO();
-        if(userCheckService.isAdministrator()) {
-            listRewardDTO.setRewards(rewardRepository.findAll().stream().map(rewardService::getRewardDTO).toList());
-        } else { // For members, only active rewards are shown
-            listRewardDTO.setRewards(rewardRepository.findAllByActive(true).stream().map(rewardService::getRewardDTO).toList());
+    public ResponseEntity<byte[]> getAllRewards(@RequestParam(required = false) String cursor,
+                                                @RequestParam(required = false) Integer size,
+                                                WebRequest request,
+                                                @RequestHeader(value = HttpHeaders.ACCEPT_ENCODING, required = false) String acceptEncoding) {
+        int pageSize = PageCursor.pageSize(size, defaultPageSize, maxPageSize);
+        String afterId = PageCursor.decode(cursor);
+
+        // For members, only active rewards are shown
+        boolean activeOnly = !userCheckService.isAdministrator();
+        CatalogSnapshot snapshot = rewardCatalog.snapshot();
+
+        // La pagina viene serializzata una sola volta per versione del catalogo
+        CatalogResponseCache.Body body = responseCache.page(snapshot, activeOnly, pageSize, afterId, () -> {
+            List<RewardDTO> fetched = snapshot.page(activeOnly, afterId, pageSize + 1);
+
+            ListRewardDTO listRewardDTO = new ListRewardDTO();
+            listRewardDTO.setRewards(PageCursor.page(fetched, pageSize));
+            listRewardDTO.setNextCursor(PageCursor.next(fetched, pageSize, RewardDTO::getId));
+            return listRewardDTO;
+        });
+
+        // L'ETag cambia solo se cambia il contenuto della pagina, non per le modifiche agli altri reward
+        boolean gzip = CatalogResponseCache.acceptsGzip(acceptEncoding);
+        if (request.checkNotModified(etag(body, gzip), lastModified(snapshot.page(activeOnly, afterId, pageSize)))) {
+            return null;
         }
-
-        return listRewardDTO;
+        return cachedBody(body, gzip);
     }
 
+    /**
+     * Cerca i reward con i filtri indicati
+     * <p>
+     * Con l'ordinamento per id (default) la ricerca è paginata con il cursore,
+     * con gli altri ordinamenti restituisce solo i primi {@code size} reward.
+     * </p>
+     */
     @GetMapping(value = "/find")
     @Secured({ROLE_ADMIN, ROLE_MEMBRO})
     public ListRewardDTO findRewards(@RequestParam(required = false) String name,
@@ -169,20 +251,110 @@ public class RewardController {
                                      @RequestParam(required = false) String subcategory,
                                      @RequestParam(required = false) Integer minQuantity,
                                      @RequestParam(required = false) Integer maxQuantity,
-                                     @RequestParam(required = false) Integer maxSold,
                                      @RequestParam(required = false) Integer minSold,
-                                     @RequestParam(required = false) Boolean active){
+                                     @RequestParam(required = false) Integer maxSold,
+                                     @RequestParam(required = false) Double minCost,
+                                     @RequestParam(required = false) Double maxCost,
+                                     @RequestParam(required = false) Boolean active,
+                                     @RequestParam(required = false) String sort,
+                                     @RequestParam(required = false) String cursor,
+                                     @RequestParam(required = false) Integer size){
+        int pageSize = PageCursor.pageSize(size, defaultPageSize, maxPageSize);
+        RewardSort rewardSort = RewardSort.fromParam(sort);
+        String afterId = PageCursor.decode(cursor);
+
+        if (afterId != null && !rewardSort.isKeyset()) {
+            throw new InvalidCursorException("Cursor not supported with sort " + sort);
+        }
+
+        RewardSearchSpec spec = RewardSearchSpec.builder()
+                .name(name)
+                .category(category)
+                .subcategory(subcategory)
+                .minQuantity(minQuantity)
+                .maxQuantity(maxQuantity)
+                .minSold(minSold)
+                .maxSold(maxSold)
+                .minCost(minCost)
+                .maxCost(maxCost)
+                .active(active)
+                .sort(rewardSort)
+                .afterId(afterId)
+                // Con il cursore si legge un reward in più per sapere se esiste la pagina successiva
+                .limit(rewardSort.isKeyset() ? pageSize + 1 : pageSize)
+                .build();
+
+        // Ricerca sull'indice in memoria del catalogo, senza accedere al database;
+        // se l'indice è disabilitato la query va sul database, con la cache delle ricerche frequenti
+        List<RewardDTO> fetched = searchIndexEnabled
+                ? catalogSearch.search(spec)
+                : rewardService.findRewards(spec).stream().map(rewardService::getRewardDTO).toList();
+
         ListRewardDTO listRewardDTO = new ListRewardDTO();
-        listRewardDTO.setRewards(rewardService.findRewards(name,
-                category, subcategory, minQuantity, minSold,
-                maxQuantity, maxSold, active)
-                .stream()
-                .map(rewardService::getRewardDTO)
-                .toList());
+        listRewardDTO.setRewards(PageCursor.page(fetched, pageSize));
+        listRewardDTO.setNextCursor(rewardSort.isKeyset() ? PageCursor.next(fetched, pageSize, RewardDTO::getId) : null);
 
         return listRewardDTO;
     }
 
+    /**
+     * Ricerca full-text sui reward attivi, per nome, descrizione, categoria e sottocategoria
+     * @param q testo cercato
+     * @param size numero massimo di risultati
+     * @return i risultati più rilevanti, con i termini trovati evidenziati
+     */
+    @GetMapping(value = "/search")
+    @Secured({ROLE_ADMIN, ROLE_MEMBRO})
+    public ListRewardSearchResultDTO searchRewards(@RequestParam String q,
+                                                   @RequestParam(required = false) Integer size) {
+        if (q.isBlank()) {
+            throw new InvalidSearchException("Empty search");
+        }
+
+        List<RewardSearchResultDTO> results = catalogSearch.searchText(q, PageCursor.pageSize(size, defaultSearchSize, maxSearchSize))
+                .stream()
+                .map(hit -> {
+                    RewardSearchResultDTO result = new RewardSearchResultDTO();
+                    result.setReward(hit.reward());
+                    result.setScore(hit.score());
+                    result.setHighlightedName(Highlighter.highlight(hit.reward().getName(), hit.terms()));
+                    result.setHighlightedDescription(Highlighter.snippet(hit.reward().getDescription(), hit.terms(), snippetLength));
+                    return result;
+                })
+                .toList();
+
+        ListRewardSearchResultDTO listRewardSearchResultDTO = new ListRewardSearchResultDTO();
+        listRewardSearchResultDTO.setResults(results);
+        return listRewardSearchResultDTO;
+    }
+
+    /**
+     * Suggerimenti per il completamento della ricerca: nomi e categorie dei reward attivi che iniziano con il testo digitato
+     * @param q testo digitato finora
+     * @param size numero massimo di suggerimenti
+     * @return i suggerimenti, a partire dai più venduti
+     */
+    @GetMapping(value = "/suggest")
+    @Secured({ROLE_ADMIN, ROLE_MEMBRO})
+    public ListSuggestionDTO suggestRewards(@RequestParam String q,
+                                            @RequestParam(required = false) Integer size) {
+        List<SuggestionDTO> suggestions = suggestIndex.suggest(q, size != null ? Math.max(1, size) : defaultSuggestSize)
+                .stream()
+                .map(suggestion -> {
+                    SuggestionDTO suggestionDTO = new SuggestionDTO();
+                    suggestionDTO.setText(suggestion.text());
+                    suggestionDTO.setType(suggestion.type().name());
+                    suggestionDTO.setRewardId(suggestion.rewardId());
+                    suggestionDTO.setSold(suggestion.sold());
+                    return suggestionDTO;
+                })
+                .toList();
+
+        ListSuggestionDTO listSuggestionDTO = new ListSuggestionDTO();
+        listSuggestionDTO.setSuggestions(suggestions);
+        return listSuggestionDTO;
+    }
+
     @PostMapping(value = "/redeem", consumes = MediaType.APPLICATION_JSON_VALUE)
     @Secured({ROLE_MEMBRO})
     public RedeemRewardDTO redeemReward(@RequestBody RedeemRewardDTO redeemDTO) throws OutOfStockException, RewardNotFoundException, WrongUserException {
@@ -226,21 +398,65 @@ public class RewardController {
 
     @GetMapping(value = "/redeems")
     @Secured({ROLE_ADMIN})
-    public ListRedeemDTO getAllRedeems() {
-        ListRedeemDTO listRedeemDTO = new ListRedeemDTO();
-        listRedeemDTO.setRedeems(redeemRepository.findAll().stream().map(rewardService::getRedeemDTO).toList());
+    public ListRedeemDTO getAllRedeems(@RequestParam(required = false) String cursor,
+                                       @RequestParam(required = false) Integer size) {
+        return redeemPage(null, null, cursor, size);
+    }
 
-        return listRedeemDTO;
+    /**
+     * Esporta lo storico dei riscatti in streaming, leggendolo da un cursore Mongo
+     * @param format ndjson (default) o csv
+     * @param userEmail filtro per utente
+     * @param rewardId filtro per reward
+     * @param from data di riscatto minima (inclusa)
+     * @param to data di riscatto massima (esclusa)
+     * @param request richiesta corrente, riceve il timeout dell'export
+     * @return corpo della risposta scritto man mano che i riscatti vengono letti
+     */
+    @GetMapping(value = "/redeems/export")
+    @Secured({ROLE_ADMIN})
+    public ResponseEntity<StreamingResponseBody> exportRedeems(@RequestParam(required = false, defaultValue = "ndjson") String format,
+                                                               @RequestParam(required = false) String userEmail,
+                                                               @RequestParam(required = false) String rewardId,
+                                                               @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) LocalDateTime from,
+                                                               @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) LocalDateTime to,
+                                                               WebRequest request) {
+        RedeemExportService.Format exportFormat;
+        MediaType mediaType;
+        switch (format.toLowerCase()) {
+            case "ndjson" -> {
+                exportFormat = RedeemExportService.Format.NDJSON;
+                mediaType = MediaType.APPLICATION_NDJSON;
+            }
+            case "csv" -> {
+                exportFormat = RedeemExportService.Format.CSV;
+                mediaType = new MediaType("text", "csv", StandardCharsets.UTF_8);
+            }
+            default -> throw new RedeemException("Unsupported export format: " + format);
+        }
+
+        StreamingResponseBody body = out -> redeemExportService.export(exportFormat, userEmail, rewardId, from, to, out);
+        // Solo l'export ha un timeout lungo, le altre richieste asincrone mantengono quello predefinito
+        request.setAttribute(AsyncTimeoutConfig.TIMEOUT_ATTRIBUTE, exportTimeoutMs, WebRequest.SCOPE_REQUEST);
+
+        return ResponseEntity.ok()
+                .contentType(mediaType)
+                .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"redeems." + format.toLowerCase() + "\"")
+                .body(body);
     }
 
     /**
-     * Restituisce tutti i riscatti di un utente
+     * Restituisce una pagina dei riscatti di un utente
      * @param email email dell'utente (se null, prende l'utente corrente)
-     * @return lista di riscatti
+     * @param cursor cursore della pagina restituito dalla pagina precedente (se null, prima pagina)
+     * @param size dimensione della pagina
+     * @return pagina di riscatti
      */
     @GetMapping(value = "/redeems/user/{email}")
     @Secured({ROLE_ADMIN,ROLE_MEMBRO})
-    public ListRedeemDTO getUserRedeems(@PathVariable(required = false) String email) throws WrongUserException {
+    public ListRedeemDTO getUserRedeems(@PathVariable(required = false) String email,
+                                        @RequestParam(required = false) String cursor,
+                                        @RequestParam(required = false) Integer size) throws WrongUserException {
 
         // Fallback: if email is null, get the current session user email (as it should be)
         if(email == null){
@@ -252,22 +468,34 @@ public class RewardController {
             throw new WrongUserException("User not correct");
         }
 
-        ListRedeemDTO listRedeemDTO = new ListRedeemDTO();
-        listRedeemDTO.setRedeems(redeemRepository.findAllByUserEmail(email).stream().map(rewardService::getRedeemDTO).toList());
-
-        return listRedeemDTO;
+        return redeemPage(email, null, cursor, size);
     }
 
     /**
-     * Restituisce tutti i riscatti di un reward
+     * Restituisce una pagina dei riscatti di un reward
      * @param id id del reward
-     * @return lista di riscatti
+     * @param cursor cursore della pagina restituito dalla pagina precedente (se null, prima pagina)
+     * @param size dimensione della pagina
+     * @return pagina di riscatti
      */
     @GetMapping(value = "/redeems/reward/{id}")
     @Secured({ROLE_ADMIN})
-    public ListRedeemDTO getRewardRedeems(@PathVariable String id) {
+    public ListRedeemDTO getRewardRedeems(@PathVariable String id,
+                                          @RequestParam(required = false) String cursor,
+                                          @RequestParam(required = false) Integer size) {
+        return redeemPage(null, id, cursor, size);
+    }
+
+    /**
+     * Legge una pagina di riscatti con un range scan su _id, chiedendo un elemento in più per sapere se ne esiste un'altra
+     */
+    private ListRedeemDTO redeemPage(String userEmail, String rewardId, String cursor, Integer size) {
+        int pageSize = PageCursor.pageSize(size, defaultPageSize, maxPageSize);
+        List<Redeem> fetched = redeemRepository.findPage(userEmail, rewardId, PageCursor.decode(cursor), pageSize + 1);
+
         ListRedeemDTO listRedeemDTO = new ListRedeemDTO();
-        listRedeemDTO.setRedeems(redeemRepository.findAllByRewardId(id).stream().map(rewardService::getRedeemDTO).toList());
+        listRedeemDTO.setRedeems(PageCursor.page(fetched, pageSize).stream().map(rewardService::getRedeemDTO).toList());
+        listRedeemDTO.setNextCursor(PageCursor.next(fetched, pageSize, Redeem::getRedeemId));
 
         return listRedeemDTO;
     }
@@ -308,5 +536,70 @@ public class RewardController {
         return rewardService.getRedeemDTO(redeem);
     }
 
+    /**
+     * Riscatta in blocco i redeem code dell'utente che esegue la richiesta, ad esempio da un punto vendita.
+     * I codici vengono letti con una sola query e usati con una sola scrittura bulk
+     * @param useRedeemsDTO codici da riscattare
+     * @return esito di ogni codice, nello stesso ordine della richiesta
+     */
+    @PatchMapping(value = "/redeems/use/batch", consumes = MediaType.APPLICATION_JSON_VALUE)
+    @Secured({ROLE_MEMBRO})
+    public ListRedeemUseResultDTO riscattoRedeemCodes(@RequestBody UseRedeemsDTO useRedeemsDTO) {
+        List<String> redeemCodes = useRedeemsDTO.getRedeemCodes();
+
+        if (redeemCodes == null || redeemCodes.isEmpty()) {
+            throw new InvalidRedeemBatchException("Missing redeem codes");
+        }
+        if (redeemCodes.size() > maxRedeemBatchSize) {
+            throw new InvalidRedeemBatchException("Too many redeem codes, the maximum is " + maxRedeemBatchSize);
+        }
+        if (redeemCodes.contains(null)) {
+            throw new InvalidRedeemBatchException("Missing redeem code");
+        }
+
+        List<RedeemUseResultDTO> results = redeemService.useRedeems(redeemCodes, userCheckService.getCurrentUserEmail())
+                .stream()
+                .map(use -> {
+                    RedeemUseResultDTO result = new RedeemUseResultDTO();
+                    result.setRedeemCode(use.redeemCode());
+                    result.setStatus(use.status().name());
+                    if (use.redeem() != null) {
+                        result.setRedeem(rewardService.getRedeemDTO(use.redeem()));
+                    }
+                    return result;
+                })
+                .toList();
+
+        ListRedeemUseResultDTO listRedeemUseResultDTO = new ListRedeemUseResultDTO();
+        listRedeemUseResultDTO.setResults(results);
+        listRedeemUseResultDTO.setConsumed((int) results.stream().filter(result -> result.getRedeem() != null).count());
+        return listRedeemUseResultDTO;
+    }
+
+    private ResponseEntity<byte[]> cachedBody(CatalogResponseCache.Body body, boolean gzip) {
+        ResponseEntity.BodyBuilder response = ResponseEntity.ok()
+                .contentType(MediaType.APPLICATION_JSON)
+                .varyBy(HttpHeaders.ACCEPT_ENCODING);
 
+        if (gzip) {
+            return response.header(HttpHeaders.CONTENT_ENCODING, "gzip").body(body.gzip());
+        }
+        return response.body(body.json());
+    }
+
+    // ETag forte: hash del contenuto, uguale su tutte le repliche che servono gli stessi reward.
+    // Il body gzip ha byte diversi dal JSON, quindi un ETag diverso
+    private static String etag(CatalogResponseCache.Body body, boolean gzip) {
+        return "\"" + body.hash() + (gzip ? "-gz" : "") + "\"";
+    }
+
+    // Ultima scrittura salvata nei documenti dei reward, la stessa su tutte le repliche; -1 se non nota
+    private static long lastModified(List<RewardDTO> rewards) {
+        return rewards.stream()
+                .map(reward -> reward.getUpdateDate() != null ? reward.getUpdateDate() : reward.getAddDate())
+                .filter(Objects::nonNull)
+                .max(Comparator.naturalOrder())
+                .map(date -> date.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli())
+                .orElse(-1L);
+    }
 }
@@ -0,0 +1,26 @@
+package it.unisalento.pasproject.rewardsservice.domain;
+
+import lombok.Getter;
+import lombok.Setter;
+
+import java.time.LocalDateTime;
+
+/**
+ * Message waiting to be published by the outbox relay.
+ * It is embedded in the document that produced it, so both are written by the same operation.
+ */
+@Getter
+@Setter
+public class OutboxMessage {
+    private String exchange;
+    private String routingKey;
+    private Object payload;
+
+    private LocalDateTime createdAt;
+    private boolean sent;   // True quando il broker ha confermato la pubblicazione
+    private LocalDateTime sentAt;
+
+    private int attempts;
+    private String owner;   // Relay che ha preso in carico il messaggio
+    private LocalDateTime lockedUntil;
+}
@@ -2,6 +2,9 @@ package it.unisalento.pasproject.rewardsservice.domain;
 import lombok.Getter;
 import lombok.Setter;
 import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.CompoundIndex;
+import org.springframework.data.mongodb.core.index.CompoundIndexes;
+import org.springframework.data.mongodb.core.index.Indexed;
 import org.springframework.data.mongodb.core.mapping.Document;
 
 import java.time.LocalDateTime;
@@ -9,6 +12,16 @@ import java.time.LocalDateTime;
 @Getter
 @Setter
 @Document(collection = "redeems")
+@CompoundIndexes({
+        // Storico per utente e per reward, ordinato per data di riscatto
+        @CompoundIndex(name = "user_date_idx", def = "{'userEmail': 1, 'redeemDate': 1}"),
+        @CompoundIndex(name = "reward_date_idx", def = "{'rewardId': 1, 'redeemDate': 1}"),
+        // Paginazione per utente e per reward: uguaglianza sul filtro, range su _id
+        @CompoundIndex(name = "user_page_idx", def = "{'userEmail': 1, '_id': 1}"),
+        @CompoundIndex(name = "reward_page_idx", def = "{'rewardId': 1, '_id': 1}"),
+        // Messaggi dell'outbox da pubblicare: solo i riscatti che ne hanno uno sono indicizzati
+        @CompoundIndex(name = "outbox_pending_idx", def = "{'outbox.sent': 1, 'outbox.createdAt': 1}", sparse = true)
+})
 public class Redeem {
     @Id
     private String redeemId;
@@ -17,8 +30,13 @@ public class Redeem {
     private int quantity;
     private LocalDateTime redeemDate;   // Data di riscatto del reward
     private boolean redeemed;  // True se viene completata la transazione
+    private String stockToken;  // Consegna della notifica che ha applicato la variazione di stock, per applicarla una volta sola
 
+    @Indexed(name = "redeem_code_idx", unique = true, sparse = true)   // Assente finché la transazione non è completata
     private String redeemCode;  // Codice univoco per il riscatto
     private boolean used;   // True se il codice è stato usato
     private LocalDateTime usedDate;  // Data di utilizzo del codice
+    private String useToken;  // Richiesta che ha usato il codice, per gli usi in blocco
+
+    private OutboxMessage outbox;   // Richiesta di transazione in attesa di pubblicazione
 }
@@ -3,6 +3,7 @@ package it.unisalento.pasproject.rewardsservice.domain;
 import lombok.Getter;
 import lombok.Setter;
 import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.CompoundIndex;
 import org.springframework.data.mongodb.core.mapping.Document;
 
 import java.time.LocalDateTime;
@@ -10,6 +11,8 @@ import java.time.LocalDateTime;
 @Getter
 @Setter
 @Document(collection = "rewards")
+// Filtri del catalogo: stato, categoria e sottocategoria
+@CompoundIndex(name = "catalog_filter_idx", def = "{'active': 1, 'category': 1, 'subcategory': 1}")
 public class Reward {
     @Id
     private String id;
@@ -24,8 +27,14 @@ public class Reward {
     private String subcategory;
 
     private LocalDateTime addDate;
+    // Ultima scrittura, salvata nel documento: è la stessa su tutte le repliche
+    private LocalDateTime updateDate;
     private boolean active;
+    // Disattivato dall'amministratore: non torna attivo quando rientrano pezzi
+    private boolean disabled;
     private int quantity;
     private int sold;
+    // Incrementata da ogni scrittura: il catalogo scarta le copie più vecchie di quella che ha già
+    private long revision;
 
 }
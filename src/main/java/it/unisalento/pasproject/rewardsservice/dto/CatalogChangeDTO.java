@@ -0,0 +1,13 @@
+package it.unisalento.pasproject.rewardsservice.dto;
+
+import lombok.Getter;
+import lombok.Setter;
+
+import java.util.List;
+
+@Getter
+@Setter
+public class CatalogChangeDTO {
+    private String origin;  // Replica che ha modificato il catalogo
+    private List<String> rewardIds;
+}
@@ -9,4 +9,5 @@ import java.util.List;
 @Setter
 public class ListRedeemDTO {
     private List<RedeemDTO> redeems;
+    private String nextCursor;  // Null se è l'ultima pagina
 }
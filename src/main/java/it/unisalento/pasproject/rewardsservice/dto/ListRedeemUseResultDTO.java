@@ -0,0 +1,13 @@
+package it.unisalento.pasproject.rewardsservice.dto;
+
+import lombok.Getter;
+import lombok.Setter;
+
+import java.util.List;
+
+@Getter
+@Setter
+public class ListRedeemUseResultDTO {
+    private List<RedeemUseResultDTO> results;   // Nello stesso ordine dei codici inviati
+    private int consumed;
+}
@@ -9,4 +9,5 @@ import java.util.List;
 @Setter
 public class ListRewardDTO {
     private List<RewardDTO> rewards;
+    private String nextCursor;  // Null se è l'ultima pagina
 }
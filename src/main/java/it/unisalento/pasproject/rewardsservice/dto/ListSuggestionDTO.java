@@ -0,0 +1,12 @@
+package it.unisalento.pasproject.rewardsservice.dto;
+
+import lombok.Getter;
+import lombok.Setter;
+
+import java.util.List;
+
+@Getter
+@Setter
+public class ListSuggestionDTO {
+    private List<SuggestionDTO> suggestions;
+}
@@ -0,0 +1,13 @@
+package it.unisalento.pasproject.rewardsservice.dto;
+
+import lombok.Getter;
+import lombok.Setter;
+
+import java.util.List;
+
+@Getter
+@Setter
+public class RedeemCodesIssuedDTO {
+    private String origin;  // Replica che ha emesso i codici
+    private List<Long> hashes;  // Due hash per codice: i codici non viaggiano in chiaro
+}
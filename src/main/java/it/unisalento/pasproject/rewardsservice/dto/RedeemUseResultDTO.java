@@ -0,0 +1,12 @@
+package it.unisalento.pasproject.rewardsservice.dto;
+
+import lombok.Getter;
+import lombok.Setter;
+
+@Getter
+@Setter
+public class RedeemUseResultDTO {
+    private String redeemCode;
+    private String status;      // CONSUMED, ALREADY_USED, NOT_FOUND, NOT_OWNED o INVALID
+    private RedeemDTO redeem;   // Solo se CONSUMED
+}
@@ -1,5 +1,6 @@
 package it.unisalento.pasproject.rewardsservice.dto;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import lombok.Getter;
 import lombok.Setter;
 
@@ -17,7 +18,13 @@ public class RewardDTO {
     private String category;
     private String subcategory;
     private LocalDateTime addDate;
+    // Usata per il Last-Modified delle risposte del catalogo
+    @JsonIgnore
+    private LocalDateTime updateDate;
     private boolean active;
     private int quantity;
     private int sold;
+    // Solo per il catalogo in memoria, non fa parte delle risposte
+    @JsonIgnore
+    private long revision;
 }
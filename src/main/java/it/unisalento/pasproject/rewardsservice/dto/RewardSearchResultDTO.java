@@ -0,0 +1,14 @@
+package it.unisalento.pasproject.rewardsservice.dto;
+
+import lombok.Getter;
+import lombok.Setter;
+
+@Getter
+@Setter
+public class RewardSearchResultDTO {
+    private RewardDTO reward;
+    private double score;
+    // Testo HTML escaped con i termini cercati racchiusi in <em>
+    private String highlightedName;
+    private String highlightedDescription;
+}
@@ -0,0 +1,13 @@
+package it.unisalento.pasproject.rewardsservice.dto;
+
+import lombok.Getter;
+import lombok.Setter;
+
+@Getter
+@Setter
+public class SuggestionDTO {
+    private String text;
+    private String type;        // REWARD o CATEGORY
+    private String rewardId;    // Null per le categorie
+    private long sold;
+}
@@ -0,0 +1,9 @@
+package it.unisalento.pasproject.rewardsservice.exceptions;
+
+import org.springframework.http.HttpStatus;
+
+public class InvalidCursorException extends CustomErrorException {
+    public InvalidCursorException(String message) {
+        super(message, HttpStatus.BAD_REQUEST);
+    }
+}
@@ -0,0 +1,9 @@
+package it.unisalento.pasproject.rewardsservice.exceptions;
+
+import org.springframework.http.HttpStatus;
+
+public class InvalidRedeemBatchException extends CustomErrorException {
+    public InvalidRedeemBatchException(String message) {
+        super(message, HttpStatus.BAD_REQUEST);
+    }
+}
@@ -6,7 +6,7 @@ import org.springframework.data.mongodb.repository.MongoRepository;
 import java.util.List;
 import java.util.Optional;
 
-public interface RedeemRepository extends MongoRepository<Redeem, String> {
+public interface RedeemRepository extends MongoRepository<Redeem, String>, RedeemRepositoryCustom {
     List<Redeem> findAllByUserEmail(String email);
     List<Redeem> findAllByRewardId(String rewardId);
 
@@ -0,0 +1,143 @@
+package it.unisalento.pasproject.rewardsservice.repositories;
+
+import it.unisalento.pasproject.rewardsservice.domain.Redeem;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.stream.Stream;
+
+/**
+ * Targeted updates on redeems, each executed as a single conditional operation.
+ */
+public interface RedeemRepositoryCustom {
+
+    /**
+     * Outcome of the transaction of a single redeem
+     * @param redeemId the id of the redeem
+     * @param completed true if the payment went through
+     * @param redeemCode the code to assign, null if the transaction failed
+     */
+    record Settlement(String redeemId, boolean completed, String redeemCode) {}
+
+    /**
+     * Mark a redeem code as used, if it belongs to the user, its transaction completed and it was not used yet.
+     * The check and the update are a single findAndModify, so a code can be consumed only once.
+     * @param redeemCode the code shown by the user
+     * @param userEmail the owner of the redeem
+     * @param usedDate the date of use
+     * @return the redeem after the update, or empty if no usable redeem matched
+     */
+    Optional<Redeem> consume(String redeemCode, String userEmail, LocalDateTime usedDate);
+
+    /**
+     * Same as {@link #consume(String, String, LocalDateTime)} for a code that already carries the id of its redeem:
+     * the redeem is looked up by {@code _id} and must still have that code.
+     * @param redeemId the id of the redeem
+     * @param redeemCode the code shown by the user
+     * @param userEmail the owner of the redeem
+     * @param usedDate the date of use
+     * @return the redeem after the update, or empty if no usable redeem matched
+     */
+    Optional<Redeem> consumeById(String redeemId, String redeemCode, String userEmail, LocalDateTime usedDate);
+
+    /**
+     * Find with a single query the redeems to use in a batch
+     * @param redeemIds the ids carried by signed codes
+     * @param redeemCodes the unsigned codes
+     * @return the redeems matching any id or code, without their outbox message
+     */
+    List<Redeem> findForUse(Collection<String> redeemIds, Collection<String> redeemCodes);
+
+    /**
+     * Mark the given redeems as used with one unordered bulk write of conditional updates, each one applied
+     * only if the redeem still has its code, belongs to the user, was paid and was not used yet.
+     * @param redeems the redeems to use, with their id and code
+     * @param userEmail the owner of the redeems
+     * @param usedDate the date of use
+     * @param useToken written on every redeem marked as used, to tell them apart from those used by other requests
+     * @return the number of redeems marked as used
+     */
+    int consumeAll(Collection<Redeem> redeems, String userEmail, LocalDateTime usedDate, String useToken);
+
+    /**
+     * Find the redeems among the given ids that are still waiting for their transaction
+     * @param redeemIds the ids of the redeems
+     * @return the pending redeems, in no particular order
+     */
+    List<Redeem> findPendingByIds(Collection<String> redeemIds);
+
+    /**
+     * Mark the pending redeems whose stock change was not applied yet as being applied by the given delivery,
+     * with a single conditional update. Only the redeems returned have to be counted in the stock: the others were
+     * already counted by an earlier delivery of the same notification.
+     * @param redeemIds the ids of the redeems
+     * @param stockToken identifies this delivery
+     * @return the ids of the redeems marked by this call
+     */
+    Set<String> claimStockChanges(Collection<String> redeemIds, String stockToken);
+
+    /**
+     * Undo {@link #claimStockChanges} for redeems whose stock change could not be written, so that a redelivery applies it
+     * @param redeemIds the ids of the redeems
+     * @param stockToken the token passed to the claim
+     */
+    void releaseStockChanges(Collection<String> redeemIds, String stockToken);
+
+    /**
+     * Record the outcome of many transactions with a single bulk write.
+     * Redeems that are no longer pending are left untouched, so a duplicate notification does not issue a second code.
+     * @param settlements the outcomes to record
+     * @param redeemDate the settlement date
+     * @return the number of redeems actually updated
+     */
+    int settleAll(Collection<Settlement> settlements, LocalDateTime redeemDate);
+
+    /**
+     * Take ownership of a batch of unsent outbox messages for the lease duration.
+     * Messages claimed by another relay are skipped until their lease expires.
+     * @param owner a token identifying this claim
+     * @param limit the maximum number of messages to claim
+     * @param lease how long the claim lasts
+     * @return the redeems whose outbox message was claimed, oldest first
+     */
+    List<Redeem> claimOutbox(String owner, int limit, Duration lease);
+
+    /**
+     * Mark the outbox messages of the given redeems as published
+     * @param redeemIds the ids of the redeems
+     * @param sentAt the publication date
+     */
+    void markOutboxSent(Collection<String> redeemIds, LocalDateTime sentAt);
+
+    /**
+     * Keyset page of redeems in {@code _id} order, optionally filtered by user and reward
+     * @param userEmail the owner of the redeems, null for any
+     * @param rewardId the reward redeemed, null for any
+     * @param afterId the id of the last redeem of the previous page, null for the first page
+     * @param limit the maximum number of redeems returned
+     * @return the redeems of the page
+     */
+    List<Redeem> findPage(String userEmail, String rewardId, String afterId, int limit);
+
+    /**
+     * Stream the redeems matching the filters straight from a Mongo cursor, in {@code _id} order.
+     * The stream must be closed to release the cursor.
+     * @param userEmail the owner of the redeems, null for any
+     * @param rewardId the reward redeemed, null for any
+     * @param from the first redeem date included, null for no lower bound
+     * @param to the first redeem date excluded, null for no upper bound
+     * @return the redeems, read in batches as the stream is consumed
+     */
+    Stream<Redeem> streamForExport(String userEmail, String rewardId, LocalDateTime from, LocalDateTime to);
+
+    /**
+     * Stream all the issued redeem codes, read from the redeem code index only.
+     * The stream must be closed to release the cursor.
+     * @return the codes, read in batches as the stream is consumed
+     */
+    Stream<String> streamRedeemCodes();
+}
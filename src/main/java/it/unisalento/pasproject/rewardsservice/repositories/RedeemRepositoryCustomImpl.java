@@ -0,0 +1,272 @@
+package it.unisalento.pasproject.rewardsservice.repositories;
+
+import it.unisalento.pasproject.rewardsservice.business.pagination.PageCursor;
+import it.unisalento.pasproject.rewardsservice.domain.Redeem;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+public class RedeemRepositoryCustomImpl implements RedeemRepositoryCustom {
+
+    static final int EXPORT_BATCH_SIZE = 1000;
+
+    private final MongoTemplate mongoTemplate;
+
+    @Autowired
+    public RedeemRepositoryCustomImpl(MongoTemplate mongoTemplate) {
+        this.mongoTemplate = mongoTemplate;
+    }
+
+    @Override
+    public Optional<Redeem> consume(String redeemCode, String userEmail, LocalDateTime usedDate) {
+        // Usa l'indice univoco su redeemCode: un solo documento letto e aggiornato
+        return use(Criteria.where("redeemCode").is(redeemCode), userEmail, usedDate);
+    }
+
+    @Override
+    public Optional<Redeem> consumeById(String redeemId, String redeemCode, String userEmail, LocalDateTime usedDate) {
+        return use(Criteria.where("_id").is(redeemId).and("redeemCode").is(redeemCode), userEmail, usedDate);
+    }
+
+    @Override
+    public List<Redeem> findForUse(Collection<String> redeemIds, Collection<String> redeemCodes) {
+        List<Criteria> matches = new ArrayList<>(2);
+        if (!redeemIds.isEmpty()) {
+            matches.add(Criteria.where("_id").in(redeemIds));
+        }
+        if (!redeemCodes.isEmpty()) {
+            matches.add(Criteria.where("redeemCode").in(redeemCodes));
+        }
+        if (matches.isEmpty()) {
+            return List.of();
+        }
+
+        Query query = new Query(matches.size() == 1 ? matches.getFirst() : new Criteria().orOperator(matches));
+        query.fields().exclude("outbox");
+        return mongoTemplate.find(query, Redeem.class);
+    }
+
+    @Override
+    public int consumeAll(Collection<Redeem> redeems, String userEmail, LocalDateTime usedDate, String useToken) {
+        if (redeems.isEmpty()) {
+            return 0;
+        }
+
+        BulkOperations bulk = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, Redeem.class);
+        for (Redeem redeem : redeems) {
+            bulk.updateOne(usable(Criteria.where("_id").is(redeem.getRedeemId()).and("redeemCode").is(redeem.getRedeemCode()), userEmail),
+                    usage(usedDate).set("useToken", useToken));
+        }
+
+        return bulk.execute().getModifiedCount();
+    }
+
+    @Override
+    public List<Redeem> findPendingByIds(Collection<String> redeemIds) {
+        Query query = new Query(Criteria.where("_id").in(redeemIds).and("redeemDate").is(null));
+
+        return mongoTemplate.find(query, Redeem.class);
+    }
+
+    @Override
+    public Set<String> claimStockChanges(Collection<String> redeemIds, String stockToken) {
+        if (redeemIds.isEmpty()) {
+            return Set.of();
+        }
+
+        // Solo i riscatti ancora in attesa e non marcati da una consegna precedente
+        Query unclaimed = new Query(Criteria.where("_id").in(redeemIds)
+                .and("redeemDate").is(null)
+                .and("stockToken").is(null));
+        mongoTemplate.updateMulti(unclaimed, new Update().set("stockToken", stockToken), Redeem.class);
+
+        Query claimed = new Query(Criteria.where("_id").in(redeemIds).and("stockToken").is(stockToken));
+        claimed.fields().include("_id");
+        return mongoTemplate.find(claimed, Redeem.class).stream()
+                .map(Redeem::getRedeemId)
+                .collect(Collectors.toSet());
+    }
+
+    @Override
+    public void releaseStockChanges(Collection<String> redeemIds, String stockToken) {
+        if (redeemIds.isEmpty()) {
+            return;
+        }
+
+        Query query = new Query(Criteria.where("_id").in(redeemIds).and("stockToken").is(stockToken));
+        mongoTemplate.updateMulti(query, new Update().unset("stockToken"), Redeem.class);
+    }
+
+    @Override
+    public int settleAll(Collection<Settlement> settlements, LocalDateTime redeemDate) {
+        if (settlements.isEmpty()) {
+            return 0;
+        }
+
+        BulkOperations bulk = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, Redeem.class);
+        for (Settlement settlement : settlements) {
+            bulk.updateOne(pending(settlement.redeemId()),
+                    settlement(settlement.completed(), settlement.redeemCode(), redeemDate));
+        }
+
+        return bulk.execute().getModifiedCount();
+    }
+
+    @Override
+    public List<Redeem> claimOutbox(String owner, int limit, Duration lease) {
+        LocalDateTime now = LocalDateTime.now();
+
+        Query candidates = new Query(claimable(now))
+                .with(Sort.by(Sort.Direction.ASC, "outbox.createdAt"))
+                .limit(limit);
+        candidates.fields().include("_id");
+
+        List<String> ids = mongoTemplate.find(candidates, Redeem.class).stream()
+                .map(Redeem::getRedeemId)
+                .toList();
+
+        if (ids.isEmpty()) {
+            return List.of();
+        }
+
+        // La condizione viene ricontrollata: un altro relay potrebbe aver preso gli stessi messaggi nel frattempo
+        Query claim = new Query(new Criteria().andOperator(Criteria.where("_id").in(ids), claimable(now)));
+        Update update = new Update()
+                .set("outbox.owner", owner)
+                .set("outbox.lockedUntil", now.plus(lease))
+                .inc("outbox.attempts", 1);
+        mongoTemplate.updateMulti(claim, update, Redeem.class);
+
+        Query claimed = new Query(Criteria.where("_id").in(ids).and("outbox.owner").is(owner))
+                .with(Sort.by(Sort.Direction.ASC, "outbox.createdAt"));
+        return mongoTemplate.find(claimed, Redeem.class);
+    }
+
+    @Override
+    public void markOutboxSent(Collection<String> redeemIds, LocalDateTime sentAt) {
+        if (redeemIds.isEmpty()) {
+            return;
+        }
+
+        Update update = new Update()
+                .set("outbox.sent", true)
+                .set("outbox.sentAt", sentAt)
+                .unset("outbox.lockedUntil");
+        mongoTemplate.updateMulti(new Query(Criteria.where("_id").in(redeemIds)), update, Redeem.class);
+    }
+
+    @Override
+    public List<Redeem> findPage(String userEmail, String rewardId, String afterId, int limit) {
+        Query query = new Query();
+
+        if (userEmail != null) {
+            query.addCriteria(Criteria.where("userEmail").is(userEmail));
+        }
+        if (rewardId != null) {
+            query.addCriteria(Criteria.where("rewardId").is(rewardId));
+        }
+        // Range scan sull'indice: si riparte dall'ultimo id della pagina precedente
+        if (afterId != null) {
+            query.addCriteria(Criteria.where("_id").gt(PageCursor.idValue(afterId)));
+        }
+
+        query.with(Sort.by(Sort.Direction.ASC, "_id")).limit(limit);
+        return mongoTemplate.find(query, Redeem.class);
+    }
+
+    @Override
+    public Stream<Redeem> streamForExport(String userEmail, String rewardId, LocalDateTime from, LocalDateTime to) {
+        Query query = new Query();
+
+        if (userEmail != null) {
+            query.addCriteria(Criteria.where("userEmail").is(userEmail));
+        }
+        if (rewardId != null) {
+            query.addCriteria(Criteria.where("rewardId").is(rewardId));
+        }
+        if (from != null || to != null) {
+            Criteria redeemDate = Criteria.where("redeemDate");
+            if (from != null) {
+                redeemDate.gte(from);
+            }
+            if (to != null) {
+                redeemDate.lt(to);
+            }
+            query.addCriteria(redeemDate);
+        }
+
+        query.with(Sort.by(Sort.Direction.ASC, "_id"));
+        query.fields().exclude("outbox");   // Non fa parte dell'export
+        query.cursorBatchSize(EXPORT_BATCH_SIZE);
+
+        return mongoTemplate.stream(query, Redeem.class);
+    }
+
+    @Override
+    public Stream<String> streamRedeemCodes() {
+        // Query coperta dall'indice sparse su redeemCode: i documenti non vengono letti
+        Query query = new Query(Criteria.where("redeemCode").exists(true));
+        query.fields().include("redeemCode").exclude("_id");
+        query.cursorBatchSize(EXPORT_BATCH_SIZE);
+
+        return mongoTemplate.stream(query, Redeem.class).map(Redeem::getRedeemCode);
+    }
+
+    private static Criteria claimable(LocalDateTime now) {
+        return Criteria.where("outbox.sent").is(false)
+                .orOperator(Criteria.where("outbox.lockedUntil").is(null), Criteria.where("outbox.lockedUntil").lt(now));
+    }
+
+    // Solo i riscatti in attesa (senza data) vengono aggiornati: una notifica duplicata non genera un secondo codice
+    private static Query pending(String redeemId) {
+        return new Query(Criteria.where("_id").is(redeemId).and("redeemDate").is(null));
+    }
+
+    private Optional<Redeem> use(Criteria redeem, String userEmail, LocalDateTime usedDate) {
+        return Optional.ofNullable(mongoTemplate.findAndModify(usable(redeem, userEmail), usage(usedDate),
+                FindAndModifyOptions.options().returnNew(true), Redeem.class));
+    }
+
+    // Il codice è usabile solo dal proprietario, a transazione completata e una sola volta
+    private static Query usable(Criteria redeem, String userEmail) {
+        return new Query(redeem
+                .and("userEmail").is(userEmail)
+                .and("redeemed").is(true)
+                .and("used").is(false));
+    }
+
+    private static Update usage(LocalDateTime usedDate) {
+        return new Update()
+                .set("used", true)
+                .set("usedDate", usedDate);
+    }
+
+    private static Update settlement(boolean completed, String redeemCode, LocalDateTime redeemDate) {
+        Update update = new Update()
+                .set("redeemDate", redeemDate)
+                .set("redeemed", completed);
+
+        if (completed) {
+            update.set("redeemCode", redeemCode)
+                    .set("used", false)
+                    .unset("usedDate");
+        }
+
+        return update;
+    }
+}
@@ -6,6 +6,6 @@ import org.springframework.data.mongodb.repository.MongoRepository;
 import java.util.Collection;
 import java.util.List;
 
-public interface RewardRepository extends MongoRepository<Reward, String>{
+public interface RewardRepository extends MongoRepository<Reward, String>, RewardRepositoryCustom {
     List<Reward> findAllByActive(boolean b);
 }
@@ -0,0 +1,63 @@
+package it.unisalento.pasproject.rewardsservice.repositories;
+
+import it.unisalento.pasproject.rewardsservice.domain.Reward;
+
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+/**
+ * Atomic stock operations on rewards, each executed as a single conditional update.
+ */
+public interface RewardRepositoryCustom {
+
+    /**
+     * Changes made by an admin to a reward. Null texts are left as they are, the other fields are always written.
+     */
+    record RewardChanges(String name, String description, String image, String category, String subcategory,
+                         double cost, double oldCost, int quantity, boolean active) {}
+
+    /**
+     * Reserve stock for a redeem, only if the reward is active and has enough pieces left
+     * @param rewardId the id of the reward
+     * @param quantity the number of pieces to reserve
+     * @return the reward after the reservation, or empty if it does not exist, is not active or is out of stock
+     */
+    Optional<Reward> reserveStock(String rewardId, int quantity);
+
+    /**
+     * Give back stock reserved for a redeem that was never stored, reactivating the reward unless an admin disabled it
+     * @param rewardId the id of the reward
+     * @param quantity the number of pieces to release
+     */
+    void releaseStock(String rewardId, int quantity);
+
+    /**
+     * Apply the stock changes of a batch of settled redeems with a single bulk write, one update per reward.
+     * Sold pieces deactivate the reward once its stock is exhausted, released pieces reactivate it unless an admin
+     * disabled it. The changes of each redeem must be counted once by the caller, see
+     * {@link RedeemRepositoryCustom#claimStockChanges}.
+     * @param sold pieces to account as sold, by reward id
+     * @param released pieces to give back, by reward id
+     * @return the ids of the rewards whose update failed, empty if all of them were applied
+     */
+    Set<String> applyStockChanges(Map<String, Integer> sold, Map<String, Integer> released);
+
+    /**
+     * Write the changes made by an admin with a single targeted update: the other fields, such as sold, keep the values
+     * written concurrently by the redeems.
+     * The reward counts as disabled by the admin only if the active flag changes.
+     * @param rewardId the id of the reward
+     * @param changes the new values
+     * @return the reward after the update, or empty if it does not exist
+     */
+    Optional<Reward> updateDetails(String rewardId, RewardChanges changes);
+
+    /**
+     * Activate or deactivate a reward on behalf of an admin: a deactivated reward stays inactive when stock is released
+     * @param rewardId the id of the reward
+     * @param active the new state
+     * @return the reward after the update, or empty if it does not exist
+     */
+    Optional<Reward> setActive(String rewardId, boolean active);
+}
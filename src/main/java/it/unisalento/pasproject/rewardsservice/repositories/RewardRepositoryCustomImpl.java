@@ -0,0 +1,172 @@
+package it.unisalento.pasproject.rewardsservice.repositories;
+
+import com.mongodb.bulk.BulkWriteError;
+import it.unisalento.pasproject.rewardsservice.domain.Reward;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.BulkOperationException;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.aggregation.AggregationExpression;
+import org.springframework.data.mongodb.core.aggregation.AggregationUpdate;
+import org.springframework.data.mongodb.core.aggregation.ArithmeticOperators;
+import org.springframework.data.mongodb.core.aggregation.BooleanOperators;
+import org.springframework.data.mongodb.core.aggregation.ComparisonOperators;
+import org.springframework.data.mongodb.core.aggregation.ConditionalOperators;
+import org.springframework.data.mongodb.core.aggregation.LiteralOperators;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+public class RewardRepositoryCustomImpl implements RewardRepositoryCustom {
+
+    private final MongoTemplate mongoTemplate;
+
+    @Autowired
+    public RewardRepositoryCustomImpl(MongoTemplate mongoTemplate) {
+        this.mongoTemplate = mongoTemplate;
+    }
+
+    @Override
+    public Optional<Reward> reserveStock(String rewardId, int quantity) {
+        // Controllo e decremento nella stessa operazione: due riscatti concorrenti non possono vedere la stessa quantità
+        Query query = new Query(Criteria.where("_id").is(rewardId)
+                .and("active").is(true)
+                .and("quantity").gte(quantity));
+        Update update = new Update().inc("quantity", -quantity).inc("revision", 1).set("updateDate", LocalDateTime.now());
+
+        return Optional.ofNullable(mongoTemplate.findAndModify(query, update,
+                FindAndModifyOptions.options().returnNew(true), Reward.class));
+    }
+
+    @Override
+    public void releaseStock(String rewardId, int quantity) {
+        mongoTemplate.updateFirst(byId(rewardId), stockUpdate(0, quantity), Reward.class);
+    }
+
+    @Override
+    public Set<String> applyStockChanges(Map<String, Integer> sold, Map<String, Integer> released) {
+        Set<String> rewardIds = new LinkedHashSet<>(sold.keySet());
+        rewardIds.addAll(released.keySet());
+        if (rewardIds.isEmpty()) {
+            return Set.of();
+        }
+
+        // Un solo aggiornamento per reward, qualunque sia il numero di riscatti del batch
+        List<String> order = new ArrayList<>(rewardIds);
+        BulkOperations bulk = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, Reward.class);
+        for (String rewardId : order) {
+            bulk.updateOne(byId(rewardId), stockUpdate(sold.getOrDefault(rewardId, 0), released.getOrDefault(rewardId, 0)));
+        }
+
+        try {
+            bulk.execute();
+            return Set.of();
+        } catch (BulkOperationException e) {
+            // Bulk non ordinato: gli altri aggiornamenti sono stati applicati
+            Set<String> failed = new HashSet<>();
+            for (BulkWriteError error : e.getErrors()) {
+                failed.add(order.get(error.getIndex()));
+            }
+            return failed;
+        }
+    }
+
+    @Override
+    public Optional<Reward> updateDetails(String rewardId, RewardChanges changes) {
+        AggregationUpdate update = AggregationUpdate.update()
+                // Prima del nuovo stato: conta come scelta dell'amministratore solo un cambio esplicito, non un reward esaurito lasciato inattivo
+                .set("disabled").toValueOf(ConditionalOperators
+                        .when(ComparisonOperators.valueOf("active").equalToValue(changes.active()))
+                        .thenValueOf("disabled")
+                        .otherwise(!changes.active()));
+
+        setIfPresent(update, "name", changes.name());
+        setIfPresent(update, "description", changes.description());
+        setIfPresent(update, "image", changes.image());
+        setIfPresent(update, "category", changes.category());
+        setIfPresent(update, "subcategory", changes.subcategory());
+        update.set("cost").toValue(changes.cost())
+                .set("oldCost").toValue(changes.oldCost())
+                .set("quantity").toValue(changes.quantity())
+                .set("active").toValue(changes.active())
+                .set("revision").toValueOf(nextRevision())
+                .set("updateDate").toValue(LocalDateTime.now());
+
+        return Optional.ofNullable(mongoTemplate.findAndModify(byId(rewardId), update,
+                FindAndModifyOptions.options().returnNew(true), Reward.class));
+    }
+
+    @Override
+    public Optional<Reward> setActive(String rewardId, boolean active) {
+        Update update = new Update()
+                .set("active", active)
+                .set("disabled", !active)
+                .inc("revision", 1)
+                .set("updateDate", LocalDateTime.now());
+
+        return Optional.ofNullable(mongoTemplate.findAndModify(byId(rewardId), update,
+                FindAndModifyOptions.options().returnNew(true), Reward.class));
+    }
+
+    // I documenti scritti prima del campo partono da zero
+    private static AggregationExpression nextRevision() {
+        return ArithmeticOperators.valueOf(ConditionalOperators.ifNull("revision").then(0)).add(1);
+    }
+
+    private static Query byId(String rewardId) {
+        return new Query(Criteria.where("_id").is(rewardId));
+    }
+
+    // I testi scelti dall'amministratore sono scritti come letterali: un nome che inizia con $ non diventa un riferimento a un campo
+    private static void setIfPresent(AggregationUpdate update, String field, String value) {
+        if (value != null) {
+            update.set(field).toValueOf(LiteralOperators.Literal.asLiteral(value));
+        }
+    }
+
+    /**
+     * Sold and released pieces of a reward in one pipeline update: the sold pieces deactivate the reward once its stock
+     * is exhausted, the released ones reactivate it unless an admin disabled it.
+     * Rewards written before the {@code disabled} flag existed get it from their state before the update:
+     * inactive with pieces left means deactivated by an admin.
+     */
+    private static AggregationUpdate stockUpdate(int sold, int released) {
+        AggregationUpdate update = AggregationUpdate.update();
+        update.set("revision").toValueOf(nextRevision())
+                .set("updateDate").toValue(LocalDateTime.now());
+
+        if (sold > 0) {
+            update.set("sold").toValueOf(ArithmeticOperators.valueOf("sold").add(sold))
+                    .set("active").toValueOf(ConditionalOperators
+                            .when(ComparisonOperators.valueOf("quantity").greaterThanValue(0))
+                            .thenValueOf("active")
+                            .otherwise(false));
+        }
+
+        if (released > 0) {
+            // Calcolato prima di cambiare la quantità e scritto nel documento: vale anche per i rilasci successivi
+            update.set("disabled").toValueOf(ConditionalOperators.ifNull("disabled")
+                    .thenValueOf(BooleanOperators.And.and(
+                            ComparisonOperators.valueOf("active").equalToValue(false),
+                            ComparisonOperators.valueOf("quantity").greaterThanValue(0))));
+
+            // Torna attivo il reward esaurito, non quello disattivato dall'amministratore
+            update.set("quantity").toValueOf(ArithmeticOperators.valueOf("quantity").add(released))
+                    .set("active").toValueOf(BooleanOperators.And.and(
+                            ComparisonOperators.valueOf("quantity").greaterThanValue(0),
+                            ComparisonOperators.valueOf("disabled").notEqualToValue(true)));
+        }
+
+        return update;
+    }
+}
@@ -44,8 +44,9 @@ public class JwtAuthenticationFilter extends OncePerRequestFilter {
         try {
             if (authorizationHeader != null && authorizationHeader.startsWith("Bearer ")) {
                 jwt = authorizationHeader.substring(7);
-                username = jwtUtilities.extractUsername(jwt);
-                role = jwtUtilities.extractRole(jwt);
+                VerifiedClaims claims = jwtUtilities.extractClaims(jwt);
+                username = claims.getSubject();
+                role = claims.getRole();
             } else {
                 throw new AccessDeniedException("Missing token");
             }
@@ -0,0 +1,107 @@
+package it.unisalento.pasproject.rewardsservice.security;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * Bounded cache of verified token claims.
+ * <p>
+ * Entries are keyed by the SHA-256 digest of the raw token, so the cache never keeps the
+ * bearer token itself in memory, and each entry expires together with the token's own exp claim.
+ * A token found here has already passed signature verification and does not need to be parsed again.
+ * </p>
+ */
+@Component
+public class JwtClaimsCache {
+
+    private static final ThreadLocal<MessageDigest> DIGEST = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    });
+
+    private final Map<String, VerifiedClaims> entries = new ConcurrentHashMap<>();
+
+    private final int maxSize;
+
+    public JwtClaimsCache(@Value("${security.jwt.claims-cache.max-size:10000}") int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Returns the claims of the token, verifying it with the given parser only if it was not seen before
+     * or if its cached entry has expired.
+     * @param token the raw compact JWS
+     * @param verifier function that verifies the signature and returns the claims, throwing on invalid tokens
+     * @return the verified claims
+     */
+    public VerifiedClaims get(String token, Function<String, VerifiedClaims> verifier) {
+        if (maxSize <= 0) {
+            return verifier.apply(token);
+        }
+
+        String key = digest(token);
+        VerifiedClaims cached = entries.get(key);
+
+        if (cached != null) {
+            if (cached.getExpirationMillis() > System.currentTimeMillis()) {
+                return cached;
+            }
+            // Token scaduto: si rimuove e si lascia che il parser sollevi l'eccezione di scadenza
+            entries.remove(key, cached);
+        }
+
+        VerifiedClaims claims = verifier.apply(token);
+
+        if (entries.size() >= maxSize) {
+            evict();
+        }
+        entries.put(key, claims);
+
+        return claims;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public void clear() {
+        entries.clear();
+    }
+
+    /**
+     * Drops expired entries and, if the cache is still full, an arbitrary tenth of the remaining ones.
+     */
+    private void evict() {
+        long now = System.currentTimeMillis();
+        entries.values().removeIf(claims -> claims.getExpirationMillis() <= now);
+
+        if (entries.size() < maxSize) {
+            return;
+        }
+
+        int toRemove = entries.size() - maxSize + Math.max(1, maxSize / 10);
+        Iterator<String> iterator = entries.keySet().iterator();
+        while (toRemove-- > 0 && iterator.hasNext()) {
+            iterator.next();
+            iterator.remove();
+        }
+    }
+
+    private static String digest(String token) {
+        MessageDigest digest = DIGEST.get();
+        digest.reset();
+        return Base64.getEncoder().encodeToString(digest.digest(token.getBytes(StandardCharsets.UTF_8)));
+    }
+}
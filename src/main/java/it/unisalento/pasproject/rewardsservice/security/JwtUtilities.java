@@ -1,7 +1,10 @@
 package it.unisalento.pasproject.rewardsservice.security;
 
 import io.jsonwebtoken.Claims;
+import io.jsonwebtoken.Jws;
+import io.jsonwebtoken.JwtParser;
 import io.jsonwebtoken.Jwts;
+import io.jsonwebtoken.MissingClaimException;
 import io.jsonwebtoken.security.Keys;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.security.core.userdetails.UserDetails;
@@ -14,45 +17,65 @@ import java.util.function.Function;
 
 @Service
 public class JwtUtilities {
-    private final Key key;
+    private final JwtParser parser;
+    private final JwtClaimsCache claimsCache;
 
     @Autowired
-    public JwtUtilities(SecurityConstants securityConstants) {
-        key = Keys.hmacShaKeyFor(securityConstants.getJWT_SECRET().getBytes());
+    public JwtUtilities(SecurityConstants securityConstants, JwtClaimsCache claimsCache) {
+        this(Keys.hmacShaKeyFor(securityConstants.getJWT_SECRET().getBytes()), claimsCache);
     }
+
+    public JwtUtilities(Key key, JwtClaimsCache claimsCache) {
+        // Il parser è immutabile e thread-safe, non serve ricostruirlo ad ogni token
+        this.parser = Jwts.parserBuilder()
+                .setSigningKey(key)
+                .build();
+        this.claimsCache = claimsCache;
+    }
+
     public String extractUsername(String token) {
-        return extractClaim(token, Claims::getSubject);
+        return extractClaims(token).getSubject();
     }
 
     public String extractRole(String token) {
-        return extractClaim(token, claims -> claims.get("role", String.class));
+        return extractClaims(token).getRole();
     }
 
     public Date extractExpiration(String token) {
-        return extractClaim(token, Claims::getExpiration);
+        return extractClaims(token).getExpiration();
     }
 
-    public <T> T extractClaim(String token, Function<Claims, T> claimsResolver) {
-        final Claims claims = extractAllClaims(token);
-        return claimsResolver.apply(claims);
+    public <T> T extractClaim(String token, Function<VerifiedClaims, T> claimsResolver) {
+        return claimsResolver.apply(extractClaims(token));
     }
 
-    private Claims extractAllClaims(String token) {
-        return Jwts.parserBuilder()
-                .setSigningKey(key)
-                .build()
-                .parseClaimsJws(token)
-                .getBody();
+    /**
+     * Returns the verified claims of the token.
+     * The signature is checked only the first time a token is seen, later calls are served by the {@link JwtClaimsCache}.
+     * @param token the raw token
+     * @return the immutable verified claims
+     */
+    public VerifiedClaims extractClaims(String token) {
+        return claimsCache.get(token, this::verify);
+    }
+
+    private VerifiedClaims verify(String token) {
+        Jws<Claims> jws = parser.parseClaimsJws(token);
+        Claims claims = jws.getBody();
+        // Un token senza scadenza non viene accettato, né tenuto in cache per sempre
+        if (claims.getExpiration() == null) {
+            throw new MissingClaimException(jws.getHeader(), claims, "Token has no expiration");
+        }
+        return VerifiedClaims.of(claims);
     }
 
-    private Boolean isTokenExpired(String token) {
-        return extractExpiration(token).before(new Date());
+    private Boolean isTokenExpired(VerifiedClaims claims) {
+        return claims.getExpirationMillis() < System.currentTimeMillis();
     }
 
 
     public Boolean validateToken(String token, UserDetails userDetails, String role) {
-        final String username = extractUsername(token);
-        final String tokenRole = extractRole(token);
-        return (username.equals(userDetails.getUsername()) && tokenRole.equalsIgnoreCase(role)  && !isTokenExpired(token));
+        final VerifiedClaims claims = extractClaims(token);
+        return (claims.getSubject().equals(userDetails.getUsername()) && claims.getRole().equalsIgnoreCase(role) && !isTokenExpired(claims));
     }
-}
\ No newline at end of file
+}
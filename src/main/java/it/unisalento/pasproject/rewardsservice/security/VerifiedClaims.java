@@ -0,0 +1,73 @@
+package it.unisalento.pasproject.rewardsservice.security;
+
+import io.jsonwebtoken.Claims;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Immutable view of the claims of a token whose signature has already been verified.
+ * <p>
+ * Instances are shared between requests by {@link JwtClaimsCache}, so they never expose
+ * the mutable {@link Claims} object returned by the parser. Tokens without an exp claim are rejected before
+ * getting here, so every instance has an expiration.
+ * </p>
+ */
+public final class VerifiedClaims {
+
+    private final String subject;
+    private final String role;
+    private final Date expiration;
+    private final Map<String, Object> claims;
+
+    private VerifiedClaims(String subject, String role, Date expiration, Map<String, Object> claims) {
+        this.subject = subject;
+        this.role = role;
+        this.expiration = expiration;
+        this.claims = claims;
+    }
+
+    public static VerifiedClaims of(Claims claims) {
+        Date expiration = Objects.requireNonNull(claims.getExpiration(), "Token has no expiration");
+        return new VerifiedClaims(
+                claims.getSubject(),
+                claims.get("role", String.class),
+                new Date(expiration.getTime()),
+                Collections.unmodifiableMap(new LinkedHashMap<>(claims))
+        );
+    }
+
+    public String getSubject() {
+        return subject;
+    }
+
+    public String getRole() {
+        return role;
+    }
+
+    /**
+     * @return a copy of the expiration date
+     */
+    public Date getExpiration() {
+        return new Date(expiration.getTime());
+    }
+
+    /**
+     * @return the expiration as epoch millis
+     */
+    public long getExpirationMillis() {
+        return expiration.getTime();
+    }
+
+    public <T> T get(String name, Class<T> type) {
+        Object value = claims.get(name);
+        return value == null ? null : type.cast(value);
+    }
+
+    public Map<String, Object> asMap() {
+        return claims;
+    }
+}
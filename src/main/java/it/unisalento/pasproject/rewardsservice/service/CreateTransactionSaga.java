@@ -1,16 +1,19 @@
 package it.unisalento.pasproject.rewardsservice.service;
 
-import it.unisalento.pasproject.rewardsservice.business.reedem.RedeemUtils;
+import it.unisalento.pasproject.rewardsservice.business.catalog.RewardCatalog;
+import it.unisalento.pasproject.rewardsservice.business.reedem.RedeemCodeFilter;
+import it.unisalento.pasproject.rewardsservice.business.reedem.RedeemCodeSigner;
 import it.unisalento.pasproject.rewardsservice.domain.Reward;
 import it.unisalento.pasproject.rewardsservice.domain.Redeem;
 import it.unisalento.pasproject.rewardsservice.dto.RedeemRewardDTO;
 import it.unisalento.pasproject.rewardsservice.dto.RedeemTransactionDTO;
 import it.unisalento.pasproject.rewardsservice.exceptions.CustomErrorException;
 import it.unisalento.pasproject.rewardsservice.exceptions.OutOfStockException;
-import it.unisalento.pasproject.rewardsservice.exceptions.RedeemNotFoundException;
 import it.unisalento.pasproject.rewardsservice.exceptions.RewardNotFoundException;
 import it.unisalento.pasproject.rewardsservice.repositories.RedeemRepository;
+import it.unisalento.pasproject.rewardsservice.repositories.RedeemRepositoryCustom;
 import it.unisalento.pasproject.rewardsservice.repositories.RewardRepository;
+import org.bson.types.ObjectId;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.amqp.rabbit.annotation.RabbitListener;
@@ -18,7 +21,16 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
 
 @Service
 public class CreateTransactionSaga {
@@ -28,96 +40,183 @@ public class CreateTransactionSaga {
 
     private final RewardService rewardService;
     private final NotificationMessageHandler notificationHandler;
+    private final RewardCatalog rewardCatalog;
+    private final RedeemCodeSigner redeemCodeSigner;
+    private final RedeemCodeFilter redeemCodeFilter;
 
     private static final Logger LOGGER = LoggerFactory.getLogger(CreateTransactionSaga.class);
 
     @Autowired
-    public CreateTransactionSaga(RewardRepository rewardRepository, RewardService rewardService, RedeemRepository redeemRepository, NotificationMessageHandler notificationHandler) {
+    public CreateTransactionSaga(RewardRepository rewardRepository, RewardService rewardService, RedeemRepository redeemRepository,
+                                 NotificationMessageHandler notificationHandler, RewardCatalog rewardCatalog,
+                                 RedeemCodeSigner redeemCodeSigner, RedeemCodeFilter redeemCodeFilter) {
         this.rewardRepository = rewardRepository;
         this.rewardService = rewardService;
         this.redeemRepository = redeemRepository;
         this.notificationHandler = notificationHandler;
+        this.rewardCatalog = rewardCatalog;
+        this.redeemCodeSigner = redeemCodeSigner;
+        this.redeemCodeFilter = redeemCodeFilter;
     }
 
     public RedeemRewardDTO redeemReward(RedeemRewardDTO redeemRewardDTO) throws RewardNotFoundException, OutOfStockException {
-        Optional<Reward> reward = rewardRepository.findById(redeemRewardDTO.getRewardId());
+        //Riserva i pezzi con un'unica operazione condizionale (reward attivo e quantità sufficiente)
+        Optional<Reward> reward = rewardRepository.reserveStock(redeemRewardDTO.getRewardId(), redeemRewardDTO.getQuantity());
         if (reward.isEmpty()) {
-            throw new RewardNotFoundException("Reward not found with id: " + redeemRewardDTO.getRewardId() );
-        }
-        Reward rewardEntity = reward.get();
+            //Solo in caso di fallimento si verifica il motivo
+            if (!rewardRepository.existsById(redeemRewardDTO.getRewardId()))
+                throw new RewardNotFoundException("Reward not found with id: " + redeemRewardDTO.getRewardId() );
 
-        //Controlla che il reward sia attivo e che ci siano abbastanza pezzi
-        if (!rewardEntity.isActive() || rewardEntity.getQuantity() < redeemRewardDTO.getQuantity())
             throw new OutOfStockException("Reward not available or out of stock");
+        }
+        Reward rewardEntity = reward.get();
+        //Le prenotazioni dello stesso intervallo arrivano al catalogo insieme
+        rewardCatalog.stockChanged(rewardEntity);
 
         Redeem redeem = new Redeem();
+        //L'id viene assegnato subito perché serve alla richiesta di transazione salvata nello stesso documento
+        redeem.setRedeemId(new ObjectId().toHexString());
         redeem.setRewardId(redeemRewardDTO.getRewardId());
         redeem.setUserEmail(redeemRewardDTO.getUserEmail());
         redeem.setQuantity(redeemRewardDTO.getQuantity());
         //Redeem date is set when transaction is completed, while null is pending
         redeem.setRedeemed(false); //Wait for transaction
+        //La richiesta di transazione viene scritta insieme al riscatto e pubblicata dall'OutboxRelay
+        redeem.setOutbox(rewardService.createTransactionMessage(redeem, rewardEntity));
 
-        redeem = redeemRepository.save(redeem);
+        try {
+            redeem = redeemRepository.insert(redeem);
+        } catch (RuntimeException e) {
+            rewardRepository.releaseStock(redeemRewardDTO.getRewardId(), redeemRewardDTO.getQuantity());
+            rewardCatalog.refresh(List.of(redeemRewardDTO.getRewardId()));
+            throw e;
+        }
 
         redeemRewardDTO.setRedeemId(redeem.getRedeemId());
 
-        //Invia richiesta transazione
-        rewardService.sendTransaction(redeem, rewardEntity);
-
         return redeemRewardDTO;
     }
 
-    @RabbitListener(queues = "${rabbitmq.queue.notifyTransaction.name}")
-    public void transactionNotification(RedeemTransactionDTO redeemTransactionDTO) throws RedeemNotFoundException, RewardNotFoundException {
-        //Riceve notifica transazione
-        //Aggiorna stato transazione
-        //Aggiorna stato reward
-        try {
-            Optional<Redeem> redeem = redeemRepository.findById(redeemTransactionDTO.getTransactionOwner());
-            if (redeem.isEmpty())
-                throw new RedeemNotFoundException("Redeem not found with id: " + redeemTransactionDTO.getReceiverEmail());
-
-            Redeem redeemEntity = redeem.get();
-            redeemEntity.setRedeemDate(LocalDateTime.now());
-            redeemEntity.setRedeemed(redeemTransactionDTO.isCompleted());
-            // if redeem date is set but transaction is not completed, TRANSACTION FAILED!
-            // if redeem date is set, and transaction is completed, generate redeem code
-            if(redeemTransactionDTO.isCompleted()) {
-                redeemEntity.setRedeemCode(RedeemUtils.generateSafeToken());
-                redeemEntity.setUsed(false);
-                redeemEntity.setUsedDate(null);
+    /**
+     * Consume the payment notifications in batches of up to {@code rabbitmq.listener.notifyTransaction.batch-size} messages.
+     * <p>
+     * The redeems of the batch are first marked with a token of this delivery, then the stock changes of the marked ones
+     * are summed per reward and applied with one bulk write, then all the redeems are settled with a second one.
+     * The batch is acknowledged only when the listener returns, so a failed write requeues it, whatever its size.
+     * On redelivery settled redeems are skipped and the redeems already marked are not counted again, so a failure
+     * after the stock write does not repeat a stock change. If the stock write fails the marks of its redeems are removed,
+     * so the redelivery applies it; only a crash between the mark and the stock write loses the change instead of repeating it.
+     * </p>
+     * @param notifications the notifications received
+     */
+    @RabbitListener(queues = "${rabbitmq.queue.notifyTransaction.name}", containerFactory = "notifyTransactionContainerFactory")
+    public void transactionNotifications(List<RedeemTransactionDTO> notifications) {
+        //Una sola notifica per riscatto, le duplicate vengono ignorate
+        Map<String, RedeemTransactionDTO> byRedeem = new LinkedHashMap<>();
+        for (RedeemTransactionDTO notification : notifications) {
+            if (notification.getTransactionOwner() != null) {
+                byRedeem.putIfAbsent(notification.getTransactionOwner(), notification);
+            }
+        }
+
+        if (byRedeem.isEmpty()) {
+            return;
+        }
+
+        List<Redeem> pending = redeemRepository.findPendingByIds(byRedeem.keySet());
+        if (pending.size() < byRedeem.size()) {
+            LOGGER.error("{} transaction notifications refer to redeems not found or already settled", byRedeem.size() - pending.size());
+        }
+        if (pending.isEmpty()) {
+            return;
+        }
+
+        List<RedeemRepositoryCustom.Settlement> settlements = new ArrayList<>(pending.size());
+        Set<String> changedRewards = new HashSet<>();
+
+        for (Redeem redeem : pending) {
+            boolean completed = byRedeem.get(redeem.getRedeemId()).isCompleted();
+            if (completed) {
+                redeem.setRedeemCode(redeemCodeSigner.issue(redeem.getRedeemId(), redeem.getRewardId()));
             }
+            settlements.add(new RedeemRepositoryCustom.Settlement(redeem.getRedeemId(), completed, redeem.getRedeemCode()));
+            changedRewards.add(redeem.getRewardId());
+        }
 
-            redeemRepository.save(redeemEntity);
+        //Prima i reward, poi i riscatti: un riscatto regolato ha sempre la sua variazione di stock già applicata
+        applyStockChanges(pending, byRedeem);
+        redeemRepository.settleAll(settlements, LocalDateTime.now());
+        //I codici entrano nel filtro prima di essere inviati agli utenti
+        redeemCodeFilter.issued(settlements.stream()
+                .map(RedeemRepositoryCustom.Settlement::redeemCode)
+                .filter(Objects::nonNull)
+                .toList());
 
-            //Se la transazione non è completata, non aggiornare il reward
-            if (!redeemTransactionDTO.isCompleted())
-                return;
+        rewardCatalog.refresh(changedRewards);
 
-            //Invia notifica con il codice da riscattere
+        for (Redeem redeem : pending) {
+            if (redeem.getRedeemCode() != null) {
+                sendRedeemCode(redeem);
+            }
+        }
+    }
+
+    private void applyStockChanges(List<Redeem> pending, Map<String, RedeemTransactionDTO> byRedeem) {
+        String stockToken = UUID.randomUUID().toString();
+        Set<String> claimed = redeemRepository.claimStockChanges(pending.stream().map(Redeem::getRedeemId).toList(), stockToken);
+
+        //Se la transazione è completata si contabilizza il venduto, altrimenti si rilasciano i pezzi riservati
+        Map<String, Integer> sold = new HashMap<>();
+        Map<String, Integer> released = new HashMap<>();
+        Map<String, List<String>> redeemsByReward = new HashMap<>();
+        for (Redeem redeem : pending) {
+            if (!claimed.contains(redeem.getRedeemId())) {
+                continue;
+            }
+            boolean completed = byRedeem.get(redeem.getRedeemId()).isCompleted();
+            (completed ? sold : released).merge(redeem.getRewardId(), redeem.getQuantity(), Integer::sum);
+            redeemsByReward.computeIfAbsent(redeem.getRewardId(), id -> new ArrayList<>()).add(redeem.getRedeemId());
+        }
+
+        Set<String> failed;
+        try {
+            failed = rewardRepository.applyStockChanges(sold, released);
+        } catch (RuntimeException e) {
+            releaseClaims(redeemsByReward.values().stream().flatMap(List::stream).toList(), stockToken);
+            throw e;
+        }
+
+        if (!failed.isEmpty()) {
+            //Solo i reward non aggiornati: gli altri hanno già la variazione e non devono riceverla di nuovo
+            releaseClaims(failed.stream().flatMap(rewardId -> redeemsByReward.get(rewardId).stream()).toList(), stockToken);
+            throw new IllegalStateException("Stock update failed for rewards " + failed);
+        }
+    }
+
+    private void releaseClaims(List<String> redeemIds, String stockToken) {
+        try {
+            redeemRepository.releaseStockChanges(redeemIds, stockToken);
+        } catch (RuntimeException e) {
+            LOGGER.error("Stock changes of redeems {} not applied and still marked: {}", redeemIds, e.getMessage());
+        }
+    }
+
+    private void sendRedeemCode(Redeem redeem) {
+        try {
             notificationHandler.sendNotificationMessage(NotificationMessageHandler.buildNotificationMessage(
-                    redeemEntity.getUserEmail(), // receiver
-                    "Your redeem code is: " + redeemEntity.getRedeemCode(), // message
+                    redeem.getUserEmail(), // receiver
+                    "Your redeem code is: " + redeem.getRedeemCode(), // message
                     "Redeem Code", // subject
                     NotificationConstants.CONFIRMATION_NOTIFICATION_TYPE, // type
                     true, // email
                     false  // notification
-            ));
-
-            //Aggiorna reward
-            Optional<Reward> reward = rewardRepository.findById(redeemEntity.getRewardId());
-            if (reward.isEmpty())
-                throw new RewardNotFoundException("Reward not found with id: " + redeemEntity.getRewardId());
-
-            Reward rewardEntity = reward.get();
-            rewardEntity.setQuantity(rewardEntity.getQuantity() - redeemEntity.getQuantity());
-            if (rewardEntity.getQuantity() == 0)
-                rewardEntity.setActive(false);
-            rewardEntity.setSold(rewardEntity.getSold() + redeemEntity.getQuantity());
-
-            rewardRepository.save(rewardEntity);
+            )).thenAccept(delivered -> {
+                if (!delivered) {
+                    LOGGER.error("Redeem code notification for redeem {} not delivered", redeem.getRedeemId());
+                }
+            });
         } catch (Exception e) {
-            LOGGER.error("Transaction notification error.");
+            LOGGER.error("Redeem code notification for redeem {} failed: {}", redeem.getRedeemId(), e.getMessage());
         }
     }
 }
@@ -6,6 +6,8 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
+import java.util.concurrent.CompletableFuture;
+
 @Service
 public class NotificationMessageHandler {
     private final MessageProducer messageProducer;
@@ -32,7 +34,12 @@ public class NotificationMessageHandler {
                 .build();
     }
 
-    public void sendNotificationMessage(NotificationMessageDTO message) {
-        messageProducer.sendMessage(message, notificationRoutingKey, notificationExchange);
+    /**
+     * Send a notification to the notification service
+     * @param message the notification
+     * @return a future completed with true once the broker accepted the message, false if it was not delivered
+     */
+    public CompletableFuture<Boolean> sendNotificationMessage(NotificationMessageDTO message) {
+        return messageProducer.sendMessage(message, notificationRoutingKey, notificationExchange);
     }
 }
@@ -0,0 +1,126 @@
+package it.unisalento.pasproject.rewardsservice.service;
+
+import it.unisalento.pasproject.rewardsservice.business.io.producer.MessageProducer;
+import it.unisalento.pasproject.rewardsservice.domain.OutboxMessage;
+import it.unisalento.pasproject.rewardsservice.domain.Redeem;
+import it.unisalento.pasproject.rewardsservice.repositories.RedeemRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Publishes the transaction requests stored in the redeem outbox.
+ * <p>
+ * Every run claims a batch of unsent messages, publishes them all without waiting in between,
+ * then waits for the publisher confirms and marks the acknowledged ones as sent with a single update.
+ * Messages not confirmed stay in the outbox and are retried once their claim expires, so delivery is at-least-once:
+ * the payment service receives the redeem id as transaction owner and the notification path ignores settled redeems.
+ * </p>
+ */
+@Service
+public class OutboxRelay {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(OutboxRelay.class);
+
+    private final RedeemRepository redeemRepository;
+    private final MessageProducer messageProducer;
+
+    // Identifica questa replica nelle prese in carico
+    private final String instanceId = UUID.randomUUID().toString();
+
+    @Value("${outbox.relay.batch-size:100}")
+    private int batchSize;
+
+    @Value("${outbox.relay.confirm-timeout-ms:5000}")
+    private long confirmTimeout;
+
+    @Value("${outbox.relay.lease-ms:30000}")
+    private long lease;
+
+    @Autowired
+    public OutboxRelay(RedeemRepository redeemRepository, MessageProducer messageProducer) {
+        this.redeemRepository = redeemRepository;
+        this.messageProducer = messageProducer;
+    }
+
+    @Scheduled(fixedDelayString = "${outbox.relay.interval-ms:500}")
+    public void relay() {
+        int published;
+        do {
+            published = relayBatch();
+        } while (published == batchSize);   // Se il batch era pieno potrebbero esserci altri messaggi
+    }
+
+    /**
+     * Publish one batch of outbox messages.
+     * @return the number of messages claimed
+     */
+    public int relayBatch() {
+        String owner = instanceId + ":" + UUID.randomUUID();
+        List<Redeem> claimed;
+        try {
+            claimed = redeemRepository.claimOutbox(owner, batchSize, Duration.ofMillis(lease));
+        } catch (RuntimeException e) {
+            LOGGER.error("Error claiming outbox messages: {}", e.getMessage());
+            return 0;
+        }
+
+        if (claimed.isEmpty()) {
+            return 0;
+        }
+
+        Map<String, CompletableFuture<Boolean>> confirms = new LinkedHashMap<>();
+        for (Redeem redeem : claimed) {
+            OutboxMessage message = redeem.getOutbox();
+            try {
+                confirms.put(redeem.getRedeemId(), messageProducer.sendMessageWithConfirm(message.getPayload(), message.getRoutingKey(), message.getExchange()));
+            } catch (RuntimeException e) {
+                confirms.put(redeem.getRedeemId(), CompletableFuture.failedFuture(e));
+            }
+        }
+
+        List<String> sent = new ArrayList<>(confirms.size());
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(confirmTimeout);
+
+        for (Map.Entry<String, CompletableFuture<Boolean>> confirm : confirms.entrySet()) {
+            try {
+                long remaining = Math.max(0, deadline - System.nanoTime());
+                if (Boolean.TRUE.equals(confirm.getValue().get(remaining, TimeUnit.NANOSECONDS))) {
+                    sent.add(confirm.getKey());
+                } else {
+                    LOGGER.warn("Outbox message of redeem {} refused by the broker", confirm.getKey());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (ExecutionException | TimeoutException e) {
+                LOGGER.warn("Outbox message of redeem {} not confirmed: {}", confirm.getKey(), e.getMessage());
+            }
+        }
+
+        try {
+            redeemRepository.markOutboxSent(sent, LocalDateTime.now());
+        } catch (RuntimeException e) {
+            // I messaggi verranno ripubblicati alla scadenza della presa in carico
+            LOGGER.error("Error marking {} outbox messages as sent: {}", sent.size(), e.getMessage());
+        }
+
+        LOGGER.debug("Outbox relay published {} of {} messages", sent.size(), claimed.size());
+        return claimed.size();
+    }
+}
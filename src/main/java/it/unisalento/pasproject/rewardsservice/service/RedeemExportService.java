@@ -0,0 +1,136 @@
+package it.unisalento.pasproject.rewardsservice.service;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import it.unisalento.pasproject.rewardsservice.domain.Redeem;
+import it.unisalento.pasproject.rewardsservice.repositories.RedeemRepository;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.Iterator;
+import java.util.stream.Stream;
+
+/**
+ * Writes the redeem history as NDJSON or CSV while reading it from a Mongo cursor.
+ * <p>
+ * Only one batch of documents is in memory at a time and the output is flushed every
+ * {@value #FLUSH_EVERY} rows, so the client starts receiving data right after the first batch.
+ * </p>
+ */
+@Service
+public class RedeemExportService {
+
+    public enum Format { NDJSON, CSV }
+
+    private static final int FLUSH_EVERY = 500;
+
+    private static final String CSV_HEADER = "redeemId,rewardId,userEmail,quantity,redeemDate,redeemed,redeemCode,used,usedDate";
+
+    private final RedeemRepository redeemRepository;
+    private final RewardService rewardService;
+    private final ObjectMapper objectMapper;
+
+    @Autowired
+    public RedeemExportService(RedeemRepository redeemRepository, RewardService rewardService, ObjectMapper objectMapper) {
+        this.redeemRepository = redeemRepository;
+        this.rewardService = rewardService;
+        this.objectMapper = objectMapper;
+    }
+
+    /**
+     * Export the redeems matching the filters
+     * @param format the output format
+     * @param userEmail the owner of the redeems, null for any
+     * @param rewardId the reward redeemed, null for any
+     * @param from the first redeem date included, null for no lower bound
+     * @param to the first redeem date excluded, null for no upper bound
+     * @param out the stream to write to, flushed but not closed
+     * @return the number of redeems written
+     */
+    public long export(Format format, String userEmail, String rewardId, LocalDateTime from, LocalDateTime to, OutputStream out) throws IOException {
+        try (Stream<Redeem> redeems = redeemRepository.streamForExport(userEmail, rewardId, from, to)) {
+            return format == Format.CSV ? writeCsv(redeems.iterator(), out) : writeNdjson(redeems.iterator(), out);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private long writeNdjson(Iterator<Redeem> redeems, OutputStream out) throws IOException {
+        long count = 0;
+
+        JsonGenerator generator = objectMapper.getFactory().createGenerator(out);
+        generator.configure(JsonGenerator.Feature.AUTO_CLOSE_TARGET, false);
+        generator.setRootValueSeparator(null);  // Il separatore è il ritorno a capo
+
+        while (redeems.hasNext()) {
+            objectMapper.writeValue(generator, rewardService.getRedeemDTO(redeems.next()));
+            generator.writeRaw('\n');
+
+            if (++count % FLUSH_EVERY == 1) {
+                generator.flush();
+            }
+        }
+
+        generator.close();
+        out.flush();
+        return count;
+    }
+
+    private long writeCsv(Iterator<Redeem> redeems, OutputStream out) throws IOException {
+        long count = 0;
+
+        Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+        writer.write(CSV_HEADER);
+        writer.write('\n');
+
+        while (redeems.hasNext()) {
+            Redeem redeem = redeems.next();
+            writer.write(csv(redeem.getRedeemId()));
+            writer.write(',');
+            writer.write(csv(redeem.getRewardId()));
+            writer.write(',');
+            writer.write(csv(redeem.getUserEmail()));
+            writer.write(',');
+            writer.write(Integer.toString(redeem.getQuantity()));
+            writer.write(',');
+            writer.write(csv(redeem.getRedeemDate()));
+            writer.write(',');
+            writer.write(Boolean.toString(redeem.isRedeemed()));
+            writer.write(',');
+            writer.write(csv(redeem.getRedeemCode()));
+            writer.write(',');
+            writer.write(Boolean.toString(redeem.isUsed()));
+            writer.write(',');
+            writer.write(csv(redeem.getUsedDate()));
+            writer.write('\n');
+
+            if (++count % FLUSH_EVERY == 1) {
+                writer.flush();
+            }
+        }
+
+        // Non si chiude il writer per non chiudere lo stream della risposta
+        writer.flush();
+        return count;
+    }
+
+    private static String csv(Object value) {
+        if (value == null) {
+            return "";
+        }
+
+        String text = value.toString();
+        if (text.indexOf(',') < 0 && text.indexOf('"') < 0 && text.indexOf('\n') < 0 && text.indexOf('\r') < 0) {
+            return text;
+        }
+        return '"' + text.replace("\"", "\"\"") + '"';
+    }
+}
@@ -1,5 +1,8 @@
 package it.unisalento.pasproject.rewardsservice.service;
 
+import it.unisalento.pasproject.rewardsservice.business.reedem.RedeemCodeFilter;
+import it.unisalento.pasproject.rewardsservice.business.reedem.RedeemCodeSigner;
+import it.unisalento.pasproject.rewardsservice.business.reedem.RedeemUseStatus;
 import it.unisalento.pasproject.rewardsservice.domain.Redeem;
 import it.unisalento.pasproject.rewardsservice.exceptions.RedeemException;
 import it.unisalento.pasproject.rewardsservice.repositories.RedeemRepository;
@@ -7,48 +10,243 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
 
 @Service
 public class RedeemService {
 
     //Classe che espone i metodi per andare a riscattare i reedems acquistato utilizzando il redeemCode
 
+    /**
+     * Outcome of one code of a batch
+     * @param redeemCode the code as sent by the caller
+     * @param status what happened to the code
+     * @param redeem the redeem marked as used, only when the status is {@link RedeemUseStatus#CONSUMED}
+     */
+    public record RedeemUse(String redeemCode, RedeemUseStatus status, Redeem redeem) {}
+
     private final RedeemRepository redeemRepository;
+    private final RedeemCodeSigner redeemCodeSigner;
+    private final RedeemCodeFilter redeemCodeFilter;
 
     @Autowired
-    public RedeemService(RedeemRepository redeemRepository) {
+    public RedeemService(RedeemRepository redeemRepository, RedeemCodeSigner redeemCodeSigner, RedeemCodeFilter redeemCodeFilter) {
         this.redeemRepository = redeemRepository;
+        this.redeemCodeSigner = redeemCodeSigner;
+        this.redeemCodeFilter = redeemCodeFilter;
     }
 
 
+    /**
+     * Consume a redeem code of the user.
+     * The code is verified first, without touching the database: forged and malformed codes are rejected here,
+     * signed codes are then looked up by the redeem id they carry, unsigned ones only if the {@link RedeemCodeFilter}
+     * might have seen them. The code is checked and marked as used with a
+     * single conditional update; only when it does not match the redeem is read again to tell the user why.
+     * @param redeemCode the code shown by the user
+     * @param userEmail the owner of the redeem
+     * @return the redeem marked as used
+     * @throws RedeemException if the code does not exist, belongs to another user, is not paid or was already used
+     */
     public Redeem useRedeem(String redeemCode, String userEmail) {
-        Optional<Redeem> ret = redeemRepository.findByRedeemCode(redeemCode);
+        RedeemCodeSigner.Verification verification = redeemCodeSigner.verify(redeemCode);
 
-        if(ret.isEmpty()){
+        if (!mightExist(verification)) {
             throw new RedeemException("Redeem not found");
         }
 
-        Redeem redeem = ret.get();
+        Optional<Redeem> consumed = verification.kind() == RedeemCodeSigner.Kind.SIGNED
+                ? redeemRepository.consumeById(verification.redeemId(), verification.code(), userEmail, LocalDateTime.now())
+                : redeemRepository.consume(verification.code(), userEmail, LocalDateTime.now());
 
-        if (!redeem.getUserEmail().equals(userEmail)) {
-            throw new RedeemException("Redeem not found");
+        if (consumed.isPresent()) {
+            return consumed.get();
         }
 
-        //Se data di riscatto è presente e redeemed è false, allora la transazione non è stata completata
-        if(redeem.getRedeemDate() != null && !redeem.isRedeemed()){
-            throw new RedeemException("Invalid redeem code");
+        throw rejection(verification, userEmail);
+    }
+
+    /**
+     * Consume a batch of redeem codes of the user.
+     * <p>
+     * The codes are verified as in {@link #useRedeem(String, String)}, then all the remaining ones are read with a
+     * single query and the usable ones are marked as used with one bulk write of conditional updates. Only if some
+     * update did not apply, because a code was used concurrently, the consumed redeems are read again to tell which.
+     * A code repeated in the batch is consumed once and reported as already used afterwards.
+     * </p>
+     * @param redeemCodes the codes, in the order of the results
+     * @param userEmail the owner of the redeems
+     * @return one result per code sent
+     */
+    public List<RedeemUse> useRedeems(List<String> redeemCodes, String userEmail) {
+        LocalDateTime usedDate = LocalDateTime.now();
+        // Distingue i codici usati da questa richiesta da quelli usati da un'altra nello stesso istante
+        String useToken = UUID.randomUUID().toString();
+
+        Map<String, RedeemUse> results = new HashMap<>();
+        Map<String, RedeemCodeSigner.Verification> toRead = new LinkedHashMap<>();
+
+        for (String redeemCode : new LinkedHashSet<>(redeemCodes)) {
+            RedeemCodeSigner.Verification verification = redeemCodeSigner.verify(redeemCode);
+            if (mightExist(verification)) {
+                toRead.put(redeemCode, verification);
+            } else {
+                results.put(redeemCode, new RedeemUse(redeemCode, RedeemUseStatus.NOT_FOUND, null));
+            }
         }
 
-        if(redeem.isUsed()){
-            throw new RedeemException("Redeem already used");
+        if (!toRead.isEmpty()) {
+            consume(toRead, userEmail, usedDate, useToken, results);
         }
 
-        redeem.setUsed(true);
-        redeem.setUsedDate(LocalDateTime.now());
+        // Un codice ripetuto viene usato solo la prima volta
+        Set<String> seen = new HashSet<>();
+        List<RedeemUse> ordered = new ArrayList<>(redeemCodes.size());
+        for (String redeemCode : redeemCodes) {
+            RedeemUse result = results.get(redeemCode);
+            if (!seen.add(redeemCode) && result.status() == RedeemUseStatus.CONSUMED) {
+                result = new RedeemUse(redeemCode, RedeemUseStatus.ALREADY_USED, null);
+            }
+            ordered.add(result);
+        }
+        return ordered;
+    }
+
+    private void consume(Map<String, RedeemCodeSigner.Verification> toRead, String userEmail, LocalDateTime usedDate,
+                         String useToken, Map<String, RedeemUse> results) {
+        List<String> redeemIds = new ArrayList<>();
+        List<String> legacyCodes = new ArrayList<>();
+        for (RedeemCodeSigner.Verification verification : toRead.values()) {
+            if (verification.kind() == RedeemCodeSigner.Kind.SIGNED) {
+                redeemIds.add(verification.redeemId());
+            } else {
+                legacyCodes.add(verification.code());
+            }
+        }
 
-        return redeemRepository.save(redeem);
+        // Una sola query $in per id e codici
+        Map<String, Redeem> byCode = new HashMap<>();
+        for (Redeem redeem : redeemRepository.findForUse(redeemIds, legacyCodes)) {
+            if (redeem.getRedeemCode() != null) {
+                byCode.put(redeem.getRedeemCode(), redeem);
+            }
+        }
+
+        Map<String, Redeem> usable = new LinkedHashMap<>();
+        Set<String> usableIds = new HashSet<>();
+        toRead.forEach((redeemCode, verification) -> {
+            Redeem redeem = find(verification, byCode);
+            RedeemUseStatus blocked = blocker(redeem, userEmail, verification);
+            if (blocked == null && !usableIds.add(redeem.getRedeemId())) {
+                // Lo stesso codice legacy scritto con maiuscole o separatori diversi
+                blocked = RedeemUseStatus.ALREADY_USED;
+            }
+            if (blocked != null) {
+                results.put(redeemCode, new RedeemUse(redeemCode, blocked, null));
+            } else {
+                usable.put(redeemCode, redeem);
+            }
+        });
+
+        if (usable.isEmpty()) {
+            return;
+        }
+
+        int consumed = redeemRepository.consumeAll(usable.values(), userEmail, usedDate, useToken);
+
+        // Se qualche aggiornamento non è stato applicato, un'altra richiesta ha usato il codice nel frattempo
+        Map<String, Redeem> current = null;
+        if (consumed < usable.size()) {
+            current = new HashMap<>();
+            for (Redeem redeem : redeemRepository.findAllById(usableIds)) {
+                current.put(redeem.getRedeemId(), redeem);
+            }
+        }
+
+        for (Map.Entry<String, Redeem> entry : usable.entrySet()) {
+            String redeemCode = entry.getKey();
+            Redeem redeem = entry.getValue();
+            Redeem stored = current == null ? redeem : current.get(redeem.getRedeemId());
+
+            if (stored == null) {
+                results.put(redeemCode, new RedeemUse(redeemCode, RedeemUseStatus.NOT_FOUND, null));
+            } else if (current == null || useToken.equals(stored.getUseToken())) {
+                redeem.setUsed(true);
+                redeem.setUsedDate(usedDate);
+                redeem.setUseToken(useToken);
+                results.put(redeemCode, new RedeemUse(redeemCode, RedeemUseStatus.CONSUMED, redeem));
+            } else {
+                results.put(redeemCode, new RedeemUse(redeemCode, RedeemUseStatus.ALREADY_USED, null));
+            }
+        }
     }
 
+    // Verifica senza accesso al database: firma per i codici firmati, filtro dei codici emessi per gli altri
+    private boolean mightExist(RedeemCodeSigner.Verification verification) {
+        return switch (verification.kind()) {
+            case REJECTED -> false;
+            case SIGNED -> true;
+            case LEGACY -> redeemCodeFilter.mightContain(verification.code());
+        };
+    }
+
+    private static Redeem find(RedeemCodeSigner.Verification verification, Map<String, Redeem> byCode) {
+        Redeem redeem = byCode.get(verification.code());
+        if (redeem != null && verification.kind() == RedeemCodeSigner.Kind.SIGNED && !verification.redeemId().equals(redeem.getRedeemId())) {
+            return null;
+        }
+        return redeem;
+    }
+
+    /**
+     * Why the redeem cannot be used by the user, or null if it can
+     */
+    private RedeemUseStatus blocker(Redeem redeem, String userEmail, RedeemCodeSigner.Verification verification) {
+        if (redeem == null) {
+            if (verification.kind() == RedeemCodeSigner.Kind.LEGACY) {
+                redeemCodeFilter.falsePositive();
+            }
+            return RedeemUseStatus.NOT_FOUND;
+        }
+        if (!redeem.getUserEmail().equals(userEmail)) {
+            return RedeemUseStatus.NOT_OWNED;
+        }
+        // Redeem non ancora pagato o con transazione fallita
+        if (!redeem.isRedeemed()) {
+            return RedeemUseStatus.INVALID;
+        }
+        if (redeem.isUsed()) {
+            return RedeemUseStatus.ALREADY_USED;
+        }
+        return null;
+    }
+
+    private RedeemException rejection(RedeemCodeSigner.Verification verification, String userEmail) {
+        Optional<Redeem> ret = verification.kind() == RedeemCodeSigner.Kind.SIGNED
+                ? redeemRepository.findById(verification.redeemId())
+                        .filter(redeem -> verification.code().equals(redeem.getRedeemCode()))
+                : redeemRepository.findByRedeemCode(verification.code());
 
+        RedeemUseStatus blocked = blocker(ret.orElse(null), userEmail, verification);
+
+        if (blocked == null) {
+            // Anche chi perde la corsa con un uso concorrente dello stesso codice finisce qui
+            return new RedeemException("Redeem already used");
+        }
+
+        return switch (blocked) {
+            case INVALID -> new RedeemException("Invalid redeem code");
+            case ALREADY_USED, CONSUMED -> new RedeemException("Redeem already used");
+            case NOT_FOUND, NOT_OWNED -> new RedeemException("Redeem not found");
+        };
+    }
 }
@@ -2,6 +2,10 @@ package it.unisalento.pasproject.rewardsservice.service;
 
 import it.unisalento.pasproject.rewardsservice.business.io.producer.MessageProducer;
 import it.unisalento.pasproject.rewardsservice.business.io.producer.MessageProducerStrategy;
+import it.unisalento.pasproject.rewardsservice.business.search.RewardQueryTemplate;
+import it.unisalento.pasproject.rewardsservice.business.search.RewardSearchCache;
+import it.unisalento.pasproject.rewardsservice.business.search.RewardSearchSpec;
+import it.unisalento.pasproject.rewardsservice.domain.OutboxMessage;
 import it.unisalento.pasproject.rewardsservice.domain.Redeem;
 import it.unisalento.pasproject.rewardsservice.domain.Reward;
 import it.unisalento.pasproject.rewardsservice.dto.RedeemDTO;
@@ -12,13 +16,12 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.mongodb.core.MongoTemplate;
-import org.springframework.data.mongodb.core.query.Criteria;
-import org.springframework.data.mongodb.core.query.Query;
 import org.springframework.stereotype.Service;
 
-import java.util.ArrayList;
+import java.time.LocalDateTime;
 import java.util.List;
-import java.util.Objects;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 @Service
 public class RewardService {
@@ -32,6 +35,10 @@ public class RewardService {
 
     private final MessageProducer messageProducer;
     private final MongoTemplate mongoTemplate;
+    private final RewardSearchCache searchCache;
+
+    // Una query compilata per ogni combinazione di filtri e ordinamento
+    private final Map<RewardSearchSpec.Shape, RewardQueryTemplate> queryTemplates = new ConcurrentHashMap<>();
 
     @Value("${rabbitmq.routing.sendTransaction.name}")
     private String sendTransactionRoutingKey;
@@ -47,20 +54,36 @@ public class RewardService {
 
 
     @Autowired
-    public RewardService(MessageProducer messageProducer,@Qualifier("RabbitMQProducer") MessageProducerStrategy messageProducerStrategy, MongoTemplate mongoTemplate) {
+    public RewardService(MessageProducer messageProducer,@Qualifier("RabbitMQProducer") MessageProducerStrategy messageProducerStrategy, MongoTemplate mongoTemplate,
+                         RewardSearchCache searchCache) {
         this.messageProducer = messageProducer;
         this.messageProducer.setStrategy(messageProducerStrategy);
         this.mongoTemplate = mongoTemplate;
+        this.searchCache = searchCache;
     }
 
-    public void sendTransaction(Redeem redeem, Reward rewardEntity) {
+    /**
+     * Build the transaction request of a redeem as an outbox message, to be stored together with the redeem
+     * and published later by the {@link OutboxRelay}.
+     * @param redeem the redeem, with its id already assigned
+     * @param rewardEntity the redeemed reward
+     * @return the outbox message
+     */
+    public OutboxMessage createTransactionMessage(Redeem redeem, Reward rewardEntity) {
         RedeemTransactionDTO transaction = new RedeemTransactionDTO();
         transaction.setSenderEmail(redeem.getUserEmail());
         transaction.setReceiverEmail(redeem.getRewardId());
         transaction.setTransactionOwner(redeem.getRedeemId());    //Inserisco l'id della transazione locale
         transaction.setAmount(redeem.getQuantity()*rewardEntity.getCost());
         transaction.setDescription("Redeem reward "+rewardEntity.getName());
-        messageProducer.sendMessage(transaction, sendTransactionRoutingKey, transactionExchange);
+
+        OutboxMessage message = new OutboxMessage();
+        message.setExchange(transactionExchange);
+        message.setRoutingKey(sendTransactionRoutingKey);
+        message.setPayload(transaction);
+        message.setCreatedAt(LocalDateTime.now());
+        message.setSent(false);
+        return message;
     }
 
     public Reward getReward(RewardDTO rewardDTO) {
@@ -74,6 +97,7 @@ public class RewardService {
         reward.setSubcategory(rewardDTO.getSubcategory());
         reward.setAddDate(rewardDTO.getAddDate());
         reward.setActive(rewardDTO.isActive());
+        reward.setDisabled(!rewardDTO.isActive());
         reward.setQuantity(rewardDTO.getQuantity());
         reward.setSold(rewardDTO.getSold());
         return reward;
@@ -90,61 +114,26 @@ public class RewardService {
         rewardDTO.setCategory(reward.getCategory());
         rewardDTO.setSubcategory(reward.getSubcategory());
         rewardDTO.setAddDate(reward.getAddDate());
+        rewardDTO.setUpdateDate(reward.getUpdateDate());
         rewardDTO.setActive(reward.isActive());
         rewardDTO.setQuantity(reward.getQuantity());
         rewardDTO.setSold(reward.getSold());
+        rewardDTO.setRevision(reward.getRevision());
         return rewardDTO;
     }
 
-    public List<Reward> findRewards(String name, String category, String subcategory, int maxQuantity, int maxSold, int minQuantity, int minSold, Boolean active) {
-        Query query = new Query();
-
-        if (name != null) {
-            query.addCriteria(Criteria.where("name").is(name));
-        }
-        if (category != null) {
-            query.addCriteria(Criteria.where("category").is(category));
-        }
-        if (subcategory != null) {
-            query.addCriteria(Criteria.where("subcategory").is(subcategory));
-        }
-
-        query.addCriteria(Criteria.where("active").is(Objects.requireNonNullElse(active, true)));
-
-        List<Criteria> andCriteria = new ArrayList<>();
-
-        // Assuming minQuantity and maxQuantity have been defined
-        if (minQuantity >= 0 || maxQuantity >= 0) {
-            List<Criteria> quantityCriteria = new ArrayList<>();
-            if (minQuantity >= 0) {
-                quantityCriteria.add(Criteria.where("quantity").gte(minQuantity));
-            }
-            if (maxQuantity >= 0) {
-                quantityCriteria.add(Criteria.where("quantity").lte(maxQuantity));
-            }
-            // Combine quantity criteria with $and if both conditions exist
-            andCriteria.add(new Criteria().andOperator(quantityCriteria.toArray(new Criteria[0])));
-        }
-
-        // Assuming minSold and maxSold have been defined
-        if (minSold >= 0 || maxSold >= 0) {
-            List<Criteria> soldCriteria = new ArrayList<>();
-            if (minSold >= 0) {
-                soldCriteria.add(Criteria.where("sold").gte(minSold));
-            }
-            if (maxSold >= 0) {
-                soldCriteria.add(Criteria.where("sold").lte(maxSold));
-            }
-            // Combine sold criteria with $and if both conditions exist
-            andCriteria.add(new Criteria().andOperator(soldCriteria.toArray(new Criteria[0])));
-        }
-
-        // Apply combined andCriteria to the query
-        if (!andCriteria.isEmpty()) {
-            query.addCriteria(new Criteria().andOperator(andCriteria.toArray(new Criteria[andCriteria.size()])));
-        }
-
-        return mongoTemplate.find(query, Reward.class);
+    /**
+     * Search the rewards matching the spec.
+     * The query of each distinct shape is compiled once; results of the hot shapes come from the {@link RewardSearchCache}.
+     * @param spec the filters, ordering and limit of the search
+     * @return the rewards found, not to be modified
+     */
+    public List<Reward> findRewards(RewardSearchSpec spec) {
+        return searchCache.get(spec, () -> mongoTemplate.find(queryTemplate(spec).bind(spec), Reward.class));
+    }
+
+    private RewardQueryTemplate queryTemplate(RewardSearchSpec spec) {
+        return queryTemplates.computeIfAbsent(spec.shape(), RewardQueryTemplate::compile);
     }
 
     public RedeemDTO getRedeemDTO(Redeem redeem) {
@@ -1,11 +1,14 @@
 package it.unisalento.pasproject.rewardsservice.service;
 
 
+import it.unisalento.pasproject.rewardsservice.business.cache.SingleFlight;
+import it.unisalento.pasproject.rewardsservice.business.cache.UserDetailsCache;
 import it.unisalento.pasproject.rewardsservice.business.io.exchanger.MessageExchangeStrategy;
 import it.unisalento.pasproject.rewardsservice.business.io.exchanger.MessageExchanger;
 import it.unisalento.pasproject.rewardsservice.dto.UserDetailsDTO;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.amqp.rabbit.annotation.RabbitListener;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
@@ -14,6 +17,11 @@ import org.springframework.security.core.userdetails.UserDetails;
 import org.springframework.security.core.userdetails.UsernameNotFoundException;
 import org.springframework.stereotype.Service;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
 import static it.unisalento.pasproject.rewardsservice.security.SecurityConstants.ROLE_ADMIN;
 
 
@@ -22,6 +30,8 @@ public class UserCheckService {
 
 
     private final MessageExchanger messageExchanger;
+    private final UserDetailsCache userDetailsCache;
+    private final SingleFlight<String, UserDetailsDTO> userLookups = new SingleFlight<>();
 
     @Value("${rabbitmq.exchange.security.name}")
     private String securityExchange;
@@ -29,10 +39,18 @@ public class UserCheckService {
     @Value("${rabbitmq.routing.security.key}")
     private String securityRequestRoutingKey;
 
+    @Value("${security.user-lookup.timeout-ms:1000}")
+    private long lookupTimeout;
+
+    @Value("${security.user-lookup.wait-timeout-ms:2000}")
+    private long lookupWaitTimeout;
+
     @Autowired
-    public UserCheckService(MessageExchanger messageExchanger, @Qualifier("RabbitMQExchange") MessageExchangeStrategy messageExchangeStrategy) {
+    public UserCheckService(MessageExchanger messageExchanger, @Qualifier("RabbitMQExchange") MessageExchangeStrategy messageExchangeStrategy,
+                            UserDetailsCache userDetailsCache) {
         this.messageExchanger = messageExchanger;
         this.messageExchanger.setStrategy(messageExchangeStrategy);
+        this.userDetailsCache = userDetailsCache;
     }
 
     private static final Logger LOGGER = LoggerFactory.getLogger(UserCheckService.class);
@@ -45,18 +63,63 @@ public class UserCheckService {
      */
     public UserDetailsDTO loadUserByUsername(String email) throws UsernameNotFoundException {
 
-        //Chiamata MQTT a CQRS per ottenere i dettagli dell'utente
         UserDetailsDTO user = null;
 
+        //Chiamata MQTT a CQRS per ottenere i dettagli dell'utente
         try {
-            user = messageExchanger.exchangeMessage(email,securityRequestRoutingKey,securityExchange,UserDetailsDTO.class);
-        } catch (Exception e) {
-            LOGGER.error(e.getMessage());
+            user = loadUserByUsernameAsync(email).get(lookupWaitTimeout, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            LOGGER.error("Interrupted while waiting for user details of {}", email);
+        } catch (ExecutionException e) {
+            LOGGER.error("User details lookup for {} failed: {}", email, e.getCause().toString());
+        } catch (TimeoutException e) {
+            LOGGER.error("User details lookup for {} timed out", email);
         }
 
         return user;
     }
 
+    /**
+     * Load the user details by email without blocking the caller.
+     * Concurrent lookups for the same email share a single request to the CQRS service.
+     * @param email the email of the user
+     * @return a future completed with the user details (null if the user is unknown),
+     * or exceptionally if the request failed or timed out
+     */
+    public CompletableFuture<UserDetailsDTO> loadUserByUsernameAsync(String email) {
+        UserDetailsDTO cached = userDetailsCache.get(email);
+        if (cached != null) {
+            return CompletableFuture.completedFuture(cached);
+        }
+
+        return userLookups.execute(email, () -> {
+            // Letta prima della richiesta: un evento arrivato durante l'attesa impedisce di mettere in cache la risposta
+            long generation = userDetailsCache.generation();
+            return messageExchanger
+                    .exchangeMessageAsync(email, securityRequestRoutingKey, securityExchange, UserDetailsDTO.class, lookupTimeout)
+                    .thenApply(user -> {
+                        // Le risposte nulle (utente non trovato) non vengono messe in cache
+                        userDetailsCache.put(email, user, generation);
+                        return user;
+                    });
+        });
+    }
+
+    /**
+     * Drop a user from the cache when the security service reports that it changed or was disabled
+     * @param user the details carried by the event, only the email is used
+     */
+    @RabbitListener(queues = "#{userEventsQueue.name}")
+    public void onUserEvent(UserDetailsDTO user) {
+        if (user == null || user.getEmail() == null) {
+            return;
+        }
+
+        LOGGER.debug("User event received for {}, invalidating cached details", user.getEmail());
+        userDetailsCache.invalidate(user.getEmail());
+    }
+
 
     public Boolean isEnable(Boolean enable) {
         return enable;
@@ -0,0 +1,92 @@
+package it.unisalento.pasproject.rewardsservice.business.cache;
+
+import it.unisalento.pasproject.rewardsservice.dto.UserDetailsDTO;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class UserDetailsCacheTest {
+
+    private static final String EMAIL = "user@example.com";
+
+    @Test
+    void cachedUserIsServedUntilInvalidated() {
+        UserDetailsCache cache = new UserDetailsCache(60_000, 100);
+        UserDetailsDTO user = new UserDetailsDTO(EMAIL, "MEMBRO", true);
+
+        assertNull(cache.get(EMAIL));
+        assertTrue(cache.put(EMAIL, user, cache.generation()));
+        assertSame(user, cache.get(EMAIL));
+
+        cache.invalidate(EMAIL);
+
+        assertNull(cache.get(EMAIL));
+        assertEquals(1, cache.getHits());
+        assertEquals(2, cache.getMisses());
+        assertEquals(1, cache.getInvalidations());
+    }
+
+    @Test
+    void replyRequestedBeforeAnInvalidationIsNotCached() {
+        UserDetailsCache cache = new UserDetailsCache(60_000, 100);
+        long generation = cache.generation();
+
+        // L'evento user.disabled arriva mentre la richiesta al servizio CQRS è in corso
+        cache.invalidate(EMAIL);
+
+        assertFalse(cache.put(EMAIL, new UserDetailsDTO(EMAIL, "MEMBRO", true), generation));
+        assertNull(cache.get(EMAIL));
+
+        // Una nuova richiesta, partita dopo l'evento, viene messa in cache
+        UserDetailsDTO disabled = new UserDetailsDTO(EMAIL, "MEMBRO", true);
+        disabled.setEnabled(false);
+        assertTrue(cache.put(EMAIL, disabled, cache.generation()));
+        assertFalse(cache.get(EMAIL).getEnabled());
+    }
+
+    @Test
+    void replyRequestedBeforeInvalidateAllIsNotCached() {
+        UserDetailsCache cache = new UserDetailsCache(60_000, 100);
+        long generation = cache.generation();
+
+        cache.invalidateAll();
+
+        assertFalse(cache.put(EMAIL, new UserDetailsDTO(EMAIL, "MEMBRO", true), generation));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    void expiredEntriesAreMisses() throws InterruptedException {
+        UserDetailsCache cache = new UserDetailsCache(20, 100);
+        cache.put(EMAIL, new UserDetailsDTO(EMAIL, "MEMBRO", true), cache.generation());
+
+        Thread.sleep(50);
+
+        assertNull(cache.get(EMAIL));
+        assertEquals(1, cache.getEvictions());
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    void fullCacheEvictsBeforeAddingNewUsers() {
+        UserDetailsCache cache = new UserDetailsCache(60_000, 10);
+        for (int i = 0; i < 25; i++) {
+            String email = "user" + i + "@example.com";
+            cache.put(email, new UserDetailsDTO(email, "MEMBRO", true), cache.generation());
+        }
+
+        assertTrue(cache.size() <= 10);
+        assertTrue(cache.getEvictions() >= 15);
+        assertNotNull(cache.get("user24@example.com"));
+    }
+
+    @Test
+    void nullRepliesAndDisabledCacheStoreNothing() {
+        UserDetailsCache cache = new UserDetailsCache(60_000, 100);
+        assertFalse(cache.put(EMAIL, null, cache.generation()));
+
+        UserDetailsCache disabled = new UserDetailsCache(0, 100);
+        assertFalse(disabled.put(EMAIL, new UserDetailsDTO(EMAIL, "MEMBRO", true), disabled.generation()));
+        assertNull(disabled.get(EMAIL));
+    }
+}
@@ -0,0 +1,166 @@
+package it.unisalento.pasproject.rewardsservice.business.catalog;
+
+import it.unisalento.pasproject.rewardsservice.business.search.RewardSearchSpec;
+import it.unisalento.pasproject.rewardsservice.business.search.RewardSort;
+import it.unisalento.pasproject.rewardsservice.dto.RewardDTO;
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+class CatalogIndexTest {
+
+    private final CatalogSnapshot snapshot = CatalogSnapshot.of(1, List.of(
+            reward("a", "Mug", "home", "kitchen", true, 10, 2, 15.0, 1),
+            reward("b", "Pan", "home", "kitchen", true, 3, 8, 40.0, 3),
+            reward("c", "Lamp", "home", "light", true, 7, 8, 25.0, 2),
+            reward("d", "Shirt", "fashion", null, true, 0, 20, 30.0, 4),
+            reward("e", "Sofa", "home", "living", false, 1, 1, 500.0, 5)));
+
+    private final CatalogIndex index = CatalogIndex.of(snapshot);
+
+    @Test
+    void defaultSearchReturnsActiveRewardsInIdOrder() {
+        assertEquals(List.of("a", "b", "c", "d"), ids(index.search(RewardSearchSpec.builder().build())));
+        assertEquals(List.of("e"), ids(index.search(RewardSearchSpec.builder().active(false).build())));
+    }
+
+    @Test
+    void categoryAndSubcategoryBitmapsAreIntersected() {
+        RewardSearchSpec spec = RewardSearchSpec.builder().category("home").subcategory("kitchen").build();
+
+        assertEquals(List.of("a", "b"), ids(index.search(spec)));
+        assertTrue(index.search(RewardSearchSpec.builder().category("toys").build()).isEmpty());
+    }
+
+    @Test
+    void rangesAreInclusiveAndCombined() {
+        RewardSearchSpec spec = RewardSearchSpec.builder()
+                .minQuantity(3).maxQuantity(10)
+                .minSold(8)
+                .maxCost(30.0)
+                .build();
+
+        assertEquals(List.of("c"), ids(index.search(spec)));
+    }
+
+    @Test
+    void sortsUseIdAsTieBreakerAndRespectLimit() {
+        assertEquals(List.of("d", "b", "c"), ids(index.search(RewardSearchSpec.builder().sort(RewardSort.POPULAR).limit(3).build())));
+        assertEquals(List.of("b", "d"), ids(index.search(RewardSearchSpec.builder().sort(RewardSort.COST_DESC).limit(2).build())));
+        assertEquals(List.of("a", "c", "d", "b"), ids(index.search(RewardSearchSpec.builder().sort(RewardSort.COST_ASC).build())));
+        assertEquals(List.of("d", "b", "c", "a"), ids(index.search(RewardSearchSpec.builder().sort(RewardSort.NEWEST).build())));
+        assertEquals(List.of("c", "a", "b", "d"), ids(index.search(RewardSearchSpec.builder().sort(RewardSort.NAME).build())));
+    }
+
+    @Test
+    void afterIdSkipsRewardsUpToTheCursor() {
+        RewardSearchSpec spec = RewardSearchSpec.builder().category("home").afterId("a").limit(1).build();
+
+        assertEquals(List.of("b"), ids(index.search(spec)));
+    }
+
+    @Test
+    void catalogSearchRebuildsIndexWhenSnapshotChanges() {
+        RewardCatalog rewardCatalog = mock(RewardCatalog.class);
+        when(rewardCatalog.snapshot()).thenReturn(snapshot);
+        CatalogSearch catalogSearch = new CatalogSearch(rewardCatalog, Runnable::run);
+
+        assertEquals(4, catalogSearch.search(RewardSearchSpec.builder().build()).size());
+
+        CatalogSnapshot changed = snapshot.with(2, List.of(), List.of("a"));
+        when(rewardCatalog.snapshot()).thenReturn(changed);
+        catalogSearch.onCatalogChanged(changed, Set.of("a"));
+
+        assertEquals(List.of("b", "c", "d"), ids(catalogSearch.search(RewardSearchSpec.builder().build())));
+    }
+
+    @Test
+    void catalogChangesAreCoalescedIntoOneBackgroundRebuild() {
+        RewardCatalog rewardCatalog = mock(RewardCatalog.class);
+        when(rewardCatalog.snapshot()).thenReturn(snapshot);
+        List<Runnable> rebuilds = new ArrayList<>();
+        CatalogSearch catalogSearch = new CatalogSearch(rewardCatalog, rebuilds::add);
+        catalogSearch.search(RewardSearchSpec.builder().build());
+
+        CatalogSnapshot changed = snapshot.with(2, List.of(reward("a", "Mug", "home", "kitchen", true, 9, 3, 15.0, 1)), List.of());
+        CatalogSnapshot changedAgain = changed.with(3, List.of(reward("a", "Mug", "home", "kitchen", true, 8, 4, 15.0, 1)), List.of());
+        when(rewardCatalog.snapshot()).thenReturn(changedAgain);
+        catalogSearch.onCatalogChanged(changed, Set.of("a"));
+        catalogSearch.onCatalogChanged(changedAgain, Set.of("a"));
+
+        // Il writer non ricostruisce nulla: una sola ricostruzione in attesa per entrambe le modifiche
+        assertEquals(1, rebuilds.size());
+
+        // Nel frattempo la ricerca usa gli indici precedenti con i reward dello snapshot corrente
+        RewardDTO mug = catalogSearch.search(RewardSearchSpec.builder().name("Mug").build()).getFirst();
+        assertEquals(8, mug.getQuantity());
+        assertEquals(8, catalogSearch.searchText("mug", 10).getFirst().reward().getQuantity());
+
+        rebuilds.getFirst().run();
+        assertSame(changedAgain.findById("a").orElseThrow(), catalogSearch.search(RewardSearchSpec.builder().name("Mug").build()).getFirst());
+    }
+
+    @Test
+    void staleIndexResultsAreFilteredAgainOnTheCurrentSnapshot() {
+        RewardCatalog rewardCatalog = mock(RewardCatalog.class);
+        when(rewardCatalog.snapshot()).thenReturn(snapshot);
+        List<Runnable> rebuilds = new ArrayList<>();
+        CatalogSearch catalogSearch = new CatalogSearch(rewardCatalog, rebuilds::add);
+        RewardSearchSpec spec = RewardSearchSpec.builder().name("Mug").minQuantity(5).build();
+        assertEquals(List.of("a"), ids(catalogSearch.search(spec)));
+
+        // La quantità scende sotto il filtro prima che gli indici vengano ricostruiti
+        CatalogSnapshot soldOut = snapshot.with(2, List.of(reward("a", "Mug", "home", "kitchen", true, 2, 10, 15.0, 1)), List.of());
+        when(rewardCatalog.snapshot()).thenReturn(soldOut);
+        catalogSearch.onCatalogChanged(soldOut, Set.of("a"));
+
+        assertTrue(catalogSearch.search(spec).isEmpty());
+        assertEquals(1, rebuilds.size());
+    }
+
+    @Test
+    void textIndexIsKeptWhenOnlyStockChanges() {
+        RewardCatalog rewardCatalog = mock(RewardCatalog.class);
+        when(rewardCatalog.snapshot()).thenReturn(snapshot);
+        CatalogSearch catalogSearch = new CatalogSearch(rewardCatalog, Runnable::run);
+        catalogSearch.searchText("lamp", 10);
+
+        CatalogSnapshot stock = snapshot.with(2, List.of(reward("c", "Lamp", "home", "light", true, 6, 9, 25.0, 2)), List.of());
+        when(rewardCatalog.snapshot()).thenReturn(stock);
+        catalogSearch.onCatalogChanged(stock, Set.of("c"));
+
+        TextIndex.Hit hit = catalogSearch.searchText("lamp", 10).getFirst();
+        assertEquals(6, hit.reward().getQuantity());
+
+        CatalogSnapshot renamed = stock.with(3, List.of(reward("c", "Desk lamp", "home", "light", true, 6, 9, 25.0, 2)), List.of());
+        when(rewardCatalog.snapshot()).thenReturn(renamed);
+        catalogSearch.onCatalogChanged(renamed, Set.of("c"));
+
+        assertEquals("Desk lamp", catalogSearch.searchText("desk", 10).getFirst().reward().getName());
+    }
+
+    private static List<String> ids(List<RewardDTO> rewards) {
+        return rewards.stream().map(RewardDTO::getId).toList();
+    }
+
+    private static RewardDTO reward(String id, String name, String category, String subcategory, boolean active,
+                                    int quantity, int sold, double cost, int day) {
+        RewardDTO reward = new RewardDTO();
+        reward.setId(id);
+        reward.setName(name);
+        reward.setCategory(category);
+        reward.setSubcategory(subcategory);
+        reward.setActive(active);
+        reward.setQuantity(quantity);
+        reward.setSold(sold);
+        reward.setCost(cost);
+        reward.setAddDate(LocalDateTime.of(2024, 1, day, 12, 0));
+        return reward;
+    }
+}
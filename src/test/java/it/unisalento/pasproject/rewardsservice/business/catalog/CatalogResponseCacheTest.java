@@ -0,0 +1,90 @@
+package it.unisalento.pasproject.rewardsservice.business.catalog;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import it.unisalento.pasproject.rewardsservice.dto.RewardDTO;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CatalogResponseCacheTest {
+
+    private final ObjectMapper objectMapper = new ObjectMapper().registerModule(new JavaTimeModule());
+
+    private final CatalogResponseCache cache = new CatalogResponseCache(objectMapper, 100);
+
+    private final AtomicInteger serializations = new AtomicInteger();
+
+    @Test
+    void pageIsSerializedOncePerVersionAndGzipped() throws IOException {
+        CatalogSnapshot snapshot = CatalogSnapshot.of(1, List.of(reward("a", 5)));
+
+        CatalogResponseCache.Body first = cache.page(snapshot, true, 50, null, () -> response(snapshot));
+        CatalogResponseCache.Body second = cache.page(snapshot, true, 50, null, () -> response(snapshot));
+
+        assertSame(first, second);
+        assertEquals(1, serializations.get());
+        try (GZIPInputStream gzip = new GZIPInputStream(new ByteArrayInputStream(first.gzip()))) {
+            assertArrayEquals(first.json(), gzip.readAllBytes());
+        }
+
+        CatalogSnapshot changed = snapshot.with(2, List.of(reward("a", 4)), List.of());
+        cache.onCatalogChanged(changed, Set.of("a"));
+        cache.page(changed, true, 50, null, () -> response(changed));
+        assertEquals(2, serializations.get());
+    }
+
+    @Test
+    void catalogChangeDropsOnlyChangedRewards() {
+        CatalogSnapshot snapshot = CatalogSnapshot.of(1, List.of(reward("a", 5), reward("b", 5)));
+        CatalogResponseCache.Body a = cache.reward(snapshot, "a", () -> response(snapshot));
+        CatalogResponseCache.Body b = cache.reward(snapshot, "b", () -> response(snapshot));
+
+        CatalogSnapshot changed = snapshot.with(2, List.of(reward("a", 4)), List.of());
+        cache.onCatalogChanged(changed, Set.of("a"));
+
+        assertNotSame(a, cache.reward(changed, "a", () -> response(changed)));
+        assertSame(b, cache.reward(changed, "b", () -> response(changed)));
+    }
+
+    @Test
+    void hashDependsOnlyOnTheContent() {
+        CatalogSnapshot snapshot = CatalogSnapshot.of(1, List.of(reward("a", 5)));
+        CatalogSnapshot sameRewards = CatalogSnapshot.of(7, List.of(reward("a", 5)));
+        CatalogSnapshot changed = snapshot.with(2, List.of(reward("a", 4)), List.of());
+
+        String hash = cache.page(snapshot, true, 50, null, () -> response(snapshot)).hash();
+
+        assertEquals(hash, new CatalogResponseCache(objectMapper, 100).page(sameRewards, true, 50, null, () -> response(sameRewards)).hash());
+        assertNotEquals(hash, cache.page(changed, true, 50, null, () -> response(changed)).hash());
+    }
+
+    @Test
+    void acceptsGzipHonoursQualityValues() {
+        assertTrue(CatalogResponseCache.acceptsGzip("gzip, deflate, br"));
+        assertTrue(CatalogResponseCache.acceptsGzip("br;q=1.0, gzip;q=0.8"));
+        assertFalse(CatalogResponseCache.acceptsGzip("gzip;q=0"));
+        assertFalse(CatalogResponseCache.acceptsGzip("identity"));
+        assertFalse(CatalogResponseCache.acceptsGzip(null));
+    }
+
+    private Object response(CatalogSnapshot snapshot) {
+        serializations.incrementAndGet();
+        return snapshot.getAll();
+    }
+
+    private static RewardDTO reward(String id, int quantity) {
+        RewardDTO reward = new RewardDTO();
+        reward.setId(id);
+        reward.setQuantity(quantity);
+        reward.setActive(true);
+        return reward;
+    }
+}
@@ -0,0 +1,233 @@
+package it.unisalento.pasproject.rewardsservice.business.catalog;
+
+import it.unisalento.pasproject.rewardsservice.domain.Reward;
+import it.unisalento.pasproject.rewardsservice.dto.CatalogChangeDTO;
+import it.unisalento.pasproject.rewardsservice.dto.RewardDTO;
+import it.unisalento.pasproject.rewardsservice.repositories.RewardRepository;
+import it.unisalento.pasproject.rewardsservice.service.RewardService;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.ObjectProvider;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+class RewardCatalogTest {
+
+    private RewardRepository rewardRepository;
+
+    private CatalogEventPublisher eventPublisher;
+
+    private RewardCatalog rewardCatalog;
+
+    private final List<Set<String>> notifications = new ArrayList<>();
+
+    // Eseguita dal listener alla prima notifica
+    private Runnable onFirstNotification = () -> { };
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    void setUp() {
+        rewardRepository = mock(RewardRepository.class);
+        RewardService rewardService = mock(RewardService.class);
+        when(rewardService.getRewardDTO(any(Reward.class))).thenCallRealMethod();
+
+        CatalogChangeListener listener = (snapshot, changedIds) -> {
+            // I listener non vengono mai chiamati con il lock del catalogo
+            assertFalse(Thread.holdsLock(rewardCatalog));
+            notifications.add(changedIds);
+            if (notifications.size() == 1) {
+                onFirstNotification.run();
+            }
+        };
+        ObjectProvider<CatalogChangeListener> listeners = mock(ObjectProvider.class);
+        when(listeners.orderedStream()).thenAnswer(invocation -> Stream.of(listener));
+
+        eventPublisher = mock(CatalogEventPublisher.class);
+        rewardCatalog = new RewardCatalog(rewardRepository, rewardService, listeners, eventPublisher);
+    }
+
+    @Test
+    void firstReadLoadsCatalogOnceAndIndexesActiveRewards() {
+        when(rewardRepository.findAll()).thenReturn(List.of(reward("b", true, 5), reward("a", false, 1)));
+
+        CatalogSnapshot snapshot = rewardCatalog.snapshot();
+
+        assertSame(snapshot, rewardCatalog.snapshot());
+        verify(rewardRepository, times(1)).findAll();
+        assertEquals(List.of("a", "b"), snapshot.getAll().stream().map(RewardDTO::getId).toList());
+        assertEquals(List.of("b"), snapshot.getActive().stream().map(RewardDTO::getId).toList());
+        assertTrue(snapshot.findById("a").isPresent());
+    }
+
+    @Test
+    void updateBuildsNewSnapshotAndLeavesPreviousOneUntouched() {
+        when(rewardRepository.findAll()).thenReturn(List.of(reward("a", true, 5)));
+        CatalogSnapshot before = rewardCatalog.snapshot();
+
+        rewardCatalog.update(reward("a", true, 4));
+        CatalogSnapshot after = rewardCatalog.snapshot();
+
+        assertNotSame(before, after);
+        assertTrue(after.getVersion() > before.getVersion());
+        assertEquals(5, before.findById("a").orElseThrow().getQuantity());
+        assertEquals(4, after.findById("a").orElseThrow().getQuantity());
+        assertEquals(Set.of("a"), notifications.getLast());
+    }
+
+    @Test
+    void refreshDropsRewardsNoLongerInDatabase() {
+        when(rewardRepository.findAll()).thenReturn(List.of(reward("a", true, 5), reward("b", true, 5)));
+        rewardCatalog.snapshot();
+        when(rewardRepository.findAllById(any())).thenReturn(List.of(reward("a", false, 5)));
+
+        rewardCatalog.refresh(List.of("a", "b"));
+
+        CatalogSnapshot snapshot = rewardCatalog.snapshot();
+        assertTrue(snapshot.findById("b").isEmpty());
+        assertTrue(snapshot.getActive().isEmpty());
+        assertEquals(Set.of("a", "b"), notifications.getLast());
+    }
+
+    @Test
+    void unchangedReloadKeepsSnapshotAndDoesNotNotify() {
+        when(rewardRepository.findAll()).thenReturn(List.of(reward("a", true, 5)));
+        CatalogSnapshot before = rewardCatalog.snapshot();
+        int notified = notifications.size();
+
+        rewardCatalog.reload();
+
+        assertSame(before, rewardCatalog.snapshot());
+        assertEquals(notified, notifications.size());
+    }
+
+    @Test
+    void localChangeIsPublishedToOtherReplicas() {
+        when(rewardRepository.findAll()).thenReturn(List.of(reward("a", true, 5)));
+        rewardCatalog.snapshot();
+
+        rewardCatalog.update(reward("a", false, 5));
+        rewardCatalog.update(reward("a", false, 5));    // Nessuna modifica, nessun evento
+
+        verify(eventPublisher, times(1)).publish(Set.of("a"));
+    }
+
+    @Test
+    void remoteChangeRereadsRewardsWithoutPublishingAgain() {
+        when(rewardRepository.findAll()).thenReturn(List.of(reward("a", true, 5)));
+        rewardCatalog.snapshot();
+        when(rewardRepository.findAllById(List.of("a"))).thenReturn(List.of(reward("a", true, 2)));
+
+        CatalogChangeDTO event = new CatalogChangeDTO();
+        event.setOrigin("other-replica");
+        event.setRewardIds(List.of("a"));
+        rewardCatalog.onCatalogChange(event);
+
+        assertEquals(2, rewardCatalog.snapshot().findById("a").orElseThrow().getQuantity());
+        verify(eventPublisher, never()).publish(any());
+    }
+
+    @Test
+    void ownChangeEventIsIgnored() {
+        when(rewardRepository.findAll()).thenReturn(List.of(reward("a", true, 5)));
+        rewardCatalog.snapshot();
+
+        CatalogChangeDTO event = new CatalogChangeDTO();
+        event.setRewardIds(List.of("a"));
+        when(eventPublisher.isLocal(event)).thenReturn(true);
+        rewardCatalog.onCatalogChange(event);
+
+        verify(rewardRepository, never()).findAllById(any());
+    }
+
+    @Test
+    void stampsChangeOnlyForChangedRewards() {
+        when(rewardRepository.findAll()).thenReturn(List.of(reward("a", true, 5), reward("b", true, 5)));
+        CatalogSnapshot before = rewardCatalog.snapshot();
+
+        rewardCatalog.update(reward("a", true, 4));
+        CatalogSnapshot after = rewardCatalog.snapshot();
+
+        assertEquals(after.getVersion(), after.stampOf("a").orElseThrow().version());
+        assertEquals(before.stampOf("b"), after.stampOf("b"));
+
+        // Un reload senza modifiche non cambia né la versione né gli stamp
+        when(rewardRepository.findAll()).thenReturn(List.of(reward("a", true, 4), reward("b", true, 5)));
+        assertSame(after, rewardCatalog.reload());
+    }
+
+    @Test
+    void changesMadeDuringANotificationAreCoalescedIntoTheNextOne() {
+        when(rewardRepository.findAll()).thenReturn(List.of(reward("a", true, 5), reward("b", true, 5), reward("c", true, 5)));
+        rewardCatalog.snapshot();
+        notifications.clear();
+
+        // Un altro writer cambia due reward mentre il listener sta lavorando
+        onFirstNotification = () -> {
+            rewardCatalog.update(reward("b", true, 4));
+            rewardCatalog.update(reward("c", true, 4));
+            // Le modifiche sono già visibili ai lettori, la notifica arriva dopo
+            assertEquals(4, rewardCatalog.snapshot().findById("c").orElseThrow().getQuantity());
+            assertEquals(1, notifications.size());
+        };
+        rewardCatalog.update(reward("a", true, 4));
+
+        assertEquals(List.of(Set.of("a"), Set.of("b", "c")), notifications);
+    }
+
+    @Test
+    void reservationsAreAppliedTogetherAtTheNextFlush() {
+        when(rewardRepository.findAll()).thenReturn(List.of(reward("a", true, 5), reward("b", true, 5)));
+        CatalogSnapshot before = rewardCatalog.snapshot();
+        notifications.clear();
+
+        rewardCatalog.stockChanged(reward("a", true, 4, 1));
+        rewardCatalog.stockChanged(reward("a", true, 3, 2));
+        rewardCatalog.stockChanged(reward("b", true, 4, 1));
+        assertSame(before, rewardCatalog.snapshot());
+
+        rewardCatalog.flushStockChanges();
+        rewardCatalog.flushStockChanges();
+
+        CatalogSnapshot after = rewardCatalog.snapshot();
+        assertEquals(before.getVersion() + 1, after.getVersion());
+        assertEquals(3, after.findById("a").orElseThrow().getQuantity());
+        assertEquals(List.of(Set.of("a", "b")), notifications);
+        verify(eventPublisher, times(1)).publish(Set.of("a", "b"));
+        verify(rewardRepository, never()).findAllById(any());
+    }
+
+    @Test
+    void olderRevisionsDoNotOverwriteTheCatalog() {
+        when(rewardRepository.findAll()).thenReturn(List.of(reward("a", true, 5)));
+        rewardCatalog.snapshot();
+
+        // La prenotazione più recente arriva prima di quella che l'ha preceduta nel database
+        rewardCatalog.update(reward("a", true, 3, 2));
+        rewardCatalog.stockChanged(reward("a", true, 4, 1));
+        rewardCatalog.flushStockChanges();
+
+        assertEquals(3, rewardCatalog.snapshot().findById("a").orElseThrow().getQuantity());
+    }
+
+    private static Reward reward(String id, boolean active, int quantity) {
+        Reward reward = new Reward();
+        reward.setId(id);
+        reward.setName("Reward " + id);
+        reward.setActive(active);
+        reward.setQuantity(quantity);
+        return reward;
+    }
+
+    private static Reward reward(String id, boolean active, int quantity, long revision) {
+        Reward reward = reward(id, active, quantity);
+        reward.setRevision(revision);
+        return reward;
+    }
+}
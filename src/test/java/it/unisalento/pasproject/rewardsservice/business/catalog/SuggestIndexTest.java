@@ -0,0 +1,113 @@
+package it.unisalento.pasproject.rewardsservice.business.catalog;
+
+import it.unisalento.pasproject.rewardsservice.dto.RewardDTO;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+class SuggestIndexTest {
+
+    private RewardCatalog rewardCatalog;
+
+    private SuggestIndex suggestIndex;
+
+    private CatalogSnapshot snapshot;
+
+    @BeforeEach
+    void setUp() {
+        snapshot = CatalogSnapshot.of(1, List.of(
+                reward("a", "Tazza caffè", "Cucina", true, 5),
+                reward("b", "Tappetino yoga", "Sport", true, 40),
+                reward("c", "Caffettiera", "Cucina", true, 12),
+                reward("d", "Tavolo", "Casa", false, 100)));
+
+        rewardCatalog = mock(RewardCatalog.class);
+        when(rewardCatalog.snapshot()).thenReturn(snapshot);
+        suggestIndex = new SuggestIndex(rewardCatalog, 20, 2);
+    }
+
+    @Test
+    void prefixMatchesActiveNamesRankedBySold() {
+        assertEquals(List.of("Tappetino yoga", "Tazza caffè"), texts(suggestIndex.suggest("ta", 10)));
+        assertEquals(List.of("Tazza caffè"), texts(suggestIndex.suggest("TAZ", 10)));
+    }
+
+    @Test
+    void prefixMatchesAnyWordAndCategories() {
+        List<SuggestIndex.Suggestion> suggestions = suggestIndex.suggest("c", 10);
+
+        // Cucina conta i venduti di Tazza caffè e Caffettiera
+        assertEquals(List.of("Cucina", "Caffettiera", "Tazza caffè"), texts(suggestions));
+        assertEquals(SuggestIndex.Type.CATEGORY, suggestions.getFirst().type());
+        assertEquals(17, suggestions.getFirst().sold());
+        assertEquals(List.of("Caffettiera"), texts(suggestIndex.suggest("caffet", 10)));
+    }
+
+    @Test
+    void limitKeepsBestSellers() {
+        assertEquals(List.of("Cucina"), texts(suggestIndex.suggest("c", 1)));
+        assertTrue(suggestIndex.suggest("  ", 10).isEmpty());
+    }
+
+    @Test
+    void changesAreAppliedIncrementally() {
+        suggestIndex.suggest("ta", 10);
+
+        CatalogSnapshot changed = snapshot.with(2,
+                List.of(reward("a", "Borraccia", "Sport", true, 5), reward("d", "Tavolo", "Casa", true, 100)),
+                List.of("b"));
+        when(rewardCatalog.snapshot()).thenReturn(changed);
+        suggestIndex.onCatalogChanged(changed, Set.of("a", "b", "d"));
+
+        assertEquals(List.of("Tavolo"), texts(suggestIndex.suggest("ta", 10)));
+        assertEquals(List.of("Sport"), texts(suggestIndex.suggest("s", 10)));
+        assertEquals(5, suggestIndex.suggest("sport", 10).getFirst().sold());
+        assertEquals(List.of("Borraccia"), texts(suggestIndex.suggest("bor", 10)));
+        assertEquals(12, suggestIndex.suggest("cucina", 10).getFirst().sold());
+    }
+
+    @Test
+    void aMissedChangeRebuildsTheIndexOnTheNextLookup() {
+        assertEquals(List.of("Tappetino yoga", "Tazza caffè"), texts(suggestIndex.suggest("ta", 10)));
+
+        // Nessuna notifica: la lettura trova uno snapshot più recente e ricostruisce l'indice
+        CatalogSnapshot reloaded = snapshot.with(3, List.of(reward("b", "Tappetino yoga", "Sport", false, 40)), List.of("a"));
+        when(rewardCatalog.snapshot()).thenReturn(reloaded);
+
+        assertTrue(suggestIndex.suggest("ta", 10).isEmpty());
+        assertEquals(List.of("Caffettiera", "Cucina"), texts(suggestIndex.suggest("c", 10)));
+        assertTrue(suggestIndex.suggest("sport", 10).isEmpty());
+    }
+
+    @Test
+    void aRewardMovedToAnotherCategoryUpdatesBothCounts() {
+        suggestIndex.suggest("c", 10);
+
+        CatalogSnapshot changed = snapshot.with(2, List.of(reward("c", "Caffettiera", "Sport", true, 12)), List.of());
+        when(rewardCatalog.snapshot()).thenReturn(changed);
+        suggestIndex.onCatalogChanged(changed, Set.of("c"));
+
+        assertEquals(5, suggestIndex.suggest("cucina", 10).getFirst().sold());
+        assertEquals(52, suggestIndex.suggest("sport", 10).getFirst().sold());
+        assertEquals(List.of("Caffettiera"), texts(suggestIndex.suggest("caffet", 10)));
+    }
+
+    private static List<String> texts(List<SuggestIndex.Suggestion> suggestions) {
+        return suggestions.stream().map(SuggestIndex.Suggestion::text).toList();
+    }
+
+    private static RewardDTO reward(String id, String name, String category, boolean active, int sold) {
+        RewardDTO reward = new RewardDTO();
+        reward.setId(id);
+        reward.setName(name);
+        reward.setCategory(category);
+        reward.setActive(active);
+        reward.setSold(sold);
+        return reward;
+    }
+}
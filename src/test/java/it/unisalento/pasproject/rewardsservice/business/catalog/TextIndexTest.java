@@ -0,0 +1,69 @@
+package it.unisalento.pasproject.rewardsservice.business.catalog;
+
+import it.unisalento.pasproject.rewardsservice.dto.RewardDTO;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TextIndexTest {
+
+    private final TextIndex index = TextIndex.of(CatalogSnapshot.of(1, List.of(
+            reward("a", "Tazza caffè", "Tazza in ceramica per il caffè espresso", "casa", "cucina", true),
+            reward("b", "Moka", "Caffettiera classica, ideale per un caffè forte", "casa", "cucina", true),
+            reward("c", "Lampada", "Lampada da tavolo", "casa", "luce", true),
+            reward("d", "Caffè in grani", "Caffè arabica", "alimentari", "caffè", false))));
+
+    @Test
+    void nameMatchesRankAboveDescriptionMatches() {
+        List<TextIndex.Hit> hits = index.search("caffè", 10);
+
+        assertEquals(List.of("a", "b"), hits.stream().map(hit -> hit.reward().getId()).toList());
+        assertTrue(hits.get(0).score() > hits.get(1).score());
+        assertEquals(Set.of("caffe"), hits.get(0).terms());
+    }
+
+    @Test
+    void queryIsNormalizedAndInactiveRewardsAreNotIndexed() {
+        assertEquals(List.of("a", "b"), index.search("CAFFE", 10).stream().map(hit -> hit.reward().getId()).toList());
+        assertTrue(index.search("arabica", 10).isEmpty());
+    }
+
+    @Test
+    void searchMatchesCategoryAndRespectsLimit() {
+        assertEquals(3, index.search("casa", 10).size());
+        assertEquals(1, index.search("casa", 1).size());
+        assertTrue(index.search("  , ", 10).isEmpty());
+    }
+
+    @Test
+    void highlighterMarksTermsAndEscapesHtml() {
+        assertEquals("<em>Tazza</em> &lt;b&gt;per il <em>caffè</em>",
+                Highlighter.highlight("Tazza <b>per il caffè", Set.of("tazza", "caffe")));
+        assertNull(Highlighter.highlight(null, Set.of("tazza")));
+    }
+
+    @Test
+    void snippetKeepsTextAroundFirstMatch() {
+        String text = "Lorem ipsum dolor sit amet consectetur adipiscing elit sed do eiusmod tempor moka incididunt ut labore et dolore magna aliqua ut enim ad minim veniam";
+
+        String snippet = Highlighter.snippet(text, Set.of("moka"), 40);
+
+        assertTrue(snippet.startsWith("…"));
+        assertTrue(snippet.endsWith("…"));
+        assertTrue(snippet.contains("<em>moka</em>"));
+    }
+
+    private static RewardDTO reward(String id, String name, String description, String category, String subcategory, boolean active) {
+        RewardDTO reward = new RewardDTO();
+        reward.setId(id);
+        reward.setName(name);
+        reward.setDescription(description);
+        reward.setCategory(category);
+        reward.setSubcategory(subcategory);
+        reward.setActive(active);
+        return reward;
+    }
+}
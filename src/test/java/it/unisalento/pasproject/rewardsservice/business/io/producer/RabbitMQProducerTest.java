@@ -0,0 +1,135 @@
+package it.unisalento.pasproject.rewardsservice.business.io.producer;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.amqp.AmqpException;
+import org.springframework.amqp.core.MessagePostProcessor;
+import org.springframework.amqp.rabbit.connection.CorrelationData;
+import org.springframework.amqp.rabbit.core.RabbitOperations;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+class RabbitMQProducerTest {
+
+    private final RabbitTemplate rabbitTemplate = mock(RabbitTemplate.class);
+    private final RabbitOperations operations = mock(RabbitOperations.class);
+
+    // Le publish del producer, nell'ordine in cui arrivano sul canale
+    private final BlockingQueue<CorrelationData> published = new LinkedBlockingQueue<>();
+
+    private RabbitMQProducer producer;
+
+    @BeforeEach
+    void setUp() {
+        when(rabbitTemplate.invoke(any())).thenAnswer(invocation ->
+                invocation.<RabbitOperations.OperationsCallback<?>>getArgument(0).doInRabbit(operations));
+        doAnswer(invocation -> published.add(invocation.getArgument(4)))
+                .when(operations).convertAndSend(anyString(), anyString(), any(Object.class), any(MessagePostProcessor.class), any(CorrelationData.class));
+    }
+
+    @AfterEach
+    void tearDown() {
+        if (producer != null) {
+            producer.shutdown();
+        }
+    }
+
+    @Test
+    void sendFailsWhenTheConfirmWindowStaysFull() throws Exception {
+        producer = producer(1, 0, 1, 50, 5000, 3);
+
+        CompletableFuture<Boolean> first = producer.sendMessage("first", "key", "exchange");
+        CorrelationData unconfirmed = next();
+
+        assertThrows(AmqpException.class, () -> producer.sendMessage("second", "key", "exchange"));
+        ExecutionException rejected = assertThrows(ExecutionException.class,
+                () -> producer.sendMessageWithConfirm("second", "key", "exchange").get(1, TimeUnit.SECONDS));
+        assertInstanceOf(AmqpException.class, rejected.getCause());
+
+        // La conferma libera il posto nella finestra
+        ack(unconfirmed);
+        assertTrue(first.get(1, TimeUnit.SECONDS));
+        CompletableFuture<Boolean> third = producer.sendMessage("third", "key", "exchange");
+        ack(next());
+        assertTrue(third.get(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void nackedMessageIsPublishedAgain() throws Exception {
+        producer = producer(1, 0, 10, 50, 5000, 3);
+
+        CompletableFuture<Boolean> sent = producer.sendMessage("message", "key", "exchange");
+        nack(next());
+        assertFalse(sent.isDone());
+        ack(next());
+
+        assertTrue(sent.get(1, TimeUnit.SECONDS));
+        verify(operations, times(2)).convertAndSend(eq("exchange"), eq("key"), eq("message"), any(MessagePostProcessor.class), any(CorrelationData.class));
+    }
+
+    @Test
+    void messageStillNackedAfterTheLastAttemptIsReportedAndReleasesItsSlot() throws Exception {
+        producer = producer(1, 0, 1, 50, 5000, 2);
+
+        CompletableFuture<Boolean> sent = producer.sendMessage("message", "key", "exchange");
+        nack(next());
+        nack(next());
+
+        assertFalse(sent.get(1, TimeUnit.SECONDS));
+        assertNull(published.poll(100, TimeUnit.MILLISECONDS));
+
+        // Il messaggio abbandonato non occupa più la finestra
+        CompletableFuture<Boolean> next = producer.sendMessage("next", "key", "exchange");
+        ack(next());
+        assertTrue(next.get(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void shutdownPublishesPendingBatchesAndFailsTheUnconfirmedMessages() throws Exception {
+        producer = producer(10, 60_000, 10, 50, 300, 3);
+
+        CompletableFuture<Boolean> confirmed = producer.sendMessage("confirmed", "key", "exchange");
+        CompletableFuture<Boolean> unconfirmed = producer.sendMessage("unconfirmed", "key", "exchange");
+        // Il batch non è pieno e il linger è lungo: nulla è ancora sul canale
+        assertNull(published.poll(100, TimeUnit.MILLISECONDS));
+
+        CompletableFuture<Void> stopping = CompletableFuture.runAsync(producer::shutdown);
+        ack(next());
+        assertNotNull(next());
+        stopping.get(5, TimeUnit.SECONDS);
+
+        assertTrue(confirmed.get(1, TimeUnit.SECONDS));
+        assertFalse(unconfirmed.get(1, TimeUnit.SECONDS));
+        assertThrows(AmqpException.class, () -> producer.sendMessage("late", "key", "exchange"));
+    }
+
+    private RabbitMQProducer producer(int batchSize, long linger, int maxOutstandingConfirms, long windowWait, long confirmTimeout, int maxAttempts) {
+        return new RabbitMQProducer(rabbitTemplate, new SimpleMeterRegistry(), batchSize, linger, maxOutstandingConfirms, windowWait, confirmTimeout, maxAttempts);
+    }
+
+    private CorrelationData next() throws InterruptedException {
+        CorrelationData correlationData = published.poll(5, TimeUnit.SECONDS);
+        assertNotNull(correlationData, "message not published");
+        return correlationData;
+    }
+
+    private static void ack(CorrelationData correlationData) {
+        correlationData.getFuture().complete(new CorrelationData.Confirm(true, null));
+    }
+
+    private static void nack(CorrelationData correlationData) {
+        correlationData.getFuture().complete(new CorrelationData.Confirm(false, "rejected"));
+    }
+}
@@ -0,0 +1,121 @@
+package it.unisalento.pasproject.rewardsservice.business.reedem;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import it.unisalento.pasproject.rewardsservice.business.io.producer.MessageProducer;
+import it.unisalento.pasproject.rewardsservice.dto.RedeemCodesIssuedDTO;
+import it.unisalento.pasproject.rewardsservice.repositories.RedeemRepository;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+class RedeemCodeFilterTest {
+
+    private final RedeemCodeGenerator generator = new RedeemCodeGenerator(RedeemCodeGenerator.Format.TOKEN, RedeemCodeGenerator.DEFAULT_ALPHABET, 16, 4, 0);
+
+    private final RedeemRepository redeemRepository = mock(RedeemRepository.class);
+    private final MessageProducer messageProducer = mock(MessageProducer.class);
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    @BeforeEach
+    void setUp() {
+        when(messageProducer.sendMessage(any(), any(), any())).thenReturn(CompletableFuture.completedFuture(true));
+    }
+
+    @Test
+    void everyCodePassesUntilTheFilterIsBuilt() {
+        RedeemCodeFilter filter = filter(meterRegistry);
+
+        assertTrue(filter.mightContain(generator.generate()));
+        assertFalse(filter.isLoaded());
+    }
+
+    @Test
+    void storedAndIssuedCodesPassWhileUnknownCodesAreRejected() {
+        List<String> stored = codes(1000);
+        when(redeemRepository.streamRedeemCodes()).thenReturn(stored.stream());
+        RedeemCodeFilter filter = filter(meterRegistry);
+
+        filter.rebuild();
+        String issued = generator.generate();
+        filter.issued(List.of(issued));
+
+        // Nessun falso negativo
+        assertTrue(stored.stream().allMatch(filter::mightContain));
+        assertTrue(filter.mightContain(issued));
+
+        long rejected = codes(10_000).stream().filter(code -> !filter.mightContain(code)).count();
+        assertTrue(rejected > 9_800, "rejected " + rejected);
+        assertEquals(rejected, meterRegistry.get("rewards.redeem.code.filter.lookups").tag("result", "rejected").counter().count());
+    }
+
+    @Test
+    void falsePositiveRateStaysNearTheTargetAtCapacity() {
+        List<String> stored = codes(100_000);
+        when(redeemRepository.streamRedeemCodes()).thenReturn(stored.stream());
+        RedeemCodeFilter filter = new RedeemCodeFilter(redeemRepository, messageProducer, meterRegistry, true, 100_000, 0.01);
+
+        filter.rebuild();
+
+        long falsePositives = codes(100_000).stream().filter(filter::mightContain).count();
+        assertTrue(falsePositives < 1_500, "false positives " + falsePositives);
+
+        double estimated = meterRegistry.get("rewards.redeem.code.filter.false-positive-probability").gauge().value();
+        assertEquals(0.01, estimated, 0.005);
+        assertEquals(100_000, meterRegistry.get("rewards.redeem.code.filter.codes").gauge().value());
+        // Circa 9,6 bit per codice con l'1% di falsi positivi
+        assertTrue(meterRegistry.get("rewards.redeem.code.filter.memory").gauge().value() < 130_000);
+    }
+
+    @Test
+    void issuedCodesReachTheOtherReplicasAsHashes() {
+        when(redeemRepository.streamRedeemCodes()).thenAnswer(invocation -> Stream.empty());
+        RedeemCodeFilter issuer = filter(meterRegistry);
+        RedeemCodeFilter other = filter(new SimpleMeterRegistry());
+        issuer.rebuild();
+        other.rebuild();
+
+        String code = generator.generate();
+        issuer.issued(List.of(code));
+
+        ArgumentCaptor<RedeemCodesIssuedDTO> event = ArgumentCaptor.forClass(RedeemCodesIssuedDTO.class);
+        verify(messageProducer).sendMessage(event.capture(), any(), any());
+        assertEquals(2, event.getValue().getHashes().size());
+
+        assertFalse(other.mightContain(code));
+        other.onCodesIssued(event.getValue());
+        assertTrue(other.mightContain(code));
+    }
+
+    @Test
+    void signedCodesAreNotAdded() {
+        when(redeemRepository.streamRedeemCodes()).thenAnswer(invocation -> Stream.of(RedeemCodeSigner.PREFIX + "stored"));
+        RedeemCodeFilter filter = filter(meterRegistry);
+        filter.rebuild();
+
+        filter.issued(List.of(RedeemCodeSigner.PREFIX + "issued"));
+
+        assertEquals(0, meterRegistry.get("rewards.redeem.code.filter.codes").gauge().value());
+        verifyNoInteractions(messageProducer);
+    }
+
+    private RedeemCodeFilter filter(SimpleMeterRegistry registry) {
+        return new RedeemCodeFilter(redeemRepository, messageProducer, registry, true, 10_000, 0.01);
+    }
+
+    private List<String> codes(int count) {
+        List<String> codes = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            codes.add(generator.generate());
+        }
+        return codes;
+    }
+}
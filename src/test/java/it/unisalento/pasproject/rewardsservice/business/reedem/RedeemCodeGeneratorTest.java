@@ -0,0 +1,88 @@
+package it.unisalento.pasproject.rewardsservice.business.reedem;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RedeemCodeGeneratorTest {
+
+    @Test
+    void tokenFormatKeepsTheOriginalShape() {
+        RedeemCodeGenerator generator = generator(RedeemCodeGenerator.Format.TOKEN, 0);
+
+        String code = generator.next();
+
+        assertEquals(43, code.length());
+        assertTrue(code.matches("[A-Za-z0-9_-]+"));
+        assertTrue(generator.isWellFormed(code));
+        assertFalse(generator.isWellFormed(code.substring(1)));
+    }
+
+    @Test
+    void shortFormatIsGroupedAndChecksummed() {
+        RedeemCodeGenerator generator = generator(RedeemCodeGenerator.Format.SHORT, 0);
+
+        String code = generator.next();
+
+        // 16 simboli più quello di controllo, in gruppi da 4
+        assertTrue(code.matches("([0-9A-HJKMNP-TV-Z]{4}-){4}[0-9A-HJKMNP-TV-Z]"), code);
+        assertTrue(generator.isWellFormed(code));
+        assertTrue(generator.isWellFormed(code.toLowerCase().replace("-", " ")));
+        assertEquals(code, generator.canonical(code.toLowerCase().replace("-", "")));
+    }
+
+    @Test
+    void shortFormatDetectsSingleSymbolTypos() {
+        RedeemCodeGenerator generator = generator(RedeemCodeGenerator.Format.SHORT, 0);
+        String alphabet = RedeemCodeGenerator.DEFAULT_ALPHABET;
+
+        for (int n = 0; n < 50; n++) {
+            char[] code = generator.next().toCharArray();
+            int position = n % code.length;
+            if (code[position] == '-') {
+                continue;
+            }
+            code[position] = alphabet.charAt((alphabet.indexOf(code[position]) + 1 + n % (alphabet.length() - 1)) % alphabet.length());
+            assertFalse(generator.isWellFormed(new String(code)), new String(code));
+        }
+    }
+
+    @Test
+    void shortFormatRejectsAlphabetsWithTooLittleEntropy() {
+        assertThrows(IllegalArgumentException.class,
+                () -> new RedeemCodeGenerator(RedeemCodeGenerator.Format.SHORT, "0123456789", 12, 4, 0));
+        assertThrows(IllegalArgumentException.class,
+                () -> new RedeemCodeGenerator(RedeemCodeGenerator.Format.SHORT, "AABCDEFGHIJ", 32, 4, 0));
+    }
+
+    @Test
+    void bufferIsFilledInBackgroundAndCodesAreUnique() throws InterruptedException {
+        RedeemCodeGenerator generator = generator(RedeemCodeGenerator.Format.SHORT, 256);
+        try {
+            // Nessun codice generato in anticipo finché non serve il primo
+            assertEquals(0, generator.buffered());
+            Set<String> codes = new HashSet<>();
+            assertTrue(codes.add(generator.next()));
+
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (generator.buffered() < 256 && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(256, generator.buffered());
+
+            for (int i = 0; i < 1000; i++) {
+                assertTrue(codes.add(generator.next()));
+            }
+        } finally {
+            generator.shutdown();
+        }
+    }
+
+    private static RedeemCodeGenerator generator(RedeemCodeGenerator.Format format, int bufferSize) {
+        return new RedeemCodeGenerator(format, RedeemCodeGenerator.DEFAULT_ALPHABET, 16, 4, bufferSize);
+    }
+}
@@ -0,0 +1,100 @@
+package it.unisalento.pasproject.rewardsservice.business.reedem;
+
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RedeemCodeSignerTest {
+
+    private final RedeemCodeGenerator generator = new RedeemCodeGenerator(RedeemCodeGenerator.Format.TOKEN, RedeemCodeGenerator.DEFAULT_ALPHABET, 16, 4, 0);
+
+    private final RedeemCodeSigner signer = new RedeemCodeSigner(generator, "test-signing-key", true, true);
+
+    @Test
+    void signedCodeCarriesRedeemAndReward() {
+        String redeemId = new ObjectId().toHexString();
+        String rewardId = new ObjectId().toHexString();
+
+        String code = signer.issue(redeemId, rewardId);
+        RedeemCodeSigner.Verification verification = signer.verify(code);
+
+        assertTrue(code.startsWith(RedeemCodeSigner.PREFIX));
+        assertEquals(RedeemCodeSigner.Kind.SIGNED, verification.kind());
+        assertEquals(redeemId, verification.redeemId());
+        assertEquals(rewardId, verification.rewardId());
+        // Il nonce rende diverso ogni codice emesso per lo stesso riscatto
+        assertNotEquals(code, signer.issue(redeemId, rewardId));
+    }
+
+    @Test
+    void rewardIdsThatAreNotObjectIdsAreKept() {
+        String code = signer.issue(new ObjectId().toHexString(), "reward-42");
+
+        assertEquals("reward-42", signer.verify(code).rewardId());
+    }
+
+    @Test
+    void codesSignedWithAnotherKeyAreRejected() {
+        RedeemCodeSigner other = new RedeemCodeSigner(generator, "another-key", true, true);
+
+        String code = other.issue(new ObjectId().toHexString(), new ObjectId().toHexString());
+
+        assertEquals(RedeemCodeSigner.Kind.REJECTED, signer.verify(code).kind());
+    }
+
+    @Test
+    void legacyCodesAreAcceptedOnlyWhenEnabled() {
+        String legacy = generator.generate();
+        RedeemCodeSigner strict = new RedeemCodeSigner(generator, "test-signing-key", true, false);
+
+        assertEquals(RedeemCodeSigner.Kind.LEGACY, signer.verify(legacy).kind());
+        assertEquals(RedeemCodeSigner.Kind.REJECTED, strict.verify(legacy).kind());
+        assertEquals(RedeemCodeSigner.Kind.REJECTED, signer.verify("garbage").kind());
+    }
+
+    @Test
+    void tokenCodesStayValidAfterSwitchingToShortCodes() {
+        String token = generator.generate();
+        RedeemCodeGenerator shortCodes = new RedeemCodeGenerator(RedeemCodeGenerator.Format.SHORT, RedeemCodeGenerator.DEFAULT_ALPHABET, 16, 4, 0);
+        RedeemCodeSigner switched = new RedeemCodeSigner(shortCodes, "test-signing-key", true, true);
+        String shortCode = shortCodes.generate();
+
+        RedeemCodeSigner.Verification tokenVerification = switched.verify(token);
+        assertEquals(RedeemCodeSigner.Kind.LEGACY, tokenVerification.kind());
+        assertEquals(token, tokenVerification.code());
+
+        RedeemCodeSigner.Verification shortVerification = switched.verify(shortCode.replace("-", "").toLowerCase());
+        assertEquals(RedeemCodeSigner.Kind.LEGACY, shortVerification.kind());
+        assertEquals(shortCode, shortVerification.code());
+
+        // Un codice corto è valido solo con il formato che lo ha generato
+        assertEquals(RedeemCodeSigner.Kind.REJECTED, signer.verify(shortCode).kind());
+    }
+
+    @Test
+    void signedCodesDoNotStartTheBuffer() throws InterruptedException {
+        RedeemCodeGenerator buffered = new RedeemCodeGenerator(RedeemCodeGenerator.Format.TOKEN, RedeemCodeGenerator.DEFAULT_ALPHABET, 16, 4, 256);
+        try {
+            RedeemCodeSigner bufferedSigner = new RedeemCodeSigner(buffered, "test-signing-key", true, true);
+            for (int i = 0; i < 10; i++) {
+                bufferedSigner.issue(new ObjectId().toHexString(), new ObjectId().toHexString());
+            }
+            Thread.sleep(50);
+
+            assertEquals(0, buffered.buffered());
+        } finally {
+            buffered.shutdown();
+        }
+    }
+
+    @Test
+    void disabledSigningIssuesRandomCodes() {
+        RedeemCodeSigner disabled = new RedeemCodeSigner(generator, "test-signing-key", false, true);
+
+        String code = disabled.issue(new ObjectId().toHexString(), new ObjectId().toHexString());
+
+        assertFalse(code.startsWith(RedeemCodeSigner.PREFIX));
+        assertTrue(generator.isWellFormed(code));
+    }
+}
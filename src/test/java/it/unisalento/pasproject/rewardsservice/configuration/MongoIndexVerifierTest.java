@@ -0,0 +1,58 @@
+package it.unisalento.pasproject.rewardsservice.configuration;
+
+import it.unisalento.pasproject.rewardsservice.domain.Redeem;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.data.mongo.DataMongoTest;
+import org.springframework.context.annotation.Import;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.index.IndexInfo;
+import org.springframework.test.context.ActiveProfiles;
+
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+@DataMongoTest()
+@ActiveProfiles("test")
+@Import(MongoIndexVerifier.class)
+class MongoIndexVerifierTest {
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Autowired
+    private MongoIndexVerifier mongoIndexVerifier;
+
+    @Test
+    void verifyCreatesDeclaredIndexesAndFindsNoCollectionScans() {
+        MongoIndexVerifier.Report report = mongoIndexVerifier.verify();
+
+        assertThat(report.missing()).isEmpty();
+        assertThat(report.collectionScans()).isEmpty();
+
+        List<String> redeemIndexes = mongoTemplate.indexOps(Redeem.class).getIndexInfo().stream().map(IndexInfo::getName).toList();
+        assertThat(redeemIndexes).contains("redeem_code_idx", "user_date_idx", "reward_date_idx");
+    }
+
+    @Test
+    void redeemCodeIsUniqueButPendingRedeemsHaveNone() {
+        mongoIndexVerifier.verify();
+
+        mongoTemplate.insert(redeem(null));
+        mongoTemplate.insert(redeem(null));
+        mongoTemplate.insert(redeem("CODE"));
+
+        assertThatThrownBy(() -> mongoTemplate.insert(redeem("CODE"))).isInstanceOf(DuplicateKeyException.class);
+    }
+
+    private static Redeem redeem(String redeemCode) {
+        Redeem redeem = new Redeem();
+        redeem.setUserEmail("user@example.com");
+        redeem.setRewardId("rewardId");
+        redeem.setRedeemCode(redeemCode);
+        return redeem;
+    }
+}
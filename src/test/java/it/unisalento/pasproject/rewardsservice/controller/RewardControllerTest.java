@@ -2,17 +2,32 @@ package it.unisalento.pasproject.rewardsservice.controller;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 import it.unisalento.pasproject.rewardsservice.TestSecurityConfig;
+import it.unisalento.pasproject.rewardsservice.business.catalog.CatalogResponseCache;
+import it.unisalento.pasproject.rewardsservice.business.catalog.CatalogSearch;
+import it.unisalento.pasproject.rewardsservice.business.catalog.CatalogSnapshot;
+import it.unisalento.pasproject.rewardsservice.business.catalog.RewardCatalog;
+import it.unisalento.pasproject.rewardsservice.business.catalog.SuggestIndex;
+import it.unisalento.pasproject.rewardsservice.business.catalog.TextIndex;
+import it.unisalento.pasproject.rewardsservice.business.pagination.PageCursor;
+import it.unisalento.pasproject.rewardsservice.business.reedem.RedeemUseStatus;
+import it.unisalento.pasproject.rewardsservice.business.search.RewardSearchSpec;
+import it.unisalento.pasproject.rewardsservice.business.search.RewardSort;
 import it.unisalento.pasproject.rewardsservice.controllers.RewardController;
 import it.unisalento.pasproject.rewardsservice.domain.Redeem;
 import it.unisalento.pasproject.rewardsservice.dto.CompleteRedeemDTO;
 import it.unisalento.pasproject.rewardsservice.dto.RedeemDTO;
 import it.unisalento.pasproject.rewardsservice.dto.RedeemRewardDTO;
 import it.unisalento.pasproject.rewardsservice.dto.RewardDTO;
+import it.unisalento.pasproject.rewardsservice.dto.UseRedeemsDTO;
+import it.unisalento.pasproject.rewardsservice.exceptions.InvalidCursorException;
+import it.unisalento.pasproject.rewardsservice.exceptions.InvalidSearchException;
 import it.unisalento.pasproject.rewardsservice.exceptions.RewardNotFoundException;
 import it.unisalento.pasproject.rewardsservice.domain.Reward;
 import it.unisalento.pasproject.rewardsservice.exceptions.WrongUserException;
 import it.unisalento.pasproject.rewardsservice.repositories.RedeemRepository;
 import it.unisalento.pasproject.rewardsservice.repositories.RewardRepository;
+import it.unisalento.pasproject.rewardsservice.repositories.RewardRepositoryCustom;
+import it.unisalento.pasproject.rewardsservice.service.RedeemExportService;
 import it.unisalento.pasproject.rewardsservice.service.RedeemService;
 import it.unisalento.pasproject.rewardsservice.service.UserCheckService;
 import it.unisalento.pasproject.rewardsservice.service.RewardService;
@@ -20,6 +35,7 @@ import it.unisalento.pasproject.rewardsservice.service.CreateTransactionSaga;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.InjectMocks;
 import org.mockito.junit.jupiter.MockitoExtension;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -27,23 +43,39 @@ import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMock
 import org.springframework.boot.test.autoconfigure.web.servlet.WebMvcTest;
 import org.springframework.boot.test.mock.mockito.MockBean;
 import org.springframework.context.annotation.Import;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.MediaType;
 import org.springframework.security.test.context.support.WithMockUser;
 import org.springframework.test.web.servlet.MockMvc;
-
+import org.springframework.test.util.AopTestUtils;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.test.web.servlet.MvcResult;
+
+import java.io.ByteArrayInputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
 
 import static it.unisalento.pasproject.rewardsservice.security.SecurityConstants.*;
 import static org.hamcrest.collection.IsCollectionWithSize.hasSize;
 import static org.mockito.ArgumentMatchers.*;
 import static org.mockito.BDDMockito.given;
+import static org.hamcrest.Matchers.containsString;
 import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.matchesPattern;
 import static org.hamcrest.Matchers.notNullValue;
 import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.*;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.*;
@@ -51,12 +83,18 @@ import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.
 @WebMvcTest(RewardController.class)
 @AutoConfigureMockMvc()
 @ExtendWith(MockitoExtension.class)
-@Import(TestSecurityConfig.class)
+@Import({TestSecurityConfig.class, CatalogResponseCache.class})
 class RewardControllerTest {
 
     @Autowired
     private MockMvc mockMvc;
 
+    @Autowired
+    private CatalogResponseCache responseCache;
+
+    @Autowired
+    private RewardController controller;
+
     @MockBean
     private RewardRepository rewardRepository;
 
@@ -75,6 +113,18 @@ class RewardControllerTest {
     @MockBean
     private RedeemService redeemService;
 
+    @MockBean
+    private RewardCatalog rewardCatalog;
+
+    @MockBean
+    private RedeemExportService redeemExportService;
+
+    @MockBean
+    private CatalogSearch catalogSearch;
+
+    @MockBean
+    private SuggestIndex suggestIndex;
+
     @InjectMocks
     private RewardController rewardController;
 
@@ -84,6 +134,11 @@ class RewardControllerTest {
         when(rewardService.getRewardDTO(any(Reward.class))).thenCallRealMethod();
         when(rewardService.getRedeemDTO(any(Redeem.class))).thenCallRealMethod();
         given(rewardRepository.save(any(Reward.class))).willAnswer(invocation -> invocation.getArgument(0));
+        responseCache.clear();
+    }
+
+    private CatalogSnapshot catalogOf(Reward... rewards) {
+        return CatalogSnapshot.of(1, Arrays.stream(rewards).map(rewardService::getRewardDTO).toList());
     }
 
     @Test
@@ -121,7 +176,7 @@ class RewardControllerTest {
 
         String rewardJson = new ObjectMapper().writeValueAsString(rewardDTO);
 
-        when(rewardRepository.findById("nonExistingId")).thenReturn(Optional.empty());
+        when(rewardRepository.updateDetails(eq("nonExistingId"), any())).thenReturn(Optional.empty());
 
         mockMvc.perform(patch("/api/rewards/update")
                         .contentType(MediaType.APPLICATION_JSON)
@@ -159,7 +214,7 @@ class RewardControllerTest {
 
         String rewardJson = new ObjectMapper().writeValueAsString(rewardDTO);
 
-        when(rewardRepository.findById("validId")).thenReturn(Optional.of(reward));
+        when(rewardRepository.updateDetails(eq("validId"), any())).thenReturn(Optional.of(reward));
 
         mockMvc.perform(patch("/api/rewards/update")
                         .contentType(MediaType.APPLICATION_JSON)
@@ -170,6 +225,12 @@ class RewardControllerTest {
                 .andExpect(jsonPath("$.description", is("Updated Description")))
                 .andExpect(jsonPath("$.category", is("Updated Category")))
                 .andExpect(jsonPath("$.subcategory", is("Updated Subcategory")));
+
+        // Aggiornamento mirato dei campi: nessun salvataggio del documento letto, che riscriverebbe sold e quantità riservate
+        verify(rewardRepository).updateDetails("validId", new RewardRepositoryCustom.RewardChanges("Updated Reward", "Updated Description",
+                null, "Updated Category", "Updated Subcategory", 60.0, 0.0, 10, true));
+        verify(rewardRepository, never()).save(any(Reward.class));
+        verify(rewardCatalog).update(reward);
     }
 
     @Test
@@ -177,8 +238,8 @@ class RewardControllerTest {
     void activateRewardWithValidIdChangesStatusToActive() throws Exception {
         Reward reward = new Reward();
         reward.setId("validId");
-        reward.setActive(false);
-        when(rewardRepository.findById("validId")).thenReturn(Optional.of(reward));
+        reward.setActive(true);
+        when(rewardRepository.setActive("validId", true)).thenReturn(Optional.of(reward));
 
         mockMvc.perform(patch("/api/rewards/activate/validId"))
                 .andExpect(status().isOk())
@@ -190,12 +251,14 @@ class RewardControllerTest {
     void deactivateRewardWithValidIdChangesStatusToInactive() throws Exception {
         Reward reward = new Reward();
         reward.setId("validId");
-        reward.setActive(true);
-        when(rewardRepository.findById("validId")).thenReturn(Optional.of(reward));
+        reward.setActive(false);
+        reward.setDisabled(true);
+        when(rewardRepository.setActive("validId", false)).thenReturn(Optional.of(reward));
 
         mockMvc.perform(patch("/api/rewards/deactivate/validId"))
                 .andExpect(status().isOk())
                 .andExpect(jsonPath("$.active", is(false)));
+        verify(rewardRepository, never()).save(any(Reward.class));
     }
 
     @Test
@@ -223,7 +286,7 @@ class RewardControllerTest {
         reward.setSubcategory("Test Subcategory");
         reward.setActive(true);
 
-        when(rewardRepository.findById("validId")).thenReturn(Optional.of(reward));
+        when(rewardCatalog.snapshot()).thenReturn(catalogOf(reward));
 
         mockMvc.perform(get("/api/rewards/{id}", "validId"))
                 .andExpect(status().isOk())
@@ -262,7 +325,7 @@ class RewardControllerTest {
         reward2.setActive(true);
 
         when(userCheckService.isAdministrator()).thenReturn(true);
-        when(rewardRepository.findAll()).thenReturn(List.of(reward1, reward2));
+        when(rewardCatalog.snapshot()).thenReturn(catalogOf(reward1, reward2));
 
         mockMvc.perform(get("/api/rewards/all"))
                 .andExpect(status().isOk())
@@ -299,7 +362,7 @@ class RewardControllerTest {
         List<Reward> rewards = new ArrayList<>(List.of(reward1, reward2));
 
         when(userCheckService.isAdministrator()).thenReturn(false);
-        when(rewardRepository.findAllByActive(anyBoolean())).thenAnswer(invocationOnMock -> rewards.stream().filter(reward -> reward.isActive() == (boolean)invocationOnMock.getArgument(0)).toList());
+        when(rewardCatalog.snapshot()).thenReturn(catalogOf(rewards.toArray(new Reward[0])));
 
         mockMvc.perform(get("/api/rewards/all"))
                 .andExpect(status().isOk())
@@ -309,6 +372,351 @@ class RewardControllerTest {
 
     }
 
+    @Test
+    @WithMockUser(username = "admin@example.com", roles = {"ADMIN"})
+    void getAllRewardsPagesWithCursor() throws Exception {
+        List<Reward> rewards = new ArrayList<>();
+        for (int i = 1; i <= 3; i++) {
+            Reward reward = new Reward();
+            reward.setId("id" + i);
+            reward.setActive(true);
+            rewards.add(reward);
+        }
+
+        when(userCheckService.isAdministrator()).thenReturn(true);
+        when(rewardCatalog.snapshot()).thenReturn(catalogOf(rewards.toArray(new Reward[0])));
+
+        String body = mockMvc.perform(get("/api/rewards/all").param("size", "2"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.rewards", hasSize(2)))
+                .andExpect(jsonPath("$.rewards[1].id", is("id2")))
+                .andExpect(jsonPath("$.nextCursor", notNullValue()))
+                .andReturn().getResponse().getContentAsString();
+        String cursor = new ObjectMapper().readTree(body).get("nextCursor").asText();
+
+        mockMvc.perform(get("/api/rewards/all").param("size", "2").param("cursor", cursor))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.rewards", hasSize(1)))
+                .andExpect(jsonPath("$.rewards[0].id", is("id3")))
+                .andExpect(jsonPath("$.nextCursor").doesNotExist());
+    }
+
+    @Test
+    @WithMockUser(username = "admin@example.com", roles = {"ADMIN"})
+    void getAllRedeemsWithInvalidCursorReturnsBadRequest() throws Exception {
+        mockMvc.perform(get("/api/rewards/redeems").param("cursor", "not-a-cursor"))
+                .andExpect(status().isBadRequest())
+                .andExpect(result -> assertInstanceOf(InvalidCursorException.class, result.getResolvedException()));
+    }
+
+    @Test
+    @WithMockUser(username = "admin@example.com", roles = {"ADMIN"})
+    void getAllRedeemsCapsPageSizeAndReturnsNextCursor() throws Exception {
+        List<Redeem> fetched = new ArrayList<>();
+        for (int i = 0; i < 201; i++) {
+            Redeem redeem = new Redeem();
+            redeem.setRedeemId("redeem" + i);
+            fetched.add(redeem);
+        }
+        // Il limite viene chiesto con un elemento in più per sapere se esiste la pagina successiva
+        when(redeemRepository.findPage(isNull(), isNull(), isNull(), eq(201))).thenReturn(fetched);
+
+        mockMvc.perform(get("/api/rewards/redeems").param("size", "100000"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.redeems", hasSize(200)))
+                .andExpect(jsonPath("$.nextCursor", notNullValue()));
+    }
+
+    @Test
+    @WithMockUser(username = "admin@example.com", roles = {"ADMIN"})
+    void findRewardsMapsEachParameterToItsFilter() throws Exception {
+        when(catalogSearch.search(any(RewardSearchSpec.class))).thenReturn(List.of());
+
+        mockMvc.perform(get("/api/rewards/find")
+                        .param("category", "cat")
+                        .param("minQuantity", "1")
+                        .param("maxQuantity", "10")
+                        .param("minSold", "2")
+                        .param("maxSold", "20")
+                        .param("minCost", "5.5")
+                        .param("size", "10"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.rewards", hasSize(0)));
+
+        ArgumentCaptor<RewardSearchSpec> spec = ArgumentCaptor.forClass(RewardSearchSpec.class);
+        verify(catalogSearch).search(spec.capture());
+        assertEquals("cat", spec.getValue().getCategory());
+        assertEquals(1, spec.getValue().getMinQuantity());
+        assertEquals(10, spec.getValue().getMaxQuantity());
+        assertEquals(2, spec.getValue().getMinSold());
+        assertEquals(20, spec.getValue().getMaxSold());
+        assertEquals(5.5, spec.getValue().getMinCost());
+        assertNull(spec.getValue().getMaxCost());
+        assertEquals(RewardSort.ID, spec.getValue().getSort());
+        assertEquals(11, spec.getValue().getLimit());
+    }
+
+    @Test
+    @WithMockUser(username = "admin@example.com", roles = {"ADMIN"})
+    void findRewardsSortedByCostReturnsTopRewardsWithoutCursor() throws Exception {
+        List<RewardDTO> rewards = new ArrayList<>();
+        for (int i = 1; i <= 2; i++) {
+            RewardDTO reward = new RewardDTO();
+            reward.setId("id" + i);
+            rewards.add(reward);
+        }
+        when(catalogSearch.search(any(RewardSearchSpec.class))).thenReturn(rewards);
+
+        mockMvc.perform(get("/api/rewards/find").param("sort", "cost_desc").param("size", "2"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.rewards", hasSize(2)))
+                .andExpect(jsonPath("$.nextCursor").doesNotExist());
+
+        ArgumentCaptor<RewardSearchSpec> spec = ArgumentCaptor.forClass(RewardSearchSpec.class);
+        verify(catalogSearch).search(spec.capture());
+        assertEquals(RewardSort.COST_DESC, spec.getValue().getSort());
+        assertEquals(2, spec.getValue().getLimit());
+    }
+
+    @Test
+    @WithMockUser(username = "admin@example.com", roles = {"ADMIN"})
+    void findRewardsQueriesTheDatabaseWhenTheIndexIsDisabled() throws Exception {
+        Reward reward = new Reward();
+        reward.setId("id1");
+        when(rewardService.findRewards(any(RewardSearchSpec.class))).thenReturn(List.of(reward));
+        ReflectionTestUtils.setField(AopTestUtils.getTargetObject(controller), "searchIndexEnabled", false);
+
+        try {
+            mockMvc.perform(get("/api/rewards/find").param("category", "cat"))
+                    .andExpect(status().isOk())
+                    .andExpect(jsonPath("$.rewards", hasSize(1)))
+                    .andExpect(jsonPath("$.rewards[0].id", is("id1")));
+        } finally {
+            ReflectionTestUtils.setField(AopTestUtils.getTargetObject(controller), "searchIndexEnabled", true);
+        }
+
+        verify(catalogSearch, never()).search(any(RewardSearchSpec.class));
+    }
+
+    @Test
+    @WithMockUser(username = "admin@example.com", roles = {"ADMIN"})
+    void findRewardsWithInvalidSortOrCursorReturnsBadRequest() throws Exception {
+        mockMvc.perform(get("/api/rewards/find").param("sort", "random"))
+                .andExpect(status().isBadRequest())
+                .andExpect(result -> assertInstanceOf(InvalidSearchException.class, result.getResolvedException()));
+
+        mockMvc.perform(get("/api/rewards/find").param("sort", "popular").param("cursor", PageCursor.encode("id1")))
+                .andExpect(status().isBadRequest())
+                .andExpect(result -> assertInstanceOf(InvalidCursorException.class, result.getResolvedException()));
+    }
+
+    @Test
+    @WithMockUser(username = "member@example.com", roles = {"MEMBRO"})
+    void searchRewardsReturnsHighlightedHits() throws Exception {
+        RewardDTO reward = new RewardDTO();
+        reward.setId("id1");
+        reward.setName("Tazza caffè");
+        reward.setDescription("Per il caffè <espresso>");
+        when(catalogSearch.searchText("caffè", 10)).thenReturn(List.of(new TextIndex.Hit(reward, 1.5, Set.of("caffe"))));
+
+        mockMvc.perform(get("/api/rewards/search").param("q", "caffè"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.results", hasSize(1)))
+                .andExpect(jsonPath("$.results[0].reward.id", is("id1")))
+                .andExpect(jsonPath("$.results[0].highlightedName", is("Tazza <em>caffè</em>")))
+                .andExpect(jsonPath("$.results[0].highlightedDescription", is("Per il <em>caffè</em> &lt;espresso&gt;")));
+    }
+
+    @Test
+    @WithMockUser(username = "member@example.com", roles = {"MEMBRO"})
+    void searchRewardsWithBlankQueryReturnsBadRequest() throws Exception {
+        mockMvc.perform(get("/api/rewards/search").param("q", " "))
+                .andExpect(status().isBadRequest())
+                .andExpect(result -> assertInstanceOf(InvalidSearchException.class, result.getResolvedException()));
+    }
+
+    @Test
+    @WithMockUser(username = "member@example.com", roles = {"MEMBRO"})
+    void suggestRewardsReturnsSuggestions() throws Exception {
+        when(suggestIndex.suggest("taz", 8)).thenReturn(List.of(
+                new SuggestIndex.Suggestion("Tazza", SuggestIndex.Type.REWARD, "id1", 5)));
+
+        mockMvc.perform(get("/api/rewards/suggest").param("q", "taz"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.suggestions", hasSize(1)))
+                .andExpect(jsonPath("$.suggestions[0].text", is("Tazza")))
+                .andExpect(jsonPath("$.suggestions[0].type", is("REWARD")))
+                .andExpect(jsonPath("$.suggestions[0].rewardId", is("id1")));
+    }
+
+    @Test
+    @WithMockUser(username = "member@example.com", roles = {"MEMBRO"})
+    void getRewardByIdWithMatchingEtagReturnsNotModified() throws Exception {
+        Reward reward = new Reward();
+        reward.setId("validId");
+        reward.setActive(true);
+        when(rewardCatalog.snapshot()).thenReturn(catalogOf(reward));
+
+        String etag = mockMvc.perform(get("/api/rewards/{id}", "validId"))
+                .andExpect(status().isOk())
+                .andExpect(header().string(HttpHeaders.ETAG, matchesPattern("\"[0-9a-f]{32}\"")))
+                .andReturn().getResponse().getHeader(HttpHeaders.ETAG);
+
+        mockMvc.perform(get("/api/rewards/{id}", "validId").header(HttpHeaders.IF_NONE_MATCH, etag))
+                .andExpect(status().isNotModified())
+                .andExpect(content().string(""));
+    }
+
+    @Test
+    @WithMockUser(username = "member@example.com", roles = {"MEMBRO"})
+    void lastModifiedComesFromTheStoredUpdateDate() throws Exception {
+        Reward reward = new Reward();
+        reward.setId("id1");
+        reward.setActive(true);
+        reward.setAddDate(LocalDateTime.of(2024, 1, 1, 12, 0));
+        reward.setUpdateDate(LocalDateTime.of(2024, 3, 1, 12, 0));
+        when(userCheckService.isAdministrator()).thenReturn(false);
+        when(rewardCatalog.snapshot()).thenReturn(catalogOf(reward));
+
+        long updated = reward.getUpdateDate().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        String lastModified = mockMvc.perform(get("/api/rewards/{id}", "id1"))
+                .andExpect(status().isOk())
+                .andExpect(header().dateValue(HttpHeaders.LAST_MODIFIED, updated))
+                .andReturn().getResponse().getHeader(HttpHeaders.LAST_MODIFIED);
+
+        mockMvc.perform(get("/api/rewards/all"))
+                .andExpect(status().isOk())
+                .andExpect(header().string(HttpHeaders.LAST_MODIFIED, lastModified));
+
+        // Un'altra replica legge la stessa data dal database
+        responseCache.clear();
+        when(rewardCatalog.snapshot()).thenReturn(CatalogSnapshot.of(42, List.of(rewardService.getRewardDTO(reward))));
+        mockMvc.perform(get("/api/rewards/{id}", "id1").header(HttpHeaders.IF_MODIFIED_SINCE, lastModified))
+                .andExpect(status().isNotModified());
+    }
+
+    @Test
+    @WithMockUser(username = "member@example.com", roles = {"MEMBRO"})
+    void getAllRewardsEtagIsTheSameOnEveryReplica() throws Exception {
+        Reward reward = new Reward();
+        reward.setId("id1");
+        reward.setActive(true);
+        when(userCheckService.isAdministrator()).thenReturn(false);
+        when(rewardCatalog.snapshot()).thenReturn(catalogOf(reward));
+
+        String etag = mockMvc.perform(get("/api/rewards/all"))
+                .andExpect(status().isOk())
+                .andReturn().getResponse().getHeader(HttpHeaders.ETAG);
+
+        // Un'altra replica con gli stessi reward ha contato un'altra versione del catalogo
+        responseCache.clear();
+        when(rewardCatalog.snapshot()).thenReturn(CatalogSnapshot.of(42, List.of(rewardService.getRewardDTO(reward))));
+
+        mockMvc.perform(get("/api/rewards/all").header(HttpHeaders.IF_NONE_MATCH, etag))
+                .andExpect(status().isNotModified());
+    }
+
+    @Test
+    @WithMockUser(username = "member@example.com", roles = {"MEMBRO"})
+    void getAllRewardsReturnsNotModifiedUntilCatalogChanges() throws Exception {
+        Reward reward = new Reward();
+        reward.setId("id1");
+        reward.setActive(true);
+        CatalogSnapshot snapshot = catalogOf(reward);
+        when(userCheckService.isAdministrator()).thenReturn(false);
+        when(rewardCatalog.snapshot()).thenReturn(snapshot);
+
+        String etag = mockMvc.perform(get("/api/rewards/all"))
+                .andExpect(status().isOk())
+                .andReturn().getResponse().getHeader(HttpHeaders.ETAG);
+        assertNotNull(etag);
+
+        mockMvc.perform(get("/api/rewards/all").header(HttpHeaders.IF_NONE_MATCH, etag))
+                .andExpect(status().isNotModified());
+
+        // Un cambio di stock crea una nuova versione del catalogo
+        reward.setQuantity(5);
+        when(rewardCatalog.snapshot()).thenReturn(snapshot.with(2, List.of(rewardService.getRewardDTO(reward)), List.of()));
+
+        mockMvc.perform(get("/api/rewards/all").header(HttpHeaders.IF_NONE_MATCH, etag))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.rewards[0].quantity", is(5)));
+    }
+
+    @Test
+    @WithMockUser(username = "member@example.com", roles = {"MEMBRO"})
+    void getAllRewardsWritesGzippedBodyWhenAccepted() throws Exception {
+        Reward reward = new Reward();
+        reward.setId("id1");
+        reward.setName("Gzipped");
+        reward.setActive(true);
+        when(userCheckService.isAdministrator()).thenReturn(false);
+        when(rewardCatalog.snapshot()).thenReturn(catalogOf(reward));
+
+        byte[] body = mockMvc.perform(get("/api/rewards/all").header(HttpHeaders.ACCEPT_ENCODING, "gzip, deflate"))
+                .andExpect(status().isOk())
+                .andExpect(header().string(HttpHeaders.CONTENT_ENCODING, "gzip"))
+                .andExpect(header().string(HttpHeaders.VARY, containsString(HttpHeaders.ACCEPT_ENCODING)))
+                .andReturn().getResponse().getContentAsByteArray();
+
+        try (GZIPInputStream gzip = new GZIPInputStream(new ByteArrayInputStream(body))) {
+            assertEquals("Gzipped", new ObjectMapper().readTree(gzip).get("rewards").get(0).get("name").asText());
+        }
+    }
+
+    @Test
+    @WithMockUser(username = "member@example.com", roles = {"MEMBRO"})
+    void gzippedAndIdentityBodiesHaveDifferentEtags() throws Exception {
+        Reward reward = new Reward();
+        reward.setId("id1");
+        reward.setActive(true);
+        when(userCheckService.isAdministrator()).thenReturn(false);
+        when(rewardCatalog.snapshot()).thenReturn(catalogOf(reward));
+
+        String gzipped = mockMvc.perform(get("/api/rewards/all").header(HttpHeaders.ACCEPT_ENCODING, "gzip"))
+                .andExpect(status().isOk())
+                .andReturn().getResponse().getHeader(HttpHeaders.ETAG);
+        String identity = mockMvc.perform(get("/api/rewards/all"))
+                .andExpect(status().isOk())
+                .andReturn().getResponse().getHeader(HttpHeaders.ETAG);
+
+        assertEquals(identity.replace("\"", "").concat("-gz"), gzipped.replace("\"", ""));
+
+        // L'ETag del body gzip non valida la cache di un client che non accetta gzip
+        mockMvc.perform(get("/api/rewards/all").header(HttpHeaders.IF_NONE_MATCH, gzipped))
+                .andExpect(status().isOk());
+        mockMvc.perform(get("/api/rewards/all").header(HttpHeaders.ACCEPT_ENCODING, "gzip").header(HttpHeaders.IF_NONE_MATCH, gzipped))
+                .andExpect(status().isNotModified());
+    }
+
+    @Test
+    @WithMockUser(username = "admin@example.com", roles = {ROLE_ADMIN,ROLE_MEMBRO})
+    void getRewardByIdNotInCatalogThrowsRewardNotFoundException() throws Exception {
+        when(rewardCatalog.snapshot()).thenReturn(CatalogSnapshot.empty());
+
+        mockMvc.perform(get("/api/rewards/{id}", "missingId"))
+                .andExpect(status().isNotFound())
+                .andExpect(result -> assertInstanceOf(RewardNotFoundException.class, result.getResolvedException()));
+    }
+
+    @Test
+    @WithMockUser(username = "admin@example.com", roles = {"ADMIN"})
+    void adminWritesUpdateCatalog() throws Exception {
+        Reward reward = new Reward();
+        reward.setId("validId");
+        reward.setActive(false);
+        when(rewardRepository.setActive("validId", false)).thenReturn(Optional.of(reward));
+        when(rewardRepository.findById("validId")).thenReturn(Optional.of(reward));
+
+        mockMvc.perform(patch("/api/rewards/deactivate/validId"))
+                .andExpect(status().isOk());
+        verify(rewardCatalog).update(reward);
+
+        mockMvc.perform(delete("/api/rewards/delete/validId"))
+                .andExpect(status().isOk());
+        verify(rewardCatalog).remove("validId");
+    }
+
     @Test
     @WithMockUser(username = "member@example.com", roles = {"MEMBRO"})
     void redeemRewardWithValidDataReturnsRedeemRewardDTO() throws Exception {
@@ -444,7 +852,7 @@ class RewardControllerTest {
     @Test
     @WithMockUser(username = "admin@example.com", roles = {"ADMIN"})
     void getAllRedeemsAsAdminReturnsListOfRedeemDTO() throws Exception {
-        when(redeemRepository.findAll()).thenReturn(List.of(new Redeem(), new Redeem()));
+        when(redeemRepository.findPage(isNull(), isNull(), isNull(), anyInt())).thenReturn(List.of(new Redeem(), new Redeem()));
         when(rewardService.getRedeemDTO(any(Redeem.class))).thenReturn(new RedeemDTO());
 
         mockMvc.perform(get("/api/rewards/redeems"))
@@ -464,7 +872,7 @@ class RewardControllerTest {
         redeem2.setQuantity(2);
         redeem2.setUsed(false);
 
-        when(redeemRepository.findAllByUserEmail("user@example.com")).thenReturn(List.of(redeem, redeem2));
+        when(redeemRepository.findPage(eq("user@example.com"), isNull(), isNull(), anyInt())).thenReturn(List.of(redeem, redeem2));
         when(userCheckService.isCorrectUser(anyString())).thenReturn(true);
         when(userCheckService.isAdministrator()).thenReturn(true);
 
@@ -482,7 +890,7 @@ class RewardControllerTest {
 
         when(userCheckService.getCurrentUserEmail()).thenReturn("member@example.com");
         when(userCheckService.isCorrectUser("member@example.com")).thenReturn(true);
-        when(redeemRepository.findAllByUserEmail("member@example.com")).thenReturn(List.of(redeem));
+        when(redeemRepository.findPage(eq("member@example.com"), isNull(), isNull(), anyInt())).thenReturn(List.of(redeem));
 
         mockMvc.perform(get("/api/rewards/redeems/user/{email}", "member@example.com"))
                 .andExpect(status().isOk())
@@ -499,10 +907,37 @@ class RewardControllerTest {
                 .andExpect(status().isForbidden());
     }
 
+    @Test
+    @WithMockUser(username = "admin@example.com", roles = {"ADMIN"})
+    void exportRedeemsStreamsNdjsonWithFilters() throws Exception {
+        when(redeemExportService.export(eq(RedeemExportService.Format.NDJSON), isNull(), eq("validRewardId"), any(), isNull(), any()))
+                .thenAnswer(invocation -> {
+                    OutputStream out = invocation.getArgument(5);
+                    out.write("{\"redeemId\":\"r1\"}\n".getBytes(StandardCharsets.UTF_8));
+                    return 1L;
+                });
+
+        MvcResult result = mockMvc.perform(get("/api/rewards/redeems/export")
+                        .param("rewardId", "validRewardId")
+                        .param("from", "2024-01-01T00:00:00"))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        // Il timeout dell'export, non quello predefinito delle richieste asincrone
+        assertEquals(3600000L, result.getRequest().getAsyncContext().getTimeout());
+
+        mockMvc.perform(asyncDispatch(result))
+                .andExpect(status().isOk())
+                .andExpect(content().contentType(MediaType.APPLICATION_NDJSON))
+                .andExpect(content().string("{\"redeemId\":\"r1\"}\n"));
+
+        verify(redeemExportService).export(eq(RedeemExportService.Format.NDJSON), isNull(), eq("validRewardId"),
+                eq(LocalDateTime.of(2024, 1, 1, 0, 0)), isNull(), any());
+    }
+
     @Test
     @WithMockUser(username = "admin@example.com", roles = {"ADMIN"})
     void getRewardRedeemsAsAdminReturnsListOfRedeemDTO() throws Exception {
-        when(redeemRepository.findAllByRewardId("validRewardId")).thenReturn(List.of(new Redeem(), new Redeem()));
+        when(redeemRepository.findPage(isNull(), eq("validRewardId"), isNull(), anyInt())).thenReturn(List.of(new Redeem(), new Redeem()));
         when(rewardService.getRedeemDTO(any(Redeem.class))).thenReturn(new RedeemDTO());
 
         mockMvc.perform(get("/api/rewards/redeems/reward/{id}", "validRewardId"))
@@ -578,4 +1013,61 @@ class RewardControllerTest {
                         .content(new ObjectMapper().writeValueAsString(completeRedeemDTO)))
                 .andExpect(status().isForbidden());
     }
-}
\ No newline at end of file
+
+    @Test
+    @WithMockUser(username = "member@example.com", roles = {"MEMBRO"})
+    void useRedeemCodesInBatchReturnsAResultPerCode() throws Exception {
+        Redeem redeem = new Redeem();
+        redeem.setRedeemId("redeemId");
+        redeem.setUsed(true);
+
+        UseRedeemsDTO useRedeemsDTO = new UseRedeemsDTO();
+        useRedeemsDTO.setRedeemCodes(List.of("code1", "code2", "code3"));
+
+        when(userCheckService.getCurrentUserEmail()).thenReturn("member@example.com");
+        when(redeemService.useRedeems(List.of("code1", "code2", "code3"), "member@example.com")).thenReturn(List.of(
+                new RedeemService.RedeemUse("code1", RedeemUseStatus.CONSUMED, redeem),
+                new RedeemService.RedeemUse("code2", RedeemUseStatus.ALREADY_USED, null),
+                new RedeemService.RedeemUse("code3", RedeemUseStatus.NOT_OWNED, null)));
+
+        mockMvc.perform(patch("/api/rewards/redeems/use/batch")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(new ObjectMapper().writeValueAsString(useRedeemsDTO)))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.consumed", is(1)))
+                .andExpect(jsonPath("$.results", hasSize(3)))
+                .andExpect(jsonPath("$.results[0].status", is("CONSUMED")))
+                .andExpect(jsonPath("$.results[0].redeem.redeemId", is("redeemId")))
+                .andExpect(jsonPath("$.results[1].status", is("ALREADY_USED")))
+                .andExpect(jsonPath("$.results[2].redeemCode", is("code3")))
+                .andExpect(jsonPath("$.results[2].status", is("NOT_OWNED")));
+    }
+
+    @Test
+    @WithMockUser(username = "member@example.com", roles = {"MEMBRO"})
+    void useRedeemCodesInBatchWithoutCodesReturnsBadRequest() throws Exception {
+        UseRedeemsDTO useRedeemsDTO = new UseRedeemsDTO();
+        useRedeemsDTO.setRedeemCodes(List.of());
+
+        mockMvc.perform(patch("/api/rewards/redeems/use/batch")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(new ObjectMapper().writeValueAsString(useRedeemsDTO)))
+                .andExpect(status().isBadRequest());
+    }
+
+    @Test
+    @WithMockUser(username = "member@example.com", roles = {"MEMBRO"})
+    void useRedeemCodesInBatchWithTooManyCodesReturnsBadRequest() throws Exception {
+        List<String> redeemCodes = new ArrayList<>();
+        for (int i = 0; i <= 500; i++) {
+            redeemCodes.add("code" + i);
+        }
+        UseRedeemsDTO useRedeemsDTO = new UseRedeemsDTO();
+        useRedeemsDTO.setRedeemCodes(redeemCodes);
+
+        mockMvc.perform(patch("/api/rewards/redeems/use/batch")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(new ObjectMapper().writeValueAsString(useRedeemsDTO)))
+                .andExpect(status().isBadRequest());
+    }
+}
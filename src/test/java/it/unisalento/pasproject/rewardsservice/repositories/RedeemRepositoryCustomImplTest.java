@@ -0,0 +1,144 @@
+package it.unisalento.pasproject.rewardsservice.repositories;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import it.unisalento.pasproject.rewardsservice.domain.OutboxMessage;
+import it.unisalento.pasproject.rewardsservice.domain.Redeem;
+import it.unisalento.pasproject.rewardsservice.service.RedeemExportService;
+import it.unisalento.pasproject.rewardsservice.service.RewardService;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.data.mongo.DataMongoTest;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.junit.jupiter.SpringExtension;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+@DataMongoTest()
+@ExtendWith(SpringExtension.class)
+@ActiveProfiles("test")
+class RedeemRepositoryCustomImplTest {
+
+    // Abbastanza documenti per leggere più batch dal cursore
+    private static final int REDEEMS = RedeemRepositoryCustomImpl.EXPORT_BATCH_SIZE * 2 + 1;
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Autowired
+    private RedeemRepository redeemRepository;
+
+    @AfterEach
+    void tearDown() {
+        redeemRepository.deleteAll();
+    }
+
+    @Test
+    void exportStreamReadsEveryCursorBatchInIdOrder() {
+        List<String> ids = insertRedeems();
+
+        List<Redeem> exported;
+        try (Stream<Redeem> redeems = redeemRepository.streamForExport("user@example.com", null, null, null)) {
+            exported = redeems.toList();
+        }
+
+        assertThat(exported).extracting(Redeem::getRedeemId).containsExactlyElementsOf(ids);
+        assertThat(exported).allSatisfy(redeem -> assertThat(redeem.getOutbox()).isNull());
+    }
+
+    @Test
+    void ndjsonExportWritesEveryRedeemAcrossCursorBatches() throws Exception {
+        insertRedeems();
+        RewardService rewardService = mock(RewardService.class);
+        when(rewardService.getRedeemDTO(any(Redeem.class))).thenCallRealMethod();
+        RedeemExportService exportService = new RedeemExportService(redeemRepository, rewardService, new ObjectMapper().findAndRegisterModules());
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        long written = exportService.export(RedeemExportService.Format.NDJSON, null, null, null, null, out);
+
+        assertThat(written).isEqualTo(REDEEMS + 1);
+        assertThat(out.toString(StandardCharsets.UTF_8).split("\n")).hasSize(REDEEMS + 1);
+    }
+
+    @Test
+    void stockChangesAreClaimedByOneDeliveryOnly() {
+        Redeem first = pending();
+        Redeem second = pending();
+        Redeem settled = redeem("user@example.com");
+        mongoTemplate.insertAll(List.of(first, second, settled));
+        List<String> ids = List.of(first.getRedeemId(), second.getRedeemId(), settled.getRedeemId());
+
+        assertThat(redeemRepository.claimStockChanges(ids, "delivery1"))
+                .containsExactlyInAnyOrder(first.getRedeemId(), second.getRedeemId());
+        // La riconsegna trova i riscatti ancora in attesa ma già marcati
+        assertThat(redeemRepository.claimStockChanges(ids, "delivery2")).isEmpty();
+    }
+
+    @Test
+    void releasedClaimsCanBeClaimedAgain() {
+        Redeem redeem = pending();
+        mongoTemplate.insert(redeem);
+        List<String> ids = List.of(redeem.getRedeemId());
+
+        redeemRepository.claimStockChanges(ids, "delivery1");
+        // Un token diverso non toglie il marchio di un'altra consegna
+        redeemRepository.releaseStockChanges(ids, "delivery2");
+        assertThat(redeemRepository.claimStockChanges(ids, "delivery2")).isEmpty();
+
+        redeemRepository.releaseStockChanges(ids, "delivery1");
+        assertThat(redeemRepository.claimStockChanges(ids, "delivery2")).containsExactly(redeem.getRedeemId());
+    }
+
+    // Inserisce i riscatti dell'utente, più uno di un altro utente, e restituisce gli id del primo in ordine
+    private List<String> insertRedeems() {
+        List<Redeem> redeems = new ArrayList<>(REDEEMS + 1);
+        for (int i = 0; i < REDEEMS; i++) {
+            redeems.add(redeem("user@example.com"));
+        }
+        redeems.add(redeem("other@example.com"));
+        mongoTemplate.insertAll(redeems);
+
+        return redeems.stream()
+                .filter(redeem -> redeem.getUserEmail().equals("user@example.com"))
+                .map(Redeem::getRedeemId)
+                .sorted()
+                .toList();
+    }
+
+    private static Redeem pending() {
+        Redeem redeem = redeem("user@example.com");
+        redeem.setRedeemDate(null);
+        redeem.setRedeemed(false);
+        return redeem;
+    }
+
+    private static Redeem redeem(String userEmail) {
+        Redeem redeem = new Redeem();
+        redeem.setRedeemId(new ObjectId().toHexString());
+        redeem.setRewardId("rewardId");
+        redeem.setUserEmail(userEmail);
+        redeem.setQuantity(1);
+        redeem.setRedeemDate(LocalDateTime.now());
+        redeem.setRedeemed(true);
+
+        OutboxMessage outbox = new OutboxMessage();
+        outbox.setExchange("exchange");
+        outbox.setRoutingKey("key");
+        outbox.setSent(true);
+        redeem.setOutbox(outbox);
+        return redeem;
+    }
+}
@@ -0,0 +1,180 @@
+package it.unisalento.pasproject.rewardsservice.repositories;
+
+import it.unisalento.pasproject.rewardsservice.domain.Reward;
+import org.bson.Document;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.data.mongo.DataMongoTest;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.junit.jupiter.SpringExtension;
+
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@DataMongoTest()
+@ExtendWith(SpringExtension.class)
+@ActiveProfiles("test")
+class RewardRepositoryCustomImplTest {
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Autowired
+    private RewardRepository rewardRepository;
+
+    @AfterEach
+    void tearDown() {
+        rewardRepository.deleteAll();
+    }
+
+    @Test
+    void stockChangesAreAppliedOncePerReward() {
+        rewardRepository.save(reward("a", 4, true));
+        rewardRepository.save(reward("b", 0, false));
+
+        Set<String> failed = rewardRepository.applyStockChanges(Map.of("a", 3), Map.of("a", 1, "b", 2));
+
+        assertThat(failed).isEmpty();
+        Reward a = rewardRepository.findById("a").orElseThrow();
+        assertThat(a.getSold()).isEqualTo(3);
+        assertThat(a.getQuantity()).isEqualTo(5);
+        assertThat(a.isActive()).isTrue();
+        Reward b = rewardRepository.findById("b").orElseThrow();
+        assertThat(b.getQuantity()).isEqualTo(2);
+        assertThat(b.isActive()).isTrue();
+    }
+
+    @Test
+    void soldOutRewardIsDeactivated() {
+        rewardRepository.save(reward("reward", 0, true));
+
+        rewardRepository.applyStockChanges(Map.of("reward", 3), Map.of());
+
+        Reward reward = rewardRepository.findById("reward").orElseThrow();
+        assertThat(reward.getSold()).isEqualTo(3);
+        assertThat(reward.isActive()).isFalse();
+    }
+
+    @Test
+    void releasedStockReactivatesASoldOutReward() {
+        rewardRepository.save(reward("reward", 0, false));
+
+        rewardRepository.applyStockChanges(Map.of(), Map.of("reward", 2));
+
+        Reward reward = rewardRepository.findById("reward").orElseThrow();
+        assertThat(reward.getQuantity()).isEqualTo(2);
+        assertThat(reward.isActive()).isTrue();
+    }
+
+    @Test
+    void releasedStockDoesNotReactivateARewardDisabledByAnAdmin() {
+        Reward disabled = reward("reward", 0, false);
+        disabled.setDisabled(true);
+        rewardRepository.save(disabled);
+
+        rewardRepository.applyStockChanges(Map.of(), Map.of("reward", 2));
+        rewardRepository.releaseStock("reward", 1);
+
+        Reward reward = rewardRepository.findById("reward").orElseThrow();
+        assertThat(reward.getQuantity()).isEqualTo(3);
+        assertThat(reward.isActive()).isFalse();
+    }
+
+    @Test
+    void rewardsWrittenWithoutTheDisabledFlagKeepTheAdminChoice() {
+        // Documenti salvati prima del campo disabled
+        mongoTemplate.getCollection("rewards").insertOne(new Document("_id", "deactivated")
+                .append("name", "deactivated").append("active", false).append("quantity", 3).append("sold", 0));
+        mongoTemplate.getCollection("rewards").insertOne(new Document("_id", "soldOut")
+                .append("name", "soldOut").append("active", false).append("quantity", 0).append("sold", 5));
+
+        rewardRepository.applyStockChanges(Map.of(), Map.of("deactivated", 2, "soldOut", 1));
+        rewardRepository.releaseStock("deactivated", 1);
+
+        Reward deactivated = rewardRepository.findById("deactivated").orElseThrow();
+        assertThat(deactivated.getQuantity()).isEqualTo(6);
+        assertThat(deactivated.isActive()).isFalse();
+        assertThat(deactivated.isDisabled()).isTrue();
+        Reward soldOut = rewardRepository.findById("soldOut").orElseThrow();
+        assertThat(soldOut.getQuantity()).isEqualTo(1);
+        assertThat(soldOut.isActive()).isTrue();
+        assertThat(soldOut.isDisabled()).isFalse();
+    }
+
+    @Test
+    void adminUpdateKeepsTheStockSoldMeanwhile() {
+        rewardRepository.save(reward("reward", 10, true));
+        // Riscatto regolato dopo che l'amministratore ha letto il reward
+        rewardRepository.applyStockChanges(Map.of("reward", 4), Map.of());
+
+        Optional<Reward> updated = rewardRepository.updateDetails("reward", new RewardRepositoryCustom.RewardChanges(
+                "$renamed", null, null, "category", null, 12.5, 15.0, 8, true));
+
+        assertThat(updated).hasValueSatisfying(reward -> {
+            assertThat(reward.getName()).isEqualTo("$renamed");
+            assertThat(reward.getDescription()).isEqualTo("reward description");
+            assertThat(reward.getCategory()).isEqualTo("category");
+            assertThat(reward.getCost()).isEqualTo(12.5);
+            assertThat(reward.getQuantity()).isEqualTo(8);
+            assertThat(reward.getSold()).isEqualTo(4);
+            assertThat(reward.isDisabled()).isFalse();
+        });
+        assertThat(rewardRepository.updateDetails("missing", new RewardRepositoryCustom.RewardChanges(
+                null, null, null, null, null, 0, 0, 0, true))).isEmpty();
+    }
+
+    @Test
+    void adminUpdateDisablesOnlyWhenTheActiveFlagChanges() {
+        rewardRepository.save(reward("soldOut", 0, false));
+        rewardRepository.save(reward("active", 5, true));
+        RewardRepositoryCustom.RewardChanges inactive = new RewardRepositoryCustom.RewardChanges(
+                null, null, null, null, null, 1, 0, 0, false);
+
+        // Il reward esaurito lasciato inattivo non diventa una scelta dell'amministratore
+        assertThat(rewardRepository.updateDetails("soldOut", inactive)).hasValueSatisfying(reward -> assertThat(reward.isDisabled()).isFalse());
+        assertThat(rewardRepository.updateDetails("active", inactive)).hasValueSatisfying(reward -> assertThat(reward.isDisabled()).isTrue());
+    }
+
+    @Test
+    void activationIsATargetedUpdate() {
+        rewardRepository.save(reward("reward", 5, true));
+        rewardRepository.reserveStock("reward", 2);
+
+        assertThat(rewardRepository.setActive("reward", false)).hasValueSatisfying(reward -> {
+            assertThat(reward.isActive()).isFalse();
+            assertThat(reward.isDisabled()).isTrue();
+            assertThat(reward.getQuantity()).isEqualTo(3);
+        });
+        assertThat(rewardRepository.setActive("reward", true)).hasValueSatisfying(reward -> assertThat(reward.isDisabled()).isFalse());
+        assertThat(rewardRepository.setActive("missing", true)).isEmpty();
+    }
+
+    @Test
+    void everyWriteIncrementsTheRevision() {
+        rewardRepository.save(reward("reward", 5, true));
+
+        assertThat(rewardRepository.reserveStock("reward", 1)).hasValueSatisfying(reward -> assertThat(reward.getRevision()).isEqualTo(1));
+        rewardRepository.applyStockChanges(Map.of("reward", 1), Map.of());
+        rewardRepository.releaseStock("reward", 1);
+        assertThat(rewardRepository.findById("reward").orElseThrow().getRevision()).isEqualTo(3);
+        assertThat(rewardRepository.updateDetails("reward", new RewardRepositoryCustom.RewardChanges(
+                null, null, null, null, null, 1, 0, 5, true))).hasValueSatisfying(reward -> assertThat(reward.getRevision()).isEqualTo(4));
+        assertThat(rewardRepository.setActive("reward", false)).hasValueSatisfying(reward -> assertThat(reward.getRevision()).isEqualTo(5));
+    }
+
+    private static Reward reward(String id, int quantity, boolean active) {
+        Reward reward = new Reward();
+        reward.setId(id);
+        reward.setName(id);
+        reward.setDescription(id + " description");
+        reward.setQuantity(quantity);
+        reward.setActive(active);
+        return reward;
+    }
+}
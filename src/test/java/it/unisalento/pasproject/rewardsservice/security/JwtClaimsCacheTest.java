@@ -0,0 +1,100 @@
+package it.unisalento.pasproject.rewardsservice.security;
+
+import io.jsonwebtoken.Claims;
+import io.jsonwebtoken.Jwts;
+import io.jsonwebtoken.MissingClaimException;
+import io.jsonwebtoken.security.Keys;
+import org.junit.jupiter.api.Test;
+
+import java.security.Key;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class JwtClaimsCacheTest {
+
+    private final AtomicInteger verifications = new AtomicInteger();
+
+    @Test
+    void seenTokenIsNotVerifiedAgain() {
+        JwtClaimsCache cache = new JwtClaimsCache(100);
+        Function<String, VerifiedClaims> verifier = verifier(System.currentTimeMillis() + 60_000);
+
+        VerifiedClaims first = cache.get("token", verifier);
+        VerifiedClaims second = cache.get("token", verifier);
+
+        assertSame(first, second);
+        assertEquals("user@example.com", second.getSubject());
+        assertEquals(1, verifications.get());
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    void expiredEntryIsVerifiedAgain() throws InterruptedException {
+        JwtClaimsCache cache = new JwtClaimsCache(100);
+        Function<String, VerifiedClaims> verifier = verifier(System.currentTimeMillis() + 20);
+
+        cache.get("token", verifier);
+        Thread.sleep(50);
+        cache.get("token", verifier);
+
+        // Il token scaduto torna al parser, che è quello che lo rifiuta
+        assertEquals(2, verifications.get());
+    }
+
+    @Test
+    void fullCacheDropsExpiredEntriesFirst() throws InterruptedException {
+        JwtClaimsCache cache = new JwtClaimsCache(3);
+        cache.get("expiring-1", verifier(System.currentTimeMillis() + 20));
+        cache.get("expiring-2", verifier(System.currentTimeMillis() + 20));
+        cache.get("valid", verifier(System.currentTimeMillis() + 60_000));
+        Thread.sleep(50);
+
+        cache.get("new", verifier(System.currentTimeMillis() + 60_000));
+
+        assertEquals(2, cache.size());
+        cache.get("valid", verifier(System.currentTimeMillis() + 60_000));
+        assertEquals(4, verifications.get());
+    }
+
+    @Test
+    void cacheNeverGrowsBeyondMaxSize() {
+        JwtClaimsCache cache = new JwtClaimsCache(10);
+        Function<String, VerifiedClaims> verifier = verifier(System.currentTimeMillis() + 60_000);
+
+        for (int i = 0; i < 25; i++) {
+            cache.get("token-" + i, verifier);
+        }
+
+        assertTrue(cache.size() <= 10);
+        assertEquals(25, verifications.get());
+    }
+
+    @Test
+    void tokenWithoutExpirationIsRejected() {
+        Key key = Keys.hmacShaKeyFor("a-test-secret-that-is-long-enough-for-hs256".getBytes());
+        JwtClaimsCache cache = new JwtClaimsCache(100);
+        JwtUtilities jwtUtilities = new JwtUtilities(key, cache);
+        String token = Jwts.builder()
+                .setSubject("user@example.com")
+                .claim("role", "MEMBRO")
+                .signWith(key)
+                .compact();
+
+        assertThrows(MissingClaimException.class, () -> jwtUtilities.extractClaims(token));
+        assertEquals(0, cache.size());
+    }
+
+    private Function<String, VerifiedClaims> verifier(long expiresAt) {
+        return token -> {
+            verifications.incrementAndGet();
+            Claims claims = Jwts.claims()
+                    .setSubject("user@example.com")
+                    .setExpiration(new Date(expiresAt));
+            claims.put("role", "MEMBRO");
+            return VerifiedClaims.of(claims);
+        };
+    }
+}
@@ -1,5 +1,10 @@
 package it.unisalento.pasproject.rewardsservice.service;
 
+import it.unisalento.pasproject.rewardsservice.business.catalog.RewardCatalog;
+import it.unisalento.pasproject.rewardsservice.business.reedem.RedeemCodeFilter;
+import it.unisalento.pasproject.rewardsservice.business.reedem.RedeemCodeGenerator;
+import it.unisalento.pasproject.rewardsservice.business.reedem.RedeemCodeSigner;
+import it.unisalento.pasproject.rewardsservice.domain.OutboxMessage;
 import it.unisalento.pasproject.rewardsservice.domain.Redeem;
 import it.unisalento.pasproject.rewardsservice.domain.Reward;
 import it.unisalento.pasproject.rewardsservice.dto.NotificationMessageDTO;
@@ -9,11 +14,14 @@ import it.unisalento.pasproject.rewardsservice.exceptions.OutOfStockException;
 import it.unisalento.pasproject.rewardsservice.exceptions.RedeemNotFoundException;
 import it.unisalento.pasproject.rewardsservice.exceptions.RewardNotFoundException;
 import it.unisalento.pasproject.rewardsservice.repositories.RedeemRepository;
+import it.unisalento.pasproject.rewardsservice.repositories.RedeemRepositoryCustom;
 import it.unisalento.pasproject.rewardsservice.repositories.RewardRepository;
+import org.bson.types.ObjectId;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
 import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
 import org.mockito.InjectMocks;
 import org.mockito.MockitoAnnotations;
 import org.mockito.junit.jupiter.MockitoExtension;
@@ -23,7 +31,13 @@ import org.slf4j.Logger;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.boot.test.mock.mockito.MockBean;
 
+import java.time.LocalDateTime;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 
 import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.ArgumentMatchers.any;
@@ -47,6 +61,15 @@ class CreateTransactionSagaTests {
     @MockBean
     private NotificationMessageHandler notificationHandler;
 
+    @MockBean
+    private RewardCatalog rewardCatalog;
+
+    @MockBean
+    private RedeemCodeSigner redeemCodeSigner;
+
+    @MockBean
+    private RedeemCodeFilter redeemCodeFilter;
+
     @MockBean
     private Logger logger;
 
@@ -65,7 +88,15 @@ class CreateTransactionSagaTests {
         redeemRepository = mock(RedeemRepository.class);
         rewardService = mock(RewardService.class);
         notificationHandler = mock(NotificationMessageHandler.class);
-        createTransactionSaga = new CreateTransactionSaga(rewardRepository, rewardService, redeemRepository, notificationHandler);
+        when(notificationHandler.sendNotificationMessage(any())).thenReturn(CompletableFuture.completedFuture(true));
+        // Nessuna consegna precedente: tutti i riscatti vengono marcati da questa
+        when(redeemRepository.claimStockChanges(anyCollection(), anyString())).thenAnswer(invocation -> Set.copyOf(invocation.<Collection<String>>getArgument(0)));
+        rewardCatalog = mock(RewardCatalog.class);
+        redeemCodeSigner = new RedeemCodeSigner(new RedeemCodeGenerator(RedeemCodeGenerator.Format.TOKEN, RedeemCodeGenerator.DEFAULT_ALPHABET, 16, 4, 0),
+                "test-signing-key", true, true);
+        redeemCodeFilter = mock(RedeemCodeFilter.class);
+        createTransactionSaga = new CreateTransactionSaga(rewardRepository, rewardService, redeemRepository, notificationHandler, rewardCatalog,
+                redeemCodeSigner, redeemCodeFilter);
     }
 
     @Test
@@ -85,21 +116,29 @@ class CreateTransactionSagaTests {
         redeem.setUserEmail("user@example.com");
         redeem.setQuantity(1);
 
-        when(rewardRepository.findById("validRewardId")).thenReturn(Optional.of(reward));
-        when(redeemRepository.save(any(Redeem.class))).thenAnswer(invocation -> invocation.getArgument(0));
+        OutboxMessage outbox = new OutboxMessage();
+
+        when(rewardRepository.reserveStock("validRewardId", 1)).thenReturn(Optional.of(reward));
+        when(rewardService.createTransactionMessage(any(Redeem.class), any(Reward.class))).thenReturn(outbox);
+        when(redeemRepository.insert(any(Redeem.class))).thenAnswer(invocation -> invocation.getArgument(0));
 
-        createTransactionSaga.redeemReward(redeemRewardDTO);
+        RedeemRewardDTO result = createTransactionSaga.redeemReward(redeemRewardDTO);
 
         ArgumentCaptor<Redeem> redeemCaptor = ArgumentCaptor.forClass(Redeem.class);
-        verify(redeemRepository, times(1)).save(redeemCaptor.capture());
+        verify(redeemRepository, times(1)).insert(redeemCaptor.capture());
 
         Redeem savedRedeem = redeemCaptor.getValue();
 
         assertEquals("validRewardId", savedRedeem.getRewardId());
         assertEquals("user@example.com", savedRedeem.getUserEmail());
         assertEquals(1, savedRedeem.getQuantity());
-
-        verify(rewardService, times(1)).sendTransaction(any(Redeem.class), any(Reward.class));
+        assertNotNull(savedRedeem.getRedeemId());
+        assertEquals(savedRedeem.getRedeemId(), result.getRedeemId());
+        // La richiesta di transazione viene scritta con il riscatto, non inviata dalla richiesta HTTP
+        assertSame(outbox, savedRedeem.getOutbox());
+        // Lo snapshot del catalogo riceve il reward con i pezzi già riservati al prossimo flush
+        verify(rewardCatalog).stockChanged(reward);
+        verify(rewardCatalog, never()).update(any());
     }
 
     @Test
@@ -109,13 +148,30 @@ class CreateTransactionSagaTests {
         redeemRewardDTO.setUserEmail("user@example.com");
         redeemRewardDTO.setQuantity(1);
 
+        when(rewardRepository.reserveStock("validRewardId", 1)).thenReturn(Optional.empty());
+        when(rewardRepository.existsById("validRewardId")).thenReturn(true);
+
+        assertThrows(OutOfStockException.class, () -> createTransactionSaga.redeemReward(redeemRewardDTO));
+        verify(redeemRepository, never()).insert(any(Redeem.class));
+    }
+
+    @Test
+    void redeemReward_whenRedeemCannotBeStored_releasesReservedStock() {
+        RedeemRewardDTO redeemRewardDTO = new RedeemRewardDTO();
+        redeemRewardDTO.setRewardId("validRewardId");
+        redeemRewardDTO.setUserEmail("user@example.com");
+        redeemRewardDTO.setQuantity(2);
+
         Reward reward = new Reward();
         reward.setId("validRewardId");
-        reward.setQuantity(0);
+        reward.setQuantity(8);
+        reward.setActive(true);
 
-        when(rewardRepository.findById("validRewardId")).thenReturn(Optional.of(reward));
+        when(rewardRepository.reserveStock("validRewardId", 2)).thenReturn(Optional.of(reward));
+        when(redeemRepository.insert(any(Redeem.class))).thenThrow(new IllegalStateException("Database unavailable"));
 
-        assertThrows(OutOfStockException.class, () -> createTransactionSaga.redeemReward(redeemRewardDTO));
+        assertThrows(IllegalStateException.class, () -> createTransactionSaga.redeemReward(redeemRewardDTO));
+        verify(rewardRepository).releaseStock("validRewardId", 2);
     }
 
     @Test
@@ -125,86 +181,170 @@ class CreateTransactionSagaTests {
         redeemRewardDTO.setUserEmail("user@example.com");
         redeemRewardDTO.setQuantity(1);
 
-        when(rewardRepository.findById("invalidRewardId")).thenReturn(Optional.empty());
+        when(rewardRepository.reserveStock("invalidRewardId", 1)).thenReturn(Optional.empty());
+        when(rewardRepository.existsById("invalidRewardId")).thenReturn(false);
 
         assertThrows(RewardNotFoundException.class, () -> createTransactionSaga.redeemReward(redeemRewardDTO));
     }
 
     @Test
     void transactionNotificationWithCompletedTransactionUpdatesRedeemAndSendsNotification() {
-        RedeemTransactionDTO dto = new RedeemTransactionDTO();
-        dto.setTransactionOwner("redeemId");
-        dto.setCompleted(true);
+        String redeemId = new ObjectId().toHexString();
+        String rewardId = new ObjectId().toHexString();
+
+        when(redeemRepository.findPendingByIds(Set.of(redeemId))).thenReturn(List.of(pendingRedeem(redeemId, rewardId, 1)));
+
+        createTransactionSaga.transactionNotifications(List.of(notification(redeemId, true)));
+
+        ArgumentCaptor<Collection<RedeemRepositoryCustom.Settlement>> settlementsCaptor = ArgumentCaptor.forClass(Collection.class);
+        verify(redeemRepository).settleAll(settlementsCaptor.capture(), any(LocalDateTime.class));
+        RedeemRepositoryCustom.Settlement settlement = settlementsCaptor.getValue().iterator().next();
+        assertTrue(settlement.completed());
+        // Il codice firmato porta con sé riscatto e reward
+        RedeemCodeSigner.Verification verification = redeemCodeSigner.verify(settlement.redeemCode());
+        assertEquals(RedeemCodeSigner.Kind.SIGNED, verification.kind());
+        assertEquals(redeemId, verification.redeemId());
+        assertEquals(rewardId, verification.rewardId());
+
+        // Solo la lettura del riscatto in attesa, nessun salvataggio del documento intero
+        verify(redeemRepository, never()).findById(anyString());
+        verify(redeemRepository, never()).insert(any(Redeem.class));
+        verify(notificationHandler).sendNotificationMessage(any(NotificationMessageDTO.class));
+        verify(redeemCodeFilter).issued(List.of(settlement.redeemCode()));
+
+        // La quantità è già stata riservata: si contabilizza solo il venduto, senza riscrivere il documento
+        verify(rewardRepository).applyStockChanges(Map.of(rewardId, 1), Map.of());
+        verify(rewardCatalog).refresh(Set.of(rewardId));
+        verify(rewardRepository, never()).save(any(Reward.class));
+        verify(rewardRepository, never()).releaseStock(anyString(), anyInt());
+    }
 
-        Redeem redeem = new Redeem();
-        redeem.setRewardId("rewardId");
-        redeem.setUserEmail("user@example.com");
-        redeem.setQuantity(1);
+    @Test
+    void transactionNotificationWithFailedTransactionReleasesStock() {
+        when(redeemRepository.findPendingByIds(Set.of("redeemId"))).thenReturn(List.of(pendingRedeem("redeemId", "rewardId", 3)));
 
-        Reward reward = new Reward();
-        reward.setId("rewardId");
-        reward.setQuantity(10);
+        createTransactionSaga.transactionNotifications(List.of(notification("redeemId", false)));
 
-        when(redeemRepository.findById("redeemId")).thenReturn(Optional.of(redeem));
-        when(rewardRepository.findById("rewardId")).thenReturn(Optional.of(reward));
+        verify(redeemRepository).settleAll(eq(List.of(new RedeemRepositoryCustom.Settlement("redeemId", false, null))), any(LocalDateTime.class));
+        verify(notificationHandler, never()).sendNotificationMessage(any(NotificationMessageDTO.class));
 
-        createTransactionSaga.transactionNotification(dto);
+        verify(rewardRepository, never()).save(any(Reward.class));
+        verify(rewardRepository).applyStockChanges(Map.of(), Map.of("rewardId", 3));
+    }
 
-        verify(redeemRepository).save(redeemArgumentCaptor.capture());
-        Redeem updatedRedeem = redeemArgumentCaptor.getValue();
-        assertTrue(updatedRedeem.isRedeemed());
+    @Test
+    void transactionNotificationForNonexistentRedeemPrintError() {
+        when(redeemRepository.findPendingByIds(anyCollection())).thenReturn(List.of());
 
-        verify(rewardRepository).save(rewardArgumentCaptor.capture());
-        Reward updatedReward = rewardArgumentCaptor.getValue();
-        assertEquals(9, updatedReward.getQuantity());
+        assertDoesNotThrow(() -> createTransactionSaga.transactionNotifications(List.of(notification("nonexistentRedeemId", true))));
+        verify(redeemRepository, never()).settleAll(anyCollection(), any(LocalDateTime.class));
+        verify(rewardRepository, never()).applyStockChanges(anyMap(), anyMap());
+        verify(notificationHandler, never()).sendNotificationMessage(any(NotificationMessageDTO.class));
     }
 
     @Test
-    void transactionNotificationWithFailedTransactionDoesNotUpdateReward() {
-        RedeemTransactionDTO dto = new RedeemTransactionDTO();
-        dto.setTransactionOwner("redeemId");
-        dto.setCompleted(false);
-
-        Redeem redeem = new Redeem();
-        redeem.setRewardId("rewardId");
-        redeem.setUserEmail("user@example.com");
+    void singleNotificationIsRequeuedLikeABatchWhenAWriteFails() {
+        when(redeemRepository.findPendingByIds(anyCollection())).thenReturn(List.of(pendingRedeem("redeemId", "rewardId", 1)));
+        doThrow(new IllegalStateException("Mongo unavailable")).when(rewardRepository).applyStockChanges(anyMap(), anyMap());
+
+        // L'eccezione arriva al container, che rimette in coda il messaggio
+        assertThrows(IllegalStateException.class, () -> createTransactionSaga.transactionNotifications(List.of(notification("redeemId", true))));
+        verify(redeemRepository, never()).settleAll(anyCollection(), any(LocalDateTime.class));
+        // Il marchio viene tolto: alla riconsegna la variazione di stock viene applicata
+        ArgumentCaptor<String> token = ArgumentCaptor.forClass(String.class);
+        verify(redeemRepository).claimStockChanges(eq(List.of("redeemId")), token.capture());
+        verify(redeemRepository).releaseStockChanges(List.of("redeemId"), token.getValue());
+        verify(notificationHandler, never()).sendNotificationMessage(any(NotificationMessageDTO.class));
+    }
 
-        when(redeemRepository.findById("redeemId")).thenReturn(Optional.of(redeem));
+    @Test
+    void stockChangesAreAppliedBeforeTheRedeemsAreSettled() {
+        when(redeemRepository.findPendingByIds(anyCollection())).thenReturn(List.of(pendingRedeem("redeemId", "rewardId", 1)));
+        doThrow(new IllegalStateException("Mongo unavailable")).when(redeemRepository).settleAll(anyCollection(), any(LocalDateTime.class));
+
+        assertThrows(IllegalStateException.class, () -> createTransactionSaga.transactionNotifications(List.of(notification("redeemId", true))));
+
+        // Il riscatto resta marcato: alla riconsegna è ancora in attesa ma la sua variazione non viene contata di nuovo
+        InOrder inOrder = inOrder(rewardRepository, redeemRepository);
+        inOrder.verify(redeemRepository).claimStockChanges(eq(List.of("redeemId")), anyString());
+        inOrder.verify(rewardRepository).applyStockChanges(Map.of("rewardId", 1), Map.of());
+        inOrder.verify(redeemRepository).settleAll(anyCollection(), any(LocalDateTime.class));
+        verify(redeemRepository, never()).releaseStockChanges(anyCollection(), anyString());
+        verify(notificationHandler, never()).sendNotificationMessage(any(NotificationMessageDTO.class));
+    }
 
-        createTransactionSaga.transactionNotification(dto);
+    @Test
+    void redeemsMarkedByAnEarlierDeliveryAreSettledWithoutCountingTheStockAgain() {
+        when(redeemRepository.findPendingByIds(anyCollection())).thenReturn(List.of(
+                pendingRedeem("redeem1", "rewardA", 1),
+                pendingRedeem("redeem2", "rewardA", 2)));
+        when(redeemRepository.claimStockChanges(anyCollection(), anyString())).thenReturn(Set.of("redeem2"));
 
-        verify(redeemRepository).save(redeemArgumentCaptor.capture());
-        Redeem updatedRedeem = redeemArgumentCaptor.getValue();
-        assertFalse(updatedRedeem.isRedeemed());
+        createTransactionSaga.transactionNotifications(List.of(notification("redeem1", true), notification("redeem2", true)));
 
-        verify(rewardRepository, never()).save(any(Reward.class));
+        verify(rewardRepository).applyStockChanges(Map.of("rewardA", 2), Map.of());
+        verify(redeemRepository).settleAll(argThat(settlements -> settlements.size() == 2), any(LocalDateTime.class));
     }
 
     @Test
-    void transactionNotificationForNonexistentRedeemPrintError() {
-        RedeemTransactionDTO dto = new RedeemTransactionDTO();
-        dto.setTransactionOwner("nonexistentRedeemId");
-        dto.setCompleted(true);
-
-        when(redeemRepository.findById(anyString())).thenReturn(Optional.empty());
-
-        assertDoesNotThrow(() -> createTransactionSaga.transactionNotification(dto));
-        verify(redeemRepository, never()).save(any(Redeem.class));
+    void onlyTheRedeemsOfTheRewardsNotUpdatedAreReleased() {
+        when(redeemRepository.findPendingByIds(anyCollection())).thenReturn(List.of(
+                pendingRedeem("redeem1", "rewardA", 1),
+                pendingRedeem("redeem2", "rewardB", 2)));
+        when(rewardRepository.applyStockChanges(anyMap(), anyMap())).thenReturn(Set.of("rewardB"));
+
+        assertThrows(IllegalStateException.class, () -> createTransactionSaga.transactionNotifications(
+                List.of(notification("redeem1", true), notification("redeem2", false))));
+
+        // rewardA ha già la variazione: il suo riscatto resta marcato e non verrà contato di nuovo
+        verify(redeemRepository).releaseStockChanges(eq(List.of("redeem2")), anyString());
+        verify(redeemRepository, never()).settleAll(anyCollection(), any(LocalDateTime.class));
     }
 
     @Test
-    void transactionNotificationForNonexistentRewardThrowsException() {
+    void transactionNotificationsBatchSettlesWithBulkWrites() {
+        List<RedeemTransactionDTO> batch = List.of(
+                notification("redeem1", true),
+                notification("redeem2", true),
+                notification("redeem3", false),
+                notification("redeem1", true)); // duplicata
+
+        when(redeemRepository.findPendingByIds(anyCollection())).thenReturn(List.of(
+                pendingRedeem("redeem1", "rewardA", 1),
+                pendingRedeem("redeem2", "rewardA", 2),
+                pendingRedeem("redeem3", "rewardB", 4)));
+
+        createTransactionSaga.transactionNotifications(batch);
+
+        ArgumentCaptor<Collection<RedeemRepositoryCustom.Settlement>> settlementsCaptor = ArgumentCaptor.forClass(Collection.class);
+        verify(redeemRepository, times(1)).settleAll(settlementsCaptor.capture(), any(LocalDateTime.class));
+        assertEquals(3, settlementsCaptor.getValue().size());
+        assertTrue(settlementsCaptor.getValue().stream()
+                .filter(RedeemRepositoryCustom.Settlement::completed)
+                .allMatch(settlement -> settlement.redeemCode() != null));
+
+        // I due codici emessi entrano nel filtro con una sola chiamata
+        verify(redeemCodeFilter, times(1)).issued(argThat(codes -> codes.size() == 2));
+
+        // Un solo aggiornamento per reward: i pezzi dei riscatti dello stesso reward vengono sommati
+        verify(rewardRepository, times(1)).applyStockChanges(Map.of("rewardA", 3), Map.of("rewardB", 4));
+        verify(rewardCatalog, times(1)).refresh(Set.of("rewardA", "rewardB"));
+        verify(notificationHandler, times(2)).sendNotificationMessage(any(NotificationMessageDTO.class));
+    }
+
+    private static RedeemTransactionDTO notification(String redeemId, boolean completed) {
         RedeemTransactionDTO dto = new RedeemTransactionDTO();
-        dto.setTransactionOwner("redeemId");
-        dto.setCompleted(true);
+        dto.setTransactionOwner(redeemId);
+        dto.setCompleted(completed);
+        return dto;
+    }
 
+    private static Redeem pendingRedeem(String redeemId, String rewardId, int quantity) {
         Redeem redeem = new Redeem();
-        redeem.setRewardId("nonexistentRewardId");
-
-        when(redeemRepository.findById("redeemId")).thenReturn(Optional.of(redeem));
-        when(rewardRepository.findById("nonexistentRewardId")).thenReturn(Optional.empty());
-
-        assertDoesNotThrow(() -> createTransactionSaga.transactionNotification(dto));
-        verify(rewardRepository, never()).save(any(Reward.class));
+        redeem.setRedeemId(redeemId);
+        redeem.setRewardId(rewardId);
+        redeem.setUserEmail("user@example.com");
+        redeem.setQuantity(quantity);
+        return redeem;
     }
-}
\ No newline at end of file
+}
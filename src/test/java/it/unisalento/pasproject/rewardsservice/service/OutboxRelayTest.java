@@ -0,0 +1,114 @@
+package it.unisalento.pasproject.rewardsservice.service;
+
+import it.unisalento.pasproject.rewardsservice.business.io.producer.MessageProducer;
+import it.unisalento.pasproject.rewardsservice.domain.OutboxMessage;
+import it.unisalento.pasproject.rewardsservice.domain.Redeem;
+import it.unisalento.pasproject.rewardsservice.dto.RedeemTransactionDTO;
+import it.unisalento.pasproject.rewardsservice.repositories.RedeemRepository;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyCollection;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+class OutboxRelayTest {
+
+    private RedeemRepository redeemRepository;
+
+    private MessageProducer messageProducer;
+
+    private OutboxRelay outboxRelay;
+
+    @BeforeEach
+    void setUp() {
+        redeemRepository = mock(RedeemRepository.class);
+        messageProducer = mock(MessageProducer.class);
+        outboxRelay = new OutboxRelay(redeemRepository, messageProducer);
+        ReflectionTestUtils.setField(outboxRelay, "batchSize", 10);
+        ReflectionTestUtils.setField(outboxRelay, "confirmTimeout", 1000L);
+        ReflectionTestUtils.setField(outboxRelay, "lease", 30000L);
+    }
+
+    @Test
+    void relayBatchMarksOnlyConfirmedMessagesAsSent() {
+        Redeem acked = pendingRedeem("acked");
+        Redeem nacked = pendingRedeem("nacked");
+        Redeem unconfirmed = pendingRedeem("unconfirmed");
+
+        when(redeemRepository.claimOutbox(anyString(), eq(10), any(Duration.class))).thenReturn(List.of(acked, nacked, unconfirmed));
+        when(messageProducer.sendMessageWithConfirm(same(acked.getOutbox().getPayload()), anyString(), anyString()))
+                .thenReturn(CompletableFuture.completedFuture(true));
+        when(messageProducer.sendMessageWithConfirm(same(nacked.getOutbox().getPayload()), anyString(), anyString()))
+                .thenReturn(CompletableFuture.completedFuture(false));
+        when(messageProducer.sendMessageWithConfirm(same(unconfirmed.getOutbox().getPayload()), anyString(), anyString()))
+                .thenReturn(CompletableFuture.failedFuture(new IllegalStateException("Channel closed")));
+
+        assertEquals(3, outboxRelay.relayBatch());
+
+        @SuppressWarnings("unchecked")
+        ArgumentCaptor<Collection<String>> sent = ArgumentCaptor.forClass(Collection.class);
+        verify(redeemRepository).markOutboxSent(sent.capture(), any(LocalDateTime.class));
+        assertEquals(List.of("acked"), List.copyOf(sent.getValue()));
+    }
+
+    @Test
+    void relayBatchPublishesEveryMessageBeforeWaitingForConfirms() {
+        Redeem first = pendingRedeem("first");
+        Redeem second = pendingRedeem("second");
+        CompletableFuture<Boolean> firstConfirm = new CompletableFuture<>();
+
+        when(redeemRepository.claimOutbox(anyString(), anyInt(), any(Duration.class))).thenReturn(List.of(first, second));
+        when(messageProducer.sendMessageWithConfirm(same(first.getOutbox().getPayload()), anyString(), anyString())).thenReturn(firstConfirm);
+        when(messageProducer.sendMessageWithConfirm(same(second.getOutbox().getPayload()), anyString(), anyString()))
+                .thenAnswer(invocation -> {
+                    // Il secondo messaggio parte prima che il primo sia confermato
+                    assertFalse(firstConfirm.isDone());
+                    firstConfirm.complete(true);
+                    return CompletableFuture.completedFuture(true);
+                });
+
+        outboxRelay.relayBatch();
+
+        verify(messageProducer, times(2)).sendMessageWithConfirm(any(), eq("transaction.receive"), eq("transaction-exchange"));
+        verify(redeemRepository).markOutboxSent(eq(List.of("first", "second")), any(LocalDateTime.class));
+    }
+
+    @Test
+    void relayBatchWithEmptyOutboxDoesNothing() {
+        when(redeemRepository.claimOutbox(anyString(), anyInt(), any(Duration.class))).thenReturn(List.of());
+
+        assertEquals(0, outboxRelay.relayBatch());
+
+        verifyNoInteractions(messageProducer);
+        verify(redeemRepository, never()).markOutboxSent(anyCollection(), any(LocalDateTime.class));
+    }
+
+    private static Redeem pendingRedeem(String redeemId) {
+        RedeemTransactionDTO transaction = new RedeemTransactionDTO();
+        transaction.setTransactionOwner(redeemId);
+
+        OutboxMessage outbox = new OutboxMessage();
+        outbox.setExchange("transaction-exchange");
+        outbox.setRoutingKey("transaction.receive");
+        outbox.setPayload(transaction);
+        outbox.setCreatedAt(LocalDateTime.now());
+
+        Redeem redeem = new Redeem();
+        redeem.setRedeemId(redeemId);
+        redeem.setOutbox(outbox);
+        return redeem;
+    }
+}
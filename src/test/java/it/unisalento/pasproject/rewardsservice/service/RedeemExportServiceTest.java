@@ -0,0 +1,83 @@
+package it.unisalento.pasproject.rewardsservice.service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import it.unisalento.pasproject.rewardsservice.domain.Redeem;
+import it.unisalento.pasproject.rewardsservice.repositories.RedeemRepository;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+class RedeemExportServiceTest {
+
+    private RedeemRepository redeemRepository;
+
+    private ObjectMapper objectMapper;
+
+    private RedeemExportService redeemExportService;
+
+    @BeforeEach
+    void setUp() {
+        redeemRepository = mock(RedeemRepository.class);
+        RewardService rewardService = mock(RewardService.class);
+        when(rewardService.getRedeemDTO(any(Redeem.class))).thenCallRealMethod();
+
+        objectMapper = new ObjectMapper().findAndRegisterModules().disable(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS);
+        redeemExportService = new RedeemExportService(redeemRepository, rewardService, objectMapper);
+    }
+
+    @Test
+    void ndjsonExportWritesOneJsonObjectPerLineAndClosesCursor() throws Exception {
+        AtomicBoolean closed = new AtomicBoolean();
+        LocalDateTime from = LocalDateTime.of(2024, 1, 1, 0, 0);
+        when(redeemRepository.streamForExport("user@example.com", null, from, null))
+                .thenReturn(Stream.of(redeem("r1", "code,1"), redeem("r2", null)).onClose(() -> closed.set(true)));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        long written = redeemExportService.export(RedeemExportService.Format.NDJSON, "user@example.com", null, from, null, out);
+
+        String[] lines = out.toString(StandardCharsets.UTF_8).split("\n");
+        assertEquals(2, written);
+        assertEquals(2, lines.length);
+
+        JsonNode first = objectMapper.readTree(lines[0]);
+        assertEquals("r1", first.get("redeemId").asText());
+        assertEquals("2024-05-01T10:15:30", first.get("redeemDate").asText());
+        assertTrue(closed.get());
+    }
+
+    @Test
+    void csvExportQuotesFieldsWithSeparators() throws Exception {
+        when(redeemRepository.streamForExport(null, "rewardId", null, null))
+                .thenReturn(Stream.of(redeem("r1", "code,\"1\"")));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        redeemExportService.export(RedeemExportService.Format.CSV, null, "rewardId", null, null, out);
+
+        String[] lines = out.toString(StandardCharsets.UTF_8).split("\n");
+        assertEquals("redeemId,rewardId,userEmail,quantity,redeemDate,redeemed,redeemCode,used,usedDate", lines[0]);
+        assertEquals("r1,rewardId,user@example.com,2,2024-05-01T10:15:30,true,\"code,\"\"1\"\"\",false,", lines[1]);
+    }
+
+    private static Redeem redeem(String id, String code) {
+        Redeem redeem = new Redeem();
+        redeem.setRedeemId(id);
+        redeem.setRewardId("rewardId");
+        redeem.setUserEmail("user@example.com");
+        redeem.setQuantity(2);
+        redeem.setRedeemDate(LocalDateTime.of(2024, 5, 1, 10, 15, 30));
+        redeem.setRedeemed(true);
+        redeem.setRedeemCode(code);
+        return redeem;
+    }
+}
@@ -1,8 +1,13 @@
 package it.unisalento.pasproject.rewardsservice.service;
 
+import it.unisalento.pasproject.rewardsservice.business.reedem.RedeemCodeFilter;
+import it.unisalento.pasproject.rewardsservice.business.reedem.RedeemCodeGenerator;
+import it.unisalento.pasproject.rewardsservice.business.reedem.RedeemCodeSigner;
+import it.unisalento.pasproject.rewardsservice.business.reedem.RedeemUseStatus;
 import it.unisalento.pasproject.rewardsservice.exceptions.RedeemException;
 import it.unisalento.pasproject.rewardsservice.repositories.RedeemRepository;
 import it.unisalento.pasproject.rewardsservice.domain.Redeem;
+import org.bson.types.ObjectId;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
@@ -13,11 +18,16 @@ import org.springframework.boot.test.mock.mockito.MockBean;
 import org.mockito.InjectMocks;
 
 import java.time.LocalDateTime;
+import java.util.List;
 import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.BDDMockito.given;
 import static org.mockito.Mockito.*;
 
@@ -28,63 +38,281 @@ class RedeemServiceTest {
     @MockBean
     private RedeemRepository redeemRepository;
 
+    @MockBean
+    private RedeemCodeSigner redeemCodeSigner;
+
+    @MockBean
+    private RedeemCodeFilter redeemCodeFilter;
+
     @InjectMocks
     private RedeemService redeemService;
 
     private Redeem redeem;
 
+    // Codici nel formato precedente alla firma
+    private String validCode;
+    private String invalidCode;
+
     @BeforeEach
     void setUp() {
         MockitoAnnotations.openMocks(this);
         redeemRepository = mock(RedeemRepository.class);
-        redeemService = new RedeemService(redeemRepository);
+        RedeemCodeGenerator generator = new RedeemCodeGenerator(RedeemCodeGenerator.Format.TOKEN, RedeemCodeGenerator.DEFAULT_ALPHABET, 16, 4, 0);
+        redeemCodeSigner = new RedeemCodeSigner(generator, "test-signing-key", true, true);
+        redeemCodeFilter = mock(RedeemCodeFilter.class);
+        lenient().when(redeemCodeFilter.mightContain(any())).thenReturn(true);
+        redeemService = new RedeemService(redeemRepository, redeemCodeSigner, redeemCodeFilter);
+
+        validCode = generator.generate();
+        invalidCode = generator.generate();
 
         redeem = new Redeem();
-        redeem.setRedeemCode("validCode");
+        redeem.setRedeemCode(validCode);
         redeem.setUserEmail("user@example.com");
+        redeem.setRedeemed(true);
         redeem.setUsed(false);
     }
 
     @Test
     void useRedeemWithValidCodeAndEmailMarksRedeemAsUsed() {
-        when(redeemRepository.findByRedeemCode("validCode")).thenReturn(Optional.of(redeem));
-        given(redeemRepository.save(any(Redeem.class))).willAnswer(invocation -> invocation.getArgument(0));
+        given(redeemRepository.consume(eq(validCode), eq("user@example.com"), any(LocalDateTime.class))).willAnswer(invocation -> {
+            redeem.setUsed(true);
+            redeem.setUsedDate(invocation.getArgument(2));
+            return Optional.of(redeem);
+        });
 
-        Redeem updatedRedeem = redeemService.useRedeem("validCode", "user@example.com");
+        Redeem updatedRedeem = redeemService.useRedeem(validCode, "user@example.com");
 
         assertTrue(updatedRedeem.isUsed());
         assertNotNull(updatedRedeem.getUsedDate());
-        verify(redeemRepository).save(any(Redeem.class));
+        // Il codice viene consumato con un solo aggiornamento condizionale, senza leggere prima il redeem
+        verify(redeemRepository, never()).findByRedeemCode(any());
+        verify(redeemRepository, never()).save(any(Redeem.class));
     }
 
     @Test
     void useRedeemWithInvalidCodeThrowsRedeemException() {
-        when(redeemRepository.findByRedeemCode("invalidCode")).thenReturn(Optional.empty());
+        when(redeemRepository.findByRedeemCode(invalidCode)).thenReturn(Optional.empty());
 
-        assertThrows(RedeemException.class, () -> redeemService.useRedeem("invalidCode", "user@example.com"));
+        RedeemException e = assertThrows(RedeemException.class, () -> redeemService.useRedeem(invalidCode, "user@example.com"));
+        assertThat(e.getMessage()).isEqualTo("Redeem not found");
     }
 
     @Test
     void useRedeemWithInvalidEmailThrowsRedeemException() {
-        when(redeemRepository.findByRedeemCode("validCode")).thenReturn(Optional.of(redeem));
+        when(redeemRepository.findByRedeemCode(validCode)).thenReturn(Optional.of(redeem));
 
-        assertThrows(RedeemException.class, () -> redeemService.useRedeem("validCode", "wrong@example.com"));
+        RedeemException e = assertThrows(RedeemException.class, () -> redeemService.useRedeem(validCode, "wrong@example.com"));
+        assertThat(e.getMessage()).isEqualTo("Redeem not found");
     }
 
     @Test
     void useRedeemWithAlreadyUsedCodeThrowsRedeemException() {
         redeem.setUsed(true);
-        when(redeemRepository.findByRedeemCode("validCode")).thenReturn(Optional.of(redeem));
+        when(redeemRepository.findByRedeemCode(validCode)).thenReturn(Optional.of(redeem));
 
-        assertThrows(RedeemException.class, () -> redeemService.useRedeem("validCode", "user@example.com"));
+        RedeemException e = assertThrows(RedeemException.class, () -> redeemService.useRedeem(validCode, "user@example.com"));
+        assertThat(e.getMessage()).isEqualTo("Redeem already used");
+    }
+
+    @Test
+    void useRedeemLosingTheRaceToAConcurrentUseThrowsRedeemException() {
+        // Letto dopo il tentativo fallito: nel frattempo un'altra richiesta ha consumato il codice
+        when(redeemRepository.consume(eq(validCode), eq("user@example.com"), any(LocalDateTime.class))).thenReturn(Optional.empty());
+        when(redeemRepository.findByRedeemCode(validCode)).thenAnswer(invocation -> {
+            redeem.setUsed(true);
+            return Optional.of(redeem);
+        });
+
+        RedeemException e = assertThrows(RedeemException.class, () -> redeemService.useRedeem(validCode, "user@example.com"));
+        assertThat(e.getMessage()).isEqualTo("Redeem already used");
+        verify(redeemRepository, never()).save(any(Redeem.class));
     }
 
     @Test
     void useRedeemWithUncompletedTransactionThrowsRedeemException() {
         redeem.setRedeemDate(LocalDateTime.now());
         redeem.setRedeemed(false);
-        when(redeemRepository.findByRedeemCode("validCode")).thenReturn(Optional.of(redeem));
+        when(redeemRepository.findByRedeemCode(validCode)).thenReturn(Optional.of(redeem));
+
+        RedeemException e = assertThrows(RedeemException.class, () -> redeemService.useRedeem(validCode, "user@example.com"));
+        assertThat(e.getMessage()).isEqualTo("Invalid redeem code");
+    }
+
+    @Test
+    void useRedeemWithSignedCodeConsumesItById() {
+        String redeemId = new ObjectId().toHexString();
+        String code = redeemCodeSigner.issue(redeemId, new ObjectId().toHexString());
+        redeem.setRedeemId(redeemId);
+        redeem.setRedeemCode(code);
+        when(redeemRepository.consumeById(eq(redeemId), eq(code), eq("user@example.com"), any(LocalDateTime.class))).thenReturn(Optional.of(redeem));
+
+        assertSame(redeem, redeemService.useRedeem(code, "user@example.com"));
+        verify(redeemRepository, never()).consume(any(), any(), any());
+        verify(redeemRepository, never()).findByRedeemCode(any());
+    }
+
+    @Test
+    void useRedeemWithForgedSignedCodeIsRejectedWithoutDatabaseAccess() {
+        String code = redeemCodeSigner.issue(new ObjectId().toHexString(), new ObjectId().toHexString());
+        // Un carattere cambiato nel redeemId firmato
+        int position = RedeemCodeSigner.PREFIX.length() + 2;
+        char changed = code.charAt(position) == 'A' ? 'B' : 'A';
+        String forged = code.substring(0, position) + changed + code.substring(position + 1);
+
+        RedeemException e = assertThrows(RedeemException.class, () -> redeemService.useRedeem(forged, "user@example.com"));
+        assertThat(e.getMessage()).isEqualTo("Redeem not found");
+        verifyNoInteractions(redeemRepository);
+    }
+
+    @Test
+    void useRedeemWithMalformedCodeIsRejectedWithoutDatabaseAccess() {
+        assertThrows(RedeemException.class, () -> redeemService.useRedeem("not-a-code", "user@example.com"));
+        assertThrows(RedeemException.class, () -> redeemService.useRedeem(RedeemCodeSigner.PREFIX + "%%%", "user@example.com"));
+        verifyNoInteractions(redeemRepository);
+    }
+
+    @Test
+    void useRedeemWithSignedCodeOfAnotherUserThrowsRedeemException() {
+        String redeemId = new ObjectId().toHexString();
+        String code = redeemCodeSigner.issue(redeemId, new ObjectId().toHexString());
+        redeem.setRedeemId(redeemId);
+        redeem.setRedeemCode(code);
+        when(redeemRepository.findById(redeemId)).thenReturn(Optional.of(redeem));
+
+        RedeemException e = assertThrows(RedeemException.class, () -> redeemService.useRedeem(code, "wrong@example.com"));
+        assertThat(e.getMessage()).isEqualTo("Redeem not found");
+        verify(redeemRepository, never()).findByRedeemCode(any());
+    }
+
+    @Test
+    void useRedeemWithCodeNeverIssuedIsRejectedByTheFilter() {
+        when(redeemCodeFilter.mightContain(invalidCode)).thenReturn(false);
+
+        RedeemException e = assertThrows(RedeemException.class, () -> redeemService.useRedeem(invalidCode, "user@example.com"));
+        assertThat(e.getMessage()).isEqualTo("Redeem not found");
+        verifyNoInteractions(redeemRepository);
+    }
+
+    @Test
+    void useRedeemWithCodePassingTheFilterButMissingRecordsAFalsePositive() {
+        when(redeemRepository.findByRedeemCode(invalidCode)).thenReturn(Optional.empty());
+
+        assertThrows(RedeemException.class, () -> redeemService.useRedeem(invalidCode, "user@example.com"));
+        verify(redeemCodeFilter).falsePositive();
+    }
+
+    @Test
+    void useRedeemsResolvesEveryCodeWithOneQueryAndOneBulkWrite() {
+        String redeemId = new ObjectId().toHexString();
+        String signedCode = redeemCodeSigner.issue(redeemId, new ObjectId().toHexString());
+        Redeem signed = redeem(redeemId, signedCode, "user@example.com");
+        redeem.setRedeemId(new ObjectId().toHexString());
+
+        String usedCode = invalidCode;
+        Redeem used = redeem(new ObjectId().toHexString(), usedCode, "user@example.com");
+        used.setUsed(true);
+
+        String missingId = new ObjectId().toHexString();
+        String missingCode = redeemCodeSigner.issue(missingId, new ObjectId().toHexString());
+
+        when(redeemRepository.findForUse(List.of(redeemId, missingId), List.of(validCode, usedCode)))
+                .thenReturn(List.of(redeem, used, signed));
+        when(redeemRepository.consumeAll(any(), eq("user@example.com"), any(LocalDateTime.class), anyString())).thenReturn(2);
+
+        List<RedeemService.RedeemUse> results = redeemService.useRedeems(
+                List.of(validCode, signedCode, usedCode, missingCode, "not-a-code"), "user@example.com");
+
+        assertThat(results).extracting(RedeemService.RedeemUse::status).containsExactly(
+                RedeemUseStatus.CONSUMED, RedeemUseStatus.CONSUMED, RedeemUseStatus.ALREADY_USED,
+                RedeemUseStatus.NOT_FOUND, RedeemUseStatus.NOT_FOUND);
+        assertSame(redeem, results.get(0).redeem());
+        assertTrue(results.get(1).redeem().isUsed());
+        assertNull(results.get(2).redeem());
+
+        verify(redeemRepository).consumeAll(argThat(redeems -> List.copyOf(redeems).equals(List.of(redeem, signed))), eq("user@example.com"), any(LocalDateTime.class), anyString());
+        // Nessuna rilettura se tutti gli aggiornamenti sono stati applicati
+        verify(redeemRepository, never()).findAllById(any());
+        verify(redeemRepository, never()).findByRedeemCode(any());
+        verify(redeemRepository, never()).consume(any(), any(), any());
+    }
+
+    @Test
+    void useRedeemsReportsCodesOfOtherUsersAndUnpaidRedeems() {
+        Redeem other = redeem(new ObjectId().toHexString(), invalidCode, "other@example.com");
+        redeem.setRedeemId(new ObjectId().toHexString());
+        redeem.setRedeemed(false);
+        when(redeemRepository.findForUse(List.of(), List.of(validCode, invalidCode))).thenReturn(List.of(redeem, other));
+
+        List<RedeemService.RedeemUse> results = redeemService.useRedeems(List.of(validCode, invalidCode), "user@example.com");
+
+        assertThat(results).extracting(RedeemService.RedeemUse::status)
+                .containsExactly(RedeemUseStatus.INVALID, RedeemUseStatus.NOT_OWNED);
+        verify(redeemRepository, never()).consumeAll(any(), any(), any(), any());
+    }
+
+    @Test
+    void useRedeemsReportsCodesUsedConcurrentlyAsAlreadyUsed() {
+        Redeem lost = redeem(new ObjectId().toHexString(), invalidCode, "user@example.com");
+        redeem.setRedeemId(new ObjectId().toHexString());
+        when(redeemRepository.findForUse(List.of(), List.of(validCode, invalidCode))).thenReturn(List.of(redeem, lost));
+
+        // Solo il primo aggiornamento viene applicato: il secondo codice è stato usato da un'altra richiesta nello stesso istante
+        AtomicReference<LocalDateTime> usedDate = new AtomicReference<>();
+        AtomicReference<String> useToken = new AtomicReference<>();
+        when(redeemRepository.consumeAll(any(), eq("user@example.com"), any(LocalDateTime.class), anyString())).thenAnswer(invocation -> {
+            usedDate.set(invocation.getArgument(2));
+            useToken.set(invocation.getArgument(3));
+            return 1;
+        });
+        when(redeemRepository.findAllById(any())).thenAnswer(invocation -> {
+            Redeem ours = redeem(redeem.getRedeemId(), validCode, "user@example.com");
+            ours.setUsed(true);
+            ours.setUsedDate(usedDate.get());
+            ours.setUseToken(useToken.get());
+            Redeem theirs = redeem(lost.getRedeemId(), invalidCode, "user@example.com");
+            theirs.setUsed(true);
+            theirs.setUsedDate(usedDate.get());
+            theirs.setUseToken(UUID.randomUUID().toString());
+            return List.of(ours, theirs);
+        });
+
+        List<RedeemService.RedeemUse> results = redeemService.useRedeems(List.of(validCode, invalidCode), "user@example.com");
+
+        assertThat(results).extracting(RedeemService.RedeemUse::status)
+                .containsExactly(RedeemUseStatus.CONSUMED, RedeemUseStatus.ALREADY_USED);
+    }
+
+    @Test
+    void useRedeemsConsumesARepeatedCodeOnce() {
+        redeem.setRedeemId(new ObjectId().toHexString());
+        when(redeemRepository.findForUse(List.of(), List.of(validCode))).thenReturn(List.of(redeem));
+        when(redeemRepository.consumeAll(any(), eq("user@example.com"), any(LocalDateTime.class), anyString())).thenReturn(1);
+
+        List<RedeemService.RedeemUse> results = redeemService.useRedeems(List.of(validCode, validCode), "user@example.com");
+
+        assertThat(results).extracting(RedeemService.RedeemUse::status)
+                .containsExactly(RedeemUseStatus.CONSUMED, RedeemUseStatus.ALREADY_USED);
+        verify(redeemRepository).consumeAll(argThat(redeems -> List.copyOf(redeems).equals(List.of(redeem))), eq("user@example.com"), any(LocalDateTime.class), anyString());
+    }
+
+    @Test
+    void useRedeemsWithOnlyRejectedCodesDoesNotTouchTheDatabase() {
+        when(redeemCodeFilter.mightContain(invalidCode)).thenReturn(false);
+
+        List<RedeemService.RedeemUse> results = redeemService.useRedeems(List.of(invalidCode, "not-a-code"), "user@example.com");
+
+        assertThat(results).extracting(RedeemService.RedeemUse::status)
+                .containsExactly(RedeemUseStatus.NOT_FOUND, RedeemUseStatus.NOT_FOUND);
+        verifyNoInteractions(redeemRepository);
+    }
 
-        assertThrows(RedeemException.class, () -> redeemService.useRedeem("validCode", "user@example.com"));
+    private static Redeem redeem(String redeemId, String redeemCode, String userEmail) {
+        Redeem redeem = new Redeem();
+        redeem.setRedeemId(redeemId);
+        redeem.setRedeemCode(redeemCode);
+        redeem.setUserEmail(userEmail);
+        redeem.setRedeemed(true);
+        return redeem;
     }
 }
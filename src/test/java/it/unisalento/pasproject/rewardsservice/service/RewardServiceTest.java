@@ -1,8 +1,12 @@
 package it.unisalento.pasproject.rewardsservice.service;
 
+import it.unisalento.pasproject.rewardsservice.business.catalog.CatalogSnapshot;
 import it.unisalento.pasproject.rewardsservice.business.io.producer.MessageProducer;
 import it.unisalento.pasproject.rewardsservice.business.io.producer.MessageProducerStrategy;
 import it.unisalento.pasproject.rewardsservice.business.io.producer.RabbitMQProducer;
+import it.unisalento.pasproject.rewardsservice.business.search.RewardSearchCache;
+import it.unisalento.pasproject.rewardsservice.business.search.RewardSearchSpec;
+import it.unisalento.pasproject.rewardsservice.business.search.RewardSort;
 import it.unisalento.pasproject.rewardsservice.domain.Reward;
 import it.unisalento.pasproject.rewardsservice.repositories.RewardRepository;
 import org.junit.jupiter.api.AfterEach;
@@ -20,13 +24,14 @@ import org.springframework.test.context.ActiveProfiles;
 import org.springframework.test.context.junit.jupiter.SpringExtension;
 
 import java.util.List;
+import java.util.Set;
 
 import static org.assertj.core.api.Assertions.assertThat;
 
 @DataMongoTest()
 @ExtendWith({MockitoExtension.class, SpringExtension.class})
 @ActiveProfiles("test")
-@Import({RewardService.class, MessageProducer.class, RabbitMQProducer.class})
+@Import({RewardService.class, RewardSearchCache.class, MessageProducer.class, RabbitMQProducer.class})
 class RewardServiceTest {
 
     @Autowired
@@ -48,10 +53,16 @@ class RewardServiceTest {
     @Autowired
     private RewardService rewardService;
 
+    @Autowired
+    private RewardSearchCache searchCache;
+
     @Test
     void findRewardsWithAllParametersReturnsCorrectRewards() {
 
-        List<Reward> rewards = rewardService.findRewards("TestName", "TestCategory", "TestSubcategory", 10, 5, 1, 0, true);
+        List<Reward> rewards = rewardService.findRewards(RewardSearchSpec.builder()
+                .name("TestName").category("TestCategory").subcategory("TestSubcategory")
+                .minQuantity(1).maxQuantity(10).minSold(0).maxSold(5).active(true)
+                .build());
 
         assertThat(rewards).hasSize(1);
         assertThat(rewards.getFirst().getName()).isEqualTo("TestName");
@@ -60,7 +71,7 @@ class RewardServiceTest {
     @Test
     void findRewardsWithNullParametersReturnsAllActiveRewards() {
 
-        List<Reward> rewards = rewardService.findRewards(null, null, null, -1, -1, -1, -1, null);
+        List<Reward> rewards = rewardService.findRewards(RewardSearchSpec.builder().build());
 
         // Return by default all active rewards
         assertThat(rewards).hasSize(2);
@@ -69,7 +80,7 @@ class RewardServiceTest {
     @Test
     void findRewardsWithActiveFalseReturnsNotActiveRewards() {
 
-        List<Reward> rewards = rewardService.findRewards(null, null, null, -1, -1, -1, -1, false);
+        List<Reward> rewards = rewardService.findRewards(RewardSearchSpec.builder().active(false).build());
 
         //UNa query del genera ritorna solo i reward attivi, quindi non sarà empty
         assertThat(rewards).isNotEmpty();
@@ -80,13 +91,57 @@ class RewardServiceTest {
     @Test
     void findRewardsWithMinMaxQuantityAndSoldFiltersReturnsCorrectRewards() {
 
-        List<Reward> rewards = rewardService.findRewards(null, null, null, 5, 5, 2, 1, true);
+        List<Reward> rewards = rewardService.findRewards(RewardSearchSpec.builder()
+                .minQuantity(2).maxQuantity(5).minSold(1).maxSold(5).active(true)
+                .build());
 
         assertThat(rewards).hasSize(2);
         assertThat(rewards.stream().allMatch(reward -> reward.getQuantity() <= 5 && reward.getQuantity() >= 2)).isTrue();
         assertThat(rewards.stream().allMatch(reward -> reward.getSold() <= 5 && reward.getSold() >= 1)).isTrue();
     }
 
+    @Test
+    void findRewardsWithOnlyMinSoldDoesNotFilterQuantity() {
+
+        List<Reward> rewards = rewardService.findRewards(RewardSearchSpec.builder().minSold(4).build());
+
+        assertThat(rewards).extracting(Reward::getId).containsExactly("2");
+    }
+
+    @Test
+    void findRewardsWithCostRangeSortAndLimit() {
+
+        List<Reward> rewards = rewardService.findRewards(RewardSearchSpec.builder()
+                .minCost(5.0).maxCost(25.0).sort(RewardSort.COST_DESC).limit(1)
+                .build());
+
+        assertThat(rewards).extracting(Reward::getId).containsExactly("2");
+    }
+
+    @Test
+    void findRewardsPagesAfterId() {
+
+        List<Reward> rewards = rewardService.findRewards(RewardSearchSpec.builder().afterId("1").build());
+
+        assertThat(rewards).extracting(Reward::getId).containsExactly("2");
+    }
+
+    @Test
+    void hotSearchesAreCachedUntilCatalogChanges() {
+        RewardSearchSpec spec = RewardSearchSpec.builder().category("TestCategory").build();
+        for (int i = 0; i < 3; i++) {
+            assertThat(rewardService.findRewards(spec)).hasSize(2);
+        }
+        assertThat(searchCache.size()).isEqualTo(1);
+
+        rewardRepository.deleteById("2");
+        assertThat(rewardService.findRewards(spec)).hasSize(2);
+
+        searchCache.onCatalogChanged(CatalogSnapshot.empty(), Set.of("2"));
+        assertThat(searchCache.size()).isZero();
+        assertThat(rewardService.findRewards(spec)).extracting(Reward::getId).containsExactly("1");
+    }
+
     @BeforeEach
     void setupRewardsInDatabase() {
         Reward reward1 = new Reward();
@@ -136,5 +191,6 @@ class RewardServiceTest {
     @AfterEach
     void cleanDatabase() {
         rewardRepository.deleteAll();
+        searchCache.onCatalogChanged(CatalogSnapshot.empty(), Set.of());
     }
 }
@@ -0,0 +1,189 @@
+package it.unisalento.pasproject.rewardsservice.service;
+
+import it.unisalento.pasproject.rewardsservice.business.cache.UserDetailsCache;
+import it.unisalento.pasproject.rewardsservice.business.io.exchanger.MessageExchangeStrategy;
+import it.unisalento.pasproject.rewardsservice.business.io.exchanger.MessageExchanger;
+import it.unisalento.pasproject.rewardsservice.dto.UserDetailsDTO;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+class UserCheckServiceTest {
+
+    private static final int CONCURRENT_REQUESTS = 10;
+
+    private MessageExchanger messageExchanger;
+
+    private UserCheckService userCheckService;
+
+    private ExecutorService executor;
+
+    @BeforeEach
+    void setUp() {
+        messageExchanger = mock(MessageExchanger.class);
+        // TTL a zero: il test deve dimostrare il coalescing, non il caching
+        userCheckService = service(new UserDetailsCache(0, 100));
+        executor = Executors.newFixedThreadPool(CONCURRENT_REQUESTS);
+    }
+
+    @AfterEach
+    void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    void concurrentLookupsForSameEmailShareOneExchange() throws Exception {
+        when(messageExchanger.exchangeMessageAsync(eq("user@example.com"), eq("security-request"), eq("security-exchange"), eq(UserDetailsDTO.class), anyLong()))
+                .thenAnswer(invocation -> reply(500, new UserDetailsDTO("user@example.com", "MEMBRO", true)));
+
+        List<Future<UserDetailsDTO>> results = runConcurrently("user@example.com");
+
+        for (Future<UserDetailsDTO> result : results) {
+            UserDetailsDTO user = result.get(5, TimeUnit.SECONDS);
+            assertNotNull(user);
+            assertEquals("user@example.com", user.getEmail());
+        }
+
+        verify(messageExchanger, times(1)).exchangeMessageAsync(eq("user@example.com"), eq("security-request"), eq("security-exchange"), eq(UserDetailsDTO.class), anyLong());
+    }
+
+    @Test
+    void concurrentLookupsShareTheFailure() throws Exception {
+        when(messageExchanger.exchangeMessageAsync(eq("user@example.com"), eq("security-request"), eq("security-exchange"), eq(UserDetailsDTO.class), anyLong()))
+                .thenAnswer(invocation -> CompletableFuture.supplyAsync(() -> {
+                    throw new IllegalStateException("Broker unavailable");
+                }, CompletableFuture.delayedExecutor(500, TimeUnit.MILLISECONDS)));
+
+        List<Future<UserDetailsDTO>> results = runConcurrently("user@example.com");
+
+        for (Future<UserDetailsDTO> result : results) {
+            assertNull(result.get(5, TimeUnit.SECONDS));
+        }
+
+        verify(messageExchanger, times(1)).exchangeMessageAsync(eq("user@example.com"), eq("security-request"), eq("security-exchange"), eq(UserDetailsDTO.class), anyLong());
+    }
+
+    @Test
+    void waitersGiveUpAfterTimeout() throws Exception {
+        ReflectionTestUtils.setField(userCheckService, "lookupWaitTimeout", 100L);
+        when(messageExchanger.exchangeMessageAsync(eq("user@example.com"), eq("security-request"), eq("security-exchange"), eq(UserDetailsDTO.class), anyLong()))
+                .thenAnswer(invocation -> reply(1500, new UserDetailsDTO("user@example.com", "MEMBRO", true)));
+
+        List<Future<UserDetailsDTO>> results = runConcurrently("user@example.com");
+
+        // La risposta arriva dopo il timeout di attesa: tutte le richieste rinunciano senza bloccarsi oltre
+        for (Future<UserDetailsDTO> result : results) {
+            assertNull(result.get(1, TimeUnit.SECONDS));
+        }
+
+        verify(messageExchanger, times(1)).exchangeMessageAsync(eq("user@example.com"), eq("security-request"), eq("security-exchange"), eq(UserDetailsDTO.class), anyLong());
+    }
+
+    @Test
+    void lookupsForDifferentEmailsAreNotCoalesced() throws Exception {
+        when(messageExchanger.exchangeMessageAsync(eq("first@example.com"), eq("security-request"), eq("security-exchange"), eq(UserDetailsDTO.class), anyLong()))
+                .thenReturn(CompletableFuture.completedFuture(new UserDetailsDTO("first@example.com", "MEMBRO", true)));
+        when(messageExchanger.exchangeMessageAsync(eq("second@example.com"), eq("security-request"), eq("security-exchange"), eq(UserDetailsDTO.class), anyLong()))
+                .thenReturn(CompletableFuture.completedFuture(new UserDetailsDTO("second@example.com", "MEMBRO", true)));
+
+        assertEquals("first@example.com", userCheckService.loadUserByUsername("first@example.com").getEmail());
+        assertEquals("second@example.com", userCheckService.loadUserByUsername("second@example.com").getEmail());
+    }
+
+    @Test
+    void userEventInvalidatesTheCachedUser() {
+        UserDetailsCache cache = new UserDetailsCache(60_000, 100);
+        UserCheckService cachingService = service(cache);
+        when(messageExchanger.exchangeMessageAsync(eq("user@example.com"), eq("security-request"), eq("security-exchange"), eq(UserDetailsDTO.class), anyLong()))
+                .thenAnswer(invocation -> CompletableFuture.completedFuture(new UserDetailsDTO("user@example.com", "MEMBRO", true)));
+
+        cachingService.loadUserByUsername("user@example.com");
+        cachingService.loadUserByUsername("user@example.com");
+        verify(messageExchanger, times(1)).exchangeMessageAsync(eq("user@example.com"), eq("security-request"), eq("security-exchange"), eq(UserDetailsDTO.class), anyLong());
+
+        cachingService.onUserEvent(new UserDetailsDTO("user@example.com", "MEMBRO", true));
+
+        assertEquals(0, cache.size());
+        cachingService.loadUserByUsername("user@example.com");
+        verify(messageExchanger, times(2)).exchangeMessageAsync(eq("user@example.com"), eq("security-request"), eq("security-exchange"), eq(UserDetailsDTO.class), anyLong());
+    }
+
+    @Test
+    void userEventsWithoutEmailAreIgnored() {
+        UserDetailsCache cache = new UserDetailsCache(60_000, 100);
+        UserCheckService cachingService = service(cache);
+
+        cachingService.onUserEvent(null);
+        cachingService.onUserEvent(new UserDetailsDTO());
+
+        assertEquals(0, cache.getInvalidations());
+    }
+
+    @Test
+    void replyInFlightDuringUserEventIsNotCached() throws Exception {
+        UserDetailsCache cache = new UserDetailsCache(60_000, 100);
+        UserCheckService cachingService = service(cache);
+        CompletableFuture<UserDetailsDTO> inFlight = new CompletableFuture<>();
+        when(messageExchanger.exchangeMessageAsync(eq("user@example.com"), eq("security-request"), eq("security-exchange"), eq(UserDetailsDTO.class), anyLong()))
+                .thenReturn(inFlight)
+                .thenReturn(CompletableFuture.completedFuture(new UserDetailsDTO("user@example.com", "MEMBRO", true)));
+
+        CompletableFuture<UserDetailsDTO> lookup = cachingService.loadUserByUsernameAsync("user@example.com");
+
+        // L'utente viene disabilitato mentre la richiesta è in corso, poi arriva la risposta ormai vecchia
+        cachingService.onUserEvent(new UserDetailsDTO("user@example.com", "MEMBRO", true));
+        inFlight.complete(new UserDetailsDTO("user@example.com", "MEMBRO", true));
+
+        assertNotNull(lookup.get(1, TimeUnit.SECONDS));
+        assertEquals(0, cache.size());
+
+        cachingService.loadUserByUsername("user@example.com");
+        verify(messageExchanger, times(2)).exchangeMessageAsync(eq("user@example.com"), eq("security-request"), eq("security-exchange"), eq(UserDetailsDTO.class), anyLong());
+        assertEquals(1, cache.size());
+    }
+
+    private UserCheckService service(UserDetailsCache cache) {
+        UserCheckService service = new UserCheckService(messageExchanger, mock(MessageExchangeStrategy.class), cache);
+        ReflectionTestUtils.setField(service, "securityExchange", "security-exchange");
+        ReflectionTestUtils.setField(service, "securityRequestRoutingKey", "security-request");
+        ReflectionTestUtils.setField(service, "lookupWaitTimeout", 2000L);
+        return service;
+    }
+
+    private static CompletableFuture<UserDetailsDTO> reply(long delayMillis, UserDetailsDTO user) {
+        return CompletableFuture.supplyAsync(() -> user, CompletableFuture.delayedExecutor(delayMillis, TimeUnit.MILLISECONDS));
+    }
+
+    private List<Future<UserDetailsDTO>> runConcurrently(String email) throws InterruptedException {
+        CountDownLatch ready = new CountDownLatch(CONCURRENT_REQUESTS);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<UserDetailsDTO>> results = new ArrayList<>();
+
+        for (int i = 0; i < CONCURRENT_REQUESTS; i++) {
+            results.add(executor.submit(() -> {
+                ready.countDown();
+                start.await();
+                return userCheckService.loadUserByUsername(email);
+            }));
+        }
+
+        assertTrue(ready.await(5, TimeUnit.SECONDS));
+        start.countDown();
+        return results;
+    }
+}